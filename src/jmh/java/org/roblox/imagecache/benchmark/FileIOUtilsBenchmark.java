@@ -0,0 +1,53 @@
+package org.roblox.imagecache.benchmark;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the generation of the location of a resource in the repository, which every download and every eviction
+ * of an entry goes through.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileIOUtilsBenchmark {
+    private final FileIOUtils fileIOUtils = new FileIOUtils();
+    private final File repository = new File("repository");
+
+    /**
+     * number of path segments of the url.
+     */
+    @Param({"1", "100"})
+    int pathSegments;
+
+    private URL url;
+
+    @Setup
+    public void setUp() throws MalformedURLException {
+        this.url = new URL("http://i.test.com/" + StringUtils.repeat("images/", this.pathSegments - 1) + "image.jpg");
+    }
+
+    @Benchmark
+    public File generateFileLocation() {
+        return this.fileIOUtils.generateFileLocation(this.repository, this.url);
+    }
+}
@@ -0,0 +1,171 @@
+package org.roblox.imagecache.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the hot paths of {@link LRUCacheManager#load(String)}: hits on a warm cache from one and from as many
+ * threads as there are cores, misses that add a new entry, and misses on a full cache that have to evict an entry
+ * as the number of entries grows. The resources are served by a {@link StubDownloadManager}, so that only the cost
+ * of the cache is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LRUCacheManagerBenchmark {
+    private static final int RESOURCE_SIZE = 1024;
+    private static final int MISS_BATCH_SIZE = 100_000;
+
+    private static String key(final long i) {
+        return "http://i.test.com/images/" + i + ".jpg";
+    }
+
+    private static LRUCacheManager newCache(final File repository, final long capacityInBytes,
+                                            final int numberOfItems, final EvictionPolicyType evictionPolicy) {
+        // runs the background deletions of evicted entries inline, so that they are part of the measured cost
+        return new LRUCacheManager(capacityInBytes, numberOfItems, repository.getPath(), new FileIOUtils(),
+                new StubDownloadManager(RESOURCE_SIZE), CacheConfiguration.builder().downloadExecutor(Runnable::run)
+                .evictionPolicy(evictionPolicy).build());
+    }
+
+    /**
+     * Cache holding all of the keys that the hit benchmarks load.
+     */
+    @State(Scope.Benchmark)
+    public static class WarmCache {
+        @Param({"1000", "100000"})
+        int entries;
+
+        LRUCacheManager cache;
+        String[] keys;
+        private File repository;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            this.repository = Files.createTempDirectory("cache-benchmark").toFile();
+            this.cache = newCache(this.repository, (long) this.entries * RESOURCE_SIZE, this.entries,
+                    EvictionPolicyType.LRU);
+            this.keys = new String[this.entries];
+            for (int i = 0; i < this.entries; i++) {
+                this.keys[i] = key(i);
+                this.cache.load(this.keys[i]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.cache.close();
+            FileUtils.deleteDirectory(this.repository);
+        }
+    }
+
+    /**
+     * Empty cache that is large enough to hold a batch of misses without evicting, recreated for every iteration.
+     */
+    @State(Scope.Thread)
+    public static class ColdCache {
+        LRUCacheManager cache;
+        long nextKey;
+        private File repository;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            this.repository = Files.createTempDirectory("cache-benchmark").toFile();
+            this.cache = newCache(this.repository, (long) MISS_BATCH_SIZE * RESOURCE_SIZE, MISS_BATCH_SIZE,
+                    EvictionPolicyType.LRU);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            this.cache.close();
+            FileUtils.deleteDirectory(this.repository);
+        }
+    }
+
+    /**
+     * Full cache of the given number of entries, every load of a new key evicts an entry.
+     */
+    @State(Scope.Thread)
+    public static class FullCache {
+        @Param({"1000", "10000", "100000"})
+        int entries;
+
+        @Param({"LRU", "SLRU", "ARC", "TINY_LFU", "GDSF"})
+        EvictionPolicyType evictionPolicy;
+
+        LRUCacheManager cache;
+        long nextKey;
+        private File repository;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            this.repository = Files.createTempDirectory("cache-benchmark").toFile();
+            this.cache = newCache(this.repository, (long) this.entries * RESOURCE_SIZE, this.entries,
+                    this.evictionPolicy);
+            for (; this.nextKey < this.entries; this.nextKey++) {
+                this.cache.load(key(this.nextKey));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.cache.close();
+            FileUtils.deleteDirectory(this.repository);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public ResultData hit(final WarmCache warmCache) throws IOException {
+        return warmCache.cache.load(warmCache.keys[ThreadLocalRandom.current().nextInt(warmCache.entries)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public ResultData hitContended(final WarmCache warmCache) throws IOException {
+        return warmCache.cache.load(warmCache.keys[ThreadLocalRandom.current().nextInt(warmCache.entries)]);
+    }
+
+    /**
+     * Measures the time a batch of misses takes on an empty cache, so that the cache never has to evict.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = MISS_BATCH_SIZE)
+    @Measurement(iterations = 10, batchSize = MISS_BATCH_SIZE)
+    public ResultData miss(final ColdCache coldCache) throws IOException {
+        return coldCache.cache.load(key(coldCache.nextKey++));
+    }
+
+    @Benchmark
+    public ResultData missWithEviction(final FullCache fullCache) throws IOException {
+        return fullCache.cache.load(key(fullCache.nextKey++));
+    }
+}
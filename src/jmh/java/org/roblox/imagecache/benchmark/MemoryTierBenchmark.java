@@ -0,0 +1,149 @@
+package org.roblox.imagecache.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the trade-off of compressing the memory tier of a {@link StorageMode#TIERED} cache: loads of images that
+ * are all in the disk tier, from a working set four times larger than the memory tier, so that compression trades the
+ * cost of compressing and decompressing the images for a higher hit ratio of the memory tier. The hits and misses of
+ * the memory tier are reported along with the throughput, for images that compress well, for images in a format that
+ * is already compressed and for images that do not compress but are not detected as such.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemoryTierBenchmark {
+    private static final int RESOURCE_SIZE = 16 * 1024;
+    private static final int ENTRIES = 2048;
+    private static final long MEMORY_TIER_CAPACITY = (long) ENTRIES * RESOURCE_SIZE / 4;
+
+    public enum Payload {
+        /**
+         * Uncompressed bitmap with runs of identical pixels, such as BMP images.
+         */
+        BITMAP,
+        /**
+         * JPEG image, detected from its first bytes and never compressed.
+         */
+        JPEG,
+        /**
+         * Random bytes, compressed until the compressed form is known to be too large.
+         */
+        RANDOM
+    }
+
+    /**
+     * Cache whose disk tier holds all of the keys, with a memory tier that holds a quarter of them uncompressed.
+     */
+    @State(Scope.Benchmark)
+    public static class TieredCache {
+        @Param({"BITMAP", "JPEG", "RANDOM"})
+        Payload payload;
+
+        @Param({"false", "true"})
+        boolean compression;
+
+        LRUCacheManager cache;
+        String[] keys;
+        private File repository;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            this.repository = Files.createTempDirectory("memory-tier-benchmark").toFile();
+            this.cache = new LRUCacheManager((long) ENTRIES * RESOURCE_SIZE, ENTRIES, this.repository.getPath(),
+                    new FileIOUtils(), new StubDownloadManager(content(this.payload), true),
+                    CacheConfiguration.builder().downloadExecutor(Runnable::run).storageMode(StorageMode.TIERED)
+                            .memoryTierCapacityInBytes(MEMORY_TIER_CAPACITY).memoryTierCompression(this.compression)
+                            .build());
+            this.keys = new String[ENTRIES];
+            for (int i = 0; i < ENTRIES; i++) {
+                this.keys[i] = "http://i.test.com/images/" + i + ".img";
+                this.cache.load(this.keys[i]);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            this.cache.close();
+            FileUtils.deleteDirectory(this.repository);
+        }
+    }
+
+    /**
+     * Loads served by each tier, JMH reports them as totals per iteration.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class TierHits {
+        public long memoryTierHits;
+        public long diskTierHits;
+    }
+
+    private static byte[] content(final Payload payload) {
+        final byte[] content = new byte[RESOURCE_SIZE];
+        final Random random = new Random(RESOURCE_SIZE);
+        switch (payload) {
+            case BITMAP:
+                content[0] = 'B';
+                content[1] = 'M';
+                for (int i = 2; i < content.length; i += 48) {
+                    final byte[] pixel = {(byte) random.nextInt(256), (byte) random.nextInt(256),
+                            (byte) random.nextInt(256)};
+                    for (int j = i; j < Math.min(i + 48, content.length); j++) {
+                        content[j] = pixel[(j - i) % 3];
+                    }
+                }
+                break;
+            case JPEG:
+                random.nextBytes(content);
+                content[0] = (byte) 0xFF;
+                content[1] = (byte) 0xD8;
+                content[2] = (byte) 0xFF;
+                break;
+            default:
+                random.nextBytes(content);
+        }
+        return content;
+    }
+
+    @Benchmark
+    public ResultData load(final TieredCache tieredCache, final TierHits tierHits) throws IOException {
+        final int memoryTierHits = tieredCache.cache.getMemoryTierHitsCounter();
+        final ResultData resultData = tieredCache.cache.load(
+                tieredCache.keys[ThreadLocalRandom.current().nextInt(ENTRIES)]);
+        if (tieredCache.cache.getMemoryTierHitsCounter() != memoryTierHits) {
+            tierHits.memoryTierHits++;
+        } else {
+            tierHits.diskTierHits++;
+        }
+        return resultData;
+    }
+}
@@ -0,0 +1,72 @@
+package org.roblox.imagecache.benchmark;
+
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+
+/**
+ * Serves resources of a fixed size from memory without making any network calls or writing them to disk, so that the
+ * benchmarks measure the cost of the cache itself. Every resource shares the same bytes, zeros unless given.
+ */
+class StubDownloadManager extends DownloadManager {
+    private final FileIOUtils fileIOUtils = new FileIOUtils();
+    private final byte[] content;
+    private final boolean writeToDisk;
+
+    StubDownloadManager(final int resourceSizeInBytes) {
+        this(new byte[resourceSizeInBytes], false);
+    }
+
+    /**
+     * @param writeToDisk whether the content is written to the location of every resource, for caches that read the
+     *                    resources back from disk.
+     */
+    StubDownloadManager(final byte[] content, final boolean writeToDisk) {
+        this.content = content;
+        this.writeToDisk = writeToDisk;
+    }
+
+    @Override
+    public HttpURLConnection getHttpURLConnection(final String urlKey) throws IOException {
+        return new HttpURLConnection(new URL(urlKey)) {
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+
+            @Override
+            public void connect() {
+            }
+        };
+    }
+
+    @Override
+    public void discard(final HttpURLConnection httpURLConnection) {
+    }
+
+    @Override
+    public long getContentLength(final HttpURLConnection httpURLConnection) {
+        return this.content.length;
+    }
+
+    @Override
+    public ResourceMetaData loadResource(final HttpURLConnection httpURLConnection, final String urlKey,
+                                         final File repository) throws IOException {
+        final File location = this.fileIOUtils.generateFileLocation(repository, new URL(urlKey));
+        if (this.writeToDisk) {
+            Files.createDirectories(location.getParentFile().toPath());
+            Files.write(location.toPath(), this.content);
+        }
+        return new ResourceMetaData(location, this.content.length, this.content);
+    }
+}
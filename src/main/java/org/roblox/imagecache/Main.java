@@ -1,17 +1,49 @@
 package org.roblox.imagecache;
 
+import com.codahale.metrics.CsvReporter;
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import org.apache.commons.cli.*;
+import org.roblox.imagecache.cache.CacheConfiguration;
 import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.FetchedResponse;
+import org.roblox.imagecache.cache.KeepAliveHttpTransport;
 import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+import org.roblox.imagecache.server.ImageServer;
+import org.roblox.imagecache.server.ServerConfiguration;
+import org.roblox.imagecache.simulation.SimulationResult;
+import org.roblox.imagecache.simulation.TraceSimulator;
 import org.roblox.imagecache.types.ResultData;
 import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.types.StorageMode;
 import org.roblox.imagecache.utils.FileIOUtils;
+import org.roblox.imagecache.utils.ResultWriter;
+import org.roblox.imagecache.variant.ImageTransform;
+import org.roblox.imagecache.warmup.CacheWarmer;
+import org.roblox.imagecache.warmup.WarmUpConfiguration;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * Entry point with the main function to simulation cache loading.
@@ -20,18 +52,39 @@ import java.util.List;
 public class Main {
 
     private static final int DEFAULT_NUM_ENTRIES_IN_CACHE = 100;
+    /**
+     * urls of the parallel processing whose responses may be fetched ahead of their loads.
+     */
+    private static final int MAX_FETCHED_AHEAD = 4096;
+    private static final String JMX_DOMAIN = "org.roblox.imagecache";
+    private static final long CSV_REPORTING_PERIOD_SECONDS = 10;
     private static final String DEFAULT_INPUT_FILE = "image-cache-test-input.txt";
     private static final String DEFAULT_OUTPUT_FILE = "image-cache-test-output.txt";
     private static final FileIOUtils fileIOUtils = new FileIOUtils();
-    private static final DownloadManager downloadManager = new DownloadManager();
     private static final String DEFAULT_REPOSITORY = System.getProperty("user.dir");
+    private static final long DEFAULT_PARALLEL_RANGE_THRESHOLD_IN_BYTES = 8L * 1024 * 1024;
+    /**
+     * system property with the number of idle connections per host the keep-alive cache of the JDK keeps, it applies
+     * to the whole process.
+     */
+    private static final String MAX_KEEP_ALIVE_CONNECTIONS_PROPERTY = "http.maxConnections";
 
     public static void main(final String[] args) {
 
         final CommandLine cmd = setUpOptions(args);
-        if(!cmd.hasOption("input") && !cmd.hasOption("output") && !cmd.hasOption("path")) {
+        if (cmd.hasOption("simulate")) {
+            runSimulation(cmd);
+            return;
+        }
+        if (cmd.hasOption("listen") || cmd.hasOption("prefetch")) {
+            runWithCapacity(cmd);
+            return;
+        }
+        final int numOfPathOptions = (cmd.hasOption("input") ? 1 : 0) + (cmd.hasOption("output") ? 1 : 0)
+                + (cmd.hasOption("path") ? 1 : 0);
+        if(numOfPathOptions == 0) {
             System.out.println("Running the image cache simulation in default Mode");
-        } else if (cmd.getOptions().length > 0 && cmd.getOptions().length < 3) {
+        } else if (numOfPathOptions < 3) {
             System.out.println("Expected either paths to both input and output file or no arguments to run in default mode");
             System.exit(1);
         }
@@ -44,14 +97,216 @@ public class Main {
         System.out.println("Generated output of image cache simulation to output file: " + Paths.get(outputFilePath).toAbsolutePath());
         System.out.println("Path for downloaded resources would be: " + Paths.get(cacheRepository).toAbsolutePath());
 
-        //1. Parse input file
-        final List<String> inputImageUrls = fileIOUtils.readFileToList(inputFilePath);
+        final CacheConfiguration configuration = buildCacheConfiguration(cmd);
+        final ImageTransform transform = cmd.hasOption("variant") ? parseTransform(cmd) : null;
+        final int parallelism = cmd.hasOption("parallelism") ? parseParallelism(cmd)
+                : cmd.hasOption("async") ? Integer.MAX_VALUE : 1;
+        final JmxReporter jmxReporter = cmd.hasOption("jmx")
+                ? startJmxReporter(configuration.getMetricRegistry()) : null;
+        final CsvReporter csvReporter = cmd.hasOption("csv-metrics")
+                ? startCsvReporter(configuration.getMetricRegistry(), cmd.getOptionValue("csv-metrics")) : null;
+        //1. Stream the input file and the output file, so that inputs of any size are processed in constant memory
+        try (final Stream<String> inputLines = fileIOUtils.streamFileLines(inputFilePath);
+             final ResultWriter resultWriter = fileIOUtils.openResultWriter(outputFilePath)) {
+            final Iterator<String> input = inputLines.iterator();
+
+            //2. Create Cache and simulate calls for load, writing the result of every url as soon as it is available
+            final DownloadManager downloadManager = buildDownloadManager(cmd);
+            final LRUCacheManager cache = createCache(input, cacheRepository, downloadManager, configuration);
+            try {
+                if (parallelism > 1) {
+                    processInputInParallel(input, cache, transform, parallelism, resultWriter);
+                } else {
+                    processInput(input, cache, transform, resultWriter);
+                }
+            } finally {
+                closeCache(cache);
+            }
+        } catch (final IOException ex) {
+            throw new RuntimeException("Unable to write output file due to exception ", ex);
+        } finally {
+            if (csvReporter != null) {
+                // reports the metrics of the whole run, the last scheduled report may be up to a period old
+                csvReporter.report();
+                csvReporter.stop();
+            }
+            if (jmxReporter != null) {
+                jmxReporter.stop();
+            }
+        }
+    }
 
-        //2. Create Cache and simulate calls for load
-        final List<ResultData> results = processInput(inputImageUrls, cacheRepository);
+    /**
+     * Runs a cache with the capacity given by the capacity option in the path instead of processing an input file:
+     * warms it up from the manifest given by the prefetch option, then serves its images over HTTP when the listen
+     * option is given. A cache that is only warmed up is closed afterwards, with the warm option its entries are
+     * served by the next run on the same path.
+     */
+    private static void runWithCapacity(final CommandLine cmd) {
+        if (!cmd.hasOption("capacity")) {
+            System.out.println("Expected the capacity of the cache in bytes for the prefetch and listen options");
+            System.exit(1);
+        }
+        final String cacheRepository = cmd.getOptionValue("path", DEFAULT_REPOSITORY);
+        final CacheConfiguration configuration = buildCacheConfiguration(cmd);
+        final JmxReporter jmxReporter = cmd.hasOption("jmx")
+                ? startJmxReporter(configuration.getMetricRegistry()) : null;
+        // the server streams misses from the downloads of the cache, so both share the download manager
+        final DownloadManager downloadManager = buildDownloadManager(cmd);
+        final LRUCacheManager cache = new LRUCacheManager(Long.parseLong(cmd.getOptionValue("capacity")),
+                DEFAULT_NUM_ENTRIES_IN_CACHE, cacheRepository, fileIOUtils, downloadManager, configuration);
+        if (cmd.hasOption("prefetch")) {
+            try {
+                warmUp(cmd, cache);
+            } catch (final RuntimeException ex) {
+                closeCache(cache);
+                throw ex;
+            }
+        }
+        if (cmd.hasOption("listen")) {
+            runServer(cmd, cache, downloadManager, jmxReporter);
+            return;
+        }
+        closeCache(cache);
+        if (jmxReporter != null) {
+            jmxReporter.stop();
+        }
+    }
 
-        //3. Write results of caching to output file
-        generateOutputData(outputFilePath, results);
+    /**
+     * Prefetches the urls of the manifest given by the prefetch option into the cache, see {@link CacheWarmer}.
+     */
+    private static void warmUp(final CommandLine cmd, final LRUCacheManager cache) {
+        final WarmUpConfiguration.WarmUpConfigurationBuilder warmUpConfiguration = WarmUpConfiguration.builder()
+                .progressListener(report -> System.out.println("Warm-up " + report));
+        if (cmd.hasOption("parallelism")) {
+            warmUpConfiguration.concurrency(parseParallelism(cmd));
+        }
+        try {
+            if (cmd.hasOption("fill")) {
+                warmUpConfiguration.targetFillRatio(Double.parseDouble(cmd.getOptionValue("fill")));
+            }
+            if (cmd.hasOption("host-rate")) {
+                warmUpConfiguration.requestsPerSecondPerHost(Double.parseDouble(cmd.getOptionValue("host-rate")));
+            }
+        } catch (final NumberFormatException e) {
+            System.out.println("Expected numbers for fill and host-rate but was " + e.getMessage());
+            System.exit(1);
+        }
+        final String manifest = cmd.getOptionValue("prefetch");
+        System.out.println("Warming up the cache from manifest " + Paths.get(manifest).toAbsolutePath());
+        try (final Stream<String> manifestLines = fileIOUtils.streamFileLines(manifest)) {
+            new CacheWarmer(cache, warmUpConfiguration.build()).warmUp(manifestLines.iterator());
+        }
+    }
+
+    /**
+     * Serves the images of the cache over HTTP until the process is stopped, see {@link ImageServer}.
+     */
+    private static void runServer(final CommandLine cmd, final LRUCacheManager cache,
+                                  final DownloadManager downloadManager, final JmxReporter jmxReporter) {
+        final int port = parsePositiveInteger(cmd, "listen", 0);
+        final ServerConfiguration.ServerConfigurationBuilder serverConfiguration = ServerConfiguration.builder()
+                .port(port);
+        if (cmd.hasOption("event-loops")) {
+            serverConfiguration.eventLoops(parsePositiveInteger(cmd, "event-loops", 1));
+        }
+        if (cmd.hasOption("allow-origins")) {
+            serverConfiguration.allowedOrigins(new HashSet<>(Arrays.asList(
+                    cmd.getOptionValue("allow-origins").split(","))));
+        } else {
+            System.out.println("No origin is allowed, every image request is answered with 403 Forbidden");
+        }
+        final ImageServer server = new ImageServer(cache, downloadManager, serverConfiguration.build());
+        final CountDownLatch stopped = new CountDownLatch(1);
+        try {
+            server.start();
+        } catch (final IOException ex) {
+            closeCache(cache);
+            throw new RuntimeException("Unable to start server due to exception ", ex);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (final IOException ex) {
+                System.out.println("Unable to stop server: " + ex.getMessage());
+            }
+            closeCache(cache);
+            if (jmxReporter != null) {
+                jmxReporter.stop();
+            }
+            stopped.countDown();
+        }));
+        System.out.println("Serving images on port " + server.getPort());
+        try {
+            stopped.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Replays the trace in the input file against simulated caches of the given capacities for the eviction policies
+     * given by the eviction option, all of them by default, and writes their hit ratios to the output file in csv.
+     */
+    private static void runSimulation(final CommandLine cmd) {
+        if (!cmd.hasOption("input") || !cmd.hasOption("output")) {
+            System.out.println("Expected paths to both the trace input file and the output file for the simulation");
+            System.exit(1);
+        }
+        final List<Long> capacities = new ArrayList<>();
+        for (final String value : cmd.getOptionValue("simulate").split(",")) {
+            try {
+                capacities.add(Long.parseLong(value.trim()));
+            } catch (final NumberFormatException e) {
+                System.out.println("Expected capacities in bytes separated by commas for simulate but was "
+                        + cmd.getOptionValue("simulate"));
+                System.exit(1);
+            }
+        }
+        final List<EvictionPolicyType> policies = new ArrayList<>();
+        if (cmd.hasOption("eviction")) {
+            for (final String value : cmd.getOptionValue("eviction").split(",")) {
+                policies.add(parseEvictionPolicy(value.trim()));
+            }
+        } else {
+            policies.addAll(Arrays.asList(EvictionPolicyType.values()));
+        }
+        final TraceSimulator simulator = new TraceSimulator(capacities, policies, DEFAULT_NUM_ENTRIES_IN_CACHE);
+        try (final Stream<String> trace = fileIOUtils.streamFileLines(cmd.getOptionValue("input"))) {
+            simulator.replay(trace.iterator());
+        }
+        final List<String> lines = new ArrayList<>();
+        lines.add(SimulationResult.CSV_HEADER);
+        for (final SimulationResult result : simulator.getResults()) {
+            lines.add(result.toString());
+        }
+        try {
+            Files.write(Paths.get(cmd.getOptionValue("output")), lines, StandardCharsets.UTF_8);
+        } catch (final IOException ex) {
+            throw new RuntimeException("Unable to write output file due to exception ", ex);
+        }
+        System.out.println("Generated hit ratios of the simulation to output file: "
+                + Paths.get(cmd.getOptionValue("output")).toAbsolutePath());
+    }
+
+    private static JmxReporter startJmxReporter(final MetricRegistry registry) {
+        final JmxReporter reporter = JmxReporter.forRegistry(registry).inDomain(JMX_DOMAIN)
+                .convertDurationsTo(TimeUnit.MILLISECONDS).build();
+        reporter.start();
+        return reporter;
+    }
+
+    private static CsvReporter startCsvReporter(final MetricRegistry registry, final String directory) {
+        final File metricsDirectory = new File(directory);
+        if (!metricsDirectory.isDirectory() && !metricsDirectory.mkdirs()) {
+            System.out.println("Unable to create directory for csv metrics: " + directory);
+            System.exit(1);
+        }
+        final CsvReporter reporter = CsvReporter.forRegistry(registry).formatFor(Locale.ROOT)
+                .convertDurationsTo(TimeUnit.MILLISECONDS).build(metricsDirectory);
+        reporter.start(CSV_REPORTING_PERIOD_SECONDS, TimeUnit.SECONDS);
+        return reporter;
     }
 
     private static CommandLine setUpOptions(final String[] args) {
@@ -75,6 +330,139 @@ public class Main {
         defaultOption.setRequired(false);
         options.addOption(defaultOption);
 
+        final Option async = new Option("a", "async", false,
+                "fetches the responses of up to " + MAX_FETCHED_AHEAD + " urls concurrently ahead of their loads");
+        async.setRequired(false);
+        options.addOption(async);
+
+        final Option parallelism = new Option("n", "parallelism", true,
+                "fetches the responses of at most the given number of urls concurrently ahead of their loads, " +
+                        "which change the cache in the order of the input like a sequential run");
+        parallelism.setRequired(false);
+        options.addOption(parallelism);
+
+        final Option mmap = new Option("m", "mmap", false,
+                "serves the cached images from memory mapped files instead of keeping their bytes on the heap");
+        mmap.setRequired(false);
+        options.addOption(mmap);
+
+        final Option memoryTier = new Option("t", "memory-tier", true,
+                "keeps only the most recently used images on the heap, up to the given number of bytes, and serves " +
+                        "the other cached images from disk");
+        memoryTier.setRequired(false);
+        options.addOption(memoryTier);
+
+        // long option only: -h is left to the help convention and -z is taken by the event loops
+        final Option compress = new Option(null, "compress", false,
+                "keeps the images of the memory tier that compress well compressed, so that more of them fit in it");
+        compress.setRequired(false);
+        options.addOption(compress);
+
+        final Option eviction = new Option("e", "eviction", true,
+                "eviction policy of the cache, one of " + Arrays.toString(EvictionPolicyType.values()) +
+                        ", defaults to LRU");
+        eviction.setRequired(false);
+        options.addOption(eviction);
+
+        final Option warm = new Option("w", "warm", false,
+                "keeps an index of the cached images in the path to downloaded resources, so that the images " +
+                        "downloaded by a previous run are served from the cache");
+        warm.setRequired(false);
+        options.addOption(warm);
+
+        final Option connections = new Option("c", "connections", true,
+                "maximum number of connections per host that are in use at a time and kept alive for reuse, " +
+                        "defaults to " + KeepAliveHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST);
+        connections.setRequired(false);
+        options.addOption(connections);
+
+        final Option dedup = new Option("u", "dedup", false,
+                "stores images with identical content once, no matter how many urls they are downloaded from");
+        dedup.setRequired(false);
+        options.addOption(dedup);
+
+        final Option segments = new Option("s", "segments", false,
+                "appends the downloaded images to large segment files instead of storing a file per image");
+        segments.setRequired(false);
+        options.addOption(segments);
+
+        final Option simulate = new Option("x", "simulate", true,
+                "replays the input as a trace of urls and their sizes against simulated caches of the given " +
+                        "capacities in bytes separated by commas, without downloading anything, and writes the hit " +
+                        "ratio and byte hit ratio of every capacity and eviction policy to the output file; the " +
+                        "eviction option takes a list of policies separated by commas for the simulation");
+        simulate.setRequired(false);
+        options.addOption(simulate);
+
+        final Option jmx = new Option("j", "jmx", false,
+                "exposes the metrics of the cache through JMX while the simulation runs");
+        jmx.setRequired(false);
+        options.addOption(jmx);
+
+        final Option csvMetrics = new Option("v", "csv-metrics", true,
+                "writes the metrics of the cache to csv files in the given directory every " +
+                        CSV_REPORTING_PERIOD_SECONDS + " seconds and once the simulation completes");
+        csvMetrics.setRequired(false);
+        options.addOption(csvMetrics);
+
+        final Option watermarks = new Option("r", "watermarks", true,
+                "high and low watermark as fractions of the capacity separated by a comma, e.g. 0.9,0.8; once the " +
+                        "cache grows beyond the high watermark images are evicted in the background down to the low one");
+        watermarks.setRequired(false);
+        options.addOption(watermarks);
+
+        final Option listen = new Option("l", "listen", true,
+                "serves GET /img?url=<url> over HTTP on the given port, 0 for any free port, from a cache of the " +
+                        "capacity given by the capacity option in the path, instead of processing an input file");
+        listen.setRequired(false);
+        options.addOption(listen);
+
+        final Option capacity = new Option("b", "capacity", true, "capacity in bytes of the cache of the server");
+        capacity.setRequired(false);
+        options.addOption(capacity);
+
+        final Option eventLoops = new Option("z", "event-loops", true,
+                "number of threads handling the connections of the server, defaults to the number of cores");
+        eventLoops.setRequired(false);
+        options.addOption(eventLoops);
+
+        final Option allowOrigins = new Option("A", "allow-origins", true,
+                "comma separated origins of the form scheme://host[:port] the server loads images from, requests " +
+                        "for any other url are answered with 403 Forbidden; none are allowed by default");
+        allowOrigins.setRequired(false);
+        options.addOption(allowOrigins);
+
+        final Option prefetch = new Option("f", "prefetch", true,
+                "warms up a cache of the capacity given by the capacity option in the path from the given manifest " +
+                        "of urls, one per line, downloading them concurrently as given by the parallelism option " +
+                        "without evicting any cached image; serves the cache afterwards when combined with listen");
+        prefetch.setRequired(false);
+        options.addOption(prefetch);
+
+        final Option fill = new Option("g", "fill", true,
+                "fraction of the capacity the prefetch fills the cache up to, 0.8 by default");
+        fill.setRequired(false);
+        options.addOption(fill);
+
+        final Option hostRate = new Option("q", "host-rate", true,
+                "maximum number of downloads per second the prefetch starts for every host, unlimited by default");
+        hostRate.setRequired(false);
+        options.addOption(hostRate);
+
+        final Option parallelRanges = new Option("k", "parallel-ranges", true,
+                "downloads images larger than a threshold as the given number of parallel byte ranges when the " +
+                        "server supports range requests, optionally followed by the threshold in bytes separated " +
+                        "by a comma, 8 MB by default");
+        parallelRanges.setRequired(false);
+        options.addOption(parallelRanges);
+
+        final Option variant = new Option("y", "variant", true,
+                "loads a variant of every image of the input derived by the given transform, e.g. w=200,h=200," +
+                        "f=jpeg,q=0.8 for thumbnails of at most 200x200 pixels encoded as jpeg with quality 0.8; " +
+                        "variants are cached along with their original");
+        variant.setRequired(false);
+        options.addOption(variant);
+
         final CommandLineParser parser = new BasicParser();
         final HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd = null;
@@ -91,39 +479,283 @@ public class Main {
 
     /**
      *
-     * @param inputImageUrls list of strings that are parsed from the inputFile, Based on the spec expects that
-     *                       index 0 consists of the size of the cache, index 1 consists of the number of URLS to be
-     *                       fetched for cache simulation and index 2 onwards the independent URLS to be cached.
+     * @param inputImageUrls remaining lines of the inputFile, Based on the spec the size of the cache and the number
+     *                       of URLS to be fetched for cache simulation have been read already by
+     *                       {@link #createCache(Iterator, String, DownloadManager, CacheConfiguration)} and the
+     *                       remaining lines are the independent URLS to be cached.
+     *
+     * @param cache the cache that the URLS are loaded from.
+     *
+     * @param transform transform of the variant of the images that is loaded, null to load the images themselves.
+     *
+     * @param resultWriter writer that the {@link org.roblox.imagecache.types.ResultData} that represents the result
+     *                     of caching each of the URLS is written to.
+     */
+    static void processInput(final Iterator<String> inputImageUrls, final LRUCacheManager cache,
+                             final ImageTransform transform, final ResultWriter resultWriter) {
+        while (inputImageUrls.hasNext()) {
+            resultWriter.write(load(cache, inputImageUrls.next(), transform, null));
+        }
+    }
+
+    /**
+     * Loads the url, or its variant when a transform is given, from the fetched response when one is given.
+     *
+     * @return {@link ResultData} of the load, with {@link State#ERROR} when the load failed.
+     */
+    private static ResultData load(final LRUCacheManager cache, final String url, final ImageTransform transform,
+                                   final FetchedResponse fetchedResponse) {
+        try {
+            return transform == null ? cache.load(url, fetchedResponse)
+                    : cache.loadVariant(url, transform, fetchedResponse);
+        } catch (final Exception e) {
+            //If there are any exceptions while trying to load the object we shall just mark those as error,
+            //and continue processing for the rest of the inputs.
+            return errorResult(url);
+        }
+    }
+
+    private static ResultData errorResult(final String url) {
+        return ResultData.builder().url(url).sizeInBytes(0).state(State.ERROR).build();
+    }
+
+    private static ImageTransform parseTransform(final CommandLine cmd) {
+        try {
+            return ImageTransform.parse(cmd.getOptionValue("variant"));
+        } catch (final IllegalArgumentException e) {
+            System.out.println("Expected a transform such as w=200,h=200,f=jpeg,q=0.8 for variant but was "
+                    + cmd.getOptionValue("variant") + ": " + e.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static int parseParallelism(final CommandLine cmd) {
+        return parsePositiveInteger(cmd, "parallelism", 1);
+    }
+
+    private static int parsePositiveInteger(final CommandLine cmd, final String option, final int minimum) {
+        final String value = cmd.getOptionValue(option);
+        try {
+            final int parsed = Integer.parseInt(value);
+            if (parsed >= minimum) {
+                return parsed;
+            }
+        } catch (final NumberFormatException e) {
+            // reported below
+        }
+        System.out.println("Expected " + (minimum > 0 ? "a positive" : "a non negative") + " integer for " + option
+                + " but was " + value);
+        System.exit(1);
+        return 0;
+    }
+
+    /**
+     * Loads the urls from the input one at a time in the order of the input, the way
+     * {@link #processInput(Iterator, LRUCacheManager, ImageTransform, ResultWriter)} does, while the responses of the
+     * urls after the one being loaded are fetched concurrently through {@link LRUCacheManager#fetchAsync(String)}. Only
+     * the network fetches overlap: hits, misses, admissions and evictions are decided by the loads in the order of the
+     * input, so the output and the state of the cache are the same as those of a sequential run.
+     * A url is fetched ahead unless it is cached when it is read, repetitions of a url within the urls fetched ahead
+     * share the fetch. A url that is evicted before its turn is downloaded by its load, and a response fetched for a
+     * url that an earlier url admitted in the meantime is dropped. Reading further urls waits for the load of the
+     * oldest url fetched ahead once parallelism urls, and at most {@link #MAX_FETCHED_AHEAD}, are ahead of the loads,
+     * so that memory does not grow with the size of the input.
+     *
+     * @param inputImageUrls remaining lines of the inputFile, see
+     *                       {@link #processInput(Iterator, LRUCacheManager, ImageTransform, ResultWriter)}.
      *
-     * @param defaultRepository the location on disk where the resources that are to be cached can be stored.
+     * @param cache the cache that the URLS are loaded from.
      *
-     * @return List of {@link org.roblox.imagecache.types.ResultData} that represents the result of caching for each
-     * of the URLS from the inputImagesUrls list.
+     * @param transform transform of the variant of the images that is loaded, null to load the images themselves.
+     *
+     * @param parallelism maximum number of urls whose responses are fetched ahead of their loads.
+     *
+     * @param resultWriter writer that the {@link org.roblox.imagecache.types.ResultData} of the urls are written to.
      */
-    private static List<ResultData> processInput(final List<String> inputImageUrls, final String defaultRepository) {
-        final int maxSizeInBytes = Integer.parseInt(inputImageUrls.get(0));
-        final LRUCacheManager cache = new LRUCacheManager(maxSizeInBytes, DEFAULT_NUM_ENTRIES_IN_CACHE, defaultRepository, fileIOUtils, downloadManager);
-        final List<ResultData> results = new ArrayList<>();
-        for(int i = 2; i < inputImageUrls.size(); i++) {
-            ResultData resultData;
+    static void processInputInParallel(final Iterator<String> inputImageUrls, final LRUCacheManager cache,
+                                       final ImageTransform transform, final int parallelism,
+                                       final ResultWriter resultWriter) {
+        final int maxFetchedAhead = Math.min(parallelism, MAX_FETCHED_AHEAD);
+        final Deque<PendingLoad> pendingLoads = new ArrayDeque<>();
+        // fetches of the urls that are pending, shared by the repetitions of a url
+        final Map<String, CompletableFuture<FetchedResponse>> fetches = new HashMap<>();
+        while (inputImageUrls.hasNext()) {
+            final String url = inputImageUrls.next();
+            if (pendingLoads.size() == maxFetchedAhead) {
+                loadNext(pendingLoads, fetches, cache, transform, resultWriter);
+            }
+            final CompletableFuture<FetchedResponse> fetch = cache.contains(url) ? null
+                    : fetches.computeIfAbsent(url, cache::fetchAsync);
+            pendingLoads.add(new PendingLoad(url, fetch));
+            while (!pendingLoads.isEmpty()
+                    && (pendingLoads.peek().fetch == null || pendingLoads.peek().fetch.isDone())) {
+                loadNext(pendingLoads, fetches, cache, transform, resultWriter);
+            }
+        }
+        while (!pendingLoads.isEmpty()) {
+            loadNext(pendingLoads, fetches, cache, transform, resultWriter);
+        }
+    }
+
+    /**
+     * Loads the oldest pending url from its fetched response, waiting for the fetch to complete, and writes its result.
+     */
+    private static void loadNext(final Deque<PendingLoad> pendingLoads,
+                                 final Map<String, CompletableFuture<FetchedResponse>> fetches,
+                                 final LRUCacheManager cache, final ImageTransform transform,
+                                 final ResultWriter resultWriter) {
+        final PendingLoad next = pendingLoads.poll();
+        FetchedResponse fetchedResponse = null;
+        if (next.fetch != null) {
+            fetches.remove(next.url, next.fetch);
             try {
-                resultData = cache.load(inputImageUrls.get(i));
-            } catch (final Exception e) {
-                //If there are any exceptions while trying to load the object we shall just mark those as error,
-                //and continue processing for the rest of the inputs.
-                resultData = ResultData.builder().url(inputImageUrls.get(i)).sizeInBytes(0).state(State.ERROR).build();
+                fetchedResponse = next.fetch.join();
+            } catch (final CompletionException | CancellationException e) {
+                // the load sends the request itself, a url that fails again is marked as error
             }
-            results.add(resultData);
         }
-        return results;
+        resultWriter.write(load(cache, next.url, transform, fetchedResponse));
     }
 
-    private static void generateOutputData(final String outputFilePath, final List<ResultData> results) {
+    private static CacheConfiguration buildCacheConfiguration(final CommandLine cmd) {
+        final CacheConfiguration.CacheConfigurationBuilder builder = CacheConfiguration.builder();
+        final int numOfStorageOptions = (cmd.hasOption("mmap") ? 1 : 0) + (cmd.hasOption("memory-tier") ? 1 : 0)
+                + (cmd.hasOption("segments") ? 1 : 0);
+        if (numOfStorageOptions > 1) {
+            System.out.println("Expected only one of the mmap, memory-tier and segments options");
+            System.exit(1);
+        } else if (cmd.hasOption("segments")) {
+            builder.storageMode(StorageMode.SEGMENTED);
+        } else if (cmd.hasOption("mmap")) {
+            builder.storageMode(StorageMode.MEMORY_MAPPED);
+        } else if (cmd.hasOption("memory-tier")) {
+            builder.storageMode(StorageMode.TIERED)
+                    .memoryTierCapacityInBytes(Long.parseLong(cmd.getOptionValue("memory-tier")))
+                    .memoryTierCompression(cmd.hasOption("compress"));
+        }
+        if (cmd.hasOption("compress") && !cmd.hasOption("memory-tier")) {
+            System.out.println("Expected the memory-tier option along with the compress option");
+            System.exit(1);
+        }
+        if (cmd.hasOption("eviction")) {
+            builder.evictionPolicy(parseEvictionPolicy(cmd.getOptionValue("eviction")));
+        }
+        builder.persistentIndex(cmd.hasOption("warm"));
+        builder.deduplication(cmd.hasOption("dedup"));
+        if (cmd.hasOption("watermarks")) {
+            final String[] values = cmd.getOptionValue("watermarks").split(",");
+            try {
+                builder.evictionHighWatermark(Double.parseDouble(values[0]))
+                        .evictionLowWatermark(Double.parseDouble(values[values.length - 1]));
+            } catch (final NumberFormatException e) {
+                System.out.println("Expected high and low watermark separated by a comma but was "
+                        + cmd.getOptionValue("watermarks"));
+                System.exit(1);
+            }
+        }
+        return builder.build();
+    }
+
+    private static EvictionPolicyType parseEvictionPolicy(final String value) {
+        try {
+            return EvictionPolicyType.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (final IllegalArgumentException e) {
+            System.out.println("Expected one of " + Arrays.toString(EvictionPolicyType.values()) +
+                    " for eviction but was " + value);
+            System.exit(1);
+            return null;
+        }
+    }
+
+    private static DownloadManager buildDownloadManager(final CommandLine cmd) {
+        if (!cmd.hasOption("parallel-ranges")) {
+            return new DownloadManager(buildHttpTransport(cmd));
+        }
+        final String[] values = cmd.getOptionValue("parallel-ranges").split(",");
         try {
-            fileIOUtils.deleteIfExists(outputFilePath);
-            fileIOUtils.writeListToFile(outputFilePath, results);
-        } catch (final IOException ex){
-            throw new RuntimeException("Unable to write output file due to exception ", ex.getCause());
+            final int parts = Integer.parseInt(values[0].trim());
+            final long threshold = values.length > 1 ? Long.parseLong(values[1].trim())
+                    : DEFAULT_PARALLEL_RANGE_THRESHOLD_IN_BYTES;
+            if (parts > 0 && threshold > 0) {
+                return new DownloadManager(buildHttpTransport(cmd), threshold, parts);
+            }
+        } catch (final NumberFormatException e) {
+            // reported below
+        }
+        System.out.println("Expected a positive number of ranges and optionally a positive threshold in bytes " +
+                "separated by a comma for parallel-ranges but was " + cmd.getOptionValue("parallel-ranges"));
+        System.exit(1);
+        return null;
+    }
+
+    private static KeepAliveHttpTransport buildHttpTransport(final CommandLine cmd) {
+        if (!cmd.hasOption("connections")) {
+            return new KeepAliveHttpTransport();
+        }
+        final String value = cmd.getOptionValue("connections");
+        try {
+            final int connections = Integer.parseInt(value);
+            if (connections > 0) {
+                sizeKeepAliveCache(connections);
+                return new KeepAliveHttpTransport(connections);
+            }
+        } catch (final NumberFormatException e) {
+            // reported below
+        }
+        System.out.println("Expected a positive integer for connections but was " + value);
+        System.exit(1);
+        return null;
+    }
+
+    /**
+     * Sizes the keep-alive cache of the JDK to the connections per host, so that all of them are kept alive once they
+     * are released. This is a process level setting: it applies to every HttpURLConnection of this JVM, which only
+     * runs the image cache, and the JDK reads it once, when the first connection is cached. A value given on the
+     * command line with -Dhttp.maxConnections is kept.
+     */
+    private static void sizeKeepAliveCache(final int connections) {
+        if (System.getProperty(MAX_KEEP_ALIVE_CONNECTIONS_PROPERTY) == null) {
+            System.setProperty(MAX_KEEP_ALIVE_CONNECTIONS_PROPERTY, String.valueOf(connections));
+        }
+    }
+
+    /**
+     * Creates the cache with the size read from the first line of the input, the second line with the number of URLS
+     * is skipped since the URLS are read until the end of the input.
+     */
+    private static LRUCacheManager createCache(final Iterator<String> inputLines, final String defaultRepository,
+                                               final DownloadManager downloadManager,
+                                               final CacheConfiguration configuration) {
+        if (!inputLines.hasNext()) {
+            throw new IllegalArgumentException("Expected the size of the cache on the first line of the input");
+        }
+        final long maxSizeInBytes = Long.parseLong(inputLines.next().trim());
+        if (inputLines.hasNext()) {
+            inputLines.next();
+        }
+        return new LRUCacheManager(maxSizeInBytes, DEFAULT_NUM_ENTRIES_IN_CACHE, defaultRepository, fileIOUtils,
+                downloadManager, configuration);
+    }
+
+    private static void closeCache(final LRUCacheManager cache) {
+        try {
+            cache.close();
+        } catch (final IOException ex) {
+            throw new RuntimeException("Unable to close cache due to exception ", ex);
+        }
+    }
+
+    /**
+     * Url of the input whose load is pending, with the fetch of its response, null when it was cached when it was read.
+     */
+    private static final class PendingLoad {
+        private final String url;
+        private final CompletableFuture<FetchedResponse> fetch;
+
+        private PendingLoad(final String url, final CompletableFuture<FetchedResponse> fetch) {
+            this.url = url;
+            this.fetch = fetch;
         }
     }
 }
@@ -2,9 +2,22 @@ package org.roblox.imagecache.cache;
 
 import lombok.NonNull;
 import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.variant.ImageTransform;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
-public interface Cache {
+public interface Cache extends Closeable {
     ResultData load(@NonNull String key) throws IOException;
+
+    /**
+     * Loads the resource without holding the calling thread for the download, cache hits complete immediately.
+     */
+    CompletableFuture<ResultData> loadAsync(@NonNull String key);
+
+    /**
+     * Loads the variant of the image at the url derived by the transform, without holding the calling thread.
+     */
+    CompletableFuture<ResultData> loadVariantAsync(@NonNull String url, @NonNull ImageTransform transform);
 }
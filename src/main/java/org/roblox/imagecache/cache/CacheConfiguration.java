@@ -0,0 +1,125 @@
+package org.roblox.imagecache.cache;
+
+import com.codahale.metrics.MetricRegistry;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.NonNull;
+import org.apache.commons.io.FileUtils;
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+import org.roblox.imagecache.types.StorageMode;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Optional settings of a cache, the defaults behave like a cache created without a configuration.
+ */
+@Getter
+@Builder
+public class CacheConfiguration {
+    private static final long DEFAULT_MEMORY_TIER_CAPACITY = 256 * FileUtils.ONE_MB;
+    private static final long DEFAULT_SEGMENT_SIZE = 64 * FileUtils.ONE_MB;
+    private static final double DEFAULT_MEMORY_TIER_COMPRESSION_RATIO = 0.9;
+    private static final long DEFAULT_MAX_VARIANT_SOURCE_PIXELS = 25_000_000;
+
+    /**
+     * Executor on which the downloads of {@link Cache#loadAsync(String)} are run, it is left to the caller to shut it
+     * down. When none is given the cache creates one with {@link DownloadExecutors#newDownloadExecutor()} and shuts it
+     * down when it is closed.
+     */
+    private Executor downloadExecutor;
+
+    /**
+     * How the content of the cached resources is held in memory.
+     */
+    @NonNull
+    @Builder.Default
+    private StorageMode storageMode = StorageMode.HEAP;
+
+    /**
+     * Policy that decides which entries are evicted when the cache is full.
+     */
+    @NonNull
+    @Builder.Default
+    private EvictionPolicyType evictionPolicy = EvictionPolicyType.LRU;
+
+    /**
+     * Fraction of the capacity above which entries are evicted in the background, until the cache is back to the low
+     * watermark, so that downloads rarely have to evict entries themselves. The default of 1 only evicts entries when
+     * a download needs their space.
+     */
+    @Builder.Default
+    private double evictionHighWatermark = 1;
+
+    /**
+     * Fraction of the capacity the background eviction brings the cache down to, at most the high watermark.
+     */
+    @Builder.Default
+    private double evictionLowWatermark = 1;
+
+    /**
+     * Capacity in bytes of the memory tier of a {@link StorageMode#TIERED} cache, the capacity of the cache itself is
+     * the capacity of its disk tier.
+     */
+    @Builder.Default
+    private long memoryTierCapacityInBytes = DEFAULT_MEMORY_TIER_CAPACITY;
+
+    /**
+     * Whether the memory tier of a {@link StorageMode#TIERED} cache keeps the bytes of resources that compress well
+     * compressed, so that more resources fit in its capacity at the cost of decompressing them on every hit. Resources
+     * in formats that are already compressed, such as JPEG, are never compressed again.
+     */
+    private boolean memoryTierCompression;
+
+    /**
+     * Largest ratio of the compressed size to the original size of a resource for it to be kept compressed in the
+     * memory tier, in (0, 1].
+     */
+    @Builder.Default
+    private double memoryTierCompressionRatio = DEFAULT_MEMORY_TIER_COMPRESSION_RATIO;
+
+    /**
+     * Size in bytes the segment files of a {@link StorageMode#SEGMENTED} cache are preallocated with, resources that
+     * are larger get a segment of their own.
+     */
+    @Builder.Default
+    private long segmentSizeInBytes = DEFAULT_SEGMENT_SIZE;
+
+    /**
+     * Whether the cache keeps an index of its entries in the repository, so that a cache created on the same
+     * repository after a restart serves the resources downloaded before without downloading them again. The index is
+     * only fully written when the cache is closed.
+     */
+    private boolean persistentIndex;
+
+    /**
+     * Time in milliseconds a resource is fresh for when the response it was downloaded with does not specify it through
+     * the Cache-Control or Expires headers. Defaults to serving such resources for as long as they are cached.
+     */
+    @Builder.Default
+    private long defaultTimeToLiveInMillis = Long.MAX_VALUE;
+
+    /**
+     * Whether resources with identical content are stored once, under the digest of their content, no matter how many
+     * urls they are cached for. Their bytes are freed once the last of these urls is evicted.
+     */
+    private boolean deduplication;
+
+    /**
+     * Largest number of pixels, width times height, of the images variants are derived from. Larger images are not
+     * decoded, since their decoded pixels may not fit on the heap, and loading their variants fails.
+     */
+    @Builder.Default
+    private long maxVariantSourcePixels = DEFAULT_MAX_VARIANT_SOURCE_PIXELS;
+
+    /**
+     * Registry the metrics of the cache are registered in, see {@link CacheMetrics}, so that they can be reported
+     * through JMX or to CSV files. Every cache gets a registry of its own by default.
+     */
+    @NonNull
+    @Builder.Default
+    private MetricRegistry metricRegistry = new MetricRegistry();
+
+    public static CacheConfiguration defaults() {
+        return CacheConfiguration.builder().build();
+    }
+}
@@ -0,0 +1,264 @@
+package org.roblox.imagecache.cache;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Persistent index of the entries of a cache, kept in a journal file in the repository of the cache so that a cache
+ * restarted on the same repository serves the resources downloaded by the previous run.
+ * <p>
+ * The journal starts with a snapshot of the entries, one ADD record per entry from the least to the most recently used,
+ * followed by the changes made since then: ADD when an entry is added, READ when it is accessed and REMOVE when it is
+ * evicted. ADD records carry the size of the entry and the time it took to fetch it, so that cost aware eviction
+ * policies weigh restored entries like the previous run did; journals of the first version have no fetch cost and
+ * their entries are restored with a cost of 0. Replaying it restores the entries in recency order. The index keeps the entries in recency order as they are
+ * recorded, so that it can write snapshots on its own: once the journal holds more redundant records than entries it
+ * is compacted to a new snapshot. Closing the index writes a snapshot that ends with a CLEAN record, an index that was
+ * not closed is only trusted for the entries whose file is still on disk with the recorded size.
+ * </p>
+ * Not thread safe, the cache only calls it while holding its eviction lock.
+ */
+class CacheIndex {
+    static final String JOURNAL_FILE = "imagecache.journal";
+    private static final String JOURNAL_HEADER = "imagecache-journal 2";
+    private static final String JOURNAL_HEADER_WITHOUT_FETCH_COST = "imagecache-journal 1";
+    private static final String ADD = "ADD";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String CLEAN = "CLEAN";
+    private static final char SEPARATOR = '\t';
+    private static final int MIN_REDUNDANT_RECORDS_TO_COMPACT = 2000;
+
+    private final Logger log = LoggerFactory.getLogger(CacheIndex.class);
+
+    private final File repository;
+    private final Path root;
+    private final Path journal;
+    /**
+     * Entries of the cache as recorded since the index was opened, in access order.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private Writer journalWriter;
+    private int redundantRecords;
+
+    CacheIndex(final File repository) {
+        this.repository = repository;
+        this.root = repository.toPath().toAbsolutePath();
+        this.journal = new File(repository, JOURNAL_FILE).toPath();
+    }
+
+    /**
+     * Reads the entries recorded by the previous run. A journal that ends with a truncated record, which happens when
+     * the process died while writing it, is read up to that record.
+     *
+     * @return entries in recency order, least recently used first.
+     *
+     * @throws IOException if the journal exists but could not be read.
+     */
+    List<Entry> restore() throws IOException {
+        if (!Files.exists(this.journal)) {
+            return new ArrayList<>();
+        }
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        boolean clean = false;
+        int records = 0;
+        try (final BufferedReader reader = Files.newBufferedReader(this.journal, StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            final boolean withFetchCost = JOURNAL_HEADER.equals(header);
+            if (!withFetchCost && !JOURNAL_HEADER_WITHOUT_FETCH_COST.equals(header)) {
+                this.log.warn("Ignoring cache index with unexpected header: {}", this.journal);
+                return new ArrayList<>();
+            }
+            final int addFields = withFetchCost ? 5 : 4;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                clean = false;
+                records++;
+                final String[] fields = line.split(String.valueOf(SEPARATOR), addFields);
+                if (ADD.equals(fields[0]) && fields.length == addFields) {
+                    final String key = fields[addFields - 1];
+                    entries.remove(key);
+                    entries.put(key, new Entry(key, this.root.resolve(fields[addFields - 2]).toString(),
+                            Long.parseLong(fields[1]), withFetchCost ? Long.parseLong(fields[2]) : 0));
+                } else if (READ.equals(fields[0]) && fields.length == 2) {
+                    entries.get(fields[1]);
+                } else if (REMOVE.equals(fields[0]) && fields.length == 2) {
+                    entries.remove(fields[1]);
+                } else if (CLEAN.equals(line)) {
+                    clean = true;
+                } else {
+                    this.log.warn("Ignoring truncated record of cache index: {}", line);
+                    break;
+                }
+            }
+        } catch (final NumberFormatException e) {
+            throw new IOException(String.format("Corrupt cache index %s", this.journal), e);
+        }
+        final List<Entry> restored = new ArrayList<>(entries.size());
+        for (final Entry entry : entries.values()) {
+            // the file of every entry is only checked when the previous run did not close the index
+            if (clean || new File(entry.getPath()).length() == entry.getSizeInBytes()) {
+                restored.add(entry);
+            }
+        }
+        this.redundantRecords = records - restored.size();
+        return restored;
+    }
+
+    /**
+     * Starts a new journal with a snapshot of the given entries and appends subsequent records to it.
+     *
+     * @param entries entries of the cache in recency order, least recently used first.
+     */
+    void open(final Collection<Entry> entries) throws IOException {
+        this.entries.clear();
+        for (final Entry entry : entries) {
+            this.entries.put(entry.getKey(), entry);
+        }
+        startJournal();
+    }
+
+    void recordAdd(final Entry entry) {
+        this.entries.remove(entry.getKey());
+        this.entries.put(entry.getKey(), entry);
+        append(addRecord(entry), true);
+    }
+
+    void recordRead(final String key) {
+        // get on the access ordered map moves the entry to the most recently used position.
+        this.entries.get(key);
+        this.redundantRecords++;
+        append(READ + SEPARATOR + key, false);
+    }
+
+    void recordRemove(final String key) {
+        this.entries.remove(key);
+        this.redundantRecords += 2;
+        append(REMOVE + SEPARATOR + key, true);
+    }
+
+    /**
+     * @return true when the journal holds enough redundant records to be worth compacting.
+     */
+    boolean needsCompaction() {
+        return this.journalWriter != null && this.redundantRecords >= MIN_REDUNDANT_RECORDS_TO_COMPACT
+                && this.redundantRecords >= this.entries.size();
+    }
+
+    /**
+     * Replaces the journal with a snapshot of the recorded entries. Failures are logged, the cache keeps working
+     * without its index until it is closed.
+     */
+    void compact() {
+        try {
+            closeWriter();
+            startJournal();
+        } catch (final IOException e) {
+            this.log.warn("Unable to compact cache index, changes will not be recorded until the cache is closed", e);
+        }
+    }
+
+    /**
+     * Writes a final snapshot of the recorded entries that is marked as clean.
+     */
+    void close() throws IOException {
+        closeWriter();
+        writeSnapshot(this.entries.values(), true);
+    }
+
+    private void startJournal() throws IOException {
+        writeSnapshot(this.entries.values(), false);
+        this.journalWriter = Files.newBufferedWriter(this.journal, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private void append(final String record, final boolean flush) {
+        if (this.journalWriter == null) {
+            return;
+        }
+        try {
+            this.journalWriter.write(record);
+            this.journalWriter.write('\n');
+            // accesses are only flushed with the next change, losing them in a crash only loses recency information
+            if (flush) {
+                this.journalWriter.flush();
+            }
+        } catch (final IOException e) {
+            this.log.warn("Unable to write to cache index, changes will not be recorded until the cache is closed", e);
+            closeWriter();
+        }
+    }
+
+    /**
+     * Writes the snapshot to a temporary file that replaces the journal, so that a crash while writing it leaves the
+     * previous journal in place.
+     */
+    private void writeSnapshot(final Collection<Entry> entries, final boolean clean) throws IOException {
+        final Path snapshot = new File(this.repository, JOURNAL_FILE + ".tmp").toPath();
+        try (final BufferedWriter writer = Files.newBufferedWriter(snapshot, StandardCharsets.UTF_8)) {
+            writer.write(JOURNAL_HEADER);
+            writer.write('\n');
+            for (final Entry entry : entries) {
+                writer.write(addRecord(entry));
+                writer.write('\n');
+            }
+            if (clean) {
+                writer.write(CLEAN);
+                writer.write('\n');
+            }
+        }
+        Files.move(snapshot, this.journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.redundantRecords = 0;
+    }
+
+    /**
+     * Paths are recorded relative to the repository so that the repository can be moved between runs.
+     */
+    private String addRecord(final Entry entry) {
+        return ADD + SEPARATOR + entry.getSizeInBytes() + SEPARATOR + entry.getFetchCostInNanos() + SEPARATOR
+                + this.root.relativize(Paths.get(entry.getPath()).toAbsolutePath()) + SEPARATOR + entry.getKey();
+    }
+
+    private void closeWriter() {
+        if (this.journalWriter != null) {
+            try {
+                this.journalWriter.close();
+            } catch (final IOException e) {
+                this.log.warn("Unable to close cache index", e);
+            }
+            this.journalWriter = null;
+        }
+    }
+
+    /**
+     * Entry of the cache as recorded in the index.
+     */
+    @AllArgsConstructor
+    @Getter
+    static class Entry {
+        private final String key;
+        private final String path;
+        private final long sizeInBytes;
+        /**
+         * time it took to fetch the resource of the entry, 0 when unknown.
+         */
+        private final long fetchCostInNanos;
+    }
+}
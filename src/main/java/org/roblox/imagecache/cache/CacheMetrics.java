@@ -0,0 +1,75 @@
+package org.roblox.imagecache.cache;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of a cache, registered in the {@link MetricRegistry} of its configuration under {@link #PREFIX}:
+ * <ul>
+ *     <li>timers of the loads that were served from the cache, downloaded and that failed.</li>
+ *     <li>histograms of the time it took to fetch downloaded resources in nanoseconds and of their size in bytes.</li>
+ *     <li>a meter of the evicted entries.</li>
+ *     <li>gauges of the size of the cache, its number of entries and its hit and miss counters.</li>
+ * </ul>
+ * The timers, histograms and meters are shared by the caches of a registry, while the gauges of a cache replace those
+ * of a cache that was registered before it.
+ */
+class CacheMetrics {
+    static final String PREFIX = "imagecache";
+
+    private final MetricRegistry registry;
+    private final Timer hits;
+    private final Timer misses;
+    private final Timer errors;
+    private final Histogram downloadLatency;
+    private final Histogram downloadBytes;
+    private final Meter evictions;
+
+    CacheMetrics(final MetricRegistry registry) {
+        this.registry = registry;
+        this.hits = registry.timer(MetricRegistry.name(PREFIX, "load", "hit"));
+        this.misses = registry.timer(MetricRegistry.name(PREFIX, "load", "miss"));
+        this.errors = registry.timer(MetricRegistry.name(PREFIX, "load", "error"));
+        this.downloadLatency = registry.histogram(MetricRegistry.name(PREFIX, "download", "latency"));
+        this.downloadBytes = registry.histogram(MetricRegistry.name(PREFIX, "download", "bytes"));
+        this.evictions = registry.meter(MetricRegistry.name(PREFIX, "evictions"));
+    }
+
+    /**
+     * Records a load by the state of its result, loads without a result failed.
+     *
+     * @param resultData result of the load, null if it failed.
+     *
+     * @param durationNanos time the load took.
+     */
+    void recordLoad(final ResultData resultData, final long durationNanos) {
+        final Timer timer = resultData == null ? this.errors
+                : resultData.getState() == State.CACHE ? this.hits : this.misses;
+        timer.update(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordDownload(final long latencyNanos, final long sizeInBytes) {
+        this.downloadLatency.update(latencyNanos);
+        this.downloadBytes.update(sizeInBytes);
+    }
+
+    void recordEviction() {
+        this.evictions.mark();
+    }
+
+    /**
+     * Registers the gauge under the name, replacing the gauge registered under it before.
+     */
+    <T> void registerGauge(final String name, final Gauge<T> gauge) {
+        final String metricName = MetricRegistry.name(PREFIX, name);
+        this.registry.remove(metricName);
+        this.registry.register(metricName, gauge);
+    }
+}
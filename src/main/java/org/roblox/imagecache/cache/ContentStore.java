@@ -0,0 +1,161 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.hash.Hashing;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content addressed storage of the resources of a cache. Resources with identical content are stored once in the
+ * content directory of the repository under the SHA-256 digest of their content and are referenced by the key of
+ * every entry that holds them. The bytes of a stored resource are only freed once its last reference is removed.
+ * <p>
+ * Not thread safe, the cache only calls it while holding its eviction lock. Files are moved into the content directory
+ * while the lock is held, content whose last reference was removed is handed over to the cache to be deleted outside
+ * of the lock, which cancels the deletion before the same content is stored again.
+ * </p>
+ */
+class ContentStore {
+    static final String CONTENT_DIRECTORY = "content";
+    private static final int DIGEST_LENGTH = 64;
+
+    private final File directory;
+    private final FileIOUtils fileIOUtils;
+    private final Map<String, Blob> blobsByDigest = new HashMap<>();
+    private final Map<String, Blob> blobsByKey = new HashMap<>();
+
+    ContentStore(final File repository, final FileIOUtils fileIOUtils) {
+        this.directory = new File(repository, CONTENT_DIRECTORY);
+        this.fileIOUtils = fileIOUtils;
+    }
+
+    /**
+     * Adds a reference from the key to the content of the downloaded resource. Content that is not stored yet is moved
+     * from the location it was downloaded to into the content directory, otherwise the downloaded file is left for the
+     * caller to delete.
+     *
+     * @param key key of the entry the resource was downloaded for.
+     *
+     * @param digest hex encoded SHA-256 digest of the content of the resource.
+     *
+     * @param resourceData the downloaded resource.
+     *
+     * @return number of bytes newly stored, 0 when identical content was stored already.
+     *
+     * @throws IOException if the downloaded file could not be moved into the content directory.
+     */
+    long add(final String key, final String digest, final ResourceData resourceData) throws IOException {
+        Blob blob = this.blobsByDigest.get(digest);
+        long storedSize = 0;
+        if (blob == null) {
+            final File location = this.fileIOUtils.shardedLocation(this.directory, digest);
+            Files.createDirectories(location.getParentFile().toPath());
+            Files.move(new File(resourceData.getResourcePath()).toPath(), location.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            blob = new Blob(digest, location.getPath(), resourceData.getSizeInBytes(),
+                    resourceData.withLocation(digest, location.getPath()));
+            this.blobsByDigest.put(digest, blob);
+            storedSize = blob.getSizeInBytes();
+        }
+        blob.references++;
+        this.blobsByKey.put(key, blob);
+        return storedSize;
+    }
+
+    /**
+     * Adds a reference from a key that was restored from the index of the repository to the content stored at the
+     * given path.
+     *
+     * @return number of bytes newly accounted for, 0 when the content is already referenced by another key.
+     */
+    long restore(final String key, final String path, final long sizeInBytes) {
+        final String digest = new File(path).getName();
+        Blob blob = this.blobsByDigest.get(digest);
+        long storedSize = 0;
+        if (blob == null) {
+            blob = new Blob(digest, path, sizeInBytes, ResourceData.onDisk(digest, path, sizeInBytes));
+            this.blobsByDigest.put(digest, blob);
+            storedSize = sizeInBytes;
+        }
+        blob.references++;
+        this.blobsByKey.put(key, blob);
+        return storedSize;
+    }
+
+    /**
+     * @return resource data of the key sharing the content stored for it, null when the key references no content.
+     */
+    ResourceData get(final String key) {
+        final Blob blob = this.blobsByKey.get(key);
+        return blob != null ? blob.getContent().withLocation(key, blob.getPath()) : null;
+    }
+
+    /**
+     * Removes the reference of the key. The stored content is handed over to be deleted when it was the last
+     * reference to it.
+     *
+     * @param unreferencedContent location of the stored content to be deleted by the caller keyed by its digest, to
+     *                            which the content of the key is added when it is no longer referenced.
+     *
+     * @return number of bytes freed, 0 while other keys still reference the content.
+     */
+    long remove(final String key, final Map<String, File> unreferencedContent) {
+        final Blob blob = this.blobsByKey.remove(key);
+        if (blob == null || --blob.references > 0) {
+            return 0;
+        }
+        this.blobsByDigest.remove(blob.getDigest());
+        unreferencedContent.put(blob.getDigest(), new File(blob.getPath()));
+        return blob.getSizeInBytes();
+    }
+
+    /**
+     * @return true when the path is the location in the content directory of the content it is named after.
+     */
+    boolean isLocationOf(final String path) {
+        final File location = new File(path).getAbsoluteFile();
+        return location.getName().length() == DIGEST_LENGTH && location.equals(this.fileIOUtils.shardedLocation(this.directory, location.getName()).getAbsoluteFile());
+    }
+
+    /**
+     * @return number of distinct resources stored.
+     */
+    int size() {
+        return this.blobsByDigest.size();
+    }
+
+    /**
+     * Computes the digest of a downloaded file, for downloads whose content was not hashed while it was written.
+     */
+    static String digestOf(final File file) throws IOException {
+        return com.google.common.io.Files.asByteSource(file).hash(Hashing.sha256()).toString();
+    }
+
+    /**
+     * Content stored once along with the number of keys referencing it.
+     */
+    @AllArgsConstructor
+    @Getter
+    private static class Blob {
+        private final String digest;
+        private final String path;
+        private final long sizeInBytes;
+        /**
+         * the first resource stored with this content, whose bytes or mapping are shared by every reference.
+         */
+        private final ResourceData content;
+        private int references;
+
+        Blob(final String digest, final String path, final long sizeInBytes, final ResourceData content) {
+            this(digest, path, sizeInBytes, content, 0);
+        }
+    }
+}
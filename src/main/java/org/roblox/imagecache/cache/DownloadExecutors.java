@@ -0,0 +1,38 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Factory for the executors that run the downloads of {@link Cache#loadAsync(String)}.
+ */
+public final class DownloadExecutors {
+    private static final Logger log = LoggerFactory.getLogger(DownloadExecutors.class);
+
+    private static final String VIRTUAL_THREAD_EXECUTOR_FACTORY = "newVirtualThreadPerTaskExecutor";
+
+    private DownloadExecutors() {
+    }
+
+    /**
+     * Downloads spend almost all of their time waiting on the network, so every download gets its own thread. Uses a
+     * virtual thread per download when the JDK supports it, otherwise a cached pool of daemon threads.
+     *
+     * @return executor to run downloads on.
+     */
+    public static ExecutorService newDownloadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_FACTORY).invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            log.info("Virtual threads are not supported by this JDK, using a cached thread pool for downloads");
+            return Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("image-cache-download-%d")
+                    .build());
+        }
+    }
+}
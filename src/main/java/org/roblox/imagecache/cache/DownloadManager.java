@@ -1,34 +1,131 @@
 package org.roblox.imagecache.cache;
 
-import com.google.common.io.ByteStreams;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.math.LongMath;
 import com.google.common.net.HttpHeaders;
 import lombok.NonNull;
+import org.roblox.imagecache.types.Freshness;
 import org.roblox.imagecache.types.ResourceMetaData;
 import org.roblox.imagecache.utils.FileIOUtils;
 
 import java.io.*;
+import java.math.RoundingMode;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 /**
  * Class responsible for making HTTP calls and downloading the objects from web when they are
  * not present in cache. This class also handles redirections.
+ * Connections are opened through an {@link HttpTransport} and handed back to it once their response was read, so
+ * that the transport can reuse them for the following downloads from the same host.
+ * <p>
+ * Downloads to disk that fail part way keep the bytes that were downloaded, the next download of the url resumes
+ * after them with a Range request that is conditional on the validator of the first response through If-Range, so
+ * that a resource that changed in the meantime is downloaded from the start. Resources larger than the parallel range
+ * threshold are optionally downloaded as parallel byte ranges over several connections. The bytes of the failed
+ * downloads are kept in the partial directory of the repository in the meantime, outside of the entries of the cache,
+ * until the cache discards them.
+ * </p>
  */
 public class DownloadManager {
     private final FileIOUtils fileIOUtils;
-    private static final long TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
-    private static final long CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+    private final HttpTransport transport;
     private static final int MAX_RETRY_COUNT = 3;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+    private static final String BYTES_UNIT = "bytes";
+    private static final int HTTP_PARTIAL_CONTENT = 206;
+    /**
+     * Size from which resources are downloaded as parallel byte ranges, 0 when they never are.
+     */
+    private final long parallelRangeThresholdInBytes;
+    private final int parallelRanges;
+    /**
+     * Executor the byte ranges other than the first one are downloaded on, null unless parallel ranges are enabled.
+     */
+    private final ExecutorService rangeExecutor;
+    /**
+     * Directory of a repository the bytes of the downloads that failed part way are kept in until they are resumed.
+     */
+    private static final String PARTIAL_DIRECTORY = "partial";
+    /**
+     * Downloads to disk that failed part way and can be resumed, keyed by url.
+     */
+    private final ConcurrentMap<String, PartialDownload> partialDownloads = new ConcurrentHashMap<>();
+    private final AtomicLong partialDownloadsSizeInBytes = new AtomicLong();
+    /**
+     * Progress of the next download of a url for the callers of {@link #track(String)}, keyed by url. Removed once
+     * the download starts, so that every progress follows a download from its first byte.
+     */
+    private final ConcurrentMap<String, DownloadProgress> trackedDownloads = new ConcurrentHashMap<>();
 
     public DownloadManager() {
+        this(new KeepAliveHttpTransport());
+    }
+
+    /**
+     * @param transport transport through which the HTTP connections are opened.
+     */
+    public DownloadManager(@NonNull final HttpTransport transport) {
+        this(transport, 0, 1);
+    }
+
+    /**
+     * @param transport transport through which the HTTP connections are opened.
+     *
+     * @param parallelRangeThresholdInBytes size from which resources are downloaded to disk as parallel byte ranges
+     *                                      when the server supports range requests, 0 to always download them with a
+     *                                      single request.
+     *
+     * @param parallelRanges number of byte ranges resources above the threshold are split into.
+     */
+    public DownloadManager(@NonNull final HttpTransport transport, final long parallelRangeThresholdInBytes,
+                           final int parallelRanges) {
+        if (parallelRangeThresholdInBytes < 0) {
+            throw new IllegalArgumentException("Parallel range threshold must not be negative");
+        }
+        if (parallelRanges <= 0) {
+            throw new IllegalArgumentException("Number of parallel ranges must be positive");
+        }
         this.fileIOUtils = new FileIOUtils();
+        this.transport = transport;
+        this.parallelRangeThresholdInBytes = parallelRangeThresholdInBytes;
+        this.parallelRanges = parallelRanges;
+        this.rangeExecutor = parallelRangeThresholdInBytes > 0 && parallelRanges > 1
+                ? DownloadExecutors.newDownloadExecutor() : null;
     }
 
     /**
      * Uses HTTPConnection and downloads the resource/images from web to repo/disk.
      * Before downloading the resource from the web, we check the length of the resource to be downloaded and
      * verify that we have sufficient diskspace as well as cache space to download the object from the disk.
+     * The response body is read once and written to disk as well as kept in memory, the returned metadata carries the
+     * downloaded bytes so that the file does not have to be read back.
      *
      * @return File reference to the object that was downloaded by making HTTP call
      *
@@ -36,34 +133,706 @@ public class DownloadManager {
      */
     public ResourceMetaData loadResource(final HttpURLConnection httpURLConnection, final String urlKey, final File repository)
             throws IOException {
+        return download(httpURLConnection, urlKey, repository, true);
+    }
+
+    /**
+     * Same as {@link #loadResource(HttpURLConnection, String, File)} but only writes the resource to disk, the
+     * returned metadata does not carry the downloaded bytes. Used when the cache serves resources from memory mapped
+     * files, so that downloading does not need a buffer of the size of the resource on the heap.
+     */
+    public ResourceMetaData loadResourceToDisk(final HttpURLConnection httpURLConnection, final String urlKey,
+                                               final File repository) throws IOException {
+        return download(httpURLConnection, urlKey, repository, false);
+    }
+
+    /**
+     * Downloads the resource into memory only, the returned metadata carries the downloaded bytes and no file. Used
+     * when the cache appends the resources to segment files of its own, so that no file is created per resource.
+     */
+    public ResourceMetaData loadResourceToMemory(final HttpURLConnection httpURLConnection, final String urlKey)
+            throws IOException {
         InputStream source = null;
-        OutputStream destination = null;
+        boolean completed = false;
+        final DownloadProgress progress = startProgress(httpURLConnection, urlKey);
+        try {
+            if (getRangeStart(httpURLConnection) > 0) {
+                throw new IOException("Downloads into memory cannot be resumed");
+            }
+            source = httpURLConnection.getInputStream();
+            final Hasher hasher = Hashing.sha256().newHasher();
+            final byte[] resourceBytes = copy(source, null, 0, getContentLength(httpURLConnection), hasher,
+                    progress);
+            completed = true;
+            return new ResourceMetaData(null, resourceBytes.length, resourceBytes, hasher.hash().toString());
+        } catch (final IOException e) {
+            throw new IOException(String.format("Could not fetch image for url %s", urlKey), e);
+        } finally {
+            cleanup(httpURLConnection, source, null, completed);
+            finishProgress(progress, completed);
+        }
+    }
+
+    /**
+     * Tracks the progress of the next download of the url, so that its bytes can be streamed while it is in progress.
+     * Callers tracking the same url before the download starts share the progress. A download that is already in
+     * progress is not tracked, its progress stays {@link DownloadProgress.State#PENDING}. Every call has to be
+     * matched by a call to {@link #untrack(String, DownloadProgress)} once the caller is no longer interested.
+     *
+     * @param urlKey url of the resource.
+     *
+     * @return progress of the next download of the url.
+     */
+    public DownloadProgress track(@NonNull final String urlKey) {
+        return this.trackedDownloads.compute(urlKey, (key, progress) -> {
+            final DownloadProgress tracked = progress != null ? progress : new DownloadProgress();
+            tracked.trackers++;
+            return tracked;
+        });
+    }
+
+    /**
+     * Stops tracking the next download of the url for a caller of {@link #track(String)}, the progress is dropped
+     * when no caller tracks it anymore and the download did not start.
+     */
+    public void untrack(@NonNull final String urlKey, @NonNull final DownloadProgress progress) {
+        this.trackedDownloads.computeIfPresent(urlKey,
+                (key, tracked) -> tracked != progress || --tracked.trackers > 0 ? tracked : null);
+    }
+
+    private DownloadProgress startProgress(final HttpURLConnection httpURLConnection, final String urlKey) {
+        final DownloadProgress progress = this.trackedDownloads.remove(urlKey);
+        if (progress != null) {
+            progress.start(getContentLength(httpURLConnection), httpURLConnection.getHeaderField(HttpHeaders.ETAG));
+        }
+        return progress;
+    }
+
+    private static void finishProgress(final DownloadProgress progress, final boolean completed) {
+        if (progress == null) {
+            return;
+        }
+        if (completed) {
+            progress.complete();
+        } else {
+            progress.fail();
+        }
+    }
+
+    private ResourceMetaData download(final HttpURLConnection httpURLConnection, final String urlKey,
+                                      final File repository, final boolean keepInMemory) throws IOException {
+        InputStream source = null;
+        FileChannel destination = null;
+        File originalImageLocation = null;
+        boolean completed = false;
+        boolean splitIntoRanges = false;
         final URL url = new URL(urlKey);
+        final DownloadProgress progress = startProgress(httpURLConnection, urlKey);
+        // a failed download is only resumable from the record of this download
+        final PartialDownload partialDownload = takePartialDownload(urlKey);
+        PartialDownload failedDownload = null;
         try {
-            final File originalImageLocation = this.fileIOUtils.generateFileLocation(repository, url);
-            // create parent folder that is unique for the original image
-            final boolean mkdir = originalImageLocation.getParentFile().mkdir();
-            destination = new FileOutputStream(originalImageLocation);
+            originalImageLocation = this.fileIOUtils.generateFileLocation(repository, url);
+            // create the shard directories of the image, they are shared with other images
+            Files.createDirectories(originalImageLocation.getParentFile().toPath());
+            final long resumeOffset = resume(httpURLConnection, partialDownload, originalImageLocation);
+            destination = FileChannel.open(originalImageLocation.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            destination.truncate(resumeOffset);
+            destination.position(resumeOffset);
+            if (progress != null) {
+                progress.streamFrom(originalImageLocation.toPath());
+            }
             source = httpURLConnection.getInputStream();
-            final long curFileSize = ByteStreams.copy(source, destination);
-            return new ResourceMetaData(originalImageLocation, curFileSize);
+            // the content is hashed while it is written, so that identical resources can be stored once
+            final Hasher hasher = Hashing.sha256().newHasher();
+            final long contentLength = getContentLength(httpURLConnection);
+            final byte[] resourceBytes;
+            final long size;
+            final List<HttpURLConnection> rangeConnections = resumeOffset == 0
+                    && isSplittable(httpURLConnection, contentLength) ? openRangeConnections(url)
+                    : Collections.emptyList();
+            if (!rangeConnections.isEmpty()) {
+                splitIntoRanges = true;
+                resourceBytes = keepInMemory ? new byte[(int) contentLength] : null;
+                size = copyRanges(httpURLConnection, source, destination, contentLength, resourceBytes, hasher,
+                        progress, rangeConnections);
+            } else if (keepInMemory) {
+                resourceBytes = copy(source, destination, resumeOffset, contentLength, hasher, progress);
+                size = resourceBytes.length;
+            } else {
+                resourceBytes = null;
+                size = copy(source, destination, resumeOffset, hasher, progress);
+            }
+            completed = true;
+            return new ResourceMetaData(originalImageLocation, size, resourceBytes, hasher.hash().toString());
         }
         catch (final IOException e) {
-            throw new IOException(String.format("Could not fetch image for url %s", url));
+            throw new IOException(String.format("Could not fetch image for url %s", url), e);
         } finally {
-            cleanup(httpURLConnection, source, destination);
+            if (!completed && destination != null) {
+                failedDownload = getPartialDownload(httpURLConnection, repository, url, originalImageLocation,
+                        destination);
+            }
+            try {
+                // the connection of a download split into ranges was abandoned after the first range
+                cleanup(httpURLConnection, source, destination, completed && !splitIntoRanges);
+            } finally {
+                if (failedDownload != null) {
+                    keepPartialDownload(urlKey, failedDownload);
+                }
+                finishProgress(progress, completed);
+            }
         }
     }
 
-    private void cleanup(final HttpURLConnection con, final InputStream source, final OutputStream destination) throws IOException {
-        if(con!=null){
-            con.disconnect();
+    /**
+     * Moves the bytes of the partial download of the resource back to the location it is downloaded to when the
+     * response of the connection continues them, deletes them otherwise.
+     *
+     * @return offset the response of the connection continues the partial download at, 0 when it is the whole
+     * resource.
+     *
+     * @throws IOException if the response is a byte range that does not continue the partial download.
+     */
+    private static long resume(final HttpURLConnection httpURLConnection, final PartialDownload partialDownload,
+                               final File location) throws IOException {
+        if (partialDownload == null) {
+            return getResumeOffset(httpURLConnection, null, location);
+        }
+        boolean resumed = false;
+        try {
+            final long resumeOffset = getResumeOffset(httpURLConnection, partialDownload, location);
+            if (resumeOffset > 0) {
+                Files.move(partialDownload.partialLocation.toPath(), location.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+                resumed = true;
+            }
+            return resumeOffset;
+        } finally {
+            if (!resumed) {
+                Files.deleteIfExists(partialDownload.partialLocation.toPath());
+            }
         }
-        if(source!=null){
-            source.close();
+    }
+
+    /**
+     * @return offset the response of the connection continues the partial download at, 0 when it is the whole
+     * resource.
+     *
+     * @throws IOException if the response is a byte range that does not continue the partial download.
+     */
+    private static long getResumeOffset(final HttpURLConnection httpURLConnection,
+                                        final PartialDownload partialDownload, final File location)
+            throws IOException {
+        final long rangeStart = getRangeStart(httpURLConnection);
+        if (rangeStart <= 0) {
+            return 0;
         }
-        if(destination!=null){
-            destination.close();
+        if (partialDownload == null || !partialDownload.location.equals(location)
+                || rangeStart != partialDownload.length || partialDownload.partialLocation.length() < rangeStart) {
+            throw new IOException(String.format("Response range starting at %d does not continue the partial " +
+                    "download of %s", rangeStart, location));
+        }
+        return rangeStart;
+    }
+
+    /**
+     * Truncates the bytes downloaded so far by a failed download after the last of the contiguous ones, which the next
+     * download of the url resumes from when the response had a validator to make the range request conditional on.
+     *
+     * @param destination file the download wrote to, positioned after the last of the contiguous bytes downloaded.
+     *
+     * @return partial download to be kept once the destination is closed, null when the download is not resumable.
+     */
+    private PartialDownload getPartialDownload(final HttpURLConnection httpURLConnection, final File repository,
+                                               final URL url, final File location, final FileChannel destination) {
+        final String validator = getRangeValidator(httpURLConnection);
+        try {
+            final long length = destination.position();
+            if (validator != null && length > 0) {
+                destination.truncate(length);
+                return new PartialDownload(location,
+                        this.fileIOUtils.generateFileLocation(getPartialDirectory(repository), url), validator,
+                        length, System.nanoTime());
+            }
+        } catch (final IOException e) {
+            // the download starts from the beginning next time
+        }
+        return null;
+    }
+
+    /**
+     * Moves the bytes of a failed download out of the location of the resource into the partial directory of the
+     * repository, where they are kept outside of the entries of the cache until the download is resumed or they are
+     * discarded, and records them.
+     */
+    private void keepPartialDownload(final String urlKey, final PartialDownload partialDownload) {
+        try {
+            Files.createDirectories(partialDownload.partialLocation.getParentFile().toPath());
+            Files.move(partialDownload.location.toPath(), partialDownload.partialLocation.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (final IOException e) {
+            // the download starts from the beginning next time
+            return;
+        }
+        this.partialDownloadsSizeInBytes.addAndGet(partialDownload.length);
+        final PartialDownload replaced = this.partialDownloads.put(urlKey, partialDownload);
+        if (replaced != null) {
+            this.partialDownloadsSizeInBytes.addAndGet(-replaced.length);
+        }
+    }
+
+    /**
+     * Removes the record of the partial download of the url, whose bytes are owned by the caller from then on.
+     */
+    private PartialDownload takePartialDownload(final String urlKey) {
+        final PartialDownload partialDownload = this.partialDownloads.remove(urlKey);
+        if (partialDownload != null) {
+            this.partialDownloadsSizeInBytes.addAndGet(-partialDownload.length);
+        }
+        return partialDownload;
+    }
+
+    /**
+     * @return total size of the bytes kept on disk for the downloads that failed part way.
+     */
+    public long getPartialDownloadsSizeInBytes() {
+        return this.partialDownloadsSizeInBytes.get();
+    }
+
+    /**
+     * Deletes the bytes kept for the downloads to the repository that failed part way at least the given time ago, so
+     * that the next downloads of their urls start from the beginning. A download of one of the urls that starts
+     * meanwhile waits for the deletion of its partial download.
+     *
+     * @param minAgeInMillis age from which partial downloads are deleted, 0 to delete all of them.
+     *
+     * @return size of the partial downloads that were deleted.
+     */
+    public long discardPartialDownloads(@NonNull final File repository, final long minAgeInMillis) {
+        final Path partialDirectory = getPartialDirectory(repository).toPath();
+        final long recordedBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(minAgeInMillis);
+        long discardedSizeInBytes = 0;
+        for (final Map.Entry<String, PartialDownload> entry : this.partialDownloads.entrySet()) {
+            final PartialDownload partialDownload = entry.getValue();
+            if (!partialDownload.partialLocation.toPath().startsWith(partialDirectory)
+                    || partialDownload.recordedAtNanos - recordedBefore > 0) {
+                continue;
+            }
+            // deleting inside computeIfPresent keeps a download of the url from taking the partial download meanwhile
+            final boolean[] discarded = new boolean[1];
+            this.partialDownloads.computeIfPresent(entry.getKey(), (urlKey, current) -> {
+                if (current != partialDownload) {
+                    return current;
+                }
+                try {
+                    Files.deleteIfExists(partialDownload.partialLocation.toPath());
+                } catch (final IOException e) {
+                    // an orphaned file is deleted along with the partial directory on restart
+                }
+                discarded[0] = true;
+                return null;
+            });
+            if (discarded[0]) {
+                this.partialDownloadsSizeInBytes.addAndGet(-partialDownload.length);
+                discardedSizeInBytes += partialDownload.length;
+            }
+        }
+        return discardedSizeInBytes;
+    }
+
+    /**
+     * Deletes the bytes of the downloads to the repository that failed part way before this download manager was
+     * created, such as those of a previous run, which are not resumable since partial downloads are only recorded in
+     * memory.
+     */
+    public void deleteUnrecordedPartialDownloads(@NonNull final File repository) throws IOException {
+        final File partialDirectory = getPartialDirectory(repository);
+        if (!partialDirectory.isDirectory()) {
+            return;
+        }
+        final Set<Path> recorded = new HashSet<>();
+        for (final PartialDownload partialDownload : this.partialDownloads.values()) {
+            recorded.add(partialDownload.partialLocation.toPath());
+        }
+        try (final Stream<Path> files = Files.walk(partialDirectory.toPath())) {
+            for (final Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file) && !recorded.contains(file)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static File getPartialDirectory(final File repository) {
+        return new File(repository, PARTIAL_DIRECTORY);
+    }
+
+    /**
+     * @return validator the range requests for the resource of the response are made conditional on with If-Range,
+     * which has to be a strong entity tag or the last modification date, null when there is none.
+     */
+    private static String getRangeValidator(final HttpURLConnection httpURLConnection) {
+        final String entityTag = httpURLConnection.getHeaderField(HttpHeaders.ETAG);
+        if (entityTag != null && !entityTag.startsWith("W/")) {
+            return entityTag;
+        }
+        return httpURLConnection.getHeaderField(HttpHeaders.LAST_MODIFIED);
+    }
+
+    /**
+     * @return true when the response is the whole resource and large enough to be downloaded as parallel ranges, and
+     * the server supports range requests for it.
+     */
+    private boolean isSplittable(final HttpURLConnection httpURLConnection, final long contentLength) {
+        return this.rangeExecutor != null && contentLength >= this.parallelRangeThresholdInBytes
+                && contentLength <= MAX_BUFFER_SIZE
+                && BYTES_UNIT.equalsIgnoreCase(httpURLConnection.getHeaderField(HttpHeaders.ACCEPT_RANGES))
+                && getRangeValidator(httpURLConnection) != null;
+    }
+
+    /**
+     * Opens the connections the ranges after the first one of a download are requested on, as many as are available
+     * right away up to one less than the number of parallel ranges. The download holds a connection to the host
+     * already, so waiting for more would deadlock as soon as as many downloads as there are connections to the host
+     * all wait for each other's connections; the ranges are only split among the connections obtained.
+     *
+     * @return connections for the ranges, empty when none is available and the resource is downloaded as a whole.
+     */
+    private List<HttpURLConnection> openRangeConnections(final URL url) throws IOException {
+        final List<HttpURLConnection> rangeConnections = new ArrayList<>(this.parallelRanges - 1);
+        try {
+            while (rangeConnections.size() < this.parallelRanges - 1) {
+                final HttpURLConnection rangeConnection = this.transport.tryOpen(url);
+                if (rangeConnection == null) {
+                    break;
+                }
+                rangeConnections.add(rangeConnection);
+            }
+            return rangeConnections;
+        } catch (final IOException | RuntimeException e) {
+            rangeConnections.forEach(rangeConnection -> this.transport.release(rangeConnection, false));
+            throw e;
+        }
+    }
+
+    /**
+     * Downloads the resource as parallel byte ranges: the first range is read from the response of the connection,
+     * which is abandoned afterwards, and the others are requested with range requests conditional on the validator of
+     * the response, one on each of the range connections. The ranges are hashed and made available to the progress in
+     * order as they complete. When a range fails the destination is positioned after the ranges before it, so that
+     * only the contiguous bytes are resumable.
+     *
+     * @param resourceBytes    buffer of the size of the resource the ranges are also read into, null when the resource
+     *                         is not kept in memory.
+     *
+     * @param rangeConnections connections the ranges after the first one are requested on, all of them released by
+     *                         the time this returns.
+     *
+     * @return number of bytes that were copied.
+     */
+    private long copyRanges(final HttpURLConnection httpURLConnection, final InputStream source,
+                            final FileChannel destination, final long contentLength, final byte[] resourceBytes,
+                            final Hasher hasher, final DownloadProgress progress,
+                            final List<HttpURLConnection> rangeConnections) throws IOException {
+        final long rangeSize = LongMath.divide(contentLength, rangeConnections.size() + 1, RoundingMode.CEILING);
+        final String validator = getRangeValidator(httpURLConnection);
+        final List<CompletableFuture<Void>> ranges = new ArrayList<>(rangeConnections.size());
+        // the connection of a range whose task never runs, because it was cancelled first, is released at the end
+        final AtomicBoolean[] rangesStarted = new AtomicBoolean[rangeConnections.size()];
+        try {
+            for (int i = 0; i < rangeConnections.size(); i++) {
+                final HttpURLConnection rangeConnection = rangeConnections.get(i);
+                final long rangeStart = Math.min(contentLength, (i + 1) * rangeSize);
+                final long rangeEnd = Math.min(contentLength, (i + 2) * rangeSize);
+                final AtomicBoolean started = new AtomicBoolean();
+                rangesStarted[i] = started;
+                ranges.add(CompletableFuture.runAsync(() -> {
+                    if (!started.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        downloadRange(rangeConnection, validator, rangeStart, rangeEnd, destination,
+                                resourceBytes);
+                    } catch (final IOException e) {
+                        throw new CompletionException(e);
+                    }
+                }, this.rangeExecutor));
+            }
+            readRange(source, 0, Math.min(rangeSize, contentLength), destination, resourceBytes, hasher, progress);
+            // appends the ranges in order, the bytes on disk are only contiguous up to the first range that failed
+            long contiguousLength = Math.min(rangeSize, contentLength);
+            final byte[] buffer = resourceBytes == null ? new byte[DEFAULT_BUFFER_SIZE] : null;
+            for (final CompletableFuture<Void> range : ranges) {
+                try {
+                    range.join();
+                } catch (final CompletionException | CancellationException e) {
+                    destination.position(contiguousLength);
+                    throw new IOException("Unable to download range of resource", e.getCause());
+                }
+                final long rangeEnd = Math.min(contentLength, contiguousLength + rangeSize);
+                replay(destination, contiguousLength, rangeEnd, resourceBytes, buffer, hasher, progress);
+                contiguousLength = rangeEnd;
+            }
+            destination.position(contentLength);
+            return contentLength;
+        } finally {
+            for (int i = 0; i < rangeConnections.size(); i++) {
+                if (i < ranges.size()) {
+                    ranges.get(i).cancel(false);
+                }
+                if (rangesStarted[i] == null || rangesStarted[i].compareAndSet(false, true)) {
+                    this.transport.release(rangeConnections.get(i), false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads the byte range [start, end) of the resource on the connection into the destination at the same
+     * position, and releases the connection.
+     */
+    private void downloadRange(final HttpURLConnection httpURLConnection, final String validator, final long start,
+                               final long end, final FileChannel destination, final byte[] resourceBytes)
+            throws IOException {
+        final URL url = httpURLConnection.getURL();
+        if (start == end) {
+            this.transport.release(httpURLConnection, false);
+            return;
+        }
+        httpURLConnection.setInstanceFollowRedirects(false);
+        httpURLConnection.setRequestProperty(HttpHeaders.RANGE, BYTES_UNIT + "=" + start + "-" + (end - 1));
+        httpURLConnection.setRequestProperty(HttpHeaders.IF_RANGE, validator);
+        InputStream source = null;
+        boolean completed = false;
+        try {
+            if (httpURLConnection.getResponseCode() != HTTP_PARTIAL_CONTENT
+                    || getRangeStart(httpURLConnection) != start) {
+                throw new IOException(String.format("HTTP %d instead of range %d-%d of URL %s",
+                        httpURLConnection.getResponseCode(), start, end - 1, url));
+            }
+            source = httpURLConnection.getInputStream();
+            readRange(source, start, end, destination, resourceBytes, null, null);
+            completed = true;
+        } finally {
+            cleanup(httpURLConnection, source, null, completed);
+        }
+    }
+
+    /**
+     * Reads the byte range [start, end) of the resource from the source and writes it to the destination at its
+     * position, and into the resource bytes unless they are null.
+     *
+     * @param hasher hasher the bytes are hashed with in order, null when they are hashed later on.
+     */
+    private void readRange(final InputStream source, final long start, final long end, final FileChannel destination,
+                           final byte[] resourceBytes, final Hasher hasher, final DownloadProgress progress)
+            throws IOException {
+        final byte[] buffer = resourceBytes != null ? resourceBytes : new byte[DEFAULT_BUFFER_SIZE];
+        long position = start;
+        while (position < end) {
+            final int offset = resourceBytes != null ? (int) position : 0;
+            final int read = source.read(buffer, offset, (int) Math.min(end - position, buffer.length - offset));
+            if (read == -1) {
+                throw new EOFException(String.format("Range ended after %d of %d bytes", position - start,
+                        end - start));
+            }
+            final ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, read);
+            if (hasher != null) {
+                hasher.putBytes(bytes.duplicate());
+            }
+            while (bytes.hasRemaining()) {
+                destination.write(bytes, position + bytes.position() - offset);
+            }
+            if (progress != null) {
+                progress.advance(read);
+            }
+            position += read;
+        }
+        if (hasher != null) {
+            destination.position(end);
+        }
+    }
+
+    /**
+     * Hashes the bytes [start, end) that were written to the destination before and makes them available to the
+     * progress, they are read from the resource bytes unless they are null.
+     *
+     * @param buffer transfer buffer for reading the bytes from the destination, unused when the resource bytes are
+     *               given.
+     */
+    private static void replay(final FileChannel destination, final long start, final long end,
+                               final byte[] resourceBytes, final byte[] buffer, final Hasher hasher,
+                               final DownloadProgress progress) throws IOException {
+        long position = start;
+        while (position < end) {
+            final ByteBuffer bytes;
+            if (resourceBytes != null) {
+                bytes = ByteBuffer.wrap(resourceBytes, (int) position, (int) (end - position));
+            } else {
+                bytes = ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, end - position));
+                while (bytes.hasRemaining()) {
+                    if (destination.read(bytes, position + bytes.position()) == -1) {
+                        throw new EOFException(String.format("Resource was truncated at %d bytes", position));
+                    }
+                }
+                bytes.flip();
+            }
+            final int length = bytes.remaining();
+            position += length;
+            hasher.putBytes(bytes);
+            if (progress != null) {
+                progress.advance(length);
+            }
+        }
+    }
+
+    /**
+     * Copies the source to the destination in a single pass while keeping the bytes in memory. The bytes are read
+     * straight into the in memory buffer, which is presized from the content length when it is known, and the same
+     * region of the buffer is then written to the file channel, unless there is none.
+     *
+     * @param resumeOffset number of bytes of the resource the destination holds already, which the source continues.
+     *
+     * @param progress progress the copied bytes are made available to, null when the download is not tracked.
+     *
+     * @return bytes that were copied, the array is only trimmed when the content length was unknown or incorrect.
+     */
+    private byte[] copy(final InputStream source, final FileChannel destination, final long resumeOffset,
+                        final long contentLength, final Hasher hasher, final DownloadProgress progress)
+            throws IOException {
+        if (resumeOffset > MAX_BUFFER_SIZE) {
+            throw new IOException("Resource is too large to be kept in memory");
+        }
+        byte[] buffer = new byte[contentLength >= resumeOffset && contentLength <= MAX_BUFFER_SIZE
+                ? (int) contentLength : Math.max(DEFAULT_BUFFER_SIZE, (int) resumeOffset)];
+        if (destination == null && progress != null) {
+            // a download into memory is streamed from this buffer, it fails to stream once the buffer is replaced
+            progress.streamFrom(buffer);
+        }
+        if (resumeOffset > 0) {
+            final ByteBuffer prefix = ByteBuffer.wrap(buffer, 0, (int) resumeOffset);
+            while (prefix.hasRemaining()) {
+                if (destination.read(prefix, prefix.position()) == -1) {
+                    throw new EOFException(String.format("Partial download was truncated at %d bytes",
+                            prefix.position()));
+                }
+            }
+            replay(destination, 0, resumeOffset, buffer, null, hasher, progress);
+        }
+        int size = (int) resumeOffset;
+        while (true) {
+            if (size == buffer.length) {
+                // only grow the buffer when there is more data than advertised by the content length
+                final int next = source.read();
+                if (next == -1) {
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, grow(buffer.length));
+                buffer[size] = (byte) next;
+                writeFully(destination, ByteBuffer.wrap(buffer, size, 1), hasher, progress);
+                size++;
+                continue;
+            }
+            final int read = source.read(buffer, size, buffer.length - size);
+            if (read == -1) {
+                break;
+            }
+            writeFully(destination, ByteBuffer.wrap(buffer, size, read), hasher, progress);
+            size += read;
+        }
+        return size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+    }
+
+    /**
+     * Copies the source to the destination through a fixed size transfer buffer.
+     *
+     * @param resumeOffset number of bytes of the resource the destination holds already, which the source continues.
+     *
+     * @return number of bytes of the resource, including the ones the destination held already.
+     */
+    private long copy(final InputStream source, final FileChannel destination, final long resumeOffset,
+                      final Hasher hasher, final DownloadProgress progress) throws IOException {
+        final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+        replay(destination, 0, resumeOffset, null, buffer, hasher, progress);
+        long size = resumeOffset;
+        int read;
+        while ((read = source.read(buffer)) != -1) {
+            writeFully(destination, ByteBuffer.wrap(buffer, 0, read), hasher, progress);
+            size += read;
+        }
+        return size;
+    }
+
+    private int grow(final int capacity) throws IOException {
+        if (capacity >= MAX_BUFFER_SIZE) {
+            throw new IOException("Resource is too large to be kept in memory");
+        }
+        return (int) Math.min(MAX_BUFFER_SIZE, Math.max(DEFAULT_BUFFER_SIZE, 2L * capacity));
+    }
+
+    private void writeFully(final FileChannel destination, final ByteBuffer bytes, final Hasher hasher,
+                            final DownloadProgress progress) throws IOException {
+        final int length = bytes.remaining();
+        if (hasher != null) {
+            hasher.putBytes(bytes.duplicate());
+        }
+        while (destination != null && bytes.hasRemaining()) {
+            destination.write(bytes);
+        }
+        // the bytes are only readable from the destination once they were written to it
+        if (progress != null) {
+            progress.advance(length);
+        }
+    }
+
+    /**
+     * Closes the streams and hands the connection back to the transport, the connection is only reused when its
+     * response body was read until the end.
+     */
+    private void cleanup(final HttpURLConnection con, final InputStream source, final Closeable destination,
+                         final boolean reusable) throws IOException {
+        try {
+            if(source!=null){
+                source.close();
+            }
+            if(destination!=null){
+                destination.close();
+            }
+        } finally {
+            if(con!=null){
+                this.transport.release(con, reusable);
+            }
+        }
+    }
+
+    /**
+     * Gives up on a connection returned by {@link #getHttpURLConnection(String)} whose response is not going to be
+     * read, the connection is closed.
+     */
+    public void discard(@NonNull final HttpURLConnection httpURLConnection) {
+        this.transport.release(httpURLConnection, false);
+    }
+
+    /**
+     * Reads the body of a redirect or error response until the end before handing back the connection, so that the
+     * connection can be reused for the next request.
+     */
+    private void drain(final HttpURLConnection con) {
+        InputStream body = con.getErrorStream();
+        try {
+            if (body == null) {
+                body = con.getInputStream();
+            }
+            final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+            while (body.read(buffer) != -1) {
+                // discard
+            }
+            body.close();
+            this.transport.release(con, true);
+        } catch (final IOException e) {
+            this.transport.release(con, false);
         }
     }
 
@@ -77,30 +846,109 @@ public class DownloadManager {
      * @throws IOException if file cannot be fetched from the server even after retries.
      */
     public HttpURLConnection getHttpURLConnection(@NonNull final String urlKey) throws IOException {
+        return getHttpURLConnection(urlKey, null);
+    }
+
+    /**
+     * Same as {@link #getHttpURLConnection(String)} but sends a conditional request with the If-None-Match and
+     * If-Modified-Since headers taken from the validators of a cached copy of the resource.
+     *
+     * @param urlKey url of the resource that needs to be fetched from the web.
+     *
+     * @param validators freshness of the cached copy of the resource, null for an unconditional request.
+     *
+     * @return {@link HttpURLConnection} whose response is either HTTP 200 with the body of the resource, or HTTP 304
+     * when the cached copy is still valid, in which case the connection has to be handed back through
+     * {@link #release(HttpURLConnection)}. Unconditional requests for a url whose download to disk failed part way
+     * ask for the rest of the resource only, the response is then HTTP 206 with the bytes after the partial download.
+     *
+     * @throws IOException if file cannot be fetched from the server even after retries.
+     */
+    public HttpURLConnection getHttpURLConnection(@NonNull final String urlKey, final Freshness validators)
+            throws IOException {
+        return getHttpURLConnection(urlKey, validators,
+                validators == null ? getResumablePartialDownload(urlKey) : null);
+    }
+
+    /**
+     * Reads the response to an unconditional request for the resource into memory, following redirects, so that a
+     * cache can download the resource from it later on without sending the request itself. The request never resumes
+     * a partial download and the download is not tracked.
+     *
+     * @param urlKey url of the resource that needs to be fetched from the web.
+     *
+     * @return the response with its body.
+     *
+     * @throws IOException if the resource could not be fetched or is too large to be kept in memory.
+     */
+    public FetchedResponse fetch(@NonNull final String urlKey) throws IOException {
+        final long fetchStart = System.nanoTime();
+        final HttpURLConnection httpURLConnection = getHttpURLConnection(urlKey, null, null);
+        InputStream source = null;
+        boolean completed = false;
+        try {
+            source = httpURLConnection.getInputStream();
+            final byte[] body = copy(source, null, 0, getContentLength(httpURLConnection), null, null);
+            completed = true;
+            return new FetchedResponse(httpURLConnection, body, System.nanoTime() - fetchStart);
+        } catch (final IOException e) {
+            throw new IOException(String.format("Could not fetch image for url %s", urlKey), e);
+        } finally {
+            cleanup(httpURLConnection, source, null, completed);
+        }
+    }
+
+    /**
+     * @param partialDownload partial download the request asks for the rest of, null for the whole resource.
+     */
+    private HttpURLConnection getHttpURLConnection(final String urlKey, final Freshness validators,
+                                                   final PartialDownload partialDownload) throws IOException {
         URL originalURL = new URL(urlKey);
         final URL url = originalURL;
         HttpURLConnection httpURLConnection;
         int redirectCount = 0;
         int response;// Handle redirects manually, so HTTP→HTTPS and vice versa work.
         while (true) {
-            httpURLConnection = (HttpURLConnection) originalURL.openConnection();
-            httpURLConnection.setConnectTimeout(Math.toIntExact(CONNECT_TIMEOUT_MS));
-            httpURLConnection.setReadTimeout(Math.toIntExact(TIMEOUT_MS));
-            response = httpURLConnection.getResponseCode();
+            httpURLConnection = this.transport.open(originalURL);
+            // redirects followed by HttpURLConnection itself close the connection instead of draining the response
+            httpURLConnection.setInstanceFollowRedirects(false);
+            if (validators != null && validators.getEntityTag() != null) {
+                httpURLConnection.setRequestProperty(HttpHeaders.IF_NONE_MATCH, validators.getEntityTag());
+            }
+            if (validators != null && validators.getLastModified() != null) {
+                httpURLConnection.setRequestProperty(HttpHeaders.IF_MODIFIED_SINCE, validators.getLastModified());
+            }
+            if (partialDownload != null) {
+                // the server sends the whole resource instead when it changed since the partial download
+                httpURLConnection.setRequestProperty(HttpHeaders.RANGE,
+                        BYTES_UNIT + "=" + partialDownload.length + "-");
+                httpURLConnection.setRequestProperty(HttpHeaders.IF_RANGE, partialDownload.validator);
+            }
+            try {
+                response = httpURLConnection.getResponseCode();
+            } catch (final IOException | RuntimeException e) {
+                this.transport.release(httpURLConnection, false);
+                throw e;
+            }
 
             if (isaRedirect(response)) {
                 redirectCount++;
+                final String location = httpURLConnection.getHeaderField(HttpHeaders.LOCATION);
+                drain(httpURLConnection);
                 if (redirectCount > MAX_RETRY_COUNT) {
                     throw new IOException(String.format("Too many redirects when retrieving from URL %s", url));
                 } else {
-                    final String location = httpURLConnection.getHeaderField(HttpHeaders.LOCATION);
                     originalURL = new URL(originalURL, location);
                     continue;
                 }
             }
             break;
         }
-        if (response != HttpURLConnection.HTTP_OK) {
+        if (response == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+            return httpURLConnection;
+        }
+        if (response != HttpURLConnection.HTTP_OK && !(response == HTTP_PARTIAL_CONTENT && partialDownload != null)) {
+            drain(httpURLConnection);
             throw new IOException(String.format("HTTP %s when retrieving from URL %s (%d redirects, started at %s)",
                     response, originalURL, redirectCount, url));
         }
@@ -109,11 +957,161 @@ public class DownloadManager {
 
     private boolean isaRedirect(final int resp) {
         return resp == HttpURLConnection.HTTP_MOVED_PERM
-                || resp == HttpURLConnection.HTTP_MOVED_PERM
+                || resp == HttpURLConnection.HTTP_MOVED_TEMP
                 || resp == HttpURLConnection.HTTP_SEE_OTHER;
     }
 
+    /**
+     * @return length of the whole resource, also when the response is a byte range of it, -1 when it is unknown.
+     */
     public long getContentLength(final HttpURLConnection httpURLConnection) {
-        return httpURLConnection.getContentLengthLong();
+        final String contentRange = httpURLConnection.getHeaderField(HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null) {
+            return httpURLConnection.getContentLengthLong();
+        }
+        final int separator = contentRange.lastIndexOf('/');
+        try {
+            return separator < 0 ? -1 : Long.parseLong(contentRange.substring(separator + 1).trim());
+        } catch (final NumberFormatException e) {
+            // the length is *
+            return -1;
+        }
+    }
+
+    /**
+     * @return first byte of the resource in the response when it is a byte range, -1 when it is the whole resource.
+     */
+    private static long getRangeStart(final HttpURLConnection httpURLConnection) throws IOException {
+        if (httpURLConnection.getResponseCode() != HTTP_PARTIAL_CONTENT) {
+            return -1;
+        }
+        final String contentRange = httpURLConnection.getHeaderField(HttpHeaders.CONTENT_RANGE);
+        if (contentRange == null || !contentRange.regionMatches(true, 0, BYTES_UNIT + " ", 0,
+                BYTES_UNIT.length() + 1)) {
+            throw new IOException(String.format("Invalid range %s of URL %s", contentRange,
+                    httpURLConnection.getURL()));
+        }
+        final int separator = contentRange.indexOf('-');
+        try {
+            return Long.parseLong(contentRange.substring(BYTES_UNIT.length() + 1, separator).trim());
+        } catch (final NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException(String.format("Invalid range %s of URL %s", contentRange,
+                    httpURLConnection.getURL()), e);
+        }
+    }
+
+    /**
+     * @return partial download of the url the next download resumes from, null when there is none or its bytes are
+     * gone from disk.
+     */
+    private PartialDownload getResumablePartialDownload(final String urlKey) {
+        final PartialDownload partialDownload = this.partialDownloads.get(urlKey);
+        if (partialDownload == null || partialDownload.partialLocation.length() >= partialDownload.length) {
+            return partialDownload;
+        }
+        if (this.partialDownloads.remove(urlKey, partialDownload)) {
+            this.partialDownloadsSizeInBytes.addAndGet(-partialDownload.length);
+        }
+        return null;
+    }
+
+    /**
+     * Reads the freshness of the resource from the Cache-Control, Expires, ETag and Last-Modified headers of the
+     * response. no-cache makes the resource stale right away, so that it is revalidated on every load. Responses with
+     * no-store are not to be cached at all, see {@link #isNoStore(HttpURLConnection)}.
+     *
+     * @param defaultTimeToLiveInMillis time the resource is fresh for when the response does not specify it.
+     *
+     * @return freshness of the resource starting now.
+     */
+    public Freshness getFreshness(final HttpURLConnection httpURLConnection, final long defaultTimeToLiveInMillis) {
+        final long now = System.currentTimeMillis();
+        long maxAgeMillis = -1;
+        long staleWhileRevalidateMillis = 0;
+        boolean noCache = false;
+        final String cacheControl = httpURLConnection.getHeaderField(HttpHeaders.CACHE_CONTROL);
+        if (cacheControl != null) {
+            for (final String directive : cacheControl.split(",")) {
+                final String[] nameAndValue = directive.trim().toLowerCase(Locale.ROOT).split("=", 2);
+                if (nameAndValue[0].equals("no-cache")) {
+                    noCache = true;
+                } else if (nameAndValue[0].equals("max-age") && nameAndValue.length == 2) {
+                    maxAgeMillis = parseSeconds(nameAndValue[1], maxAgeMillis);
+                } else if (nameAndValue[0].equals("stale-while-revalidate") && nameAndValue.length == 2) {
+                    staleWhileRevalidateMillis = parseSeconds(nameAndValue[1], staleWhileRevalidateMillis);
+                }
+            }
+        }
+        if (maxAgeMillis < 0) {
+            final long expires = httpURLConnection.getHeaderFieldDate(HttpHeaders.EXPIRES, -1);
+            if (expires != -1) {
+                maxAgeMillis = Math.max(0, expires - httpURLConnection.getHeaderFieldDate(HttpHeaders.DATE, now));
+            }
+        }
+        final long expiresAtMillis = noCache ? now
+                : maxAgeMillis >= 0 ? LongMath.saturatedAdd(now, maxAgeMillis)
+                : LongMath.saturatedAdd(now, defaultTimeToLiveInMillis);
+        return new Freshness(httpURLConnection.getHeaderField(HttpHeaders.ETAG),
+                httpURLConnection.getHeaderField(HttpHeaders.LAST_MODIFIED), expiresAtMillis,
+                staleWhileRevalidateMillis);
+    }
+
+    /**
+     * @return true when the Cache-Control header of the response has the no-store directive, the resource is then
+     * only handed to the caller that downloaded it and must not be kept in the cache.
+     */
+    public boolean isNoStore(final HttpURLConnection httpURLConnection) {
+        final String cacheControl = httpURLConnection.getHeaderField(HttpHeaders.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return false;
+        }
+        for (final String directive : cacheControl.split(",")) {
+            if (directive.trim().toLowerCase(Locale.ROOT).equals("no-store")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private long parseSeconds(final String value, final long defaultMillis) {
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (final NumberFormatException e) {
+            return defaultMillis;
+        }
+    }
+
+    /**
+     * Hands back a connection returned by {@link #getHttpURLConnection(String, Freshness)} with a 304 response, which
+     * has no body to be downloaded.
+     */
+    public void release(@NonNull final HttpURLConnection httpURLConnection) {
+        drain(httpURLConnection);
+    }
+
+    /**
+     * Bytes of a download to disk that failed part way, with the validator of the response they were read from.
+     */
+    private static final class PartialDownload {
+        /**
+         * Location the resource is downloaded to.
+         */
+        private final File location;
+        /**
+         * Location the bytes are kept at until the download is resumed.
+         */
+        private final File partialLocation;
+        private final String validator;
+        private final long length;
+        private final long recordedAtNanos;
+
+        private PartialDownload(final File location, final File partialLocation, final String validator,
+                                final long length, final long recordedAtNanos) {
+            this.location = location;
+            this.partialLocation = partialLocation;
+            this.validator = validator;
+            this.length = length;
+            this.recordedAtNanos = recordedAtNanos;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+package org.roblox.imagecache.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress of a download tracked through {@link DownloadManager#track(String)}, gives access to the bytes of the
+ * resource that were downloaded so far, so that they can be streamed to clients while the download is in progress.
+ * Only downloads whose content length is known are streamable. No copy of the bytes is kept: they are read from the
+ * file the download writes to, or from the buffer of a download into memory, which is presized from the content length.
+ * <p>
+ * Thread safe, the downloading thread makes the bytes available once they are written and readers are notified through
+ * the listeners, which are called on the downloading thread and must not block. Readers of a download to a file hold
+ * it open through {@link #retain()} until they {@link #release()} it, so that it can still be read once the download
+ * finished and the file was moved or deleted.
+ * </p>
+ */
+public class DownloadProgress {
+    private final List<Runnable> listeners = new ArrayList<>();
+    /**
+     * number of callers of {@link DownloadManager#track(String)} sharing this progress, guarded by the map of the
+     * tracked downloads.
+     */
+    int trackers;
+    private long contentLength = -1;
+    private String entityTag;
+    private byte[] content;
+    private FileChannel file;
+    /**
+     * number of readers holding the file open, including the download while it streams, guarded by this.
+     */
+    private int readers;
+    private volatile long available;
+    private volatile State state = State.PENDING;
+
+    public enum State {
+        /**
+         * the download did not start yet.
+         */
+        PENDING,
+        /**
+         * the download is in progress and its bytes are available as they are downloaded.
+         */
+        STREAMING,
+        /**
+         * all of the bytes were downloaded.
+         */
+        COMPLETED,
+        /**
+         * the download failed or is not streamable, readers have to wait for the result of the load instead.
+         */
+        FAILED
+    }
+
+    /**
+     * Registers a listener that is called whenever the state changes or bytes are appended.
+     */
+    public void addListener(final Runnable listener) {
+        synchronized (this.listeners) {
+            this.listeners.add(listener);
+        }
+        // catches up with the progress made before the listener was added
+        listener.run();
+    }
+
+    public State getState() {
+        return this.state;
+    }
+
+    /**
+     * @return length of the resource, only known once the download is streaming.
+     */
+    public long getContentLength() {
+        return this.contentLength;
+    }
+
+    /**
+     * @return ETag of the response, null when absent.
+     */
+    public String getEntityTag() {
+        return this.entityTag;
+    }
+
+    /**
+     * @return number of bytes of the resource that can be read.
+     */
+    public long getAvailable() {
+        return this.available;
+    }
+
+    /**
+     * Holds the bytes of a streaming download readable until {@link #release()} is called.
+     *
+     * @return false when the download finished and its bytes can no longer be read, the result of the load has to be
+     * used instead.
+     */
+    public synchronized boolean retain() {
+        if (this.file != null && this.readers == 0) {
+            return false;
+        }
+        this.readers++;
+        return true;
+    }
+
+    /**
+     * Releases the bytes held readable by {@link #retain()}.
+     */
+    public synchronized void release() {
+        if (--this.readers == 0 && this.file != null) {
+            try {
+                this.file.close();
+            } catch (final IOException e) {
+                // only read from, nothing is lost
+            }
+        }
+    }
+
+    /**
+     * Writes the available bytes [position, end) to the channel, as many as it accepts, to be called between
+     * {@link #retain()} and {@link #release()}.
+     *
+     * @param end end of the bytes to write, at most {@link #getAvailable()}.
+     *
+     * @return number of bytes written.
+     */
+    public long transferTo(final long position, final long end, final WritableByteChannel channel)
+            throws IOException {
+        if (this.content != null) {
+            return channel.write(ByteBuffer.wrap(this.content, (int) position, (int) (end - position)));
+        }
+        return this.file.transferTo(position, end - position, channel);
+    }
+
+    void start(final long contentLength, final String entityTag) {
+        if (contentLength < 0) {
+            fail();
+            return;
+        }
+        this.contentLength = contentLength;
+        this.entityTag = entityTag;
+    }
+
+    /**
+     * Streams the bytes the download writes to the file.
+     */
+    void streamFrom(final Path path) {
+        if (this.state != State.PENDING) {
+            return;
+        }
+        try {
+            this.file = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (final IOException e) {
+            fail();
+            return;
+        }
+        stream();
+    }
+
+    /**
+     * Streams the bytes the download reads into the buffer, from its first byte on.
+     */
+    void streamFrom(final byte[] buffer) {
+        if (this.state != State.PENDING) {
+            return;
+        }
+        if (buffer.length != this.contentLength) {
+            fail();
+            return;
+        }
+        this.content = buffer;
+        stream();
+    }
+
+    private void stream() {
+        synchronized (this) {
+            this.readers++;
+        }
+        this.state = State.STREAMING;
+        notifyListeners();
+    }
+
+    /**
+     * Makes the next bytes of the resource available, once they were written to the file or the buffer.
+     */
+    void advance(final long length) {
+        if (this.state != State.STREAMING) {
+            return;
+        }
+        if (length > this.contentLength - this.available) {
+            // more bytes than advertised, the content length that was sent to the readers is wrong
+            fail();
+            return;
+        }
+        this.available += length;
+        notifyListeners();
+    }
+
+    void complete() {
+        finish(this.available == this.contentLength ? State.COMPLETED : State.FAILED);
+    }
+
+    void fail() {
+        finish(State.FAILED);
+    }
+
+    private void finish(final State finalState) {
+        final State current = this.state;
+        if (current == State.COMPLETED || current == State.FAILED) {
+            return;
+        }
+        this.state = current == State.STREAMING ? finalState : State.FAILED;
+        if (current == State.STREAMING) {
+            release();
+        }
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        final Runnable[] toNotify;
+        synchronized (this.listeners) {
+            toNotify = this.listeners.toArray(new Runnable[0]);
+        }
+        for (final Runnable listener : toNotify) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package org.roblox.imagecache.cache;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the bytes of the entries of the memory tier with the deflate codec of the JDK at its fastest level. Only
+ * resources whose content may compress are tried: images in formats that are already compressed, such as JPEG, GIF and
+ * WebP, are detected from their first bytes and kept as they are. The compressed form of any other resource is only
+ * kept when it is at most the given ratio of the original size, compression stops as soon as it is known to be larger.
+ * Deflaters and inflaters hold native memory and are expensive to create, so they are pooled along with the buffer
+ * the compressed bytes are written to. Safe to be used from multiple threads.
+ */
+class EntryCodec {
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+    private final double maxCompressionRatio;
+    private final BlockingQueue<Compressor> compressors = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param maxCompressionRatio largest ratio of the compressed size to the original size the compressed form of a
+     *                            resource is kept for, in (0, 1].
+     */
+    EntryCodec(final double maxCompressionRatio) {
+        this.maxCompressionRatio = maxCompressionRatio;
+    }
+
+    /**
+     * @return compressed bytes of the resource, or null when its content is already compressed or does not compress
+     * below the ratio.
+     */
+    byte[] compress(final byte[] bytes) {
+        if (bytes.length == 0 || isCompressedFormat(bytes)) {
+            return null;
+        }
+        // compressed forms are always smaller than the original, which tells compressed entries from the others
+        final int maxCompressedSize = Math.min((int) (bytes.length * this.maxCompressionRatio), bytes.length - 1);
+        final Compressor polled = this.compressors.poll();
+        final Compressor compressor = polled != null ? polled : new Compressor();
+        try {
+            return compressor.compress(bytes, maxCompressedSize);
+        } finally {
+            if (!this.compressors.offer(compressor)) {
+                compressor.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @param originalSize size of the resource before it was compressed.
+     *
+     * @return bytes of the resource, owned by the caller.
+     */
+    byte[] decompress(final byte[] compressed, final int originalSize) {
+        final Inflater polled = this.inflaters.poll();
+        final Inflater inflater = polled != null ? polled : new Inflater();
+        try {
+            inflater.setInput(compressed);
+            final byte[] bytes = new byte[originalSize];
+            int length = 0;
+            while (length < originalSize && !inflater.finished()) {
+                final int inflated = inflater.inflate(bytes, length, originalSize - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != originalSize) {
+                throw new IllegalStateException(String.format("Decompressed %s bytes instead of %s", length,
+                        originalSize));
+            }
+            return bytes;
+        } catch (final DataFormatException e) {
+            throw new IllegalStateException("Compressed entry of the memory tier is corrupt", e);
+        } finally {
+            inflater.reset();
+            if (!this.inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Detects JPEG, GIF, WebP, gzip and zip content from its magic bytes, since deflating them again saves little.
+     * PNG is deflated as well, but often with a slow level or without compression, so PNG images are still tried.
+     */
+    static boolean isCompressedFormat(final byte[] bytes) {
+        return startsWith(bytes, 0, 0xFF, 0xD8, 0xFF)
+                || startsWith(bytes, 0, 'G', 'I', 'F', '8')
+                || (startsWith(bytes, 0, 'R', 'I', 'F', 'F') && startsWith(bytes, 8, 'W', 'E', 'B', 'P'))
+                || startsWith(bytes, 0, 0x1F, 0x8B)
+                || startsWith(bytes, 0, 'P', 'K', 0x03, 0x04);
+    }
+
+    private static boolean startsWith(final byte[] bytes, final int offset, final int... magic) {
+        if (bytes.length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((bytes[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Deflater along with the buffer it writes to, which grows with the resources it compresses up to
+     * {@link #MAX_POOLED_BUFFER_SIZE}, larger resources are compressed to a buffer of their own.
+     */
+    private static final class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private byte[] pooledBuffer = new byte[0];
+
+        byte[] compress(final byte[] bytes, final int maxCompressedSize) {
+            final byte[] buffer;
+            if (maxCompressedSize + 1 > MAX_POOLED_BUFFER_SIZE) {
+                buffer = new byte[maxCompressedSize + 1];
+            } else {
+                if (this.pooledBuffer.length < maxCompressedSize + 1) {
+                    this.pooledBuffer = new byte[maxCompressedSize + 1];
+                }
+                buffer = this.pooledBuffer;
+            }
+            try {
+                this.deflater.setInput(bytes);
+                this.deflater.finish();
+                int length = 0;
+                // one byte more than allowed tells a compressed form that is too large from one that fits exactly
+                while (!this.deflater.finished() && length <= maxCompressedSize) {
+                    length += this.deflater.deflate(buffer, length, maxCompressedSize + 1 - length);
+                }
+                if (!this.deflater.finished() || length > maxCompressedSize) {
+                    return null;
+                }
+                final byte[] compressed = new byte[length];
+                System.arraycopy(buffer, 0, compressed, 0, length);
+                return compressed;
+            } finally {
+                this.deflater.reset();
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.net.HttpHeaders;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Response to a request for a resource that was read into memory ahead of the load that needs it, see
+ * {@link LRUCacheManager#fetchAsync(String)}. A load that misses downloads the resource from it instead of sending the
+ * request itself, so that fetching resources can overlap while the cache is only changed by one load at a time.
+ */
+public final class FetchedResponse {
+    private final URL url;
+    private final int responseCode;
+    /**
+     * Value of every header of the response the way {@link HttpURLConnection#getHeaderField(String)} returns it.
+     */
+    private final Map<String, String> headerFields = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final byte[] body;
+    /**
+     * Time it took to fetch the response, the cost of fetching the resource.
+     */
+    private final long fetchTimeNanos;
+
+    FetchedResponse(final HttpURLConnection httpURLConnection, final byte[] body, final long fetchTimeNanos)
+            throws IOException {
+        this.url = httpURLConnection.getURL();
+        this.responseCode = httpURLConnection.getResponseCode();
+        for (final String name : httpURLConnection.getHeaderFields().keySet()) {
+            // the status line has no name, and the body is in memory already so it is never split into byte ranges
+            if (name != null && !HttpHeaders.ACCEPT_RANGES.equalsIgnoreCase(name)) {
+                this.headerFields.put(name, httpURLConnection.getHeaderField(name));
+            }
+        }
+        this.body = body;
+        this.fetchTimeNanos = fetchTimeNanos;
+    }
+
+    long getFetchTimeNanos() {
+        return this.fetchTimeNanos;
+    }
+
+    /**
+     * @return connection that answers with this response without sending a request, releasing it to a transport does
+     * nothing.
+     */
+    HttpURLConnection toConnection() {
+        return new HttpURLConnection(this.url) {
+            @Override
+            public int getResponseCode() {
+                return FetchedResponse.this.responseCode;
+            }
+
+            @Override
+            public String getHeaderField(final String name) {
+                return name == null ? null : FetchedResponse.this.headerFields.get(name);
+            }
+
+            @Override
+            public InputStream getInputStream() {
+                return new ByteArrayInputStream(FetchedResponse.this.body);
+            }
+
+            @Override
+            public void connect() {
+            }
+
+            @Override
+            public void disconnect() {
+            }
+
+            @Override
+            public boolean usingProxy() {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,32 @@
+package org.roblox.imagecache.cache;
+
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Storage of {@link StorageMode#HEAP}, writes every resource to the file of its key and keeps its bytes on the heap.
+ */
+class HeapStorage extends ResourceStorage {
+
+    HeapStorage(final File repository, final FileIOUtils fileIOUtils, final DownloadManager downloadManager,
+                final ConcurrentMap<String, ResourceData> resources) {
+        super(repository, fileIOUtils, downloadManager, resources);
+    }
+
+    @Override
+    ResourceMetaData download(final HttpURLConnection httpURLConnection, final String url) throws IOException {
+        return this.downloadManager.loadResource(httpURLConnection, url, this.repository);
+    }
+
+    @Override
+    ResourceData resourceDataOf(final String key, final ResourceMetaData metaData) {
+        return new ResourceData(key, metaData.getDownloadedResource().getPath(), metaData.getResourceBytes());
+    }
+}
@@ -0,0 +1,49 @@
+package org.roblox.imagecache.cache;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens the HTTP connections used by {@link DownloadManager} and takes them back once their response was handled,
+ * which allows implementations to pool and reuse the underlying connections.
+ */
+public interface HttpTransport {
+
+    /**
+     * Opens a connection to the given url, the request is sent once the response of the connection is accessed.
+     *
+     * @param url url of the resource to be fetched.
+     *
+     * @return connection that has to be handed back through {@link #release(HttpURLConnection, boolean)}.
+     *
+     * @throws IOException if the connection could not be opened.
+     */
+    HttpURLConnection open(@NonNull URL url) throws IOException;
+
+    /**
+     * Opens a connection to the given url only when one is available right away. Used for connections a download can
+     * do without, such as the byte ranges of a download that holds a connection to the same host already, which must
+     * never wait for connections held by the callers themselves.
+     *
+     * @param url url of the resource to be fetched.
+     *
+     * @return connection that has to be handed back through {@link #release(HttpURLConnection, boolean)}, null when
+     * no connection to the host is available.
+     *
+     * @throws IOException if the connection could not be opened.
+     */
+    HttpURLConnection tryOpen(@NonNull URL url) throws IOException;
+
+    /**
+     * Hands back a connection returned by {@link #open(URL)}. The caller has closed the response body stream when it
+     * is reusable.
+     *
+     * @param connection connection whose response was handled.
+     *
+     * @param reusable true when the response body was read until the end, false when the connection has to be closed.
+     */
+    void release(@NonNull HttpURLConnection connection, boolean reusable);
+}
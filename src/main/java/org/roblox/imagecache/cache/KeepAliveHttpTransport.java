@@ -0,0 +1,113 @@
+package org.roblox.imagecache.cache;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Default {@link HttpTransport}, opens connections with {@link HttpURLConnection} and relies on the keep-alive cache of
+ * the JDK to pool them. The JDK only returns a connection to its cache when the response body was read until the end
+ * and its stream was closed without calling {@link HttpURLConnection#disconnect()}, and keeps up to
+ * {@code http.maxConnections} idle connections per host.
+ * <p>
+ * This transport bounds the number of connections in use per host to maxConnectionsPerHost, downloads beyond that queue
+ * for a connection to be released for as long as it takes, only an interrupt ends the wait. It does not change {@code http.maxConnections}, which applies to every
+ * HttpURLConnection of the process: applications that allow more connections per host than the keep-alive cache of
+ * the JDK keeps, 5 by default, size it themselves so that released connections are not closed. HttpURLConnection only
+ * speaks HTTP/1.1, requests are not multiplexed.
+ * </p>
+ */
+public class KeepAliveHttpTransport implements HttpTransport {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 5;
+    private static final long TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final long CONNECT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private final int maxConnectionsPerHost;
+    private final long connectTimeoutMillis;
+    private final ConcurrentMap<String, Semaphore> connectionsPerHost = new ConcurrentHashMap<>();
+    /**
+     * Permits held by the connections that were opened and not released yet.
+     */
+    private final ConcurrentMap<HttpURLConnection, Semaphore> connectionsInUse = new ConcurrentHashMap<>();
+
+    public KeepAliveHttpTransport() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * @param maxConnectionsPerHost maximum number of connections to a host that are in use at a time.
+     */
+    public KeepAliveHttpTransport(final int maxConnectionsPerHost) {
+        this(maxConnectionsPerHost, CONNECT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param maxConnectionsPerHost maximum number of connections to a host that are in use at a time.
+     *
+     * @param connectTimeoutMillis time in milliseconds a connection may take to be established, the wait for a
+     *                             connection of the host to be released is not part of it.
+     */
+    KeepAliveHttpTransport(final int maxConnectionsPerHost, final long connectTimeoutMillis) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("Value for max connections per host should be a positive integer");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    public HttpURLConnection open(@NonNull final URL url) throws IOException {
+        final Semaphore permits = permitsOf(url);
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while waiting for a connection to %s", url.getHost()),
+                    e);
+        }
+        return openWithPermit(url, permits);
+    }
+
+    @Override
+    public HttpURLConnection tryOpen(@NonNull final URL url) throws IOException {
+        final Semaphore permits = permitsOf(url);
+        return permits.tryAcquire() ? openWithPermit(url, permits) : null;
+    }
+
+    private Semaphore permitsOf(final URL url) {
+        final String host = url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort()
+                : url.getDefaultPort());
+        // fair, so that the downloads waiting for a connection get one in the order they asked for it
+        return this.connectionsPerHost.computeIfAbsent(host, key -> new Semaphore(this.maxConnectionsPerHost, true));
+    }
+
+    private HttpURLConnection openWithPermit(final URL url, final Semaphore permits) throws IOException {
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(Math.toIntExact(this.connectTimeoutMillis));
+            connection.setReadTimeout(Math.toIntExact(TIMEOUT_MS));
+            this.connectionsInUse.put(connection, permits);
+            return connection;
+        } catch (final IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void release(@NonNull final HttpURLConnection connection, final boolean reusable) {
+        if (!reusable) {
+            connection.disconnect();
+        }
+        final Semaphore permits = this.connectionsInUse.remove(connection);
+        if (permits != null) {
+            permits.release();
+        }
+    }
+}
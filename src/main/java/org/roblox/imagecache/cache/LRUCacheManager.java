@@ -1,52 +1,153 @@
 package org.roblox.imagecache.cache;
 
-import lombok.Getter;
+import com.google.common.math.IntMath;
 import lombok.NonNull;
 import org.apache.commons.io.FileUtils;
+import org.roblox.imagecache.cache.eviction.EvictionPolicy;
+import org.roblox.imagecache.types.Freshness;
 import org.roblox.imagecache.types.ResourceData;
 import org.roblox.imagecache.types.ResourceMetaData;
 import org.roblox.imagecache.types.ResultData;
 import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.types.StorageMode;
 import org.roblox.imagecache.utils.FileIOUtils;
+import org.roblox.imagecache.variant.ImageTransform;
+import org.roblox.imagecache.variant.ImageTransformer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Class represents a cache that uses Least Recently Used Item for eviction strategy and is
+ * Class represents a cache that uses Least Recently Used Item for eviction strategy by default and is
  * Read through cache i.e checks whether an item is present in the cache, if item is not present, makes a HTTP call
  * downloads the resource and then updates the cache with the key and value as the item that was downloaded.
  * More information on the types of Cache Eviction can be found at:
  * <a href=
  * "https://en.wikipedia.org/wiki/Cache_replacement_policies#Least_recently_used_(LRU)">
  * <p>
- * This Cache is implemented d by using Java's {@code LinkedHashMap}.
- * It uses input provided repository as the path to save the files to.
+ * This Cache is safe to be used from multiple threads. Resources are looked up from a {@code ConcurrentHashMap} so
+ * that cache hits never block on each other. The order of eviction is decided by an {@link EvictionPolicy}, selected
+ * through {@link CacheConfiguration#getEvictionPolicy()}, which is only touched while holding the eviction lock; hits
+ * record their access in striped buffers that are replayed into the policy before any eviction decision is made.
+ * Concurrent misses for the same key are coalesced so that only one download runs per key, the other callers wait
+ * for it and share its result. Evicting an entry only removes it from the cache, its resource is deleted from the disk
+ * in batches by a reclaimer running on the download executor, which also evicts entries ahead of time once the cache
+ * grows beyond its high watermark, see {@link CacheConfiguration#getEvictionHighWatermark()}.
+ * It uses input provided repository as the path to save the files to, optionally along with an index of the entries
+ * that makes the cache warm after a restart, see {@link CacheIndex}. How the resources are written and served is left
+ * to the {@link ResourceStorage} of the configured {@link StorageMode}, variants of the images are derived by a
+ * {@link VariantLoader}.
  * </p>
  */
 public class LRUCacheManager implements Cache {
     private final Logger log = LoggerFactory.getLogger(LRUCacheManager.class);
 
     private static final long MAX_CACHE_CAPACITY = FileUtils.ONE_GB;
-    private final Map<String, ResourceData> linkedHashMap;
+    private static final long MAX_DISK_CACHE_CAPACITY = FileUtils.ONE_TB;
+    private static final long RESERVATION_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final int ACCESS_BUFFER_DRAIN_THRESHOLD = 32;
+    private static final int DELETION_BATCH_SIZE = 256;
+    /**
+     * Age from which the reclaimer deletes the bytes kept for downloads that failed part way and were not resumed.
+     */
+    private static final long PARTIAL_DOWNLOAD_MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    /**
+     * Admission limit of downloads that evict entries whenever they need their space.
+     */
+    private static final long EVICT_AS_NEEDED = -1;
+    private static final int NUM_ACCESS_BUFFERS =
+            IntMath.ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+
+    private final ConcurrentMap<String, ResourceData> resources;
+    /**
+     * Downloads in progress keyed by url, used to coalesce concurrent misses for the same key.
+     */
+    private final ConcurrentMap<String, CompletableFuture<ResultData>> inFlightDownloads = new ConcurrentHashMap<>();
+    /**
+     * Map of key to size in bytes of the resident entries, guarded by the evictionLock.
+     */
+    private final Map<String, Long> residentSizes;
+    /**
+     * Decides which entries are evicted, guarded by the evictionLock.
+     */
+    private final EvictionPolicy evictionPolicy;
+    private final AccessBuffer[] accessBuffers;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Condition capacityReleased = this.evictionLock.newCondition();
     private final FileIOUtils fileIOUtils;
     private final File repository;
     private final long maxCapacityInBytes;
-    private long currentSizeInBytes;
-
-    @Getter
-    private int cacheHitsCounter;
-    @Getter
-    private int cacheMissCounter;
-    @Getter
-    private int cacheEvictionCounter;
+    /**
+     * Bytes used by the cached entries as well as bytes reserved by downloads that are in progress. With deduplication
+     * the bytes of identical resources are only counted once.
+     */
+    private final AtomicLong currentSizeInBytes = new AtomicLong();
+
+    private final LongAdder cacheHitsCounter = new LongAdder();
+    private final LongAdder cacheMissCounter = new LongAdder();
+    private final LongAdder cacheEvictionCounter = new LongAdder();
+    private final LongAdder cacheRevalidationCounter = new LongAdder();
     private final DownloadManager downloadManager;
+    private final Executor downloadExecutor;
+    /**
+     * Download executor the cache created itself because the configuration did not give one, null otherwise. It is
+     * shut down when the cache is closed.
+     */
+    private final ExecutorService ownedDownloadExecutor;
+    private final long defaultTimeToLiveInMillis;
+    /**
+     * Storage of the resources of the {@link StorageMode} selected through {@link CacheConfiguration#getStorageMode()},
+     * calls documented to need the evictionLock are guarded by it.
+     */
+    private final ResourceStorage storage;
+    /**
+     * Persistent index of the entries in the repository, guarded by the evictionLock, null unless enabled through
+     * {@link CacheConfiguration#isPersistentIndex()}.
+     */
+    private final CacheIndex index;
+    /**
+     * Storage of the resources by their content, guarded by the evictionLock, null unless enabled through
+     * {@link CacheConfiguration#isDeduplication()}.
+     */
+    private final ContentStore contentStore;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    /**
+     * Resources of evicted entries that the reclaimer still has to delete from the disk, keyed by the key of the entry,
+     * or by the digest of the content for content of the content store that is no longer referenced.
+     */
+    private final ConcurrentMap<String, File> pendingDeletions = new ConcurrentHashMap<>();
+    /**
+     * Keys of the cached variants of every original that has any, guarded by the evictionLock.
+     */
+    private final VariantKeys variantKeys = new VariantKeys();
+    private final VariantLoader variantLoader;
+    private final AtomicBoolean reclaimScheduled = new AtomicBoolean();
+    /**
+     * Size above which the reclaimer evicts entries in the background, down to the low watermark.
+     */
+    private final long highWatermarkInBytes;
+    private final long lowWatermarkInBytes;
+    private final CacheMetrics metrics;
 
     /**
      * Creating LRU Cache using on disk storage as specified by the size in capacityInBytes and repository as the path
@@ -62,28 +163,198 @@ public class LRUCacheManager implements Cache {
                            @NonNull final String repository,
                            @NonNull final FileIOUtils fileIOUtils,
                            @NonNull final DownloadManager downloadManager) {
+        this(capacityInBytes, numberOfItems, repository, fileIOUtils, downloadManager, CacheConfiguration.defaults());
+    }
+
+    /**
+     * Creating LRU Cache that runs the downloads of {@link #loadAsync(String)} on the given executor.
+     *
+     * @param downloadExecutor executor on which the downloads for asynchronous loads are run, the cache does not shut it
+     *                         down.
+     */
+    public LRUCacheManager(final long capacityInBytes,
+                           final int numberOfItems,
+                           @NonNull final String repository,
+                           @NonNull final FileIOUtils fileIOUtils,
+                           @NonNull final DownloadManager downloadManager,
+                           @NonNull final Executor downloadExecutor) {
+        this(capacityInBytes, numberOfItems, repository, fileIOUtils, downloadManager,
+                CacheConfiguration.builder().downloadExecutor(downloadExecutor).build());
+    }
+
+    /**
+     * Creating LRU Cache with the optional settings given by the configuration.
+     *
+     * @param configuration optional settings of the cache, see {@link CacheConfiguration}.
+     */
+    public LRUCacheManager(final long capacityInBytes,
+                           final int numberOfItems,
+                           @NonNull final String repository,
+                           @NonNull final FileIOUtils fileIOUtils,
+                           @NonNull final DownloadManager downloadManager,
+                           @NonNull final CacheConfiguration configuration) {
         this.fileIOUtils = fileIOUtils;
         this.repository = fileIOUtils.createRepository(repository);
-        this.validate(capacityInBytes, numberOfItems);
+        this.validate(capacityInBytes, numberOfItems, configuration);
         this.maxCapacityInBytes = capacityInBytes;
-        this.linkedHashMap = Collections.synchronizedMap(new LinkedHashMap<>(numberOfItems, 0.75f, true));
+        this.highWatermarkInBytes = (long) (capacityInBytes * configuration.getEvictionHighWatermark());
+        this.lowWatermarkInBytes = (long) (capacityInBytes * configuration.getEvictionLowWatermark());
+        this.resources = new ConcurrentHashMap<>(numberOfItems);
+        this.residentSizes = new HashMap<>(numberOfItems);
+        this.evictionPolicy = configuration.getEvictionPolicy().create(capacityInBytes, numberOfItems);
+        this.accessBuffers = new AccessBuffer[NUM_ACCESS_BUFFERS];
+        for (int i = 0; i < this.accessBuffers.length; i++) {
+            this.accessBuffers[i] = new AccessBuffer();
+        }
         this.downloadManager = downloadManager;
+        this.ownedDownloadExecutor =
+                configuration.getDownloadExecutor() == null ? DownloadExecutors.newDownloadExecutor() : null;
+        this.downloadExecutor = this.ownedDownloadExecutor != null
+                ? this.ownedDownloadExecutor : configuration.getDownloadExecutor();
+        this.defaultTimeToLiveInMillis = configuration.getDefaultTimeToLiveInMillis();
+        this.storage = ResourceStorage.create(configuration, this.repository, fileIOUtils, downloadManager,
+                this.resources);
+        this.variantLoader = new VariantLoader(this,
+                new ImageTransformer(configuration.getMaxVariantSourcePixels()), this.downloadExecutor);
+        this.contentStore = configuration.isDeduplication() ? new ContentStore(this.repository, fileIOUtils) : null;
+        this.index = configuration.isPersistentIndex() ? new CacheIndex(this.repository) : null;
+        this.metrics = new CacheMetrics(configuration.getMetricRegistry());
+        this.metrics.registerGauge("size.bytes", this.currentSizeInBytes::get);
+        this.metrics.registerGauge("entries", this.resources::size);
+        this.metrics.registerGauge("hits", this.cacheHitsCounter::sum);
+        this.metrics.registerGauge("misses", this.cacheMissCounter::sum);
+        this.metrics.registerGauge("revalidations", this.cacheRevalidationCounter::sum);
+        if (this.index != null) {
+            restoreIndex();
+        }
+        try {
+            downloadManager.deleteUnrecordedPartialDownloads(this.repository);
+        } catch (final IOException e) {
+            this.log.warn("Unable to delete partial downloads of a previous run from repository {}",
+                    this.repository, e);
+        }
     }
 
     /**
-     * validates the inputs.
+     * Restores the entries that a previous run recorded in the index of the repository, without reading their content,
+     * and starts recording the entries of this cache. Entries that do not fit in the capacity of this cache are
+     * evicted in the order of the eviction policy.
+     */
+    private void restoreIndex() {
+        final List<String> entriesToDeleteFromDisk = new ArrayList<>();
+        this.evictionLock.lock();
+        try {
+            final List<CacheIndex.Entry> restored = new ArrayList<>();
+            for (final CacheIndex.Entry entry : this.index.restore()) {
+                if (!isLocationOf(entry)) {
+                    this.log.warn("Ignoring cache index entry with unexpected location: {}", entry.getPath());
+                    continue;
+                }
+                restored.add(entry);
+                this.resources.put(entry.getKey(),
+                        ResourceData.onDisk(entry.getKey(), entry.getPath(), entry.getSizeInBytes()));
+                this.residentSizes.put(entry.getKey(), entry.getSizeInBytes());
+                this.evictionPolicy.onInsert(entry.getKey(), entry.getSizeInBytes(), entry.getFetchCostInNanos());
+                this.currentSizeInBytes.addAndGet(this.contentStore != null
+                        ? this.contentStore.restore(entry.getKey(), entry.getPath(), entry.getSizeInBytes())
+                        : entry.getSizeInBytes());
+                this.variantKeys.add(entry.getKey());
+            }
+            // variants whose original was not restored are out of date
+            for (final String originalKey : this.variantKeys.originals()) {
+                if (!this.residentSizes.containsKey(originalKey)) {
+                    evictVariants(originalKey, entriesToDeleteFromDisk);
+                }
+            }
+            reserveCapacity(0, entriesToDeleteFromDisk);
+            // the restored entries keep their recency order, without the ones that were evicted since
+            restored.removeIf(entry -> !this.residentSizes.containsKey(entry.getKey()));
+            this.index.open(restored);
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Unable to restore cache index from repository %s",
+                    this.repository), e);
+        } finally {
+            this.evictionLock.unlock();
+        }
+        this.log.info("Restored {} objects from cache index, currentSizeInBytes: {}", this.resources.size(),
+                this.currentSizeInBytes.get());
+        scheduleDeletion(entriesToDeleteFromDisk);
+    }
+
+    /**
+     * Entries are evicted by deleting the location derived from their key, or their location in the content directory
+     * with deduplication, so entries recorded at any other location are not restored.
+     */
+    private boolean isLocationOf(final CacheIndex.Entry entry) {
+        if (this.contentStore != null) {
+            return this.contentStore.isLocationOf(entry.getPath());
+        }
+        try {
+            return this.fileIOUtils.generateFileLocation(this.repository, new URL(entry.getKey()))
+                    .getAbsoluteFile().equals(new File(entry.getPath()).getAbsoluteFile());
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Compacts the index once it holds enough redundant records. Must be called while holding the eviction lock.
+     */
+    private void compactIndexIfNeeded() {
+        if (this.index != null && this.index.needsCompaction()) {
+            this.index.compact();
+        }
+    }
+
+    /**
+     * validates the inputs. Only a cache that keeps all of its resources on the heap is limited to
+     * MAX_CACHE_CAPACITY, the other storage modes only keep resources on disk or in a memory tier of their own size.
      *
      * @param capacityInBytes input size of cache.
      * @param numberOfItems number of items in the cache size.
+     * @param configuration optional settings of the cache.
      */
-    private void validate(final long capacityInBytes, final int numberOfItems) {
-        if(capacityInBytes < 0 || capacityInBytes > MAX_CACHE_CAPACITY) {
+    private void validate(final long capacityInBytes, final int numberOfItems, final CacheConfiguration configuration) {
+        final long maxCapacity = configuration.getStorageMode() == StorageMode.HEAP
+                ? MAX_CACHE_CAPACITY : MAX_DISK_CACHE_CAPACITY;
+        if(capacityInBytes < 0 || capacityInBytes > maxCapacity) {
             throw new IllegalArgumentException(String.format("Value for cache capacity should be in %s and %s range", 0,
-                    MAX_CACHE_CAPACITY));
+                    maxCapacity));
         }
         if(numberOfItems < 0) {
             throw new IllegalArgumentException("Value for number of items should be a positive integer");
         }
+        final long memoryTierCapacity = configuration.getMemoryTierCapacityInBytes();
+        if(memoryTierCapacity < 0 || memoryTierCapacity > MAX_CACHE_CAPACITY) {
+            throw new IllegalArgumentException(String.format(
+                    "Value for memory tier capacity should be in %s and %s range", 0, MAX_CACHE_CAPACITY));
+        }
+        final double compressionRatio = configuration.getMemoryTierCompressionRatio();
+        if(!(compressionRatio > 0 && compressionRatio <= 1)) {
+            throw new IllegalArgumentException("Value for memory tier compression ratio should be in (0, 1]");
+        }
+        if(configuration.getMaxVariantSourcePixels() <= 0) {
+            throw new IllegalArgumentException("Value for maximum pixels of variant sources should be positive");
+        }
+        if(configuration.getDefaultTimeToLiveInMillis() < 0) {
+            throw new IllegalArgumentException("Value for default time to live should not be negative");
+        }
+        final double highWatermark = configuration.getEvictionHighWatermark();
+        final double lowWatermark = configuration.getEvictionLowWatermark();
+        if(!(lowWatermark > 0 && lowWatermark <= highWatermark && highWatermark <= 1)) {
+            throw new IllegalArgumentException(
+                    "Eviction watermarks should satisfy 0 < low watermark <= high watermark <= 1");
+        }
+        final long segmentSize = configuration.getSegmentSizeInBytes();
+        if(segmentSize <= 0 || segmentSize > MAX_CACHE_CAPACITY) {
+            throw new IllegalArgumentException(String.format(
+                    "Value for segment size should be in %s and %s range", 1, MAX_CACHE_CAPACITY));
+        }
+        if(configuration.getStorageMode() == StorageMode.SEGMENTED
+                && (configuration.isPersistentIndex() || configuration.isDeduplication())) {
+            throw new IllegalArgumentException(
+                    "Persistent index and deduplication are not supported by the segmented storage mode");
+        }
     }
 
     /**
@@ -92,6 +363,9 @@ public class LRUCacheManager implements Cache {
      * actual bytes array as well as metadata.
      * If the resource is fetched by making external call we will return the {@link ResultData} with {@link State} as
      * State.DOWNLOADED, otherwise State.CACHED.
+     * Cached resources whose freshness expired are revalidated with a conditional request first, which only downloads
+     * the resource again when it changed. Within the stale-while-revalidate window of the resource the cached resource
+     * is returned right away and revalidated in the background.
      *
      * @param key url string of the resource to be fetched from the cache.
      *
@@ -102,79 +376,1155 @@ public class LRUCacheManager implements Cache {
      */
     @Override
     public ResultData load(@NonNull final String key) throws IOException {
-        this.log.info("Trying to load object: " + key);
-        if (this.linkedHashMap.containsKey(key)) {
-            // cache hit
-            this.cacheHitsCounter++;
-            final ResourceData cahedResource = this.linkedHashMap.get(key);
-            return new ResultData(key, State.CACHE, cahedResource.getOriginalResourceBytes().length);
+        return load(key, null);
+    }
+
+    /**
+     * Same as {@link #load(String)}, but a miss is downloaded from the given response instead of a request of its own.
+     * Loading the urls of a sequence one at a time this way, with their responses fetched ahead through
+     * {@link #fetchAsync(String)}, leaves the cache in the same state as loading them with {@link #load(String)}
+     * while the resources are fetched concurrently. The response is not used when the resource is a hit, is
+     * revalidated or is being downloaded already.
+     *
+     * @param key url string of the resource to be fetched from the cache.
+     *
+     * @param fetchedResponse response fetched for the key ahead of the load, null to send the request when the
+     *                        resource has to be downloaded.
+     *
+     * @return {@link ResultData} of the load, the same as {@link #load(String)}.
+     *
+     * @throws IOException if the resource could not be downloaded.
+     */
+    public ResultData load(@NonNull final String key, final FetchedResponse fetchedResponse) throws IOException {
+        final long start = System.nanoTime();
+        ResultData resultData = null;
+        try {
+            resultData = loadResource(key, fetchedResponse);
+            return resultData;
+        } finally {
+            recordLoad(resultData, System.nanoTime() - start);
+        }
+    }
+
+    private ResultData loadResource(final String key, final FetchedResponse fetchedResponse) throws IOException {
+        this.log.debug("Trying to load object: {}", key);
+        final ResourceData cachedResource = this.resources.get(key);
+        if (cachedResource != null && isServable(key, cachedResource)) {
+            return cacheHit(key, cachedResource);
+        }
+        //cache miss or stale resource, download or revalidate the image by making external service call unless it is
+        //already being downloaded
+        final CompletableFuture<ResultData> download = new CompletableFuture<>();
+        final CompletableFuture<ResultData> inFlightDownload = this.inFlightDownloads.putIfAbsent(key, download);
+        if (inFlightDownload != null) {
+            final ResultData resultData = awaitDownload(key, inFlightDownload);
+            // a prefetch that did not admit the resource hands the load back to its waiters
+            return resultData.getState() == State.SKIPPED ? loadResource(key, fetchedResponse) : resultData;
+        }
+        runDownload(key, download, fetchedResponse);
+        return awaitDownload(key, download);
+    }
+
+    /**
+     * Asynchronous variant of {@link #load(String)}. Cache hits and downloads that are already in progress are returned
+     * without handing off to another thread, new downloads run on the download executor of this cache.
+     *
+     * @param key url string of the resource to be fetched from the cache.
+     *
+     * @return future that completes with the {@link ResultData} of the load operation, or exceptionally when the
+     * resource could not be fetched.
+     */
+    @Override
+    public CompletableFuture<ResultData> loadAsync(@NonNull final String key) {
+        final long start = System.nanoTime();
+        final CompletableFuture<ResultData> load = loadResourceAsync(key);
+        load.whenComplete((resultData, e) -> recordLoad(resultData, System.nanoTime() - start));
+        return load;
+    }
+
+    private CompletableFuture<ResultData> loadResourceAsync(final String key) {
+        this.log.debug("Trying to load object asynchronously: {}", key);
+        final ResourceData cachedResource = this.resources.get(key);
+        if (cachedResource != null && isServable(key, cachedResource)) {
+            return CompletableFuture.completedFuture(cacheHit(key, cachedResource));
+        }
+        final CompletableFuture<ResultData> download = new CompletableFuture<>();
+        final CompletableFuture<ResultData> inFlightDownload = this.inFlightDownloads.putIfAbsent(key, download);
+        if (inFlightDownload != null) {
+            if (!(inFlightDownload instanceof PrefetchDownload)) {
+                return inFlightDownload;
+            }
+            // a prefetch that did not admit the resource hands the load back to its waiters
+            return inFlightDownload.thenCompose(resultData -> resultData.getState() == State.SKIPPED
+                    ? loadResourceAsync(key) : CompletableFuture.completedFuture(resultData));
+        }
+        try {
+            this.downloadExecutor.execute(() -> runDownload(key, download, null));
+        } catch (final RejectedExecutionException e) {
+            this.inFlightDownloads.remove(key, download);
+            download.completeExceptionally(e);
+        }
+        return download;
+    }
+
+    /**
+     * Fetches the response for the key into memory on the download executor, without looking the key up in the cache
+     * or changing the cache, for a later {@link #load(String, FetchedResponse)}. Fetches are not counted as loads.
+     *
+     * @param key url string of the resource to be fetched.
+     *
+     * @return future that completes with the response, or exceptionally when the resource could not be fetched.
+     */
+    public CompletableFuture<FetchedResponse> fetchAsync(@NonNull final String key) {
+        final CompletableFuture<FetchedResponse> fetch = new CompletableFuture<>();
+        try {
+            this.downloadExecutor.execute(() -> {
+                try {
+                    fetch.complete(this.downloadManager.fetch(key));
+                } catch (final IOException | RuntimeException | Error e) {
+                    fetch.completeExceptionally(e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            fetch.completeExceptionally(e);
+        }
+        return fetch;
+    }
+
+    /**
+     * @return true when an entry for the key is cached, whether it is fresh or stale.
+     */
+    public boolean contains(@NonNull final String key) {
+        return this.resources.containsKey(key);
+    }
+
+    /**
+     * Downloads the resource into the cache ahead of the loads that need it, unless it is cached or being downloaded
+     * already. Unlike {@link #load(String)} a prefetch never evicts entries: the resource is only admitted while the
+     * cache stays at or below the given fill level, which is capped by the high watermark so that the background
+     * eviction does not evict entries for it either. Prefetches are neither counted as hits nor as misses and do not
+     * change the recency of the cached entries.
+     *
+     * @param key url string of the resource to be fetched.
+     *
+     * @param fillLimitInBytes size the cache may grow to with the resource.
+     *
+     * @return the {@link ResultData} of the prefetch, {@link State#CACHE} when the resource was cached already and
+     * {@link State#SKIPPED} when it was not admitted.
+     *
+     * @throws IOException if the resource could not be downloaded.
+     */
+    public ResultData prefetch(@NonNull final String key, final long fillLimitInBytes) throws IOException {
+        final ResourceData cachedResource = this.resources.get(key);
+        if (cachedResource != null) {
+            return new ResultData(key, State.CACHE, cachedResource.getSizeInBytes(), cachedResource);
+        }
+        final CompletableFuture<ResultData> download = new PrefetchDownload();
+        final CompletableFuture<ResultData> inFlightDownload = this.inFlightDownloads.putIfAbsent(key, download);
+        if (inFlightDownload != null) {
+            return awaitDownload(key, inFlightDownload);
+        }
+        final long admissionLimit = Math.min(Math.max(0, fillLimitInBytes), this.highWatermarkInBytes);
+        ResultData resultData = null;
+        Throwable failure = null;
+        try {
+            // the download started by another caller may have completed after the lookup in the cache.
+            final ResourceData downloadedResource = this.resources.get(key);
+            if (downloadedResource != null) {
+                resultData = new ResultData(key, State.CACHE, downloadedResource.getSizeInBytes(), downloadedResource);
+            } else {
+                final long connectStart = System.nanoTime();
+                final HttpURLConnection httpURLConnection = this.downloadManager.getHttpURLConnection(key);
+                final ResourceData resourceData =
+                        downLoadImage(key, httpURLConnection, System.nanoTime() - connectStart, admissionLimit);
+                resultData = resourceData == null ? new ResultData(key, State.SKIPPED, 0, null)
+                        : new ResultData(key, State.DOWNLOADED, resourceData.getSizeInBytes(), resourceData);
+            }
+        } catch (final IOException | RuntimeException | Error e) {
+            failure = e;
+        } finally {
+            // removed before completing, so that waiters handed back a skipped resource do not find this download
+            this.inFlightDownloads.remove(key, download);
+        }
+        if (failure != null) {
+            download.completeExceptionally(failure);
+        } else {
+            download.complete(resultData);
+        }
+        return awaitDownload(key, download);
+    }
+
+    /**
+     * @return true when the cached resource can be returned as is, which is the case while it is fresh and, for a stale
+     * resource, while its stale-while-revalidate window lasts, in which case its revalidation is started.
+     */
+    private boolean isServable(final String key, final ResourceData cachedResource) {
+        final long now = System.currentTimeMillis();
+        if (cachedResource.isFresh(now)) {
+            return true;
+        }
+        if (!cachedResource.getFreshness().isServableWhileRevalidating(now)) {
+            return false;
+        }
+        final CompletableFuture<ResultData> revalidation = new CompletableFuture<>();
+        if (this.inFlightDownloads.putIfAbsent(key, revalidation) == null) {
+            try {
+                this.downloadExecutor.execute(() -> runDownload(key, revalidation, null));
+            } catch (final RejectedExecutionException e) {
+                this.inFlightDownloads.remove(key, revalidation);
+                revalidation.completeExceptionally(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downloads or revalidates the resource for the key and completes the given future, which the caller registered as
+     * the in flight download of the key, with its result.
+     *
+     * @param fetchedResponse response a download reads the resource from, null to send the request.
+     */
+    private void runDownload(final String key, final CompletableFuture<ResultData> download,
+                             final FetchedResponse fetchedResponse) {
+        try {
+            // the download started by another caller may have completed after the lookup in the cache.
+            final ResourceData downloadedResource = this.resources.get(key);
+            if (downloadedResource != null && downloadedResource.isFresh(System.currentTimeMillis())) {
+                download.complete(cacheHit(key, downloadedResource));
+            } else if (downloadedResource != null) {
+                download.complete(revalidate(key, downloadedResource));
+            } else {
+                final ResourceData resourceData = fetchedResponse == null ? downLoadImage(key)
+                        : downLoadImage(key, fetchedResponse.toConnection(), fetchedResponse.getFetchTimeNanos());
+                download.complete(new ResultData(key, State.DOWNLOADED, resourceData.getSizeInBytes(), resourceData));
+            }
+        } catch (final IOException | RuntimeException | Error e) {
+            download.completeExceptionally(e);
+        } finally {
+            this.inFlightDownloads.remove(key, download);
+        }
+    }
+
+    /**
+     * Sends a conditional request for a stale resource. When the server responds that the resource did not change only
+     * the freshness of the cached resource is updated, otherwise the cached resource is replaced by the one in the
+     * response. A stale resource without an ETag or a Last-Modified cannot be revalidated and is downloaded again.
+     */
+    private ResultData revalidate(final String key, final ResourceData staleResource) throws IOException {
+        if (!staleResource.getFreshness().hasValidators()) {
+            removeStaleResource(key, staleResource);
+            final ResourceData resourceData = downLoadImage(key);
+            return new ResultData(key, State.DOWNLOADED, resourceData.getSizeInBytes(), resourceData);
+        }
+        this.cacheRevalidationCounter.increment();
+        final long connectStart = System.nanoTime();
+        final HttpURLConnection httpURLConnection =
+                this.downloadManager.getHttpURLConnection(key, staleResource.getFreshness());
+        if (httpURLConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            final Freshness freshness = staleResource.getFreshness().refreshedBy(
+                    this.downloadManager.getFreshness(httpURLConnection, this.defaultTimeToLiveInMillis));
+            this.downloadManager.release(httpURLConnection);
+            final ResourceData revalidatedResource = staleResource.withFreshness(freshness);
+            // the resource may have been evicted in the meantime, in which case it stays evicted
+            this.resources.replace(key, staleResource, revalidatedResource);
+            this.log.debug("Revalidated object: {}", key);
+            return new ResultData(key, State.CACHE, revalidatedResource.getSizeInBytes(), revalidatedResource);
+        }
+        this.log.debug("Object changed since it was cached: {}", key);
+        removeStaleResource(key, staleResource);
+        final ResourceData resourceData =
+                downLoadImage(key, httpURLConnection, System.nanoTime() - connectStart);
+        return new ResultData(key, State.DOWNLOADED, resourceData.getSizeInBytes(), resourceData);
+    }
+
+    /**
+     * Removes a stale resource that is about to be downloaded again along with its file, unless it was evicted already.
+     */
+    private void removeStaleResource(final String key, final ResourceData staleResource) {
+        final List<String> entriesToDeleteFromDisk = new ArrayList<>();
+        this.evictionLock.lock();
+        try {
+            if (!this.resources.remove(key, staleResource)) {
+                return;
+            }
+            this.variantKeys.remove(key);
+            // the variants were derived from the stale resource
+            evictVariants(key, entriesToDeleteFromDisk);
+            final long residentSize = this.residentSizes.remove(key);
+            this.currentSizeInBytes.addAndGet(this.contentStore != null
+                    ? -this.contentStore.remove(key, this.pendingDeletions) : -residentSize);
+            this.storage.remove(key);
+            scheduleCompactionIfNeeded();
+            this.evictionPolicy.onRemove(key);
+            if (this.index != null) {
+                this.index.recordRemove(key);
+            }
+            this.capacityReleased.signalAll();
+        } finally {
+            this.evictionLock.unlock();
+        }
+        if (this.contentStore == null && this.storage.hasFilePerKey()) {
+            entriesToDeleteFromDisk.add(key);
+        }
+        scheduleDeletion(entriesToDeleteFromDisk);
+    }
+
+    /**
+     * Reads a byte range of the resource, e.g. to serve a range request or to read the header of an image. Cache hits
+     * only read the range, from the memory tier when it holds the resource and from the file of the resource
+     * otherwise. Misses load the whole resource first, the way {@link #load(String)} does.
+     *
+     * @param key url string of the resource to be fetched from the cache.
+     *
+     * @param offset first byte of the range.
+     *
+     * @param length maximum number of bytes of the range, it ends early at the end of the resource.
+     *
+     * @return read only view of the range positioned at 0, empty when the offset is at or after the end of the
+     * resource.
+     *
+     * @throws IOException if the resource could not be fetched.
+     */
+    public ByteBuffer loadRange(@NonNull final String key, final long offset, final int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range of %d bytes at %d", length, offset));
+        }
+        final ResourceData cachedResource = this.resources.get(key);
+        if (cachedResource != null && isServable(key, cachedResource)) {
+            final long start = System.nanoTime();
+            recordAccess(key);
+            final ResourceData resourceData = this.storage.peek(cachedResource);
+            try {
+                final ByteBuffer range = resourceData.readRange(offset, length);
+                recordLoad(new ResultData(key, State.CACHE, resourceData.getSizeInBytes(), resourceData),
+                        System.nanoTime() - start);
+                return range;
+            } catch (final IOException e) {
+                // evicted in the meantime, served like a miss
+                this.log.debug("Unable to read range of cached object: {}", key, e);
+            }
+        }
+        return load(key).getResourceData().readRange(offset, length);
+    }
+
+    /**
+     * Loads a variant of the image at the url, e.g. a thumbnail or a copy re-encoded in another format. The variant is
+     * derived from the original once and cached under {@link ImageTransform#keyOf(String)} like any other resource, it
+     * uses the capacity of the cache and is evicted by its eviction policy. A variant is only served while its original
+     * is cached and servable: evicting the original, or replacing it after it changed, drops its variants, and hits
+     * on a variant count as accesses of the original. Concurrent loads of the same variant derive it once. A variant
+     * that has to be derived is counted as a miss, the load of its original like any other load.
+     *
+     * @param url url string of the original image, which is loaded the way {@link #load(String)} does when the
+     *            variant has to be derived.
+     *
+     * @param transform transform deriving the variant from the original.
+     *
+     * @return {@link ResultData} of the variant, with {@link State#CACHE} when the variant was cached and
+     * {@link State#TRANSFORMED} when it was derived.
+     *
+     * @throws IOException if the original could not be fetched or is not an image that can be transformed.
+     */
+    public ResultData loadVariant(@NonNull final String url, @NonNull final ImageTransform transform)
+            throws IOException {
+        return loadVariant(url, transform, null);
+    }
+
+    /**
+     * Same as {@link #loadVariant(String, ImageTransform)}, but the original is downloaded from the given response
+     * when it has to be, see {@link #load(String, FetchedResponse)}.
+     *
+     * @param fetchedOriginal response fetched for the url of the original ahead of the load, null to send the request
+     *                        when the original has to be downloaded.
+     */
+    public ResultData loadVariant(@NonNull final String url, @NonNull final ImageTransform transform,
+                                  final FetchedResponse fetchedOriginal) throws IOException {
+        return this.variantLoader.load(url, transform, fetchedOriginal);
+    }
+
+    /**
+     * Asynchronous variant of {@link #loadVariant(String, ImageTransform)}. Cache hits are returned without handing off
+     * to another thread, variants that have to be derived are derived on the download executor of this cache.
+     */
+    @Override
+    public CompletableFuture<ResultData> loadVariantAsync(@NonNull final String url,
+                                                          @NonNull final ImageTransform transform) {
+        return this.variantLoader.loadAsync(url, transform);
+    }
+
+    /**
+     * @return the cached variant when it and its original can be served, null otherwise.
+     */
+    ResultData variantHit(final String url, final String key) {
+        final ResourceData cachedOriginal = this.resources.get(url);
+        final ResourceData cachedVariant = this.resources.get(key);
+        if (cachedOriginal == null || cachedVariant == null || !isServable(url, cachedOriginal)) {
+            return null;
+        }
+        // evicting the original drops the variant, so the original is kept as recent as its variants
+        recordAccess(url);
+        return cacheHit(key, cachedVariant);
+    }
+
+    /**
+     * Loads the original of a variant that has to be derived, which counts as a load of its own.
+     */
+    ResultData loadOriginal(final String url, final FetchedResponse fetchedResponse) throws IOException {
+        ResultData original = null;
+        try {
+            original = loadResource(url, fetchedResponse);
+            return original;
+        } finally {
+            countLoad(original);
+        }
+    }
+
+    /**
+     * Adds a derived variant to the cache, unless its original was evicted in the meantime.
+     *
+     * @param transformCost time it took to derive the variant.
+     *
+     * @return {@link ResultData} of the variant with {@link State#TRANSFORMED}.
+     */
+    ResultData cacheVariant(final String key, final byte[] variant, final long transformCost) throws IOException {
+        handleEviction(variant.length);
+        boolean committed = false;
+        try {
+            cancelPendingDeletion(key);
+            ResourceData cachedData = store(key, this.storage.write(key, variant), null, variant.length,
+                    transformCost, EVICT_AS_NEEDED);
+            committed = cachedData != null;
+            if (cachedData == null) {
+                // the original was evicted in the meantime, the variant is served without caching it
+                cachedData = new ResourceData(key, null, variant);
+            }
+            return new ResultData(key, State.TRANSFORMED, variant.length, cachedData);
+        } finally {
+            if (!committed) {
+                releaseCapacity(variant.length);
+            }
+        }
+    }
+
+    /**
+     * Records the load that returned the result, or failed when it is null, in the metrics and counts it as a hit when
+     * it was served from the cache and as a miss otherwise. Every load is recorded once, by the caller it returns to,
+     * whether it ran the download or waited for the download of another caller.
+     */
+    void recordLoad(final ResultData resultData, final long durationNanos) {
+        countLoad(resultData);
+        this.metrics.recordLoad(resultData, durationNanos);
+    }
+
+    private void countLoad(final ResultData resultData) {
+        if (resultData != null && resultData.getState() == State.CACHE) {
+            this.cacheHitsCounter.increment();
         } else {
-            this.cacheMissCounter++;
-            //cache miss, download the image by making external service call
-            final File downloadedResource = downLoadImage(key);
-            final Path path = downloadedResource.toPath();
-            this.linkedHashMap.put(key, new ResourceData(key, path.toString(), Files.readAllBytes(path)));
-            return new ResultData(key, State.DOWNLOADED, downloadedResource.length());
+            this.cacheMissCounter.increment();
+        }
+    }
+
+    private ResultData cacheHit(final String key, final ResourceData cachedResource) {
+        recordAccess(key);
+        final ResourceData resourceData = this.storage.read(cachedResource);
+        return new ResultData(key, State.CACHE, resourceData.getSizeInBytes(), resourceData);
+    }
+
+    /**
+     * Waits for the download of the same key started by another caller and shares its result, failures of the
+     * download are propagated to every waiter.
+     */
+    ResultData awaitDownload(final String key, final CompletableFuture<ResultData> inFlightDownload)
+            throws IOException {
+        this.log.debug("Waiting for download in progress of object: {}", key);
+        try {
+            return inFlightDownload.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while waiting for download of url %s", key), e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause.getMessage(), cause);
+        }
+    }
+
+    public int getCacheHitsCounter() {
+        return this.cacheHitsCounter.intValue();
+    }
+
+    public int getCacheMissCounter() {
+        return this.cacheMissCounter.intValue();
+    }
+
+    public int getCacheEvictionCounter() {
+        return this.cacheEvictionCounter.intValue();
+    }
+
+    /**
+     * @return number of conditional requests sent for stale resources, whether or not the resource changed.
+     */
+    public int getCacheRevalidationCounter() {
+        return this.cacheRevalidationCounter.intValue();
+    }
+
+    /**
+     * @return number of loads that were served from the memory tier, 0 unless the cache is {@link StorageMode#TIERED}.
+     */
+    public int getMemoryTierHitsCounter() {
+        final MemoryTier memoryTier = this.storage.getMemoryTier();
+        return memoryTier != null ? memoryTier.getHitsCounter() : 0;
+    }
+
+    /**
+     * @return number of cache hits that were not in the memory tier and were served from the disk tier.
+     */
+    public int getDiskTierHitsCounter() {
+        final MemoryTier memoryTier = this.storage.getMemoryTier();
+        return memoryTier != null ? memoryTier.getMissCounter() : getCacheHitsCounter();
+    }
+
+    /**
+     * @return number of entries of the memory tier that are kept compressed, 0 unless the cache is
+     * {@link StorageMode#TIERED} with {@link CacheConfiguration#isMemoryTierCompression()}.
+     */
+    public long getMemoryTierCompressedEntries() {
+        final MemoryTier memoryTier = this.storage.getMemoryTier();
+        return memoryTier != null ? memoryTier.getCompressedEntries() : 0;
+    }
+
+    /**
+     * @return bytes held by the memory tier, compressed or not, 0 unless the cache is {@link StorageMode#TIERED}.
+     */
+    public long getMemoryTierSizeInBytes() {
+        final MemoryTier memoryTier = this.storage.getMemoryTier();
+        return memoryTier != null ? memoryTier.getCurrentSizeInBytes() : 0;
+    }
+
+    /**
+     * @return capacity of the cache in bytes.
+     */
+    public long getCapacityInBytes() {
+        return this.maxCapacityInBytes;
+    }
+
+    /**
+     * @return bytes used by the cached entries including the bytes reserved by the downloads in progress, this never
+     * exceeds the capacity of the cache.
+     */
+    public long getCurrentSizeInBytes() {
+        return this.currentSizeInBytes.get();
+    }
+
+    /**
+     * Records the entries of the cache in the index of the repository, so that a cache created on the same repository
+     * later on serves them without downloading them again, when the persistent index is enabled. Shuts down the
+     * download executor the cache created itself, the downloads in progress still complete but asynchronous loads
+     * started afterwards fail.
+     */
+    @Override
+    public void close() throws IOException {
+        if (this.ownedDownloadExecutor != null) {
+            this.ownedDownloadExecutor.shutdown();
+        }
+        deletePendingResources(Integer.MAX_VALUE);
+        this.downloadManager.discardPartialDownloads(this.repository, 0);
+        if (this.index == null) {
+            return;
+        }
+        this.evictionLock.lock();
+        try {
+            drainAccessBuffers();
+            this.index.close();
+        } finally {
+            this.evictionLock.unlock();
         }
     }
 
-    private File downLoadImage(final String url) throws IOException {
+    private ResourceData downLoadImage(final String url) throws IOException {
+        final long connectStart = System.nanoTime();
         final HttpURLConnection httpURLConnection = this.downloadManager.getHttpURLConnection(url);
-        final long sizeOfResourceToDownload = this.downloadManager.getContentLength(httpURLConnection);
-        handleEviction(sizeOfResourceToDownload);
-        final ResourceMetaData metaData = this.downloadManager.loadResource(httpURLConnection, url, this.repository);
-        updateCurrentCacheCapacity(metaData.getResourceSizeInBytes());
-        return metaData.getDownloadedResource();
+        return downLoadImage(url, httpURLConnection, System.nanoTime() - connectStart);
     }
 
-    private void handleEviction(final long sizeOfResourceToDownload) throws IOException {
+    /**
+     * Downloads the resource from the response of the given connection and adds it to the cache.
+     *
+     * @param connectTime time it took to open the connection, part of the cost of fetching the resource.
+     */
+    private ResourceData downLoadImage(final String url, final HttpURLConnection httpURLConnection,
+                                       final long connectTime) throws IOException {
+        return downLoadImage(url, httpURLConnection, connectTime, EVICT_AS_NEEDED);
+    }
+
+    /**
+     * Downloads the resource from the response of the given connection and adds it to the cache, evicting entries
+     * only when no admission limit is given.
+     *
+     * @param admissionLimitInBytes size the cache may grow to with the resource without evicting any entry, or
+     *                              {@link #EVICT_AS_NEEDED}.
+     *
+     * @return the cached resource, null when it was not admitted because of the admission limit.
+     */
+    private ResourceData downLoadImage(final String url, final HttpURLConnection httpURLConnection,
+                                       final long connectTime, final long admissionLimitInBytes) throws IOException {
+        final long reservedSize = Math.max(0, this.downloadManager.getContentLength(httpURLConnection));
+        try {
+            if (admissionLimitInBytes == EVICT_AS_NEEDED) {
+                handleEviction(reservedSize);
+            } else if (!tryReserveCapacity(reservedSize, admissionLimitInBytes)) {
+                this.downloadManager.discard(httpURLConnection);
+                return null;
+            }
+        } catch (final RuntimeException e) {
+            this.downloadManager.discard(httpURLConnection);
+            throw e;
+        }
+        boolean committed = false;
+        try {
+            cancelPendingDeletion(url);
+            // time spent waiting for capacity is not part of the cost of fetching the resource
+            final long transferStart = System.nanoTime();
+            final ResourceMetaData metaData = this.storage.download(httpURLConnection, url);
+            final long fetchCost = connectTime + System.nanoTime() - transferStart;
+            this.metrics.recordDownload(fetchCost, metaData.getResourceSizeInBytes());
+            final Freshness freshness =
+                    this.downloadManager.getFreshness(httpURLConnection, this.defaultTimeToLiveInMillis);
+            if (this.downloadManager.isNoStore(httpURLConnection)) {
+                this.log.debug("Not caching object whose response forbids storing it: {}", url);
+                return notStored(url, metaData, freshness);
+            }
+            final ResourceData cachedData = store(url, metaData, freshness, reservedSize, fetchCost,
+                    admissionLimitInBytes);
+            committed = cachedData != null;
+            return cachedData;
+        } finally {
+            if (!committed) {
+                releaseCapacity(reservedSize);
+                // the bytes of a download that failed part way may be kept in the meantime
+                if (isAboveHighWatermark()) {
+                    scheduleReclaim();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a resource that was written the way the storage of this cache expects it to the cache, the space of the
+     * resource has to be reserved by the caller.
+     *
+     * @param metaData location, bytes and digest of the resource.
+     *
+     * @param freshness freshness of the resource, null when it is fresh for as long as it is cached.
+     *
+     * @param fetchCost time it took to fetch the resource.
+     *
+     * @return the cached resource, null when it was not admitted, in which case its location was deleted.
+     */
+    private ResourceData store(final String key, final ResourceMetaData metaData, final Freshness freshness,
+                               final long reservedSize, final long fetchCost, final long admissionLimitInBytes)
+            throws IOException {
+        final long resourceSize = metaData.getResourceSizeInBytes();
+        final String contentDigest = this.contentStore == null ? null : metaData.getContentDigest() != null
+                ? metaData.getContentDigest() : ContentStore.digestOf(metaData.getDownloadedResource());
+        final ResourceData resourceData = this.storage.resourceDataOf(key, metaData).withFreshness(freshness);
+        final ResourceData cachedData = commit(this.storage.entryOf(resourceData, resourceSize), contentDigest,
+                reservedSize, resourceSize, fetchCost, admissionLimitInBytes);
+        if (cachedData == null) {
+            if (resourceData.getResourcePath() != null) {
+                deleteDownloadLocation(resourceData);
+            }
+            return null;
+        }
+        return this.storage.admitted(cachedData, resourceData);
+    }
+
+    /**
+     * Hands a downloaded resource to the caller without adding it to the cache, for responses with the no-store
+     * directive. Its download location is deleted, a memory mapping of it stays readable while it is referenced.
+     *
+     * @return the downloaded resource, on the heap or memory mapped, without a location.
+     */
+    private ResourceData notStored(final String key, final ResourceMetaData metaData, final Freshness freshness)
+            throws IOException {
+        final File downloadedResource = metaData.getDownloadedResource();
+        final ResourceData resourceData = metaData.getResourceBytes() != null
+                ? new ResourceData(key, null, metaData.getResourceBytes())
+                : ResourceData.mapped(key, null, this.fileIOUtils.mapReadOnly(downloadedResource));
+        if (downloadedResource != null) {
+            deleteDownloadLocation(key, downloadedResource.getPath());
+        }
+        return resourceData.withFreshness(freshness);
+    }
+
+    /**
+     * Reserves the space needed for the resource to be downloaded, evicting the entries chosen by the eviction policy
+     * when the cache does not have enough capacity.
+     *
+     * @param sizeOfResourceToDownload size in bytes to be reserved.
+     */
+    private void handleEviction(final long sizeOfResourceToDownload) {
         if(sizeOfResourceToDownload > this.maxCapacityInBytes){
             throw new IllegalStateException("Size of object to be cached is larger than max capacity of cache size");
         }
-        if(shouldEvict(sizeOfResourceToDownload)){
-            final List<ResourceData> entriesToDeleteFromCache = doEviction(sizeOfResourceToDownload);
-            for(final ResourceData resourceData : entriesToDeleteFromCache) {
-                this.linkedHashMap.remove(resourceData.getResourceIdentifier());
+        final List<String> entriesToDeleteFromDisk = new ArrayList<>();
+        this.evictionLock.lock();
+        try {
+            reserveCapacity(sizeOfResourceToDownload, entriesToDeleteFromDisk);
+        } finally {
+            this.evictionLock.unlock();
+        }
+        scheduleDeletion(entriesToDeleteFromDisk);
+    }
+
+    /**
+     * Publishes the downloaded resource to the cache and corrects the reservation made for it when the content length
+     * advertised by the server differs from the number of bytes that were actually downloaded. The time it took to
+     * fetch the resource is passed on to the eviction policy. With deduplication the resource is added to the content
+     * store, a resource whose content is stored already only references it and does not use any capacity. Otherwise
+     * the resource is added to the storage of this cache, e.g. appended to the active segment in the segmented
+     * storage mode.
+     *
+     * @param contentDigest digest of the content of the resource, only used with deduplication.
+     *
+     * @param admissionLimitInBytes size the cache may grow to with the resource without evicting any entry, or
+     *                              {@link #EVICT_AS_NEEDED}.
+     *
+     * @return the resource data that was cached, null when the resource is larger than reserved and the rest does not
+     * fit below the admission limit.
+     */
+    private ResourceData commit(final ResourceData resourceData, final String contentDigest, final long reservedSize,
+                                final long actualSize, final long fetchCostInNanos,
+                                final long admissionLimitInBytes) throws IOException {
+        if(actualSize > this.maxCapacityInBytes){
+            throw new IllegalStateException("Size of object to be cached is larger than max capacity of cache size");
+        }
+        final String key = resourceData.getResourceIdentifier();
+        final List<String> entriesToDeleteFromDisk = new ArrayList<>();
+        final ResourceData cachedData;
+        this.evictionLock.lock();
+        try {
+            // checked with the full size of the resource, which deduplication may only lower
+            if (admissionLimitInBytes != EVICT_AS_NEEDED && actualSize > reservedSize
+                    && this.currentSizeInBytes.get() + actualSize - reservedSize > admissionLimitInBytes) {
+                return null;
+            }
+            // a variant is only cached while its original is, so that evicting the original drops it
+            final String originalKey = ImageTransform.originalKeyOf(key);
+            if (originalKey != null && !this.residentSizes.containsKey(originalKey)) {
+                return null;
+            }
+            final long storedSize;
+            if (this.contentStore != null) {
+                // the content may have lost its last reference a moment ago, the reclaimer must not delete it once
+                // it is stored again; only waits when the reclaimer is deleting it right now
+                cancelPendingDeletion(contentDigest);
+                // the reference is added before evicting so that evicting other keys never frees this content
+                storedSize = this.contentStore.add(key, contentDigest, resourceData);
+                cachedData = this.contentStore.get(key).withFreshness(resourceData.getFreshness());
+            } else {
+                storedSize = actualSize;
+                cachedData = this.storage.add(key, resourceData);
             }
-            this.cacheEvictionCounter += entriesToDeleteFromCache.size();
+            try {
+                if (storedSize > reservedSize) {
+                    reserveCapacity(storedSize - reservedSize, entriesToDeleteFromDisk);
+                } else {
+                    this.currentSizeInBytes.addAndGet(storedSize - reservedSize);
+                }
+            } catch (final RuntimeException e) {
+                if (this.contentStore != null) {
+                    this.contentStore.remove(key, this.pendingDeletions);
+                }
+                this.storage.remove(key);
+                throw e;
+            }
+            this.residentSizes.put(key, actualSize);
+            this.evictionPolicy.onInsert(key, actualSize, fetchCostInNanos);
+            this.resources.put(key, cachedData);
+            this.variantKeys.add(key);
+            if (this.index != null) {
+                this.index.recordAdd(new CacheIndex.Entry(key, cachedData.getResourcePath(), actualSize,
+                        fetchCostInNanos));
+                compactIndexIfNeeded();
+            }
+            this.capacityReleased.signalAll();
+        } finally {
+            this.evictionLock.unlock();
         }
+        this.log.debug("After updating size of cache, currentSizeInBytes: {}", this.currentSizeInBytes.get());
+        scheduleDeletion(entriesToDeleteFromDisk);
+        if (isAboveHighWatermark()) {
+            scheduleReclaim();
+        }
+        if (this.contentStore != null) {
+            deleteDownloadLocation(resourceData);
+        }
+        return cachedData;
     }
 
     /**
-     * Handles eviction of the least recently used entry in the cache and updates the size of the cache accordingly.
+     * Deletes what is left at the location a resource was downloaded to once it was added to the content store, which
+     * is the downloaded file itself when identical content was stored already.
+     */
+    private void deleteDownloadLocation(final ResourceData downloadedData) {
+        deleteDownloadLocation(downloadedData.getResourceIdentifier(), downloadedData.getResourcePath());
+    }
+
+    private void deleteDownloadLocation(final String key, final String downloadLocation) {
+        try {
+            this.fileIOUtils.deleteResourceOnDisk(new File(downloadLocation));
+        } catch (final IOException e) {
+            this.log.warn("Unable to delete download location of object: {}", key, e);
+        }
+    }
+
+    /**
+     * Handles eviction of the entries chosen by the eviction policy until the required size can be reserved. When
+     * all of the capacity is held by downloads in progress, waits for them to complete. Must be called while holding
+     * the eviction lock.
      *
      * @param requiredSize size of the cache that has to be available for the download to proceed.
      *
-     * @return List of {@link ResourceData} objects that are supposed to be invalidated in cache since the original
-     * resources are deleted on disk.
+     * @param evictedKeys keys of the evicted entries whose resources have to be deleted on disk.
      */
-    private List<ResourceData> doEviction(final long requiredSize) {
-        final List<ResourceData> resourceDataListToDelete = new ArrayList<>();
-        final Iterator<ResourceData> itr = this.linkedHashMap.values().iterator();
+    private void reserveCapacity(final long requiredSize, final List<String> evictedKeys) {
+        drainAccessBuffers();
+        long remainingNanos = RESERVATION_TIMEOUT_NANOS;
         long objectsFreedSized = 0;
-        while(itr.hasNext() && requiredSize > objectsFreedSized){
+        while (this.currentSizeInBytes.get() + requiredSize > this.maxCapacityInBytes) {
+            final String victim = this.evictionPolicy.nextVictim();
+            if (victim != null) {
+                objectsFreedSized += evict(victim, evictedKeys);
+            } else {
+                if (remainingNanos <= 0) {
+                    throw new IllegalStateException("Timed out waiting for downloads in progress to free up cache capacity");
+                }
+                try {
+                    remainingNanos = this.capacityReleased.awaitNanos(remainingNanos);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for cache capacity", e);
+                }
+            }
+        }
+        this.currentSizeInBytes.addAndGet(requiredSize);
+        if (objectsFreedSized > 0) {
+            this.log.info("Total size of objects evicted from cache: {}", objectsFreedSized);
+            scheduleCompactionIfNeeded();
+        }
+    }
+
+    /**
+     * Reserves the space needed for the resource to be downloaded when the cache stays at or below the given limit
+     * with it, without evicting any entry.
+     *
+     * @return true when the space was reserved.
+     */
+    private boolean tryReserveCapacity(final long requiredSize, final long limitInBytes) {
+        this.evictionLock.lock();
+        try {
+            if (this.currentSizeInBytes.get() + requiredSize > limitInBytes) {
+                return false;
+            }
+            this.currentSizeInBytes.addAndGet(requiredSize);
+            return true;
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the entries chosen by the eviction policy until the size of the cache is at most the given size or no
+     * entry is left to evict. Must be called while holding the eviction lock.
+     */
+    private void evictDownTo(final long targetSize, final List<String> evictedKeys) {
+        long objectsFreedSized = 0;
+        String victim;
+        while (this.currentSizeInBytes.get() > targetSize && (victim = this.evictionPolicy.nextVictim()) != null) {
+            objectsFreedSized += evict(victim, evictedKeys);
+        }
+        if (objectsFreedSized > 0) {
+            this.log.info("Total size of objects evicted from cache below low watermark: {}", objectsFreedSized);
+            this.capacityReleased.signalAll();
+            scheduleCompactionIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the victim from the cache, its resource on disk is only deleted later on. Must be called while holding
+     * the eviction lock.
+     *
+     * @param evictedKeys keys of the evicted entries whose resources have to be deleted on disk.
+     *
+     * @return number of bytes freed.
+     */
+    private long evict(final String victim, final List<String> evictedKeys) {
+        this.variantKeys.remove(victim);
+        final long residentSize = this.residentSizes.remove(victim);
+        // with deduplication only the last reference to the content of the victim frees its bytes
+        final long victimSize = this.contentStore != null
+                ? this.contentStore.remove(victim, this.pendingDeletions) : residentSize;
+        this.resources.remove(victim);
+        this.storage.remove(victim);
+        if (this.index != null) {
+            this.index.recordRemove(victim);
+        }
+        this.currentSizeInBytes.addAndGet(-victimSize);
+        this.cacheEvictionCounter.increment();
+        this.metrics.recordEviction();
+        if (this.contentStore == null && this.storage.hasFilePerKey()) {
+            evictedKeys.add(victim);
+        }
+        return victimSize + evictVariants(victim, evictedKeys);
+    }
+
+    /**
+     * Evicts the variants derived from the resource of the key, which are out of date once it is no longer cached.
+     * Must be called while holding the eviction lock.
+     *
+     * @param evictedKeys keys of the evicted entries whose resources have to be deleted on disk.
+     *
+     * @return number of bytes freed.
+     */
+    private long evictVariants(final String key, final List<String> evictedKeys) {
+        long freedSize = 0;
+        for (final String variant : this.variantKeys.removeVariantsOf(key)) {
+            if (this.residentSizes.containsKey(variant)) {
+                this.evictionPolicy.onRemove(variant);
+                freedSize += evict(variant, evictedKeys);
+            }
+        }
+        return freedSize;
+    }
+
+    /**
+     * Schedules the compaction of the storage on the download executor when it needs one, e.g. when one of the
+     * segments is mostly dead, and no compaction is scheduled yet. Must be called while holding the eviction lock.
+     */
+    private void scheduleCompactionIfNeeded() {
+        if (!this.storage.needsCompaction() || !this.compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.downloadExecutor.execute(this::compactStorage);
+        } catch (final RejectedExecutionException e) {
+            this.compactionScheduled.set(false);
+        }
+    }
+
+    /**
+     * Compacts the storage by relocating the resources it chose one at a time, e.g. the live resources of the segment
+     * with the most dead space to the active segment, so that the eviction lock is only held briefly, and points the
+     * cached entries to their new location.
+     */
+    private void compactStorage() {
+        try {
+            final List<String> keys;
+            this.evictionLock.lock();
+            try {
+                keys = this.storage.keysToCompact();
+            } finally {
+                this.evictionLock.unlock();
+            }
+            for (final String key : keys) {
+                this.evictionLock.lock();
+                try {
+                    final ResourceData relocatedData = this.storage.relocate(key);
+                    if (relocatedData != null) {
+                        this.resources.computeIfPresent(key,
+                                (k, resourceData) -> relocatedData.withFreshness(resourceData.getFreshness()));
+                    }
+                } finally {
+                    this.evictionLock.unlock();
+                }
+            }
+            this.log.info("Compacted storage, relocated objects: {}", keys.size());
+        } catch (final IOException e) {
+            this.log.warn("Unable to compact storage", e);
+        } finally {
+            this.compactionScheduled.set(false);
+        }
+    }
+
+    private void releaseCapacity(final long size) {
+        this.evictionLock.lock();
+        try {
+            this.currentSizeInBytes.addAndGet(-size);
+            this.capacityReleased.signalAll();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Hands the resources of the evicted entries over to the reclaimer, which deletes them from the disk in the
+     * background so that callers never wait on file system deletes.
+     */
+    private void scheduleDeletion(final List<String> evictedKeys) {
+        addPendingDeletions(evictedKeys);
+        // content of the content store that is no longer referenced is added while holding the eviction lock
+        if (!this.pendingDeletions.isEmpty()) {
+            scheduleReclaim();
+        }
+    }
+
+    /**
+     * Adds the resources of the evicted entries to the pending deletions, an entry whose location cannot be generated
+     * is only logged.
+     */
+    private void addPendingDeletions(final List<String> evictedKeys) {
+        for (final String key : evictedKeys) {
             try {
-                final ResourceData resourceData = itr.next();
-                final File resourceToDelete = this.fileIOUtils.generateFileLocation(this.repository,
-                        new URL(resourceData.getResourceIdentifier()));
-                objectsFreedSized += resourceToDelete.length();
-                final long resourceFreeSize = this.fileIOUtils.deleteResourceOnDisk(resourceToDelete);
-                this.currentSizeInBytes -= resourceFreeSize;
-                resourceDataListToDelete.add(resourceData);
+                this.pendingDeletions.put(key, this.fileIOUtils.generateFileLocation(this.repository, new URL(key)));
             } catch (final IOException e) {
-                throw new RuntimeException("Unable to evict objects from cache");
+                this.log.warn("Unable to locate evicted object: {}", key, e);
             }
         }
-        this.log.info("Total size of objects freed from cache by deletion on disk: "+ objectsFreedSized);
-        return resourceDataListToDelete;
     }
 
-    private boolean shouldEvict(final long sizeOfResourceToDownload) {
-        return this.currentSizeInBytes + sizeOfResourceToDownload > this.maxCapacityInBytes;
+    /**
+     * Cancels the pending deletion of the resource of the key, which is about to be downloaded again to the same
+     * location. The reclaimer deletes a resource inside computeIfPresent of the pending deletions, so the removal
+     * either comes first and the resource is not deleted, or it comes after the resource was deleted.
+     */
+    private void cancelPendingDeletion(final String key) {
+        this.pendingDeletions.remove(key);
     }
 
-    private void updateCurrentCacheCapacity(final long curFileSize) {
-        this.currentSizeInBytes += curFileSize;
-        this.log.info("After updating size of cache, currentSizeInBytes: " + this.currentSizeInBytes);
+    private void scheduleReclaim() {
+        if (!this.reclaimScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.downloadExecutor.execute(this::reclaim);
+        } catch (final RejectedExecutionException e) {
+            // the pending deletions are left to the next reclaim or to close
+            this.reclaimScheduled.set(false);
+        }
+    }
+
+    /**
+     * @return true when the cache along with the bytes kept for downloads that failed part way grew beyond the high
+     * watermark.
+     */
+    private boolean isAboveHighWatermark() {
+        return this.currentSizeInBytes.get() + this.downloadManager.getPartialDownloadsSizeInBytes()
+                > this.highWatermarkInBytes;
+    }
+
+    /**
+     * Work of the reclaimer that runs on the download executor: deletes the bytes kept for downloads that failed part
+     * way, all of them once the cache grew beyond its high watermark and the old ones otherwise, then evicts entries
+     * down to the low watermark when the cache is still beyond its high watermark, and deletes the resources of the
+     * evicted entries in a batch. Another batch is scheduled while deletions are pending.
+     */
+    private void reclaim() {
+        try {
+            // partial downloads count against the capacity and are the first to go, they are not served from
+            this.downloadManager.discardPartialDownloads(this.repository,
+                    isAboveHighWatermark() ? 0 : PARTIAL_DOWNLOAD_MAX_AGE_MILLIS);
+            if (this.currentSizeInBytes.get() > this.highWatermarkInBytes) {
+                final List<String> entriesToDeleteFromDisk = new ArrayList<>();
+                this.evictionLock.lock();
+                try {
+                    drainAccessBuffers();
+                    evictDownTo(this.lowWatermarkInBytes, entriesToDeleteFromDisk);
+                } finally {
+                    this.evictionLock.unlock();
+                }
+                addPendingDeletions(entriesToDeleteFromDisk);
+            }
+            deletePendingResources(DELETION_BATCH_SIZE);
+        } catch (final RuntimeException e) {
+            this.log.warn("Unable to reclaim evicted objects", e);
+        } finally {
+            this.reclaimScheduled.set(false);
+        }
+        if (!this.pendingDeletions.isEmpty()) {
+            scheduleReclaim();
+        }
+    }
+
+    /**
+     * Deletes up to the given number of pending resources. A resource whose deletion fails is not retried, it is only
+     * logged.
+     */
+    private void deletePendingResources(final int maxDeletions) {
+        int attempts = 0;
+        final int[] deletions = new int[1];
+        for (final String key : this.pendingDeletions.keySet()) {
+            if (attempts++ == maxDeletions) {
+                break;
+            }
+            // deleting inside computeIfPresent keeps a download of the same key from writing the file meanwhile
+            this.pendingDeletions.computeIfPresent(key, (k, resourceToDelete) -> {
+                try {
+                    this.fileIOUtils.deleteResourceOnDisk(resourceToDelete);
+                    deletions[0]++;
+                } catch (final IOException e) {
+                    this.log.warn("Unable to delete evicted object: {}", k, e);
+                }
+                return null;
+            });
+        }
+        if (deletions[0] > 0) {
+            this.log.info("Deleted evicted objects from disk: {}", deletions[0]);
+        }
+    }
+
+    /**
+     * Records a cache hit in the access buffer of the calling thread's stripe, the buffer is replayed into the recency
+     * order opportunistically so that hits never wait on the eviction lock.
+     */
+    private void recordAccess(final String key) {
+        final AccessBuffer buffer =
+                this.accessBuffers[(int) Thread.currentThread().getId() & (this.accessBuffers.length - 1)];
+        buffer.keys.add(key);
+        if (buffer.pending.incrementAndGet() >= ACCESS_BUFFER_DRAIN_THRESHOLD && this.evictionLock.tryLock()) {
+            try {
+                drainAccessBuffers();
+                compactIndexIfNeeded();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Replays the buffered accesses into the eviction policy. Must be called while holding the eviction lock.
+     */
+    private void drainAccessBuffers() {
+        for (final AccessBuffer buffer : this.accessBuffers) {
+            String key;
+            while ((key = buffer.keys.poll()) != null) {
+                buffer.pending.decrementAndGet();
+                if (this.residentSizes.containsKey(key)) {
+                    this.evictionPolicy.onAccess(key);
+                    if (this.index != null) {
+                        this.index.recordRead(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class AccessBuffer {
+        private final Queue<String> keys = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+    }
+
+    /**
+     * In flight download of a prefetch, which completes with {@link State#SKIPPED} when the resource was not admitted.
+     */
+    private static final class PrefetchDownload extends CompletableFuture<ResultData> {
     }
 }
@@ -0,0 +1,39 @@
+package org.roblox.imagecache.cache;
+
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Storage of {@link StorageMode#MEMORY_MAPPED}, streams every resource to the file of its key and serves it from a read
+ * only mapping of the file, so that its bytes live in the page cache instead of on the heap.
+ */
+class MemoryMappedStorage extends ResourceStorage {
+
+    MemoryMappedStorage(final File repository, final FileIOUtils fileIOUtils, final DownloadManager downloadManager,
+                        final ConcurrentMap<String, ResourceData> resources) {
+        super(repository, fileIOUtils, downloadManager, resources);
+    }
+
+    @Override
+    ResourceMetaData download(final HttpURLConnection httpURLConnection, final String url) throws IOException {
+        return this.downloadManager.loadResourceToDisk(httpURLConnection, url, this.repository);
+    }
+
+    @Override
+    ResourceData resourceDataOf(final String key, final ResourceMetaData metaData) throws IOException {
+        return ResourceData.mapped(key, metaData.getDownloadedResource().getPath(),
+                this.fileIOUtils.mapReadOnly(metaData.getDownloadedResource()));
+    }
+
+    @Override
+    ResourceData load(final String key, final String path) throws IOException {
+        return ResourceData.mapped(key, path, this.fileIOUtils.mapReadOnly(new File(path)));
+    }
+}
@@ -0,0 +1,124 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In memory tier of the cache that keeps the bytes of the hottest resources on the heap. It has its own capacity in
+ * bytes and evicts the least recently used resources when it is full, which only drops their bytes from the heap since
+ * every resource in this tier is also in the disk tier.
+ * Backed by a Guava cache, so its capacity is split between {@link #CONCURRENCY_LEVEL} segments that are evicted
+ * independently.
+ * With compression, the bytes of resources that compress well are kept compressed, see {@link EntryCodec}, and are
+ * decompressed on every hit. Entries are weighed by the bytes they hold, so that more resources fit in the capacity.
+ */
+class MemoryTier {
+    private static final int CONCURRENCY_LEVEL = 4;
+
+    private final com.google.common.cache.Cache<String, Entry> resources;
+    private final long maxCapacityInBytes;
+    private final EntryCodec codec;
+    private final AtomicLong currentSizeInBytes = new AtomicLong();
+    private final AtomicLong compressedEntries = new AtomicLong();
+    private final LongAdder hitsCounter = new LongAdder();
+    private final LongAdder missCounter = new LongAdder();
+
+    MemoryTier(final long maxCapacityInBytes) {
+        this(maxCapacityInBytes, null);
+    }
+
+    /**
+     * @param codec codec the resources are compressed with, null to keep them uncompressed.
+     */
+    MemoryTier(final long maxCapacityInBytes, final EntryCodec codec) {
+        this.maxCapacityInBytes = maxCapacityInBytes;
+        this.codec = codec;
+        this.resources = CacheBuilder.newBuilder()
+                .concurrencyLevel(CONCURRENCY_LEVEL)
+                .maximumWeight(maxCapacityInBytes)
+                .<String, Entry>weigher((key, entry) -> entry.bytes.length)
+                .removalListener(this::onRemoval)
+                .build();
+    }
+
+    /**
+     * @return bytes of the resource or null when it is not in the memory tier.
+     */
+    byte[] get(final String key) {
+        final Entry entry = this.resources.getIfPresent(key);
+        if (entry == null) {
+            this.missCounter.increment();
+            return null;
+        }
+        this.hitsCounter.increment();
+        return entry.isCompressed() ? this.codec.decompress(entry.bytes, entry.originalSize) : entry.bytes;
+    }
+
+    /**
+     * Adds the bytes of the resource to the memory tier, resources larger than the capacity of a segment of the tier
+     * once compressed are not admitted.
+     */
+    void put(final String key, final byte[] bytes) {
+        final byte[] compressed = this.codec != null ? this.codec.compress(bytes) : null;
+        final Entry entry = new Entry(compressed != null ? compressed : bytes, bytes.length);
+        if (entry.bytes.length > this.maxCapacityInBytes / CONCURRENCY_LEVEL) {
+            return;
+        }
+        this.currentSizeInBytes.addAndGet(entry.bytes.length);
+        if (entry.isCompressed()) {
+            this.compressedEntries.incrementAndGet();
+        }
+        this.resources.put(key, entry);
+    }
+
+    void invalidate(final String key) {
+        this.resources.invalidate(key);
+    }
+
+    long getCurrentSizeInBytes() {
+        return this.currentSizeInBytes.get();
+    }
+
+    int getHitsCounter() {
+        return this.hitsCounter.intValue();
+    }
+
+    int getMissCounter() {
+        return this.missCounter.intValue();
+    }
+
+    /**
+     * @return number of entries of the memory tier that are kept compressed.
+     */
+    long getCompressedEntries() {
+        return this.compressedEntries.get();
+    }
+
+    private void onRemoval(final RemovalNotification<String, Entry> notification) {
+        final Entry entry = notification.getValue();
+        this.currentSizeInBytes.addAndGet(-entry.bytes.length);
+        if (entry.isCompressed()) {
+            this.compressedEntries.decrementAndGet();
+        }
+    }
+
+    /**
+     * Bytes of a resource, compressed when they are fewer than its original size.
+     */
+    private static final class Entry {
+        private final byte[] bytes;
+        private final int originalSize;
+
+        private Entry(final byte[] bytes, final int originalSize) {
+            this.bytes = bytes;
+            this.originalSize = originalSize;
+        }
+
+        private boolean isCompressed() {
+            return this.bytes.length != this.originalSize;
+        }
+    }
+}
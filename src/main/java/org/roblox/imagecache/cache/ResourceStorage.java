@@ -0,0 +1,204 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.hash.Hashing;
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Storage of the resources of a cache, one implementation per {@link StorageMode}. The cache decides which entries
+ * are cached and accounts for their capacity, the storage decides where the bytes of the entries are written to and
+ * how hits are served from them.
+ * <p>
+ * Methods that are documented to be called while holding the eviction lock of the cache are not thread safe, the
+ * others are called from any thread.
+ * </p>
+ */
+abstract class ResourceStorage {
+    private final Logger log = LoggerFactory.getLogger(ResourceStorage.class);
+
+    protected final File repository;
+    protected final FileIOUtils fileIOUtils;
+    protected final DownloadManager downloadManager;
+    /**
+     * Entries of the cache, which restored entries are replaced in once their content was loaded.
+     */
+    protected final ConcurrentMap<String, ResourceData> resources;
+
+    ResourceStorage(final File repository, final FileIOUtils fileIOUtils, final DownloadManager downloadManager,
+                    final ConcurrentMap<String, ResourceData> resources) {
+        this.repository = repository;
+        this.fileIOUtils = fileIOUtils;
+        this.downloadManager = downloadManager;
+        this.resources = resources;
+    }
+
+    /**
+     * Creates the storage of the storage mode the cache is configured with.
+     *
+     * @param resources entries of the cache.
+     */
+    static ResourceStorage create(final CacheConfiguration configuration, final File repository,
+                                  final FileIOUtils fileIOUtils, final DownloadManager downloadManager,
+                                  final ConcurrentMap<String, ResourceData> resources) {
+        switch (configuration.getStorageMode()) {
+            case MEMORY_MAPPED:
+                return new MemoryMappedStorage(repository, fileIOUtils, downloadManager, resources);
+            case TIERED:
+                return new TieredStorage(repository, fileIOUtils, downloadManager, resources, configuration);
+            case SEGMENTED:
+                return new SegmentedStorage(repository, fileIOUtils, downloadManager, resources,
+                        configuration.getSegmentSizeInBytes());
+            default:
+                return new HeapStorage(repository, fileIOUtils, downloadManager, resources);
+        }
+    }
+
+    /**
+     * Downloads the resource from the response of the connection the way this storage holds it.
+     */
+    abstract ResourceMetaData download(HttpURLConnection httpURLConnection, String url) throws IOException;
+
+    /**
+     * @return resource data holding the content of the downloaded or written resource, at the location it was written
+     * to.
+     */
+    abstract ResourceData resourceDataOf(String key, ResourceMetaData metaData) throws IOException;
+
+    /**
+     * Writes the bytes of a resource that was not downloaded, e.g. a variant, to the location of its key.
+     *
+     * @return location, bytes and digest of the resource.
+     */
+    ResourceMetaData write(final String key, final byte[] bytes) throws IOException {
+        final String contentDigest = Hashing.sha256().hashBytes(bytes).toString();
+        final File location = this.fileIOUtils.generateFileLocation(this.repository, new URL(key));
+        Files.createDirectories(location.getParentFile().toPath());
+        Files.write(location.toPath(), bytes);
+        return new ResourceMetaData(location, bytes.length, bytes, contentDigest);
+    }
+
+    /**
+     * @return the entry the cache keeps for the resource.
+     */
+    ResourceData entryOf(final ResourceData resourceData, final long sizeInBytes) {
+        return resourceData;
+    }
+
+    /**
+     * Adds the entry of the key to this storage. Must be called while holding the eviction lock.
+     *
+     * @return the entry as it is stored.
+     */
+    ResourceData add(final String key, final ResourceData entry) throws IOException {
+        return entry;
+    }
+
+    /**
+     * @param cachedEntry entry of the resource that was added to the cache.
+     *
+     * @param resourceData the downloaded or written resource.
+     *
+     * @return resource data to hand to the caller that added the resource.
+     */
+    ResourceData admitted(final ResourceData cachedEntry, final ResourceData resourceData) {
+        return cachedEntry;
+    }
+
+    /**
+     * Removes the entry of the key from this storage, its file is deleted by the cache when
+     * {@link #hasFilePerKey()}. Must be called while holding the eviction lock.
+     */
+    void remove(final String key) {
+    }
+
+    /**
+     * @return true when every entry is stored in a file at the location derived from its key, which the cache deletes
+     * once the entry was evicted.
+     */
+    boolean hasFilePerKey() {
+        return true;
+    }
+
+    /**
+     * Serves a hit on the entry. Entries restored from the index only know the location of the resource, their
+     * content is loaded and replaces the entry.
+     *
+     * @return resource data holding the content of the resource, or the restored entry itself if the file could not be
+     * read.
+     */
+    ResourceData read(final ResourceData entry) {
+        if (!entry.isOnDisk()) {
+            return entry;
+        }
+        final String key = entry.getResourceIdentifier();
+        final ResourceData resourceData;
+        try {
+            resourceData = load(key, entry.getResourcePath()).withFreshness(entry.getFreshness());
+        } catch (final IOException e) {
+            this.log.warn("Unable to load restored object: {}", key, e);
+            return entry;
+        }
+        this.resources.replace(key, entry, resourceData);
+        return resourceData;
+    }
+
+    /**
+     * Loads the content of the file of a restored entry.
+     */
+    ResourceData load(final String key, final String path) throws IOException {
+        return new ResourceData(key, path, Files.readAllBytes(Paths.get(path)));
+    }
+
+    /**
+     * @return resource data a range of the entry is read from, without changing where its content is held.
+     */
+    ResourceData peek(final ResourceData entry) {
+        return entry;
+    }
+
+    /**
+     * @return true when the storage holds enough dead space to be compacted. Must be called while holding the
+     * eviction lock.
+     */
+    boolean needsCompaction() {
+        return false;
+    }
+
+    /**
+     * @return keys of the entries to relocate with {@link #relocate(String)} to compact the storage. Must be called
+     * while holding the eviction lock.
+     */
+    List<String> keysToCompact() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Moves the entry of the key to compact the storage. Must be called while holding the eviction lock.
+     *
+     * @return the entry at its new location, null when the entry is no longer stored.
+     */
+    ResourceData relocate(final String key) throws IOException {
+        return null;
+    }
+
+    /**
+     * @return the memory tier of this storage, null unless the storage mode is {@link StorageMode#TIERED}.
+     */
+    MemoryTier getMemoryTier() {
+        return null;
+    }
+}
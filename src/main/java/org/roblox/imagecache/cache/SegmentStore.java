@@ -0,0 +1,258 @@
+package org.roblox.imagecache.cache;
+
+import org.roblox.imagecache.types.ResourceData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Log structured storage of the resources of a cache, in the spirit of Bitcask and Haystack. Resources are appended to
+ * large preallocated segment files that are mapped in memory and an in memory index keeps the location of the
+ * resource of every key, so that storing a resource is a sequential write and removing one only updates the index.
+ * The space of removed resources is reclaimed by compacting the segments that are mostly dead: their live resources are
+ * appended again and the segment file is deleted.
+ * <p>
+ * Every record starts with the length of the key and the length of the resource, followed by the key in UTF-8 and
+ * the bytes of the resource, so that a segment can be read without the index.
+ * </p>
+ * Not thread safe, the cache only calls it while holding its eviction lock. Resources are served as read only slices
+ * of the mapping of their segment, which stay readable after the segment was compacted and deleted.
+ */
+class SegmentStore {
+    static final String SEGMENT_DIRECTORY = "segments";
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String SEGMENT_FILE_SUFFIX = ".dat";
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    /**
+     * segments whose live resources use less than this fraction of their written bytes are compacted.
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final Logger log = LoggerFactory.getLogger(SegmentStore.class);
+
+    private final File directory;
+    private final long segmentSizeInBytes;
+    private final Map<String, Record> records = new HashMap<>();
+    private final Set<Segment> segments = new HashSet<>();
+    private Segment activeSegment;
+    private long nextSegmentId;
+
+    /**
+     * Creates the store in the segment directory of the repository. Segments left behind by a previous run are not
+     * indexed and are deleted.
+     *
+     * @param segmentSizeInBytes size the segment files are preallocated with.
+     *
+     * @throws IOException if the segment directory could not be created or cleared.
+     */
+    SegmentStore(final File repository, final long segmentSizeInBytes) throws IOException {
+        this.directory = new File(repository, SEGMENT_DIRECTORY);
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        Files.createDirectories(this.directory.toPath());
+        try (final DirectoryStream<Path> stale = Files.newDirectoryStream(this.directory.toPath(),
+                SEGMENT_FILE_PREFIX + "*" + SEGMENT_FILE_SUFFIX)) {
+            for (final Path segment : stale) {
+                Files.delete(segment);
+            }
+        }
+    }
+
+    /**
+     * Appends the resource of the key to the active segment, a new segment is started when it does not fit. Resources
+     * larger than a segment get a segment of their own.
+     *
+     * @param key key of the resource, must not be stored already.
+     *
+     * @param resource content of the resource.
+     *
+     * @return resource data of the key backed by a read only slice of the segment.
+     *
+     * @throws IOException if a new segment could not be created.
+     */
+    ResourceData append(final String key, final ByteBuffer resource) throws IOException {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final long recordSize = (long) RECORD_HEADER_SIZE + keyBytes.length + resource.remaining();
+        if (recordSize > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Resource of %s is too large to be stored in a segment", key));
+        }
+        reserve(recordSize);
+        final Segment segment = this.activeSegment;
+        final ByteBuffer writer = segment.mapping.duplicate();
+        writer.position(segment.writePosition);
+        writer.putInt(keyBytes.length).putInt(resource.remaining()).put(keyBytes).put(resource.duplicate());
+        final Record record = new Record(segment, segment.writePosition + RECORD_HEADER_SIZE + keyBytes.length,
+                resource.remaining());
+        segment.writePosition = writer.position();
+        segment.liveBytes += record.length;
+        segment.keys.add(key);
+        this.records.put(key, record);
+        return resourceOf(key, record);
+    }
+
+    /**
+     * Removes the resource of the key from the index, a segment other than the active one is deleted right away once
+     * none of its resources are live.
+     */
+    void remove(final String key) {
+        final Record record = this.records.remove(key);
+        if (record == null) {
+            return;
+        }
+        final Segment segment = record.segment;
+        segment.liveBytes -= record.length;
+        segment.keys.remove(key);
+        if (segment.keys.isEmpty() && segment != this.activeSegment) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * @return true when a segment other than the active one is mostly dead.
+     */
+    boolean needsCompaction() {
+        return compactionCandidate() != null;
+    }
+
+    /**
+     * @return keys of the live resources of the segment with the smallest fraction of live bytes among the segments
+     * that are mostly dead, empty when no segment needs to be compacted.
+     */
+    List<String> keysToCompact() {
+        final Segment candidate = compactionCandidate();
+        return candidate != null ? new ArrayList<>(candidate.keys) : Collections.emptyList();
+    }
+
+    /**
+     * Moves the resource of the key to the active segment, which deletes its previous segment once the last of its
+     * live resources was moved.
+     *
+     * @return resource data of the key at its new location, null when the key is not stored or is stored in the
+     * active segment already.
+     *
+     * @throws IOException if a new segment could not be created, the resource then stays at its previous location.
+     */
+    ResourceData relocate(final String key) throws IOException {
+        final Record record = this.records.get(key);
+        if (record == null || record.segment == this.activeSegment) {
+            return null;
+        }
+        final ByteBuffer content = slice(record);
+        // starts a new segment if needed before the resource is removed, so that a failure leaves it in place
+        reserve((long) RECORD_HEADER_SIZE + key.getBytes(StandardCharsets.UTF_8).length + content.remaining());
+        remove(key);
+        return append(key, content);
+    }
+
+    /**
+     * @return number of segment files.
+     */
+    int getSegmentCount() {
+        return this.segments.size();
+    }
+
+    private Segment compactionCandidate() {
+        Segment candidate = null;
+        for (final Segment segment : this.segments) {
+            if (segment != this.activeSegment && segment.liveBytes < segment.writePosition * COMPACTION_THRESHOLD
+                    && (candidate == null || segment.liveFraction() < candidate.liveFraction())) {
+                candidate = segment;
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * Makes sure that the active segment has room for a record of the given size by starting a new segment if needed.
+     */
+    private void reserve(final long recordSize) throws IOException {
+        if (this.activeSegment == null || this.activeSegment.remaining() < recordSize) {
+            this.activeSegment = newSegment(Math.max(this.segmentSizeInBytes, recordSize));
+        }
+    }
+
+    private Segment newSegment(final long sizeInBytes) throws IOException {
+        final File file = new File(this.directory,
+                String.format("%s%06d%s", SEGMENT_FILE_PREFIX, this.nextSegmentId++, SEGMENT_FILE_SUFFIX));
+        final MappedByteBuffer mapping;
+        try (final RandomAccessFile segmentFile = new RandomAccessFile(file, "rw")) {
+            segmentFile.setLength(sizeInBytes);
+            // the mapping stays valid after the file is closed
+            mapping = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeInBytes);
+        }
+        final Segment segment = new Segment(file, mapping);
+        this.segments.add(segment);
+        if (this.activeSegment != null && this.activeSegment.keys.isEmpty()) {
+            delete(this.activeSegment);
+        }
+        return segment;
+    }
+
+    private void delete(final Segment segment) {
+        this.segments.remove(segment);
+        try {
+            Files.deleteIfExists(segment.file.toPath());
+        } catch (final IOException e) {
+            this.log.warn("Unable to delete segment: {}", segment.file, e);
+        }
+    }
+
+    private ResourceData resourceOf(final String key, final Record record) {
+        return ResourceData.mapped(key, record.segment.file.getPath(), slice(record));
+    }
+
+    private static ByteBuffer slice(final Record record) {
+        final ByteBuffer view = record.segment.mapping.duplicate();
+        view.position(record.offset).limit(record.offset + record.length);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer mapping;
+        private final Set<String> keys = new HashSet<>();
+        private int writePosition;
+        private long liveBytes;
+
+        private Segment(final File file, final MappedByteBuffer mapping) {
+            this.file = file;
+            this.mapping = mapping;
+        }
+
+        private long remaining() {
+            return this.mapping.capacity() - this.writePosition;
+        }
+
+        private double liveFraction() {
+            return this.writePosition == 0 ? 1 : (double) this.liveBytes / this.writePosition;
+        }
+    }
+
+    private static final class Record {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+
+        private Record(final Segment segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
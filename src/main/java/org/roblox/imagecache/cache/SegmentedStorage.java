@@ -0,0 +1,86 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.hash.Hashing;
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Storage of {@link StorageMode#SEGMENTED}, downloads every resource into memory and appends it to the segments of a
+ * {@link SegmentStore}, so that resources are only written to disk once they are cached and no file is kept per key.
+ */
+class SegmentedStorage extends ResourceStorage {
+    private final SegmentStore segmentStore;
+
+    /**
+     * @param segmentSizeInBytes size the segment files are preallocated with.
+     */
+    SegmentedStorage(final File repository, final FileIOUtils fileIOUtils, final DownloadManager downloadManager,
+                     final ConcurrentMap<String, ResourceData> resources, final long segmentSizeInBytes) {
+        super(repository, fileIOUtils, downloadManager, resources);
+        try {
+            this.segmentStore = new SegmentStore(repository, segmentSizeInBytes);
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Unable to create segment store in repository %s",
+                    repository), e);
+        }
+    }
+
+    @Override
+    ResourceMetaData download(final HttpURLConnection httpURLConnection, final String url) throws IOException {
+        return this.downloadManager.loadResourceToMemory(httpURLConnection, url);
+    }
+
+    @Override
+    ResourceData resourceDataOf(final String key, final ResourceMetaData metaData) {
+        return new ResourceData(key, null, metaData.getResourceBytes());
+    }
+
+    /**
+     * Keeps the bytes in memory until they are appended to a segment.
+     */
+    @Override
+    ResourceMetaData write(final String key, final byte[] bytes) {
+        return new ResourceMetaData(null, bytes.length, bytes, Hashing.sha256().hashBytes(bytes).toString());
+    }
+
+    @Override
+    ResourceData add(final String key, final ResourceData entry) throws IOException {
+        return this.segmentStore.append(key, entry.asByteBuffer()).withFreshness(entry.getFreshness());
+    }
+
+    /**
+     * Removing from a segment only updates its index, the space is reclaimed by compaction.
+     */
+    @Override
+    void remove(final String key) {
+        this.segmentStore.remove(key);
+    }
+
+    @Override
+    boolean hasFilePerKey() {
+        return false;
+    }
+
+    @Override
+    boolean needsCompaction() {
+        return this.segmentStore.needsCompaction();
+    }
+
+    @Override
+    List<String> keysToCompact() {
+        return this.segmentStore.keysToCompact();
+    }
+
+    @Override
+    ResourceData relocate(final String key) throws IOException {
+        return this.segmentStore.relocate(key);
+    }
+}
@@ -0,0 +1,104 @@
+package org.roblox.imagecache.cache;
+
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Storage of {@link StorageMode#TIERED}, writes every resource to the file of its key, which makes up the disk tier,
+ * and keeps the bytes of the most recently used resources in a {@link MemoryTier}. The entries of the cache only
+ * know the location of their resource, hits on resources that are not in the memory tier read them from their file and
+ * promote them to the memory tier.
+ */
+class TieredStorage extends HeapStorage {
+    private final Logger log = LoggerFactory.getLogger(TieredStorage.class);
+
+    private final MemoryTier memoryTier;
+
+    /**
+     * @param configuration configuration of the cache, which sizes the memory tier and decides whether it compresses
+     *                      the resources.
+     */
+    TieredStorage(final File repository, final FileIOUtils fileIOUtils, final DownloadManager downloadManager,
+                  final ConcurrentMap<String, ResourceData> resources, final CacheConfiguration configuration) {
+        super(repository, fileIOUtils, downloadManager, resources);
+        final EntryCodec codec = configuration.isMemoryTierCompression()
+                ? new EntryCodec(configuration.getMemoryTierCompressionRatio()) : null;
+        this.memoryTier = new MemoryTier(configuration.getMemoryTierCapacityInBytes(), codec);
+    }
+
+    /**
+     * The disk tier only keeps the location of the resource, its bytes go to the memory tier once it was added.
+     */
+    @Override
+    ResourceData entryOf(final ResourceData resourceData, final long sizeInBytes) {
+        return ResourceData.onDisk(resourceData.getResourceIdentifier(), resourceData.getResourcePath(), sizeInBytes)
+                .withFreshness(resourceData.getFreshness());
+    }
+
+    @Override
+    ResourceData admitted(final ResourceData cachedEntry, final ResourceData resourceData) {
+        final String key = cachedEntry.getResourceIdentifier();
+        this.memoryTier.put(key, resourceData.getOriginalResourceBytes());
+        return new ResourceData(key, cachedEntry.getResourcePath(), resourceData.getOriginalResourceBytes())
+                .withFreshness(resourceData.getFreshness());
+    }
+
+    @Override
+    void remove(final String key) {
+        this.memoryTier.invalidate(key);
+    }
+
+    /**
+     * Serves the resource from the memory tier, resources that are only in the disk tier are read from their file and
+     * promoted to the memory tier.
+     *
+     * @return resource data backed by the bytes in the memory tier, or the disk entry itself if the file could not be
+     * read.
+     */
+    @Override
+    ResourceData read(final ResourceData diskResource) {
+        final String key = diskResource.getResourceIdentifier();
+        byte[] bytes = this.memoryTier.get(key);
+        if (bytes == null) {
+            try {
+                bytes = Files.readAllBytes(Paths.get(diskResource.getResourcePath()));
+            } catch (final IOException e) {
+                this.log.warn("Unable to promote object to memory tier: {}", key, e);
+                return diskResource;
+            }
+            // skip promoting resources that were evicted from the disk tier in the meantime, the memory tier is only
+            // consulted after a hit in the disk tier so bytes that are promoted regardless are never served.
+            if (this.resources.get(key) == diskResource) {
+                this.memoryTier.put(key, bytes);
+            }
+        }
+        // the validators of the freshness are what conditional requests of the clients are answered from
+        return new ResourceData(key, diskResource.getResourcePath(), bytes)
+                .withFreshness(diskResource.getFreshness());
+    }
+
+    /**
+     * Ranges are read from the memory tier when it holds the resource and from the file of the resource otherwise,
+     * without promoting it.
+     */
+    @Override
+    ResourceData peek(final ResourceData diskResource) {
+        final byte[] bytes = this.memoryTier.get(diskResource.getResourceIdentifier());
+        return bytes != null ? new ResourceData(diskResource.getResourceIdentifier(), diskResource.getResourcePath(),
+                bytes) : diskResource;
+    }
+
+    @Override
+    MemoryTier getMemoryTier() {
+        return this.memoryTier;
+    }
+}
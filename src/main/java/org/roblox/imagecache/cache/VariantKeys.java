@@ -0,0 +1,60 @@
+package org.roblox.imagecache.cache;
+
+import org.roblox.imagecache.variant.ImageTransform;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keys of the cached variants of every original that has any, see {@link VariantLoader}. The cache evicts the
+ * variants of an original along with it, since they are out of date once it is no longer cached.
+ * <p>
+ * Not thread safe, the cache only calls it while holding its eviction lock.
+ * </p>
+ */
+class VariantKeys {
+    private final Map<String, Set<String>> variantsByOriginal = new HashMap<>();
+
+    /**
+     * Records the key as a variant of its original when it is the key of a variant.
+     */
+    void add(final String key) {
+        final String originalKey = ImageTransform.originalKeyOf(key);
+        if (originalKey != null) {
+            this.variantsByOriginal.computeIfAbsent(originalKey, k -> new HashSet<>()).add(key);
+        }
+    }
+
+    /**
+     * Forgets the key as a variant of its original when it is the key of a variant.
+     */
+    void remove(final String key) {
+        final String originalKey = ImageTransform.originalKeyOf(key);
+        final Set<String> variants = originalKey != null ? this.variantsByOriginal.get(originalKey) : null;
+        if (variants != null && variants.remove(key) && variants.isEmpty()) {
+            this.variantsByOriginal.remove(originalKey);
+        }
+    }
+
+    /**
+     * Forgets the variants of the original.
+     *
+     * @return keys of the variants of the original, empty when it has none.
+     */
+    Set<String> removeVariantsOf(final String originalKey) {
+        final Set<String> variants = this.variantsByOriginal.remove(originalKey);
+        return variants != null ? variants : Collections.emptySet();
+    }
+
+    /**
+     * @return keys of the originals that have variants.
+     */
+    List<String> originals() {
+        return new ArrayList<>(this.variantsByOriginal.keySet());
+    }
+}
@@ -0,0 +1,123 @@
+package org.roblox.imagecache.cache;
+
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.variant.ImageTransform;
+import org.roblox.imagecache.variant.ImageTransformer;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Loads the variants of the images of a cache, see {@link LRUCacheManager#loadVariant(String, ImageTransform)}. Hits
+ * and the caching of derived variants are left to the cache, this class loads the original and derives the variant
+ * from it, once for concurrent loads of the same variant.
+ * <p>
+ * Thread safe.
+ * </p>
+ */
+class VariantLoader {
+    private final LRUCacheManager cache;
+    private final ImageTransformer imageTransformer;
+    private final Executor executor;
+    /**
+     * Variants that are being derived keyed by the key of the variant, used to coalesce concurrent loads of a variant.
+     */
+    private final ConcurrentMap<String, CompletableFuture<ResultData>> inFlightTransformations =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param executor executor on which the variants of asynchronous loads are derived.
+     */
+    VariantLoader(final LRUCacheManager cache, final ImageTransformer imageTransformer, final Executor executor) {
+        this.cache = cache;
+        this.imageTransformer = imageTransformer;
+        this.executor = executor;
+    }
+
+    /**
+     * Loads the variant and records the load in the metrics of the cache.
+     *
+     * @param fetchedOriginal response the original is downloaded from when it has to be, null to send the request.
+     */
+    ResultData load(final String url, final ImageTransform transform, final FetchedResponse fetchedOriginal)
+            throws IOException {
+        final long start = System.nanoTime();
+        ResultData resultData = null;
+        try {
+            resultData = loadVariant(url, transform, fetchedOriginal);
+            return resultData;
+        } finally {
+            this.cache.recordLoad(resultData, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #load(String, ImageTransform, FetchedResponse)}, hits complete without handing
+     * off to the executor.
+     */
+    CompletableFuture<ResultData> loadAsync(final String url, final ImageTransform transform) {
+        final long start = System.nanoTime();
+        final ResultData hit = this.cache.variantHit(url, transform.keyOf(url));
+        if (hit != null) {
+            this.cache.recordLoad(hit, System.nanoTime() - start);
+            return CompletableFuture.completedFuture(hit);
+        }
+        final CompletableFuture<ResultData> load = new CompletableFuture<>();
+        try {
+            this.executor.execute(() -> {
+                try {
+                    load.complete(load(url, transform, null));
+                } catch (final IOException | RuntimeException | Error e) {
+                    load.completeExceptionally(e);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            load.completeExceptionally(e);
+        }
+        return load;
+    }
+
+    private ResultData loadVariant(final String url, final ImageTransform transform,
+                                   final FetchedResponse fetchedOriginal) throws IOException {
+        final String key = transform.keyOf(url);
+        final ResultData hit = this.cache.variantHit(url, key);
+        if (hit != null) {
+            return hit;
+        }
+        final CompletableFuture<ResultData> transformation = new CompletableFuture<>();
+        final CompletableFuture<ResultData> inFlightTransformation =
+                this.inFlightTransformations.putIfAbsent(key, transformation);
+        if (inFlightTransformation != null) {
+            return this.cache.awaitDownload(key, inFlightTransformation);
+        }
+        try {
+            transformation.complete(derive(url, key, transform, fetchedOriginal));
+        } catch (final IOException | RuntimeException | Error e) {
+            transformation.completeExceptionally(e);
+        } finally {
+            this.inFlightTransformations.remove(key, transformation);
+        }
+        return this.cache.awaitDownload(key, transformation);
+    }
+
+    /**
+     * Loads the original, which revalidates it when it is stale, and derives the variant from it unless the variant
+     * is still cached.
+     */
+    private ResultData derive(final String url, final String key, final ImageTransform transform,
+                              final FetchedResponse fetchedOriginal) throws IOException {
+        final ResultData original = this.cache.loadOriginal(url, fetchedOriginal);
+        final ResultData hit = this.cache.variantHit(url, key);
+        if (hit != null) {
+            return hit;
+        }
+        final long transformStart = System.nanoTime();
+        final byte[] variant =
+                this.imageTransformer.transform(original.getResourceData().asByteBuffer(), transform);
+        return this.cache.cacheVariant(key, variant, System.nanoTime() - transformStart);
+    }
+}
@@ -0,0 +1,118 @@
+package org.roblox.imagecache.cache.eviction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Adaptive Replacement Cache policy as described in
+ * <a href="https://www.usenix.org/legacy/events/fast03/tech/full_papers/megiddo/megiddo.pdf">ARC: A Self-Tuning, Low
+ * Overhead Replacement Cache</a>, with the sizes of the lists measured in bytes instead of number of entries.
+ * <p>
+ * T1 holds the entries that were accessed once since they were added and T2 the entries that were accessed again.
+ * The ghost lists B1 and B2 remember the keys recently evicted from T1 and T2. Adding a key that is found in B1 grows
+ * the target size of T1, adding a key that is found in B2 shrinks it, and victims are taken from T1 while it is larger
+ * than its target.
+ * </p>
+ */
+class AdaptiveReplacementPolicy implements EvictionPolicy {
+    private final long capacityInBytes;
+    private final LinkedHashMap<String, Long> t1 = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> t2 = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> b1 = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> b2 = new LinkedHashMap<>();
+    private long t1Weight;
+    private long t2Weight;
+    private long b1Weight;
+    private long b2Weight;
+    /**
+     * Target size of T1 in bytes.
+     */
+    private long targetT1Weight;
+
+    AdaptiveReplacementPolicy(final long capacityInBytes) {
+        this.capacityInBytes = capacityInBytes;
+    }
+
+    @Override
+    public void onAccess(final String key) {
+        final Long weight = this.t1.remove(key);
+        if (weight != null) {
+            this.t1Weight -= weight;
+            this.t2.put(key, weight);
+            this.t2Weight += weight;
+        } else {
+            LinkedMaps.moveToLast(this.t2, key);
+        }
+    }
+
+    @Override
+    public void onInsert(final String key, final long weight) {
+        onRemove(key);
+        final Long b1GhostWeight = this.b1.remove(key);
+        final Long b2GhostWeight = this.b2.remove(key);
+        if (b1GhostWeight != null) {
+            this.b1Weight -= b1GhostWeight;
+            final long delta = weight * Math.max(1, this.b2Weight / Math.max(1, this.b1Weight));
+            this.targetT1Weight = Math.min(this.capacityInBytes, this.targetT1Weight + delta);
+            this.t2.put(key, weight);
+            this.t2Weight += weight;
+        } else if (b2GhostWeight != null) {
+            this.b2Weight -= b2GhostWeight;
+            final long delta = weight * Math.max(1, this.b1Weight / Math.max(1, this.b2Weight));
+            this.targetT1Weight = Math.max(0, this.targetT1Weight - delta);
+            this.t2.put(key, weight);
+            this.t2Weight += weight;
+        } else {
+            this.t1.put(key, weight);
+            this.t1Weight += weight;
+        }
+        trimGhosts();
+    }
+
+    @Override
+    public void onRemove(final String key) {
+        Long weight = this.t1.remove(key);
+        if (weight != null) {
+            this.t1Weight -= weight;
+            return;
+        }
+        weight = this.t2.remove(key);
+        if (weight != null) {
+            this.t2Weight -= weight;
+        }
+    }
+
+    @Override
+    public String nextVictim() {
+        if (!this.t1.isEmpty() && (this.t1Weight > this.targetT1Weight || this.t2.isEmpty())) {
+            final Map.Entry<String, Long> victim = LinkedMaps.pollFirst(this.t1);
+            this.t1Weight -= victim.getValue();
+            this.b1.put(victim.getKey(), victim.getValue());
+            this.b1Weight += victim.getValue();
+            trimGhosts();
+            return victim.getKey();
+        }
+        final Map.Entry<String, Long> victim = LinkedMaps.pollFirst(this.t2);
+        if (victim == null) {
+            return null;
+        }
+        this.t2Weight -= victim.getValue();
+        this.b2.put(victim.getKey(), victim.getValue());
+        this.b2Weight += victim.getValue();
+        trimGhosts();
+        return victim.getKey();
+    }
+
+    /**
+     * Keeps T1 and B1 within the capacity and all four lists within twice the capacity.
+     */
+    private void trimGhosts() {
+        while (this.t1Weight + this.b1Weight > this.capacityInBytes && !this.b1.isEmpty()) {
+            this.b1Weight -= LinkedMaps.pollFirst(this.b1).getValue();
+        }
+        while (this.t1Weight + this.t2Weight + this.b1Weight + this.b2Weight > 2 * this.capacityInBytes
+                && !this.b2.isEmpty()) {
+            this.b2Weight -= LinkedMaps.pollFirst(this.b2).getValue();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.roblox.imagecache.cache.eviction;
+
+/**
+ * Decides which of the resident entries of a cache is evicted when the cache needs to free up capacity. The cache
+ * reports every change to its resident entries to the policy and asks it for victims until enough bytes are freed.
+ * <p>
+ * Policies are not thread safe, the cache only calls them while holding its eviction lock.
+ * </p>
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Records a cache hit on a resident entry. Keys that are not resident are ignored.
+     *
+     * @param key key of the entry that was accessed.
+     */
+    void onAccess(String key);
+
+    /**
+     * Records that an entry became resident in the cache.
+     *
+     * @param key key of the entry that was added.
+     *
+     * @param weight size of the entry in bytes.
+     */
+    void onInsert(String key, long weight);
+
+    /**
+     * Records that an entry became resident in the cache along with the cost of fetching it. Policies that do not
+     * take the cost into account ignore it.
+     *
+     * @param key key of the entry that was added.
+     *
+     * @param weight size of the entry in bytes.
+     *
+     * @param fetchCostInNanos time it took to fetch the entry, 0 when unknown.
+     */
+    default void onInsert(final String key, final long weight, final long fetchCostInNanos) {
+        onInsert(key, weight);
+    }
+
+    /**
+     * Records that a resident entry was removed from the cache for a reason other than being chosen as a victim.
+     *
+     * @param key key of the entry that was removed.
+     */
+    void onRemove(String key);
+
+    /**
+     * Chooses the next entry to be evicted and stops tracking it as resident.
+     *
+     * @return key of the entry to be evicted, or null when there are no resident entries.
+     */
+    String nextVictim();
+}
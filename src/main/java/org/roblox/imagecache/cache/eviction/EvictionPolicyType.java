@@ -0,0 +1,70 @@
+package org.roblox.imagecache.cache.eviction;
+
+/**
+ * Eviction policies that a cache can be configured with.
+ */
+public enum EvictionPolicyType {
+    /**
+     * Evicts the least recently used entry.
+     */
+    LRU {
+        @Override
+        public EvictionPolicy create(final long capacityInBytes, final int expectedNumberOfEntries) {
+            return new LruPolicy(expectedNumberOfEntries);
+        }
+    },
+
+    /**
+     * Segmented LRU, entries that are accessed again after being added are protected from entries that are only
+     * accessed once.
+     */
+    SLRU {
+        @Override
+        public EvictionPolicy create(final long capacityInBytes, final int expectedNumberOfEntries) {
+            return new SegmentedLruPolicy(capacityInBytes);
+        }
+    },
+
+    /**
+     * Adaptive Replacement Cache, balances recency and frequency based on the entries that were recently evicted.
+     */
+    ARC {
+        @Override
+        public EvictionPolicy create(final long capacityInBytes, final int expectedNumberOfEntries) {
+            return new AdaptiveReplacementPolicy(capacityInBytes);
+        }
+    },
+
+    /**
+     * Window TinyLFU, a small LRU window in front of a segmented LRU whose admission is decided by the access
+     * frequency of the entries, estimated with a count-min sketch.
+     */
+    TINY_LFU {
+        @Override
+        public EvictionPolicy create(final long capacityInBytes, final int expectedNumberOfEntries) {
+            return new WindowTinyLfuPolicy(capacityInBytes, expectedNumberOfEntries);
+        }
+    },
+
+    /**
+     * GreedyDual-Size-Frequency, weighs the access frequency and the fetch cost of each entry against its size and
+     * evicts the entries that are least valuable per byte.
+     */
+    GDSF {
+        @Override
+        public EvictionPolicy create(final long capacityInBytes, final int expectedNumberOfEntries) {
+            return new GreedyDualSizeFrequencyPolicy(expectedNumberOfEntries);
+        }
+    };
+
+    /**
+     * Creates a new instance of the policy.
+     *
+     * @param capacityInBytes capacity of the cache that uses the policy.
+     *
+     * @param expectedNumberOfEntries number of entries the cache is expected to hold.
+     *
+     * @return the policy.
+     */
+    public abstract EvictionPolicy create(long capacityInBytes, int expectedNumberOfEntries);
+}
@@ -0,0 +1,93 @@
+package org.roblox.imagecache.cache.eviction;
+
+import com.google.common.math.IntMath;
+
+/**
+ * Count-min sketch with 4 bit counters that estimates how often a key was accessed, used by the TinyLFU admission
+ * policy. Each key maps to 4 counters and its frequency is the minimum of them. The counters are halved once the
+ * number of increments reaches 10 times the width of the sketch, so the estimate follows recent popularity.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private static final int MIN_WIDTH = 16;
+
+    /**
+     * 16 counters of 4 bits per long.
+     */
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int size;
+
+    FrequencySketch(final int expectedNumberOfEntries) {
+        final int width = IntMath.ceilingPowerOfTwo(Math.max(MIN_WIDTH, expectedNumberOfEntries));
+        this.table = new long[width];
+        this.tableMask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * @return estimated number of times the key was accessed, at most 15.
+     */
+    int frequency(final String key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final long h = indexHash(hash, i);
+            final int offset = counterOffset(h);
+            frequency = Math.min(frequency, (int) ((this.table[tableIndex(h)] >>> offset) & MAX_COUNT));
+        }
+        return frequency;
+    }
+
+    void increment(final String key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final long h = indexHash(hash, i);
+            added |= incrementAt(tableIndex(h), counterOffset(h));
+        }
+        if (added && ++this.size == this.sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(final int index, final int offset) {
+        final long mask = (long) MAX_COUNT << offset;
+        if ((this.table[index] & mask) != mask) {
+            this.table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        for (int i = 0; i < this.table.length; i++) {
+            this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        }
+        this.size /= 2;
+    }
+
+    private static long indexHash(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return h;
+    }
+
+    private int tableIndex(final long h) {
+        return (int) h & this.tableMask;
+    }
+
+    private static int counterOffset(final long h) {
+        return (int) ((h >>> 40) & 15) << 2;
+    }
+
+    private static int spread(final int hashCode) {
+        int h = hashCode * 0x9e3779b9;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,94 @@
+package org.roblox.imagecache.cache.eviction;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * GreedyDual-Size-Frequency policy. Every entry has a priority of {@code clock + frequency * cost / size} and the entry
+ * with the lowest priority is evicted first, the clock is then raised to the priority of the victim so that entries
+ * which are not accessed anymore age relative to the ones that are. Large entries have to be accessed more often or be
+ * more expensive to fetch than small ones to stay in the cache, so a single large resource does not push out many
+ * small resources that are accessed frequently.
+ * <p>
+ * The cost of an entry is the time it took to fetch it, entries inserted without a known cost are weighted equally.
+ * </p>
+ */
+class GreedyDualSizeFrequencyPolicy implements EvictionPolicy {
+    private static final Comparator<Entry> PRIORITY_ORDER = Comparator
+            .comparingDouble((Entry entry) -> entry.priority)
+            .thenComparingLong(entry -> entry.sequence);
+
+    private final Map<String, Entry> entries;
+    private final TreeSet<Entry> priorityOrder = new TreeSet<>(PRIORITY_ORDER);
+    private double clock;
+    private long sequence;
+
+    GreedyDualSizeFrequencyPolicy(final int expectedNumberOfEntries) {
+        this.entries = new HashMap<>(expectedNumberOfEntries);
+    }
+
+    @Override
+    public void onAccess(final String key) {
+        final Entry entry = this.entries.get(key);
+        if (entry != null) {
+            this.priorityOrder.remove(entry);
+            entry.frequency++;
+            prioritize(entry);
+        }
+    }
+
+    @Override
+    public void onInsert(final String key, final long weight) {
+        onInsert(key, weight, 0);
+    }
+
+    @Override
+    public void onInsert(final String key, final long weight, final long fetchCostInNanos) {
+        onRemove(key);
+        final Entry entry = new Entry(key, Math.max(1, weight), Math.max(1, fetchCostInNanos));
+        this.entries.put(key, entry);
+        prioritize(entry);
+    }
+
+    @Override
+    public void onRemove(final String key) {
+        final Entry entry = this.entries.remove(key);
+        if (entry != null) {
+            this.priorityOrder.remove(entry);
+        }
+    }
+
+    @Override
+    public String nextVictim() {
+        final Entry victim = this.priorityOrder.pollFirst();
+        if (victim == null) {
+            return null;
+        }
+        this.entries.remove(victim.key);
+        this.clock = victim.priority;
+        return victim.key;
+    }
+
+    private void prioritize(final Entry entry) {
+        entry.priority = this.clock + entry.frequency * entry.cost / entry.weight;
+        entry.sequence = this.sequence++;
+        this.priorityOrder.add(entry);
+    }
+
+    private static class Entry {
+        private final String key;
+        private final long weight;
+        private final double cost;
+        private long frequency = 1;
+        private double priority;
+        private long sequence;
+
+        Entry(final String key, final long weight, final long cost) {
+            this.key = key;
+            this.weight = weight;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.roblox.imagecache.cache.eviction;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Helpers for the insertion ordered {@link LinkedHashMap}s that the policies use as LRU lists, the eldest entry is
+ * the least recently used one.
+ */
+final class LinkedMaps {
+
+    private LinkedMaps() {
+    }
+
+    /**
+     * Removes and returns the eldest entry of the map.
+     *
+     * @return the eldest entry, or null when the map is empty.
+     */
+    static <K, V> Map.Entry<K, V> pollFirst(final LinkedHashMap<K, V> map) {
+        final Iterator<Map.Entry<K, V>> itr = map.entrySet().iterator();
+        if (!itr.hasNext()) {
+            return null;
+        }
+        final Map.Entry<K, V> eldest = itr.next();
+        itr.remove();
+        return eldest;
+    }
+
+    /**
+     * @return the eldest entry of the map without removing it, or null when the map is empty.
+     */
+    static <K, V> Map.Entry<K, V> peekFirst(final LinkedHashMap<K, V> map) {
+        final Iterator<Map.Entry<K, V>> itr = map.entrySet().iterator();
+        return itr.hasNext() ? itr.next() : null;
+    }
+
+    /**
+     * Moves the entry of the key to the most recently used position.
+     *
+     * @return true if the map contained the key.
+     */
+    static <K, V> boolean moveToLast(final LinkedHashMap<K, V> map, final K key) {
+        final V value = map.remove(key);
+        if (value == null) {
+            return false;
+        }
+        map.put(key, value);
+        return true;
+    }
+}
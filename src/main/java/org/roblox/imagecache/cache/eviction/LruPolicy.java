@@ -0,0 +1,37 @@
+package org.roblox.imagecache.cache.eviction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least Recently Used policy, keeps the entries in Java's {@code LinkedHashMap} in access order.
+ */
+class LruPolicy implements EvictionPolicy {
+    private final LinkedHashMap<String, Long> accessOrder;
+
+    LruPolicy(final int expectedNumberOfEntries) {
+        this.accessOrder = new LinkedHashMap<>(expectedNumberOfEntries, 0.75f, true);
+    }
+
+    @Override
+    public void onAccess(final String key) {
+        // get on an access ordered map moves the entry to the most recently used position.
+        this.accessOrder.get(key);
+    }
+
+    @Override
+    public void onInsert(final String key, final long weight) {
+        this.accessOrder.put(key, weight);
+    }
+
+    @Override
+    public void onRemove(final String key) {
+        this.accessOrder.remove(key);
+    }
+
+    @Override
+    public String nextVictim() {
+        final Map.Entry<String, Long> eldest = LinkedMaps.pollFirst(this.accessOrder);
+        return eldest != null ? eldest.getKey() : null;
+    }
+}
@@ -0,0 +1,72 @@
+package org.roblox.imagecache.cache.eviction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Segmented LRU policy. New entries are added to the probation segment and move to the protected segment when they
+ * are accessed again, victims are taken from the probation segment first. The protected segment is limited to
+ * {@link #PROTECTED_RATIO} of the capacity, its least recently used entries are demoted back to probation, so a burst
+ * of entries that are only accessed once can not push out the entries that are accessed repeatedly.
+ */
+class SegmentedLruPolicy implements EvictionPolicy {
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<>();
+    private final long maxProtectedWeight;
+    private long protectedWeight;
+
+    SegmentedLruPolicy(final long capacityInBytes) {
+        this.maxProtectedWeight = (long) (capacityInBytes * PROTECTED_RATIO);
+    }
+
+    @Override
+    public void onAccess(final String key) {
+        final Long weight = this.probation.remove(key);
+        if (weight != null) {
+            this.protectedSegment.put(key, weight);
+            this.protectedWeight += weight;
+            demoteProtectedOverflow();
+        } else {
+            LinkedMaps.moveToLast(this.protectedSegment, key);
+        }
+    }
+
+    @Override
+    public void onInsert(final String key, final long weight) {
+        onRemove(key);
+        this.probation.put(key, weight);
+    }
+
+    @Override
+    public void onRemove(final String key) {
+        if (this.probation.remove(key) == null) {
+            final Long weight = this.protectedSegment.remove(key);
+            if (weight != null) {
+                this.protectedWeight -= weight;
+            }
+        }
+    }
+
+    @Override
+    public String nextVictim() {
+        Map.Entry<String, Long> victim = LinkedMaps.pollFirst(this.probation);
+        if (victim == null) {
+            victim = LinkedMaps.pollFirst(this.protectedSegment);
+            if (victim == null) {
+                return null;
+            }
+            this.protectedWeight -= victim.getValue();
+        }
+        return victim.getKey();
+    }
+
+    private void demoteProtectedOverflow() {
+        while (this.protectedWeight > this.maxProtectedWeight && !this.protectedSegment.isEmpty()) {
+            final Map.Entry<String, Long> demoted = LinkedMaps.pollFirst(this.protectedSegment);
+            this.protectedWeight -= demoted.getValue();
+            this.probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.roblox.imagecache.cache.eviction;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Window TinyLFU policy as described in <a href="https://arxiv.org/abs/1512.00727">TinyLFU: A Highly Efficient Cache
+ * Admission Policy</a>. New entries are added to a small LRU window that takes {@link #WINDOW_RATIO} of the capacity.
+ * When the window overflows, its least recently used entry competes with the victim of the main segmented LRU and only
+ * the one that was accessed more frequently, as estimated by a {@link FrequencySketch}, stays in the cache. A scan of
+ * entries that are accessed only once therefore just cycles through the window.
+ */
+class WindowTinyLfuPolicy implements EvictionPolicy {
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Long> protectedSegment = new LinkedHashMap<>();
+    private final FrequencySketch sketch;
+    private final long maxWindowWeight;
+    private final long maxProtectedWeight;
+    private long windowWeight;
+    private long protectedWeight;
+
+    WindowTinyLfuPolicy(final long capacityInBytes, final int expectedNumberOfEntries) {
+        this.sketch = new FrequencySketch(expectedNumberOfEntries);
+        this.maxWindowWeight = (long) (capacityInBytes * WINDOW_RATIO);
+        this.maxProtectedWeight = (long) ((capacityInBytes - this.maxWindowWeight) * PROTECTED_RATIO);
+    }
+
+    @Override
+    public void onAccess(final String key) {
+        if (LinkedMaps.moveToLast(this.window, key)) {
+            this.sketch.increment(key);
+            return;
+        }
+        final Long weight = this.probation.remove(key);
+        if (weight != null) {
+            this.sketch.increment(key);
+            this.protectedSegment.put(key, weight);
+            this.protectedWeight += weight;
+            demoteProtectedOverflow();
+        } else if (LinkedMaps.moveToLast(this.protectedSegment, key)) {
+            this.sketch.increment(key);
+        }
+    }
+
+    @Override
+    public void onInsert(final String key, final long weight) {
+        onRemove(key);
+        this.sketch.increment(key);
+        this.window.put(key, weight);
+        this.windowWeight += weight;
+    }
+
+    @Override
+    public void onRemove(final String key) {
+        Long weight = this.window.remove(key);
+        if (weight != null) {
+            this.windowWeight -= weight;
+            return;
+        }
+        if (this.probation.remove(key) != null) {
+            return;
+        }
+        weight = this.protectedSegment.remove(key);
+        if (weight != null) {
+            this.protectedWeight -= weight;
+        }
+    }
+
+    @Override
+    public String nextVictim() {
+        while (this.windowWeight > this.maxWindowWeight && !this.window.isEmpty()) {
+            final Map.Entry<String, Long> candidate = LinkedMaps.pollFirst(this.window);
+            this.windowWeight -= candidate.getValue();
+            Map.Entry<String, Long> victim = LinkedMaps.peekFirst(this.probation);
+            if (victim == null) {
+                victim = LinkedMaps.peekFirst(this.protectedSegment);
+            }
+            if (victim == null) {
+                // the main segments are empty, admit the candidate without a contest
+                this.probation.put(candidate.getKey(), candidate.getValue());
+                continue;
+            }
+            if (this.sketch.frequency(candidate.getKey()) > this.sketch.frequency(victim.getKey())) {
+                final String victimKey = victim.getKey();
+                onRemove(victimKey);
+                this.probation.put(candidate.getKey(), candidate.getValue());
+                return victimKey;
+            }
+            return candidate.getKey();
+        }
+        Map.Entry<String, Long> victim = LinkedMaps.pollFirst(this.probation);
+        if (victim != null) {
+            return victim.getKey();
+        }
+        victim = LinkedMaps.pollFirst(this.protectedSegment);
+        if (victim != null) {
+            this.protectedWeight -= victim.getValue();
+            return victim.getKey();
+        }
+        victim = LinkedMaps.pollFirst(this.window);
+        if (victim != null) {
+            this.windowWeight -= victim.getValue();
+            return victim.getKey();
+        }
+        return null;
+    }
+
+    private void demoteProtectedOverflow() {
+        while (this.protectedWeight > this.maxProtectedWeight && !this.protectedSegment.isEmpty()) {
+            final Map.Entry<String, Long> demoted = LinkedMaps.pollFirst(this.protectedSegment);
+            this.protectedWeight -= demoted.getValue();
+            this.probation.put(demoted.getKey(), demoted.getValue());
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package org.roblox.imagecache.server;
+
+import org.roblox.imagecache.cache.Cache;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.DownloadProgress;
+import org.roblox.imagecache.types.ResourceData;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.variant.ImageTransform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Connection of a client of the {@link ImageServer}, serves {@code GET /img?url=...} requests one after the other
+ * through {@link Cache#loadAsync(String)}, or through {@link Cache#loadVariantAsync(String, ImageTransform)} when they
+ * ask for a variant of the image with {@code &variant=<spec>}. Urls of origins that are not allowed are answered with
+ * 403 Forbidden. Only ever used on the thread of its event loop.
+ * <p>
+ * Resources that are cached are transferred from their file when they have one, see
+ * {@link ResponseBody.FileBody}, and from their memory mapping or heap buffer otherwise. Misses track the download of
+ * the resource, so that it is streamed while it is downloaded when the download of this request starts it, or joins
+ * it before it starts. Otherwise the response is sent once the load completes.
+ * </p>
+ */
+final class Connection {
+    static final String PATH = "/img";
+    private static final String URL_PARAMETER = "url";
+    private static final String VARIANT_PARAMETER = "variant";
+    private static final byte[] END_OF_HEADERS = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+    private final Logger log = LoggerFactory.getLogger(Connection.class);
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop eventLoop;
+    private final Cache cache;
+    private final DownloadManager downloadManager;
+    private final OriginAllowlist allowlist;
+    private final ByteBuffer requestBuffer;
+
+    private HttpRequest request;
+    /**
+     * incremented for every request, so that callbacks of a previous request of the connection are ignored.
+     */
+    private long requestId;
+    private String url;
+    /**
+     * transform of the variant the request asks for, null for the original.
+     */
+    private ImageTransform transform;
+    private DownloadProgress progress;
+    private ByteBuffer responseHead;
+    private ResponseBody responseBody;
+    private boolean closed;
+
+    Connection(final SocketChannel channel, final EventLoop eventLoop, final Cache cache,
+               final DownloadManager downloadManager, final OriginAllowlist allowlist,
+               final int maxRequestHeaderBytes) throws IOException {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.cache = cache;
+        this.downloadManager = downloadManager;
+        this.allowlist = allowlist;
+        this.requestBuffer = ByteBuffer.allocate(maxRequestHeaderBytes);
+        channel.configureBlocking(false);
+        this.key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+    }
+
+    void onReadable() {
+        try {
+            if (this.channel.read(this.requestBuffer) == -1) {
+                close();
+                return;
+            }
+        } catch (final IOException e) {
+            close();
+            return;
+        }
+        handleBufferedRequest();
+    }
+
+    void onWritable() {
+        writeResponse();
+    }
+
+    /**
+     * Handles the request in the request buffer once its headers are complete.
+     */
+    private void handleBufferedRequest() {
+        final int end = indexOf(this.requestBuffer, END_OF_HEADERS);
+        if (end < 0) {
+            if (!this.requestBuffer.hasRemaining()) {
+                this.request = null;
+                respondWithError(431, "Request Header Fields Too Large");
+            }
+            return;
+        }
+        final byte[] head = Arrays.copyOf(this.requestBuffer.array(), end);
+        // keeps the bytes of a pipelined request for after this one
+        this.requestBuffer.flip().position(end + END_OF_HEADERS.length);
+        this.requestBuffer.compact();
+        this.key.interestOps(0);
+        this.requestId++;
+        this.request = HttpRequest.parse(head);
+        if (this.request == null) {
+            respondWithError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+        } else if (!"GET".equals(this.request.getMethod()) && !"HEAD".equals(this.request.getMethod())) {
+            respondWithError(HttpURLConnection.HTTP_BAD_METHOD, "Method Not Allowed");
+        } else if (!PATH.equals(this.request.getPath())) {
+            respondWithError(HttpURLConnection.HTTP_NOT_FOUND, "Not Found");
+        } else if (!isHttpUrl(this.request.getQueryParameters().get(URL_PARAMETER))) {
+            respondWithError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+        } else if (!this.allowlist.allows(this.request.getQueryParameters().get(URL_PARAMETER))) {
+            respondWithError(HttpURLConnection.HTTP_FORBIDDEN, "Forbidden");
+        } else if (this.request.getQueryParameters().containsKey(VARIANT_PARAMETER)) {
+            final ImageTransform variantTransform;
+            try {
+                variantTransform = ImageTransform.parse(this.request.getQueryParameters().get(VARIANT_PARAMETER));
+            } catch (final IllegalArgumentException e) {
+                respondWithError(HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request");
+                return;
+            }
+            loadVariant(this.request.getQueryParameters().get(URL_PARAMETER), variantTransform);
+        } else {
+            load(this.request.getQueryParameters().get(URL_PARAMETER));
+        }
+    }
+
+    /**
+     * Loads the variant of the image, which is only sent once it was derived.
+     */
+    private void loadVariant(final String url, final ImageTransform variantTransform) {
+        final long id = this.requestId;
+        this.url = url;
+        this.transform = variantTransform;
+        this.cache.loadVariantAsync(url, variantTransform).whenComplete((resultData, e) ->
+                this.eventLoop.execute(() -> {
+                    if (id == this.requestId && !this.closed) {
+                        onLoaded(resultData, e);
+                    }
+                }));
+    }
+
+    private void load(final String url) {
+        final long id = this.requestId;
+        this.url = url;
+        this.progress = this.downloadManager.track(url);
+        final DownloadProgress trackedProgress = this.progress;
+        this.cache.loadAsync(url).whenComplete((resultData, e) -> this.eventLoop.execute(() -> {
+            this.downloadManager.untrack(url, trackedProgress);
+            if (id == this.requestId && !this.closed) {
+                onLoaded(resultData, e);
+            }
+        }));
+        trackedProgress.addListener(() -> this.eventLoop.execute(() -> {
+            if (id == this.requestId && !this.closed) {
+                onProgress();
+            }
+        }));
+    }
+
+    private void onProgress() {
+        if (this.responseBody instanceof ResponseBody.ProgressBody) {
+            writeResponse();
+        } else if (this.responseHead == null && this.progress.getState() == DownloadProgress.State.STREAMING
+                && this.progress.retain()) {
+            // a download that finished before it was retained is answered with the result of the load instead
+            respond(HttpURLConnection.HTTP_OK, "OK", this.progress.getContentLength(), this.progress.getEntityTag(),
+                    false, new ResponseBody.ProgressBody(this.progress));
+        }
+    }
+
+    private void onLoaded(final ResultData resultData, final Throwable e) {
+        if (this.responseHead != null) {
+            // the response is streamed from the download already
+            return;
+        }
+        if (e != null) {
+            this.log.debug("Unable to load object for client: {}", this.url, e);
+            respondWithError(HttpURLConnection.HTTP_BAD_GATEWAY, "Bad Gateway");
+            return;
+        }
+        final ResourceData resourceData = resultData.getResourceData();
+        final String entityTag = resourceData.getFreshness() != null
+                ? resourceData.getFreshness().getEntityTag() : null;
+        final boolean hit = resultData.getState() == State.CACHE;
+        if (entityTag != null && entityTag.equals(this.request.getHeaders().get("if-none-match"))) {
+            respond(HttpURLConnection.HTTP_NOT_MODIFIED, "Not Modified", -1, entityTag, hit, null);
+            return;
+        }
+        try {
+            respond(HttpURLConnection.HTTP_OK, "OK", resourceData.getSizeInBytes(), entityTag, hit,
+                    openBody(resourceData));
+        } catch (final IOException ex) {
+            this.log.debug("Unable to read object for client: {}", this.url, ex);
+            respondWithError(HttpURLConnection.HTTP_INTERNAL_ERROR, "Internal Server Error");
+        }
+    }
+
+    /**
+     * Resources with a file of their own are transferred from it, unless it was removed already. Memory mapped
+     * resources may share the file of their segment with other resources and are written from their mapping.
+     */
+    private static ResponseBody openBody(final ResourceData resourceData) throws IOException {
+        if ((resourceData.isOnDisk() || resourceData.getOriginalResourceBytes() != null)
+                && resourceData.getResourcePath() != null) {
+            try {
+                return new ResponseBody.FileBody(FileChannel.open(Paths.get(resourceData.getResourcePath()),
+                        StandardOpenOption.READ), resourceData.getSizeInBytes());
+            } catch (final IOException e) {
+                if (resourceData.isOnDisk()) {
+                    throw e;
+                }
+            }
+        }
+        return new ResponseBody.BufferBody(resourceData.asByteBuffer());
+    }
+
+    private void respondWithError(final int status, final String reason) {
+        final byte[] message = (reason + "\n").getBytes(StandardCharsets.UTF_8);
+        respond(status, reason, message.length, null, false, new ResponseBody.BufferBody(ByteBuffer.wrap(message)));
+    }
+
+    /**
+     * Starts writing the response.
+     *
+     * @param contentLength length of the body, -1 for responses without a body.
+     *
+     * @param body body of the response, null for responses without a body.
+     */
+    private void respond(final int status, final String reason, final long contentLength, final String entityTag,
+                         final boolean hit, final ResponseBody body) {
+        final boolean keepAlive = this.request != null && this.request.isKeepAlive();
+        final StringBuilder head = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        if (contentLength >= 0) {
+            final String contentType = status != HttpURLConnection.HTTP_OK ? "text/plain"
+                    : this.transform != null && this.transform.getFormat() != null
+                    ? URLConnection.guessContentTypeFromName("variant." + this.transform.getFormat())
+                    : URLConnection.guessContentTypeFromName(this.url);
+            head.append("Content-Type: ").append(contentType != null ? contentType : DEFAULT_CONTENT_TYPE)
+                    .append("\r\n")
+                    .append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        if (entityTag != null) {
+            head.append("ETag: ").append(entityTag).append("\r\n");
+        }
+        if (status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            head.append("X-Cache: ").append(hit ? "HIT" : "MISS").append("\r\n");
+        }
+        head.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        this.responseHead = ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        this.responseBody = this.request != null && "HEAD".equals(this.request.getMethod()) ? null : body;
+        if (this.responseBody != body) {
+            closeQuietly(body);
+        }
+        writeResponse();
+    }
+
+    private void writeResponse() {
+        try {
+            if (this.responseHead.hasRemaining()) {
+                this.channel.write(this.responseHead);
+                if (this.responseHead.hasRemaining()) {
+                    this.key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (this.responseBody != null && !this.responseBody.writeTo(this.channel)) {
+                // waits for the socket to drain or for the download to make progress
+                this.key.interestOps(this.responseBody.isWaitingForContent() ? 0 : SelectionKey.OP_WRITE);
+                return;
+            }
+        } catch (final IOException e) {
+            this.log.debug("Unable to write response to client: {}", this.url, e);
+            close();
+            return;
+        }
+        finishResponse();
+    }
+
+    private void finishResponse() {
+        final boolean keepAlive = this.request != null && this.request.isKeepAlive();
+        closeQuietly(this.responseBody);
+        this.responseBody = null;
+        this.responseHead = null;
+        this.progress = null;
+        this.url = null;
+        this.transform = null;
+        this.request = null;
+        if (!keepAlive) {
+            close();
+            return;
+        }
+        this.requestId++;
+        this.key.interestOps(SelectionKey.OP_READ);
+        handleBufferedRequest();
+    }
+
+    void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        closeQuietly(this.responseBody);
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (final IOException e) {
+            this.log.debug("Unable to close connection", e);
+        }
+    }
+
+    private void closeQuietly(final ResponseBody body) {
+        if (body == null) {
+            return;
+        }
+        try {
+            body.close();
+        } catch (final IOException e) {
+            this.log.debug("Unable to close response body", e);
+        }
+    }
+
+    private static boolean isHttpUrl(final String url) {
+        if (url == null) {
+            return false;
+        }
+        final String lowerCase = url.toLowerCase(Locale.ROOT);
+        return lowerCase.startsWith("http://") || lowerCase.startsWith("https://");
+    }
+
+    /**
+     * @return index of the first occurrence of the pattern in the bytes written to the buffer, -1 if there is none.
+     */
+    private static int indexOf(final ByteBuffer buffer, final byte[] pattern) {
+        final byte[] bytes = buffer.array();
+        for (int i = 0; i + pattern.length <= buffer.position(); i++) {
+            int matched = 0;
+            while (matched < pattern.length && bytes[i + matched] == pattern[matched]) {
+                matched++;
+            }
+            if (matched == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
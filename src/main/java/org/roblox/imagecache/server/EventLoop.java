@@ -0,0 +1,97 @@
+package org.roblox.imagecache.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread multiplexing the connections assigned to it with a selector. Everything that touches a connection runs on
+ * this thread, other threads hand work to it through {@link #execute(Runnable)}.
+ */
+final class EventLoop implements Runnable, Closeable {
+    private final Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    EventLoop(final String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    Selector getSelector() {
+        return this.selector;
+    }
+
+    /**
+     * Runs the task on the thread of this event loop.
+     */
+    void execute(final Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.running) {
+                this.selector.select();
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    final SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    final Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+            }
+        } catch (final IOException | ClosedSelectorException e) {
+            if (this.running) {
+                this.log.warn("Event loop stopped unexpectedly", e);
+            }
+        } finally {
+            for (final SelectionKey key : this.selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                this.selector.close();
+            } catch (final IOException e) {
+                this.log.warn("Unable to close selector of event loop", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        this.running = false;
+        this.selector.wakeup();
+        try {
+            this.thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
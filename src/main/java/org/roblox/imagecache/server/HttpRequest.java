@@ -0,0 +1,75 @@
+package org.roblox.imagecache.server;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Request line and headers of an HTTP/1.x request, the server only serves requests without a body.
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter
+class HttpRequest {
+    private static final String HTTP_1_0 = "HTTP/1.0";
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> queryParameters;
+    /**
+     * headers by their name in lower case.
+     */
+    private final Map<String, String> headers;
+    private final boolean keepAlive;
+
+    /**
+     * Parses the request line and headers of a request.
+     *
+     * @param head bytes of the request up to but excluding the empty line that ends the headers.
+     *
+     * @return the request, null if it is malformed.
+     */
+    static HttpRequest parse(final byte[] head) {
+        final String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return null;
+        }
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final int separator = lines[i].indexOf(':');
+            if (separator <= 0) {
+                return null;
+            }
+            headers.put(lines[i].substring(0, separator).trim().toLowerCase(Locale.ROOT),
+                    lines[i].substring(separator + 1).trim());
+        }
+        final String target = requestLine[1];
+        final int queryStart = target.indexOf('?');
+        final Map<String, String> queryParameters = new HashMap<>();
+        try {
+            if (queryStart >= 0) {
+                for (final String parameter : target.substring(queryStart + 1).split("&")) {
+                    final int separator = parameter.indexOf('=');
+                    if (separator > 0) {
+                        queryParameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                                URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+                    }
+                }
+            }
+        } catch (final UnsupportedEncodingException | IllegalArgumentException e) {
+            return null;
+        }
+        final String connection = headers.getOrDefault("connection", "").toLowerCase(Locale.ROOT);
+        final boolean keepAlive = HTTP_1_0.equals(requestLine[2]) ? connection.equals("keep-alive")
+                : !connection.equals("close");
+        return new HttpRequest(requestLine[0], queryStart >= 0 ? target.substring(0, queryStart) : target,
+                queryParameters, headers, keepAlive);
+    }
+}
@@ -0,0 +1,133 @@
+package org.roblox.imagecache.server;
+
+import lombok.NonNull;
+import org.roblox.imagecache.cache.Cache;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Embedded HTTP/1.1 server serving {@code GET /img?url=<url>} from a {@link Cache} for the urls of the allowed
+ * origins of the {@link ServerConfiguration}. Connections are accepted on a thread of their own and spread over the
+ * event loops of the configuration, which handle them with non-blocking I/O.
+ * <p>
+ * The download manager has to be the one the cache downloads with, so that misses can be streamed to the clients while
+ * they are downloaded.
+ * </p>
+ */
+public class ImageServer implements Closeable {
+    private final Logger log = LoggerFactory.getLogger(ImageServer.class);
+
+    private final Cache cache;
+    private final DownloadManager downloadManager;
+    private final ServerConfiguration configuration;
+    private final OriginAllowlist allowlist;
+    private final EventLoop[] eventLoops;
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+    private volatile boolean running;
+
+    public ImageServer(@NonNull final Cache cache, @NonNull final DownloadManager downloadManager,
+                       @NonNull final ServerConfiguration configuration) {
+        if (configuration.getEventLoops() <= 0) {
+            throw new IllegalArgumentException("Server needs at least one event loop");
+        }
+        if (configuration.getMaxRequestHeaderBytes() <= 0) {
+            throw new IllegalArgumentException("Maximum request header size must be positive");
+        }
+        this.cache = cache;
+        this.downloadManager = downloadManager;
+        this.configuration = configuration;
+        this.allowlist = new OriginAllowlist(configuration.getAllowedOrigins());
+        this.eventLoops = new EventLoop[configuration.getEventLoops()];
+    }
+
+    /**
+     * Binds the server and starts accepting connections.
+     *
+     * @throws IOException if the server could not be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (this.running) {
+            throw new IllegalStateException("Server is started already");
+        }
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(this.configuration.getBindAddress() == null
+                ? new InetSocketAddress(this.configuration.getPort())
+                : new InetSocketAddress(this.configuration.getBindAddress(), this.configuration.getPort()));
+        for (int i = 0; i < this.eventLoops.length; i++) {
+            this.eventLoops[i] = new EventLoop("image-server-loop-" + i);
+            this.eventLoops[i].start();
+        }
+        this.running = true;
+        this.acceptor = new Thread(this::accept, "image-server-acceptor");
+        this.acceptor.setDaemon(true);
+        this.acceptor.start();
+        this.log.info("Image server listening on port {} with {} event loops", getPort(), this.eventLoops.length);
+    }
+
+    /**
+     * @return port the server listens on.
+     */
+    public int getPort() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    private void accept() {
+        int next = 0;
+        while (this.running) {
+            final SocketChannel channel;
+            try {
+                channel = this.serverChannel.accept();
+            } catch (final ClosedChannelException e) {
+                return;
+            } catch (final IOException e) {
+                this.log.warn("Unable to accept connection", e);
+                continue;
+            }
+            final EventLoop eventLoop = this.eventLoops[next];
+            next = (next + 1) % this.eventLoops.length;
+            // channels have to be registered on the thread of the selector, which would block the registration
+            eventLoop.execute(() -> {
+                try {
+                    new Connection(channel, eventLoop, this.cache, this.downloadManager, this.allowlist,
+                            this.configuration.getMaxRequestHeaderBytes());
+                } catch (final IOException e) {
+                    this.log.warn("Unable to register connection", e);
+                    try {
+                        channel.close();
+                    } catch (final IOException ex) {
+                        this.log.debug("Unable to close connection", ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones. The cache is left open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!this.running) {
+            return;
+        }
+        this.running = false;
+        this.serverChannel.close();
+        try {
+            this.acceptor.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final EventLoop eventLoop : this.eventLoops) {
+            eventLoop.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.roblox.imagecache.server;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Origins an {@link ImageServer} loads images from, see {@link ServerConfiguration#getAllowedOrigins()}. Origins are
+ * compared by scheme, host and port, a url without a port is of the default port of its scheme.
+ */
+final class OriginAllowlist {
+    private final Set<String> origins = new HashSet<>();
+
+    /**
+     * @throws IllegalArgumentException if one of the origins is not of the form scheme://host[:port].
+     */
+    OriginAllowlist(final Collection<String> allowedOrigins) {
+        for (final String allowedOrigin : allowedOrigins) {
+            final URL url;
+            try {
+                url = new URL(allowedOrigin);
+            } catch (final MalformedURLException e) {
+                throw new IllegalArgumentException(String.format("Invalid allowed origin %s", allowedOrigin), e);
+            }
+            if (url.getHost().isEmpty() || !(url.getPath().isEmpty() || "/".equals(url.getPath()))
+                    || url.getQuery() != null || url.getUserInfo() != null) {
+                throw new IllegalArgumentException(String.format("Allowed origin %s is not of the form " +
+                        "scheme://host[:port]", allowedOrigin));
+            }
+            this.origins.add(originOf(url));
+        }
+    }
+
+    /**
+     * @return true when the url is of one of the allowed origins.
+     */
+    boolean allows(final String url) {
+        try {
+            return this.origins.contains(originOf(new URL(url)));
+        } catch (final MalformedURLException e) {
+            return false;
+        }
+    }
+
+    private static String originOf(final URL url) {
+        return url.getProtocol().toLowerCase(Locale.ROOT) + "://" + url.getHost().toLowerCase(Locale.ROOT) + ":"
+                + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+}
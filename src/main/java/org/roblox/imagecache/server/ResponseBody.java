@@ -0,0 +1,134 @@
+package org.roblox.imagecache.server;
+
+import org.roblox.imagecache.cache.DownloadProgress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Body of a response that is written to a non-blocking socket in as many steps as the socket needs.
+ */
+interface ResponseBody extends Closeable {
+
+    /**
+     * Writes as much of the body as the socket accepts without blocking.
+     *
+     * @return true once the whole body was written.
+     *
+     * @throws IOException if the body could not be read or written.
+     */
+    boolean writeTo(SocketChannel channel) throws IOException;
+
+    /**
+     * @return true when the last write stopped because the rest of the body is not available yet rather than because
+     * the socket was full.
+     */
+    default boolean isWaitingForContent() {
+        return false;
+    }
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * Body held in a buffer, which is either on the heap or a memory mapping of the file of the resource.
+     */
+    final class BufferBody implements ResponseBody {
+        private final ByteBuffer content;
+
+        BufferBody(final ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public boolean writeTo(final SocketChannel channel) throws IOException {
+            channel.write(this.content);
+            return !this.content.hasRemaining();
+        }
+    }
+
+    /**
+     * Body transferred from the file of the resource to the socket with {@link FileChannel#transferTo}, without
+     * copying it through the heap. The file stays readable when it is deleted while it is transferred.
+     */
+    final class FileBody implements ResponseBody {
+        private final FileChannel file;
+        private final long size;
+        private long position;
+
+        FileBody(final FileChannel file, final long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        @Override
+        public boolean writeTo(final SocketChannel channel) throws IOException {
+            while (this.position < this.size) {
+                final long transferred = this.file.transferTo(this.position, this.size - this.position, channel);
+                if (transferred == 0) {
+                    if (this.position >= this.file.size()) {
+                        throw new IOException("Resource was truncated while it was transferred");
+                    }
+                    return false;
+                }
+                this.position += transferred;
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.file.close();
+        }
+    }
+
+    /**
+     * Body streamed from a download in progress, written as its bytes are downloaded. Holds the bytes of the download
+     * readable from the time it is created until it is closed.
+     */
+    final class ProgressBody implements ResponseBody {
+        private final DownloadProgress progress;
+        private long position;
+        private boolean waitingForContent;
+
+        /**
+         * @param progress progress of the download, {@link DownloadProgress#retain() retained} for this body.
+         */
+        ProgressBody(final DownloadProgress progress) {
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean writeTo(final SocketChannel channel) throws IOException {
+            // reads the state before the bytes, so that the bytes of a completed download are all available
+            final DownloadProgress.State state = this.progress.getState();
+            if (state == DownloadProgress.State.FAILED) {
+                throw new IOException("Download failed while it was streamed");
+            }
+            final long available = this.progress.getAvailable();
+            while (this.position < available) {
+                final long transferred = this.progress.transferTo(this.position, available, channel);
+                if (transferred == 0) {
+                    break;
+                }
+                this.position += transferred;
+            }
+            this.waitingForContent = this.position == available;
+            return this.position == this.progress.getContentLength();
+        }
+
+        @Override
+        public void close() {
+            this.progress.release();
+        }
+
+        @Override
+        public boolean isWaitingForContent() {
+            return this.waitingForContent;
+        }
+    }
+}
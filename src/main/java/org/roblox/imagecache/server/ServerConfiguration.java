@@ -0,0 +1,54 @@
+package org.roblox.imagecache.server;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Settings of an {@link ImageServer}. The loads of the cache run on the download executor of the cache, the event
+ * loops only parse requests and write responses.
+ */
+@Getter
+@Builder
+public class ServerConfiguration {
+    public static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_MAX_REQUEST_HEADER_BYTES = 8 * 1024;
+
+    /**
+     * Port the server listens on, 0 picks a free port.
+     */
+    @Builder.Default
+    private int port = DEFAULT_PORT;
+
+    /**
+     * Address the server listens on, null listens on all interfaces.
+     */
+    private String bindAddress;
+
+    /**
+     * Number of event loops the connections are spread over, each of them runs on a thread of its own and multiplexes
+     * its connections with a selector.
+     */
+    @Builder.Default
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum size of the request line and the headers of a request, larger requests are rejected.
+     */
+    @Builder.Default
+    private int maxRequestHeaderBytes = DEFAULT_MAX_REQUEST_HEADER_BYTES;
+
+    /**
+     * Origins the server loads images from, given as scheme://host or scheme://host:port. Requests for urls of any
+     * other origin are answered with 403 Forbidden, so that clients cannot make the server fetch from hosts it is not
+     * meant to reach, such as those of its own network. None are allowed by default.
+     */
+    @Builder.Default
+    private Set<String> allowedOrigins = Collections.emptySet();
+
+    public static ServerConfiguration defaults() {
+        return ServerConfiguration.builder().build();
+    }
+}
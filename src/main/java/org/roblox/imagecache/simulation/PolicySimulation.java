@@ -0,0 +1,66 @@
+package org.roblox.imagecache.simulation;
+
+import org.roblox.imagecache.cache.eviction.EvictionPolicy;
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simulates a cache of one capacity with one of the eviction policies of the cache, for policies that do not have the
+ * inclusion property of LRU. Makes room for a missed resource the way the cache does, by evicting the victims of the
+ * policy until it fits, and does not cache resources larger than the capacity.
+ */
+class PolicySimulation implements Simulation {
+    private final EvictionPolicyType policyType;
+    private final long capacityInBytes;
+    private final EvictionPolicy policy;
+    private final Map<String, Long> residentSizes;
+    private long currentSizeInBytes;
+    private long requests;
+    private long hits;
+    private long requestedBytes;
+    private long hitBytes;
+
+    PolicySimulation(final EvictionPolicyType policyType, final long capacityInBytes,
+                     final int expectedNumberOfEntries) {
+        this.policyType = policyType;
+        this.capacityInBytes = capacityInBytes;
+        this.policy = policyType.create(capacityInBytes, expectedNumberOfEntries);
+        this.residentSizes = new HashMap<>(expectedNumberOfEntries);
+    }
+
+    @Override
+    public void access(final String key, final long sizeInBytes) {
+        this.requests++;
+        this.requestedBytes += sizeInBytes;
+        if (this.residentSizes.containsKey(key)) {
+            this.hits++;
+            this.hitBytes += sizeInBytes;
+            this.policy.onAccess(key);
+            return;
+        }
+        if (sizeInBytes > this.capacityInBytes) {
+            return;
+        }
+        while (this.currentSizeInBytes + sizeInBytes > this.capacityInBytes) {
+            final String victim = this.policy.nextVictim();
+            if (victim == null) {
+                throw new IllegalStateException(String.format("Eviction policy %s has no victim to make room for %s",
+                        this.policyType, key));
+            }
+            this.currentSizeInBytes -= this.residentSizes.remove(victim);
+        }
+        this.residentSizes.put(key, sizeInBytes);
+        this.currentSizeInBytes += sizeInBytes;
+        this.policy.onInsert(key, sizeInBytes);
+    }
+
+    @Override
+    public List<SimulationResult> getResults() {
+        return Collections.singletonList(new SimulationResult(this.policyType.name(), this.capacityInBytes,
+                this.requests, this.hits, this.requestedBytes, this.hitBytes));
+    }
+}
@@ -0,0 +1,24 @@
+package org.roblox.imagecache.simulation;
+
+import java.util.List;
+
+/**
+ * Replays the accesses of a trace against a model of a cache without any network or disk access.
+ */
+interface Simulation {
+
+    /**
+     * Records an access to the resource of the key, which is a hit when the resource is resident in the modelled
+     * cache and is added to it otherwise.
+     *
+     * @param key key of the resource.
+     *
+     * @param sizeInBytes size of the resource.
+     */
+    void access(String key, long sizeInBytes);
+
+    /**
+     * @return results of the accesses so far, one per modelled capacity.
+     */
+    List<SimulationResult> getResults();
+}
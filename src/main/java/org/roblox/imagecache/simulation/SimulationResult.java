@@ -0,0 +1,51 @@
+package org.roblox.imagecache.simulation;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Locale;
+
+/**
+ * Hits of a simulated cache of one capacity and eviction policy over a trace. The toString method renders a line of
+ * the csv output of the simulation, see {@link #CSV_HEADER}.
+ */
+@Getter
+@AllArgsConstructor
+public class SimulationResult {
+    public static final String CSV_HEADER = "policy,capacityInBytes,requests,hits,hitRatio,byteHitRatio";
+
+    /**
+     * Name of the eviction policy of the simulated cache.
+     */
+    private final String policy;
+
+    private final long capacityInBytes;
+
+    private final long requests;
+
+    private final long hits;
+
+    /**
+     * Bytes of all of the requested resources.
+     */
+    private final long requestedBytes;
+
+    /**
+     * Bytes of the requested resources that were served from the cache.
+     */
+    private final long hitBytes;
+
+    public double getHitRatio() {
+        return this.requests == 0 ? 0 : (double) this.hits / this.requests;
+    }
+
+    public double getByteHitRatio() {
+        return this.requestedBytes == 0 ? 0 : (double) this.hitBytes / this.requestedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s,%d,%d,%d,%.6f,%.6f", this.policy, this.capacityInBytes, this.requests,
+                this.hits, getHitRatio(), getByteHitRatio());
+    }
+}
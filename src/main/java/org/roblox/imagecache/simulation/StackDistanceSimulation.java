@@ -0,0 +1,132 @@
+package org.roblox.imagecache.simulation;
+
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simulates LRU caches of every capacity in a single pass over the trace with Mattson's stack algorithm. LRU has the
+ * inclusion property: a cache holds the most recently used resources that fit in its capacity, so an access is a hit
+ * in every cache whose capacity is at least the stack distance of the access, which is the number of bytes of the
+ * distinct resources accessed since the previous access to the same key, including the resource itself.
+ * <p>
+ * The stack distances are computed in logarithmic time with a Fenwick tree over the time of the last access to every
+ * key, holding the size of the resource at that time, so that the bytes accessed since a given time are a suffix sum
+ * of the tree. The tree is compacted to the number of distinct keys whenever its slots run out.
+ * </p>
+ * Unlike the cache, which does not admit resources larger than its capacity, the stack counts them like any other
+ * resource, so that traces with such resources slightly underestimate the hits of the smaller capacities.
+ */
+class StackDistanceSimulation implements Simulation {
+    private static final int INITIAL_SLOTS = 1024;
+
+    private final long[] capacities;
+    /**
+     * hits and their bytes by the index of the smallest capacity they are a hit in.
+     */
+    private final long[] hitsByCapacity;
+    private final long[] hitBytesByCapacity;
+    private final Map<String, LastAccess> lastAccesses = new HashMap<>();
+    private long[] tree = new long[INITIAL_SLOTS + 1];
+    private int nextSlot = 1;
+    private long stackBytes;
+    private long requests;
+    private long requestedBytes;
+
+    /**
+     * @param capacities capacities in bytes of the simulated caches.
+     */
+    StackDistanceSimulation(final long[] capacities) {
+        this.capacities = capacities.clone();
+        Arrays.sort(this.capacities);
+        this.hitsByCapacity = new long[capacities.length];
+        this.hitBytesByCapacity = new long[capacities.length];
+    }
+
+    @Override
+    public void access(final String key, final long sizeInBytes) {
+        this.requests++;
+        this.requestedBytes += sizeInBytes;
+        if (this.nextSlot == this.tree.length) {
+            compact();
+        }
+        LastAccess lastAccess = this.lastAccesses.get(key);
+        if (lastAccess != null) {
+            final long stackDistance = this.stackBytes - prefixSum(lastAccess.slot) + lastAccess.sizeInBytes;
+            int smallestHit = Arrays.binarySearch(this.capacities, stackDistance);
+            if (smallestHit < 0) {
+                smallestHit = -smallestHit - 1;
+            } else {
+                // the first of equal capacities
+                while (smallestHit > 0 && this.capacities[smallestHit - 1] == stackDistance) {
+                    smallestHit--;
+                }
+            }
+            if (smallestHit < this.capacities.length) {
+                this.hitsByCapacity[smallestHit]++;
+                this.hitBytesByCapacity[smallestHit] += sizeInBytes;
+            }
+            add(lastAccess.slot, -lastAccess.sizeInBytes);
+        } else {
+            lastAccess = new LastAccess();
+            this.lastAccesses.put(key, lastAccess);
+        }
+        lastAccess.slot = this.nextSlot++;
+        lastAccess.sizeInBytes = sizeInBytes;
+        add(lastAccess.slot, sizeInBytes);
+    }
+
+    @Override
+    public List<SimulationResult> getResults() {
+        final List<SimulationResult> results = new ArrayList<>(this.capacities.length);
+        long hits = 0;
+        long hitBytes = 0;
+        for (int i = 0; i < this.capacities.length; i++) {
+            hits += this.hitsByCapacity[i];
+            hitBytes += this.hitBytesByCapacity[i];
+            results.add(new SimulationResult(EvictionPolicyType.LRU.name(), this.capacities[i], this.requests, hits,
+                    this.requestedBytes, hitBytes));
+        }
+        return results;
+    }
+
+    /**
+     * Renumbers the slots of the last accesses in their order, into a tree with room for as many accesses again.
+     */
+    private void compact() {
+        final List<LastAccess> byTime = new ArrayList<>(this.lastAccesses.values());
+        byTime.sort(Comparator.comparingInt(lastAccess -> lastAccess.slot));
+        this.tree = new long[Math.max(INITIAL_SLOTS, 2 * byTime.size()) + 1];
+        this.stackBytes = 0;
+        this.nextSlot = 1;
+        for (final LastAccess lastAccess : byTime) {
+            lastAccess.slot = this.nextSlot++;
+            add(lastAccess.slot, lastAccess.sizeInBytes);
+        }
+    }
+
+    private void add(final int slot, final long delta) {
+        this.stackBytes += delta;
+        for (int i = slot; i < this.tree.length; i += i & -i) {
+            this.tree[i] += delta;
+        }
+    }
+
+    private long prefixSum(final int slot) {
+        long sum = 0;
+        for (int i = slot; i > 0; i -= i & -i) {
+            sum += this.tree[i];
+        }
+        return sum;
+    }
+
+    private static final class LastAccess {
+        private int slot;
+        private long sizeInBytes;
+    }
+}
@@ -0,0 +1,124 @@
+package org.roblox.imagecache.simulation;
+
+import lombok.NonNull;
+import org.apache.commons.lang3.StringUtils;
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Offline simulation of the cache, replays a trace of accesses against caches of many capacities and eviction
+ * policies in one pass without any network or disk access, to compute the hit ratio and byte hit ratio curves of the
+ * policies. LRU is simulated for all of the capacities at once from the stack distances of the accesses, see
+ * {@link StackDistanceSimulation}, the other policies are simulated for every capacity, see {@link PolicySimulation}.
+ * <p>
+ * Every line of a trace is a record of the url of a resource and its size in bytes, separated by whitespace or a
+ * comma. Blank lines and lines starting with # are skipped.
+ * </p>
+ * Not thread safe.
+ */
+public class TraceSimulator {
+    private static final String COMMENT_PREFIX = "#";
+
+    private final List<Simulation> simulations = new ArrayList<>();
+
+    /**
+     * @param capacitiesInBytes capacities of the simulated caches.
+     *
+     * @param policyTypes eviction policies of the simulated caches, each of them is simulated for every capacity.
+     *
+     * @param expectedNumberOfEntries number of entries the simulated caches are expected to hold, the policies are
+     *                                created with it just like the policies of a cache.
+     */
+    public TraceSimulator(@NonNull final Collection<Long> capacitiesInBytes,
+                          @NonNull final Collection<EvictionPolicyType> policyTypes,
+                          final int expectedNumberOfEntries) {
+        if (capacitiesInBytes.isEmpty() || policyTypes.isEmpty()) {
+            throw new IllegalArgumentException("Expected at least one capacity and one eviction policy to simulate");
+        }
+        if (expectedNumberOfEntries < 0) {
+            throw new IllegalArgumentException("Value for expected number of entries should be positive");
+        }
+        final long[] capacities = new long[capacitiesInBytes.size()];
+        int i = 0;
+        for (final long capacity : capacitiesInBytes) {
+            if (capacity < 0) {
+                throw new IllegalArgumentException(String.format("Value for cache capacity should be positive but was %s",
+                        capacity));
+            }
+            capacities[i++] = capacity;
+        }
+        for (final EvictionPolicyType policyType : policyTypes) {
+            if (policyType == EvictionPolicyType.LRU) {
+                this.simulations.add(new StackDistanceSimulation(capacities));
+                continue;
+            }
+            for (final long capacity : capacities) {
+                this.simulations.add(new PolicySimulation(policyType, capacity, expectedNumberOfEntries));
+            }
+        }
+    }
+
+    /**
+     * Records an access to a resource in every simulated cache.
+     *
+     * @param key url of the resource.
+     *
+     * @param sizeInBytes size of the resource.
+     */
+    public void access(@NonNull final String key, final long sizeInBytes) {
+        if (sizeInBytes < 0) {
+            throw new IllegalArgumentException(String.format("Size of resource %s should be positive but was %s", key,
+                    sizeInBytes));
+        }
+        for (final Simulation simulation : this.simulations) {
+            simulation.access(key, sizeInBytes);
+        }
+    }
+
+    /**
+     * Replays the records of a trace, which is read lazily so that traces of any size are replayed in memory
+     * proportional to the number of distinct urls.
+     *
+     * @param traceLines lines of the trace.
+     *
+     * @throws IllegalArgumentException if a line is not a record of a url and its size.
+     */
+    public void replay(@NonNull final Iterator<String> traceLines) {
+        long lineNumber = 0;
+        while (traceLines.hasNext()) {
+            final String line = traceLines.next().trim();
+            lineNumber++;
+            if (line.isEmpty() || line.startsWith(COMMENT_PREFIX)) {
+                continue;
+            }
+            final int separator = StringUtils.lastIndexOfAny(line, " ", "\t", ",");
+            final long sizeInBytes;
+            try {
+                sizeInBytes = separator > 0 ? Long.parseLong(line.substring(separator + 1)) : -1;
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Expected a url and its size on line %s of the trace",
+                        lineNumber), e);
+            }
+            if (sizeInBytes < 0) {
+                throw new IllegalArgumentException(String.format("Expected a url and its size on line %s of the trace",
+                        lineNumber));
+            }
+            access(line.substring(0, separator).trim(), sizeInBytes);
+        }
+    }
+
+    /**
+     * @return results of every simulated cache, grouped by eviction policy in order of the capacities.
+     */
+    public List<SimulationResult> getResults() {
+        final List<SimulationResult> results = new ArrayList<>();
+        for (final Simulation simulation : this.simulations) {
+            results.addAll(simulation.getResults());
+        }
+        return results;
+    }
+}
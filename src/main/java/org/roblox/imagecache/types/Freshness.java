@@ -0,0 +1,63 @@
+package org.roblox.imagecache.types;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Freshness of a cached resource as advertised by the Cache-Control, Expires, ETag and Last-Modified headers of the
+ * response it was downloaded with. A resource is served from the cache while it is fresh, once it is stale it is
+ * revalidated with a conditional request that only transfers the body when the resource changed.
+ */
+@AllArgsConstructor
+@Getter
+public class Freshness {
+    /**
+     * value of the ETag header, null when absent.
+     */
+    private final String entityTag;
+    /**
+     * value of the Last-Modified header, null when absent.
+     */
+    private final String lastModified;
+    /**
+     * time in milliseconds since the epoch until which the resource is fresh.
+     */
+    private final long expiresAtMillis;
+    /**
+     * time in milliseconds after expiry during which the stale resource is still served while it is revalidated in the
+     * background.
+     */
+    private final long staleWhileRevalidateMillis;
+
+    public boolean isFresh(final long nowMillis) {
+        return nowMillis < this.expiresAtMillis;
+    }
+
+    /**
+     * @return true when the resource is stale but may still be served while it is revalidated in the background.
+     */
+    public boolean isServableWhileRevalidating(final long nowMillis) {
+        return nowMillis - this.expiresAtMillis < this.staleWhileRevalidateMillis;
+    }
+
+    /**
+     * @return true when the resource can be revalidated with a conditional request.
+     */
+    public boolean hasValidators() {
+        return this.entityTag != null || this.lastModified != null;
+    }
+
+    /**
+     * Freshness after a 304 response, which only carries the headers that changed.
+     *
+     * @param notModified freshness taken from the headers of the 304 response.
+     *
+     * @return the freshness of the resource from now on.
+     */
+    public Freshness refreshedBy(final Freshness notModified) {
+        return new Freshness(
+                notModified.entityTag != null ? notModified.entityTag : this.entityTag,
+                notModified.lastModified != null ? notModified.lastModified : this.lastModified,
+                notModified.expiresAtMillis, notModified.staleWhileRevalidateMillis);
+    }
+}
@@ -1,14 +1,25 @@
 package org.roblox.imagecache.types;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
 /**
  * Class that represents Resource that will be cached. Trying to Keep this generic since the resource can be anything
  * like an image or file that would potentially be fetched by making an external service call.
+ * The content of the resource is either kept on the heap, as a read only mapping of the file on disk, or only on disk;
+ * {@link #asByteBuffer()} and {@link #transferTo(WritableByteChannel)} work for all of them.
  *
  */
-@AllArgsConstructor
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
 @Getter
 public class ResourceData {
     /**
@@ -20,7 +31,150 @@ public class ResourceData {
      */
     private String resourcePath;
     /**
-     * bytes that can be stored in memory which can be be used by the caller the way they want it.
+     * bytes that can be stored in memory which can be be used by the caller the way they want it, null when the
+     * resource is not kept on the heap.
      */
     private byte[] originalResourceBytes;
+    /**
+     * read only mapping of the resource on disk, null when the resource is not memory mapped.
+     */
+    @Getter(AccessLevel.NONE)
+    private ByteBuffer mappedResource;
+    /**
+     * size of the resource in bytes.
+     */
+    private long sizeInBytes;
+    /**
+     * freshness of the resource, null when the resource is fresh for as long as it is cached.
+     */
+    private Freshness freshness;
+
+    public ResourceData(final String resourceIdentifier, final String resourcePath, final byte[] originalResourceBytes) {
+        this(resourceIdentifier, resourcePath, originalResourceBytes, null, originalResourceBytes.length, null);
+    }
+
+    /**
+     * Creates resource data whose content is served from the given read only mapping instead of the heap.
+     */
+    public static ResourceData mapped(final String resourceIdentifier, final String resourcePath,
+                                      final ByteBuffer mappedResource) {
+        return new ResourceData(resourceIdentifier, resourcePath, null, mappedResource.asReadOnlyBuffer(),
+                mappedResource.capacity(), null);
+    }
+
+    /**
+     * Creates resource data whose content is read from the file at resourcePath when it is accessed.
+     */
+    public static ResourceData onDisk(final String resourceIdentifier, final String resourcePath,
+                                      final long sizeInBytes) {
+        return new ResourceData(resourceIdentifier, resourcePath, null, null, sizeInBytes, null);
+    }
+
+    /**
+     * @return copy of this resource data with the given freshness, the content is shared.
+     */
+    public ResourceData withFreshness(final Freshness freshness) {
+        return new ResourceData(this.resourceIdentifier, this.resourcePath, this.originalResourceBytes,
+                this.mappedResource, this.sizeInBytes, freshness);
+    }
+
+    /**
+     * @return copy of this resource data for another resource with identical content stored at the given path, the
+     * content is shared.
+     */
+    public ResourceData withLocation(final String resourceIdentifier, final String resourcePath) {
+        return new ResourceData(resourceIdentifier, resourcePath, this.originalResourceBytes, this.mappedResource,
+                this.sizeInBytes, this.freshness);
+    }
+
+    /**
+     * @return true unless the freshness of the resource expired at the given time.
+     */
+    public boolean isFresh(final long nowMillis) {
+        return this.freshness == null || this.freshness.isFresh(nowMillis);
+    }
+
+    /**
+     * @return true when the content of the resource is neither on the heap nor memory mapped and is read from the file
+     * at resourcePath when it is accessed.
+     */
+    public boolean isOnDisk() {
+        return this.originalResourceBytes == null && this.mappedResource == null;
+    }
+
+    /**
+     * @return read only view of the content of the resource, each call returns an independent view positioned at 0.
+     * Resources that are only on disk are read into the heap.
+     */
+    public ByteBuffer asByteBuffer() throws IOException {
+        if (this.originalResourceBytes != null) {
+            return ByteBuffer.wrap(this.originalResourceBytes).asReadOnlyBuffer();
+        }
+        if (this.mappedResource != null) {
+            return this.mappedResource.duplicate();
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(Paths.get(this.resourcePath))).asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads a byte range of the content of the resource, resources that are only on disk are read from their file
+     * without reading the rest of it.
+     *
+     * @param offset first byte of the range.
+     *
+     * @param length maximum number of bytes of the range, it ends early at the end of the resource.
+     *
+     * @return read only view of the range positioned at 0, empty when the offset is at or after the end of the
+     * resource.
+     */
+    public ByteBuffer readRange(final long offset, final int length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException(String.format("Invalid range of %d bytes at %d", length, offset));
+        }
+        final int rangeLength = (int) Math.max(0, Math.min(length, this.sizeInBytes - offset));
+        if (rangeLength == 0) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        if (!isOnDisk()) {
+            final ByteBuffer content = asByteBuffer();
+            content.position((int) offset).limit((int) offset + rangeLength);
+            return content.slice();
+        }
+        final ByteBuffer range = ByteBuffer.allocate(rangeLength);
+        try (final FileChannel source = FileChannel.open(Paths.get(this.resourcePath), StandardOpenOption.READ)) {
+            while (range.hasRemaining()) {
+                if (source.read(range, offset + range.position()) == -1) {
+                    throw new IOException(String.format("Resource %s was truncated at %d bytes",
+                            this.resourcePath, offset + range.position()));
+                }
+            }
+        }
+        range.flip();
+        return range.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the content of the resource to the given channel. Memory mapped resources are written straight from the
+     * mapping and resources that are only on disk are transferred from the file channel, neither is copied to the heap.
+     *
+     * @return number of bytes written.
+     */
+    public long transferTo(final WritableByteChannel target) throws IOException {
+        if (isOnDisk()) {
+            try (final FileChannel source = FileChannel.open(Paths.get(this.resourcePath), StandardOpenOption.READ)) {
+                final long size = source.size();
+                long written = 0;
+                while (written < size) {
+                    written += source.transferTo(written, size - written, target);
+                }
+                return written;
+            }
+        }
+        final ByteBuffer content = asByteBuffer();
+        long written = 0;
+        while (content.hasRemaining()) {
+            written += target.write(content);
+        }
+        return written;
+    }
 }
@@ -17,4 +17,21 @@ public class ResourceMetaData {
 
     @Getter
     long resourceSizeInBytes;
+
+    /**
+     * bytes of the downloaded resource, captured while it was written to disk so it does not have to be read back.
+     */
+    @Getter
+    byte[] resourceBytes;
+
+    /**
+     * hex encoded SHA-256 digest of the downloaded resource, null when it was not computed.
+     */
+    @Getter
+    String contentDigest;
+
+    public ResourceMetaData(final File downloadedResource, final long resourceSizeInBytes,
+                            final byte[] resourceBytes) {
+        this(downloadedResource, resourceSizeInBytes, resourceBytes, null);
+    }
 }
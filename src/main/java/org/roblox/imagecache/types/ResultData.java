@@ -30,6 +30,11 @@ public class ResultData {
      */
     private long sizeInBytes;
 
+    /**
+     * The cached resource, gives access to its content. Not set when the load operation failed.
+     */
+    private ResourceData resourceData;
+
     @Override
     public String toString() {
         return url + " " + state + " " + sizeInBytes + "\r\n";
@@ -16,5 +16,17 @@ public enum State {
     /**
      * Indicates that there was error in fetching the resource.
      */
-    ERROR
+    ERROR,
+
+    /**
+     * Indicates that the resource was not cached by a prefetch, because it would not fit in the cache without evicting
+     * other resources.
+     */
+    SKIPPED,
+
+    /**
+     * Indicates that a variant of the resource was derived from the cached original, because the variant was not
+     * cached.
+     */
+    TRANSFORMED
 }
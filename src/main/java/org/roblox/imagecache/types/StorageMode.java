@@ -0,0 +1,29 @@
+package org.roblox.imagecache.types;
+
+/**
+ * Indicates how the content of the cached resources is held in memory.
+ */
+public enum StorageMode {
+    /**
+     * Keeps the bytes of every cached resource on the heap, so the capacity of the cache is also paid on the heap.
+     */
+    HEAP,
+
+    /**
+     * Keeps a read only memory mapping of the resource on disk, the content lives in the page cache and the heap only
+     * holds the metadata of the entries.
+     */
+    MEMORY_MAPPED,
+
+    /**
+     * Keeps the bytes of the most recently used resources in a memory tier that has its own capacity, all of the other
+     * resources are served from their files on disk.
+     */
+    TIERED,
+
+    /**
+     * Appends the resources to large segment files that are shared by many resources and keeps a read only memory
+     * mapping of the segments, instead of storing a file per resource. Suited to many small resources.
+     */
+    SEGMENTED
+}
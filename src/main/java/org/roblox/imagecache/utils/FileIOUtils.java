@@ -1,5 +1,6 @@
 package org.roblox.imagecache.utils;
 
+import com.google.common.hash.Hashing;
 import lombok.NoArgsConstructor;
 import lombok.NonNull;
 import org.apache.commons.lang3.StringUtils;
@@ -7,18 +8,19 @@ import org.roblox.imagecache.types.ResultData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.net.URL;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
-import java.util.UUID;
+import java.util.stream.Stream;
 
 /**
  * Utils class that provides helper methods to download objects, read files, write files etc.
@@ -28,34 +30,50 @@ public class FileIOUtils {
 
     private static final Logger log = LoggerFactory.getLogger(FileIOUtils.class);
 
-    private static final String ENC = "UTF8";
-    private static final String DEFAULT_FILENAME = "image";
     private static final int MAX_RETRY_COUNT = 3;
+    private static final int SHARD_LEVELS = 2;
+    private static final int SHARD_NAME_LENGTH = 2;
 
     /**
-     * Reads the inputfile line by line and adds it to the list.
+     * Reads the input file lazily line by line, so that inputs of any size are processed in constant memory. The
+     * returned stream has to be closed to close the file.
      *
      * @param fileName path of the file to read input from.
      *
-     * @return List of strings that represents the input from reading the inputfiles.
+     * @return stream of the lines of the input file.
      *
-     * @throws  {@link RuntimeException} if unable to read from input file.
+     * @throws  {@link RuntimeException} if unable to open the input file, failures while reading it are thrown as
+     * {@link java.io.UncheckedIOException} by the stream.
      */
-    public List<String> readFileToList(@NonNull final String fileName) {
+    public Stream<String> streamFileLines(@NonNull final String fileName) {
         if (StringUtils.isBlank(fileName)) {
             throw new IllegalArgumentException("Expected non-empty fileName to parse");
         }
-        final List<String> lines;
         try {
-            lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+            return Files.lines(Paths.get(fileName), StandardCharsets.UTF_8);
         } catch (final IOException e) {
             throw new RuntimeException(String.format("Unable to read input file from file %s due to %s", fileName, e.getCause()));
         }
-        return lines;
     }
 
     /**
-     * Writes the given result data objects to the output file.
+     * Opens a writer that streams results to the output file, see {@link ResultWriter}. An existing output file is
+     * truncated.
+     *
+     * @param fileName file to which the output has to be written to.
+     *
+     * @throws RuntimeException {@link RuntimeException} if unable to open the output file.
+     */
+    public ResultWriter openResultWriter(@NonNull final String fileName) {
+        try {
+            return new ResultWriter(Paths.get(fileName));
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Unable to open output file %s", fileName), e);
+        }
+    }
+
+    /**
+     * Appends the given result data objects to the output file, the file is opened once for all of them.
      *
      * @param fileName file to which the output has to be written to.
      *
@@ -65,13 +83,13 @@ public class FileIOUtils {
      */
     public void writeListToFile(@NonNull final String fileName, @NonNull final List<ResultData> resultDataList) {
         final Path path = Paths.get(fileName);
-        for(final ResultData resultData : resultDataList) {
-            try {
-                Files.write(path, resultData.toString().getBytes(),
-                        Files.exists(path) ? StandardOpenOption.APPEND : StandardOpenOption.CREATE);
-            } catch (final IOException e) {
-                throw new RuntimeException(String.format("Unable to write output to file %s due to %s", fileName, e.getCause()));
+        try (final BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for(final ResultData resultData : resultDataList) {
+                writer.write(resultData.toString());
             }
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Unable to write output to file %s due to %s", fileName, e.getCause()));
         }
     }
 
@@ -96,39 +114,50 @@ public class FileIOUtils {
      */
     private void removeFile(@NonNull final File file) throws IOException {
         if (Files.deleteIfExists(file.toPath())) {
-            log.info("file removed from location " + file.getPath());
+            log.debug("file removed from location {}", file.getPath());
         } else {
-            log.info("file does not exist at location" + file.getPath());
+            log.debug("file does not exist at location {}", file.getPath());
         }
     }
 
-    public File generateFileLocation(final File repository, final URL url) throws IOException {
-        final File parentDirectory = createParentDirectoryInRepository(repository, url);
-        return new File(parentDirectory, buildFileName(url));
-    }
-
-    private File createParentDirectoryInRepository(final File repository, final URL url) throws IOException {
-        final File parentDirectory;
-        try {
-            parentDirectory = new File(repository, URLEncoder.encode(url.toString(), ENC));
-        } catch (final UnsupportedEncodingException e) {
-            throw new IOException("Encoding not supported", e);
-        }
-        return parentDirectory;
+    /**
+     * Generates the location of the resource of the given url in the repository, named after the hex encoded SHA-256
+     * digest of the url, see {@link #shardedLocation(File, String)}.
+     *
+     * @param repository the root location where the resources are stored.
+     *
+     * @param url url of the resource.
+     *
+     * @return location of the resource, its parent directories are not created.
+     */
+    public File generateFileLocation(final File repository, final URL url) {
+        return shardedLocation(repository,
+                Hashing.sha256().hashString(url.toString(), StandardCharsets.UTF_8).toString());
     }
 
-    private String buildFileName(final URL url) {
-        String fileName;
-        try {
-            fileName = new File(url.getPath()).getName();
-        } catch (final Exception e) {
-            fileName = DEFAULT_FILENAME + UUID.randomUUID();
+    /**
+     * Spreads files over a fixed fan-out of directories named after the leading hex digits of their name, e.g.
+     * directory/3f/a9/3fa9..., so that no directory grows large with millions of files and file names have a fixed
+     * length whatever the url. The shard directories are shared and are kept when the files in them are deleted.
+     *
+     * @param directory directory the shard directories are created in.
+     *
+     * @param hexName fixed length hex encoded name of the file.
+     *
+     * @return location of the file, its parent directories are not created.
+     */
+    public File shardedLocation(final File directory, final String hexName) {
+        File parentDirectory = directory;
+        for (int level = 0; level < SHARD_LEVELS; level++) {
+            parentDirectory = new File(parentDirectory,
+                    hexName.substring(level * SHARD_NAME_LENGTH, (level + 1) * SHARD_NAME_LENGTH));
         }
-        return fileName;
+        return new File(parentDirectory, hexName);
     }
 
     /**
-     * retries deletion of resource from disk after retrying MAX_RETRY_ATTEMPTS
+     * retries deletion of resource from disk after retrying MAX_RETRY_ATTEMPTS, the shard directory of the resource is
+     * kept for the resources that are stored in it later on.
      *
      * @param resourceToDelete resource to delete from the disk.
      *
@@ -140,7 +169,6 @@ public class FileIOUtils {
         while(true) {
             try {
                 removeFile(resourceToDelete);
-                removeFile(resourceToDelete.getParentFile());
                 return resourceFreeSize;
             } catch (final IOException ex) {
                 if (++count == MAX_RETRY_COUNT) throw ex;
@@ -148,6 +176,19 @@ public class FileIOUtils {
         }
     }
 
+    /**
+     * Maps the whole file read only into memory, the mapping stays valid after the file is deleted.
+     *
+     * @param file file to be mapped.
+     *
+     * @return read only buffer backed by the content of the file.
+     */
+    public ByteBuffer mapReadOnly(@NonNull final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
     public File createRepository(@NonNull final String repo) {
         final File repository = new File(repo);
         if (!repository.exists() && !repository.isDirectory() && !repository.canWrite()) {
@@ -0,0 +1,62 @@
+package org.roblox.imagecache.utils;
+
+import lombok.NonNull;
+import org.roblox.imagecache.types.ResultData;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the results of cache load operations to an output file as they are produced, through a single buffered
+ * channel that stays open until the writer is closed. Memory use does not depend on the number of results and the
+ * file is written in large sequential chunks instead of being opened for every result.
+ */
+public class ResultWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final Path path;
+    private final Writer writer;
+
+    /**
+     * Creates the output file, or truncates it when it exists.
+     *
+     * @param path output file the results are written to.
+     *
+     * @throws IOException if the output file could not be opened.
+     */
+    ResultWriter(@NonNull final Path path) throws IOException {
+        this.path = path;
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.name()), BUFFER_SIZE);
+    }
+
+    /**
+     * Appends the result to the output, it is only guaranteed to be in the file once the writer is flushed or closed.
+     *
+     * @throws RuntimeException {@link RuntimeException} if unable to write the output.
+     */
+    public void write(@NonNull final ResultData resultData) {
+        try {
+            this.writer.write(resultData.toString());
+        } catch (final IOException e) {
+            throw new RuntimeException(String.format("Unable to write output to file %s", this.path), e);
+        }
+    }
+
+    public void flush() throws IOException {
+        this.writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.writer.close();
+    }
+}
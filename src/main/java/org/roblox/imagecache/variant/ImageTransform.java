@@ -0,0 +1,141 @@
+package org.roblox.imagecache.variant;
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import javax.imageio.ImageIO;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Transform deriving a variant of a cached image, e.g. a thumbnail or a re-encoded copy: the image is scaled down to
+ * fit in a bounding box, keeping its aspect ratio and never scaling it up, and encoded in the given format.
+ * <p>
+ * A transform is written as a spec of comma separated parameters, e.g. {@code w=200,h=200,f=jpeg,q=0.8}: w and h are
+ * the maximum width and height in pixels, f is the ImageIO format the variant is encoded in and q the quality of lossy
+ * formats between 0 and 1. Every parameter is optional, but a transform needs a bounding box or a format. The variant
+ * of a url is cached under the key returned by {@link #keyOf(String)}, which appends the canonical spec of the
+ * transform to the url as a fragment, so that variants are stored like any other resource.
+ * </p>
+ */
+@Getter
+@EqualsAndHashCode
+public final class ImageTransform {
+    public static final float DEFAULT_QUALITY = 0.85f;
+    private static final String VARIANT_SEPARATOR = "#imagecache-variant=";
+
+    /**
+     * Maximum width of the variant in pixels, 0 when only the height is bounded.
+     */
+    private final int width;
+
+    /**
+     * Maximum height of the variant in pixels, 0 when only the width is bounded.
+     */
+    private final int height;
+
+    /**
+     * ImageIO format name the variant is encoded in, null to encode it in the format of the original.
+     */
+    private final String format;
+
+    /**
+     * Quality of formats with lossy compression, from 0 exclusive to 1.
+     */
+    private final float quality;
+
+    @Builder
+    private ImageTransform(final int width, final int height, final String format, final Float quality) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height of the variant must not be negative");
+        }
+        if (width == 0 && height == 0 && format == null) {
+            throw new IllegalArgumentException("Transform needs a width, a height or a format");
+        }
+        this.width = width;
+        this.height = height;
+        this.format = format == null ? null : normalizeFormat(format);
+        if (this.format != null && !Arrays.asList(ImageIO.getWriterFormatNames()).contains(this.format)) {
+            throw new IllegalArgumentException(String.format("Images cannot be encoded as %s", format));
+        }
+        this.quality = quality == null ? DEFAULT_QUALITY : quality;
+        if (!(this.quality > 0 && this.quality <= 1)) {
+            throw new IllegalArgumentException("Quality must be in (0, 1]");
+        }
+    }
+
+    /**
+     * Parses a spec such as {@code w=200,h=200,f=jpeg,q=0.8}.
+     *
+     * @throws IllegalArgumentException if the spec is invalid.
+     */
+    public static ImageTransform parse(final String spec) {
+        final ImageTransformBuilder builder = ImageTransform.builder();
+        for (final String parameter : spec.split(",")) {
+            final String[] nameAndValue = parameter.trim().split("=", 2);
+            if (nameAndValue.length != 2) {
+                throw new IllegalArgumentException(String.format("Invalid parameter %s of transform %s", parameter,
+                        spec));
+            }
+            final String value = nameAndValue[1].trim();
+            try {
+                switch (nameAndValue[0].trim().toLowerCase(Locale.ROOT)) {
+                    case "w":
+                        builder.width(Integer.parseInt(value));
+                        break;
+                    case "h":
+                        builder.height(Integer.parseInt(value));
+                        break;
+                    case "f":
+                        builder.format(value);
+                        break;
+                    case "q":
+                        builder.quality(Float.parseFloat(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException(String.format("Unknown parameter %s of transform %s",
+                                parameter, spec));
+                }
+            } catch (final NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid parameter %s of transform %s", parameter,
+                        spec), e);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return spec of the transform with all of its parameters in a fixed order, equal transforms have equal specs.
+     */
+    public String toSpec() {
+        return String.format(Locale.ROOT, "w=%d,h=%d,f=%s,q=%.2f", this.width, this.height,
+                this.format != null ? this.format : "original", this.quality);
+    }
+
+    /**
+     * @return key the variant of the resource at the url is cached under.
+     */
+    public String keyOf(final String url) {
+        return url + VARIANT_SEPARATOR + toSpec();
+    }
+
+    /**
+     * @return url of the resource the variant cached under the key is derived from, null when the key is not the key
+     * of a variant.
+     */
+    public static String originalKeyOf(final String key) {
+        final int separator = key.lastIndexOf(VARIANT_SEPARATOR);
+        return separator < 0 ? null : key.substring(0, separator);
+    }
+
+    @Override
+    public String toString() {
+        return toSpec();
+    }
+
+    static String normalizeFormat(final String format) {
+        final String lowerCase = format.trim().toLowerCase(Locale.ROOT);
+        return lowerCase.equals("jpg") ? "jpeg" : lowerCase;
+    }
+}
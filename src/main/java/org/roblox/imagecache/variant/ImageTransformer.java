@@ -0,0 +1,146 @@
+package org.roblox.imagecache.variant;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Derives the variants of images with the image codecs of the JDK. Images are scaled down in steps of at most half
+ * their size with bilinear interpolation, which keeps thumbnails of large images sharp without the cost of bicubic
+ * interpolation. Images are only decoded when their dimensions, read from their header, are within the configured
+ * maximum number of pixels. Safe to be used from multiple threads.
+ */
+public class ImageTransformer {
+    /**
+     * Background transparent pixels are painted on for formats without an alpha channel.
+     */
+    private static final Color BACKGROUND = Color.WHITE;
+
+    private final long maxPixels;
+
+    /**
+     * @param maxPixels largest number of pixels, width times height, of the images that are decoded.
+     */
+    public ImageTransformer(final long maxPixels) {
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * Applies the transform to the encoded image.
+     *
+     * @param original encoded image, read from its position to its limit without changing them.
+     *
+     * @return encoded variant of the image.
+     *
+     * @throws IOException if the image cannot be decoded, has more pixels than allowed, or the variant cannot be
+     *                     encoded.
+     */
+    public byte[] transform(final ByteBuffer original, final ImageTransform transform) throws IOException {
+        final ByteBuffer source = original.duplicate();
+        final byte[] encoded = new byte[source.remaining()];
+        source.get(encoded);
+        final String originalFormat;
+        final BufferedImage image;
+        try (final ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Resource is not an image in a format supported by ImageIO");
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                originalFormat = ImageTransform.normalizeFormat(reader.getFormatName());
+                // the dimensions come from the header, the pixels are only decoded once they are known to fit
+                final int width = reader.getWidth(0);
+                final int height = reader.getHeight(0);
+                if ((long) width * height > this.maxPixels) {
+                    throw new IOException(String.format("Image of %dx%d pixels exceeds the maximum of %d pixels",
+                            width, height, this.maxPixels));
+                }
+                image = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+        final String format = transform.getFormat() != null ? transform.getFormat() : originalFormat;
+        return encode(scale(image, transform, format.equals("png")), format, transform.getQuality());
+    }
+
+    /**
+     * @param keepAlpha whether the format of the variant supports transparency.
+     *
+     * @return image scaled down to fit in the bounding box of the transform, converted to a type the format can encode.
+     */
+    static BufferedImage scale(final BufferedImage image, final ImageTransform transform, final boolean keepAlpha) {
+        double scale = 1;
+        if (transform.getWidth() > 0) {
+            scale = Math.min(scale, (double) transform.getWidth() / image.getWidth());
+        }
+        if (transform.getHeight() > 0) {
+            scale = Math.min(scale, (double) transform.getHeight() / image.getHeight());
+        }
+        final int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        final int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        final int type = keepAlpha && image.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = image;
+        do {
+            final int width = Math.max(targetWidth, scaled.getWidth() / 2);
+            final int height = Math.max(targetHeight, scaled.getHeight() / 2);
+            scaled = draw(scaled, width, height, type);
+        } while (scaled.getWidth() > targetWidth || scaled.getHeight() > targetHeight);
+        return scaled;
+    }
+
+    private static BufferedImage draw(final BufferedImage image, final int width, final int height, final int type) {
+        final BufferedImage target = new BufferedImage(width, height, type);
+        final Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            if (type == BufferedImage.TYPE_INT_RGB) {
+                graphics.setColor(BACKGROUND);
+                graphics.fillRect(0, 0, width, height);
+            }
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+
+    private static byte[] encode(final BufferedImage image, final String format, final float quality)
+            throws IOException {
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException(String.format("Images cannot be encoded as %s", format));
+        }
+        final ImageWriter writer = writers.next();
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (final ImageOutputStream output = ImageIO.createImageOutputStream(encoded)) {
+            writer.setOutput(output);
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            if (format.equals("jpeg") && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return encoded.toByteArray();
+    }
+}
@@ -0,0 +1,185 @@
+package org.roblox.imagecache.warmup;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.NonNull;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResultData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Warms a cache up from a manifest of the urls that are expected to be popular, e.g. before a peak event or after a
+ * deploy, so that their first loads are served from the cache. The urls are prefetched concurrently through
+ * {@link LRUCacheManager#prefetch(String, long)}, which never evicts entries that are cached already, with the
+ * downloads of every host rate limited. The warm-up stops reading the manifest once the target fill level is reached
+ * and reports its progress and throughput as it runs.
+ * <p>
+ * Every line of the manifest holds a url, optionally followed by further columns separated by whitespace or a comma
+ * which are ignored, so that the traces of {@link org.roblox.imagecache.simulation.TraceSimulator} can be used as
+ * manifests. Empty lines and lines starting with # are skipped.
+ * </p>
+ */
+public class CacheWarmer {
+    private final Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+
+    private final LRUCacheManager cache;
+    private final WarmUpConfiguration configuration;
+    private final long fillLimitInBytes;
+    private final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder downloaded = new LongAdder();
+    private final LongAdder cached = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder downloadedBytes = new LongAdder();
+    private volatile boolean targetFillReached;
+    private long startNanos;
+
+    public CacheWarmer(@NonNull final LRUCacheManager cache, @NonNull final WarmUpConfiguration configuration) {
+        if (configuration.getConcurrency() <= 0) {
+            throw new IllegalArgumentException("Concurrency of the warm-up must be positive");
+        }
+        if (configuration.getRequestsPerSecondPerHost() < 0) {
+            throw new IllegalArgumentException("Rate limit per host must not be negative");
+        }
+        if (configuration.getTargetFillRatio() <= 0 || configuration.getTargetFillRatio() > 1) {
+            throw new IllegalArgumentException("Target fill ratio must be in (0, 1]");
+        }
+        if (configuration.getProgressIntervalMillis() <= 0) {
+            throw new IllegalArgumentException("Progress interval must be positive");
+        }
+        this.cache = cache;
+        this.configuration = configuration;
+        this.fillLimitInBytes = (long) (cache.getCapacityInBytes() * configuration.getTargetFillRatio());
+    }
+
+    /**
+     * Prefetches the urls of the manifest and returns once all of the prefetches that were submitted completed. A
+     * warmer is meant to be used for a single warm-up.
+     *
+     * @param manifestLines lines of the manifest, read as the prefetches are submitted.
+     *
+     * @return the final progress of the warm-up.
+     */
+    public WarmUpReport warmUp(@NonNull final Iterator<String> manifestLines) {
+        this.startNanos = System.nanoTime();
+        final Consumer<WarmUpReport> progressListener = this.configuration.getProgressListener() != null
+                ? this.configuration.getProgressListener() : report -> this.log.info("Warm-up progress: {}", report);
+        final ExecutorService workers = Executors.newFixedThreadPool(this.configuration.getConcurrency(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cache-warmer-%d").build());
+        final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("cache-warmer-progress").build());
+        reporter.scheduleAtFixedRate(() -> progressListener.accept(getProgress()),
+                this.configuration.getProgressIntervalMillis(), this.configuration.getProgressIntervalMillis(),
+                TimeUnit.MILLISECONDS);
+        // bounds the urls read ahead of the workers, so that memory does not grow with the size of the manifest
+        final Semaphore prefetchesInProgress = new Semaphore(this.configuration.getConcurrency());
+        try {
+            while (manifestLines.hasNext()) {
+                final String url = parseUrl(manifestLines.next());
+                if (url == null) {
+                    continue;
+                }
+                prefetchesInProgress.acquireUninterruptibly();
+                if (this.cache.getCurrentSizeInBytes() >= this.fillLimitInBytes) {
+                    prefetchesInProgress.release();
+                    this.targetFillReached = true;
+                    break;
+                }
+                this.submitted.increment();
+                workers.execute(() -> {
+                    try {
+                        prefetch(url);
+                    } finally {
+                        prefetchesInProgress.release();
+                    }
+                });
+            }
+            // waits for the prefetches in progress
+            prefetchesInProgress.acquireUninterruptibly(this.configuration.getConcurrency());
+        } finally {
+            workers.shutdownNow();
+            reporter.shutdownNow();
+        }
+        final WarmUpReport report = getProgress();
+        progressListener.accept(report);
+        return report;
+    }
+
+    /**
+     * @return progress of the warm-up so far, safe to call from any thread while it runs.
+     */
+    public WarmUpReport getProgress() {
+        final long cacheSizeInBytes = this.cache.getCurrentSizeInBytes();
+        return new WarmUpReport(this.submitted.sum(), this.downloaded.sum(), this.cached.sum(), this.skipped.sum(),
+                this.failed.sum(), this.downloadedBytes.sum(), cacheSizeInBytes, System.nanoTime() - this.startNanos,
+                this.targetFillReached || cacheSizeInBytes >= this.fillLimitInBytes);
+    }
+
+    private void prefetch(final String url) {
+        try {
+            final RateLimiter rateLimiter = rateLimiterOf(url);
+            if (rateLimiter != null) {
+                rateLimiter.acquire();
+            }
+            final ResultData resultData = this.cache.prefetch(url, this.fillLimitInBytes);
+            switch (resultData.getState()) {
+                case DOWNLOADED:
+                    this.downloaded.increment();
+                    this.downloadedBytes.add(resultData.getSizeInBytes());
+                    break;
+                case CACHE:
+                    this.cached.increment();
+                    break;
+                default:
+                    this.skipped.increment();
+                    break;
+            }
+        } catch (final Exception e) {
+            this.log.debug("Unable to prefetch object: {}", url, e);
+            this.failed.increment();
+        }
+    }
+
+    /**
+     * @return rate limiter of the host of the url, null when the downloads are not rate limited.
+     */
+    private RateLimiter rateLimiterOf(final String url) {
+        final double requestsPerSecond = this.configuration.getRequestsPerSecondPerHost();
+        if (requestsPerSecond == 0) {
+            return null;
+        }
+        final String host = URI.create(url).getHost();
+        if (host == null) {
+            throw new IllegalArgumentException(String.format("Url %s has no host", url));
+        }
+        return this.rateLimiters.computeIfAbsent(host.toLowerCase(Locale.ROOT),
+                key -> RateLimiter.create(requestsPerSecond));
+    }
+
+    /**
+     * @return url of the line of the manifest, null for empty lines and comments.
+     */
+    static String parseUrl(final String line) {
+        final String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        return trimmed.split("[\\s,]+", 2)[0];
+    }
+}
@@ -0,0 +1,51 @@
+package org.roblox.imagecache.warmup;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.function.Consumer;
+
+/**
+ * Settings of a {@link CacheWarmer}, the defaults warm the cache up to 80% of its capacity with 16 concurrent
+ * downloads and no rate limit.
+ */
+@Getter
+@Builder
+public class WarmUpConfiguration {
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final double DEFAULT_TARGET_FILL_RATIO = 0.8;
+    private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 5_000;
+
+    /**
+     * Maximum number of resources downloaded at a time across all hosts.
+     */
+    @Builder.Default
+    private int concurrency = DEFAULT_CONCURRENCY;
+
+    /**
+     * Maximum number of downloads started per second for every host of the manifest, 0 for no limit.
+     */
+    private double requestsPerSecondPerHost;
+
+    /**
+     * Fraction of the capacity of the cache the warm-up fills it up to. Resources are only admitted while the cache
+     * stays at or below it, and the rest of the manifest is not read once it is reached.
+     */
+    @Builder.Default
+    private double targetFillRatio = DEFAULT_TARGET_FILL_RATIO;
+
+    /**
+     * Interval in milliseconds at which the progress of the warm-up is reported.
+     */
+    @Builder.Default
+    private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+
+    /**
+     * Receives the progress of the warm-up every progress interval and once it completes, null to log it.
+     */
+    private Consumer<WarmUpReport> progressListener;
+
+    public static WarmUpConfiguration defaults() {
+        return WarmUpConfiguration.builder().build();
+    }
+}
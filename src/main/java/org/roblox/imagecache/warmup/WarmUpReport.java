@@ -0,0 +1,76 @@
+package org.roblox.imagecache.warmup;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a warm-up at one point in time. The toString method renders it as a line of a progress log.
+ */
+@Getter
+@AllArgsConstructor
+public class WarmUpReport {
+
+    /**
+     * Urls of the manifest that were submitted so far.
+     */
+    private final long submitted;
+
+    /**
+     * Resources that were downloaded into the cache.
+     */
+    private final long downloaded;
+
+    /**
+     * Resources that were cached already.
+     */
+    private final long cached;
+
+    /**
+     * Resources that were not admitted because they did not fit below the target fill level.
+     */
+    private final long skipped;
+
+    private final long failed;
+
+    private final long downloadedBytes;
+
+    /**
+     * Size of the cache at the time of the report.
+     */
+    private final long cacheSizeInBytes;
+
+    private final long elapsedNanos;
+
+    /**
+     * Whether the target fill level was reached, after which the rest of the manifest is not submitted.
+     */
+    private final boolean targetFillReached;
+
+    /**
+     * @return urls whose prefetch completed, whatever its outcome.
+     */
+    public long getCompleted() {
+        return this.downloaded + this.cached + this.skipped + this.failed;
+    }
+
+    public double getUrlsPerSecond() {
+        return this.elapsedNanos == 0 ? 0 : getCompleted() * (double) TimeUnit.SECONDS.toNanos(1) / this.elapsedNanos;
+    }
+
+    public double getBytesPerSecond() {
+        return this.elapsedNanos == 0 ? 0
+                : this.downloadedBytes * (double) TimeUnit.SECONDS.toNanos(1) / this.elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "completed %d of %d submitted (downloaded %d, cached %d, skipped %d, " +
+                        "failed %d), %d bytes downloaded, cache size %d bytes, %.1f urls/s, %.0f bytes/s%s",
+                getCompleted(), this.submitted, this.downloaded, this.cached, this.skipped, this.failed,
+                this.downloadedBytes, this.cacheSizeInBytes, getUrlsPerSecond(), getBytesPerSecond(),
+                this.targetFillReached ? ", target fill reached" : "");
+    }
+}
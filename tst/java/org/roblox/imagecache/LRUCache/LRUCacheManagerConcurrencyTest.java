@@ -0,0 +1,257 @@
+package org.roblox.imagecache.LRUCache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LRUCacheManagerConcurrencyTest {
+    private static final long CAPACITY = 10_000;
+    private static final int NUM_THREADS = 64;
+    private static final int LOADS_PER_THREAD = 300;
+    private static final int NUM_KEYS = 200;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testCapacityIsNeverExceededUnderContention() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = new LRUCacheManager(CAPACITY, NUM_KEYS, repository.getPath(),
+                new FileIOUtils(), new StubDownloadManager(repository));
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong maxObservedSize = new AtomicLong();
+        final Thread sampler = new Thread(() -> {
+            while (running.get()) {
+                maxObservedSize.accumulateAndGet(cache.getCurrentSizeInBytes(), Math::max);
+            }
+        });
+        sampler.start();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < NUM_THREADS; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < LOADS_PER_THREAD; i++) {
+                    cache.load("http://i.test.com/" + random.nextInt(NUM_KEYS) + ".jpg");
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (final Future<?> future : futures) {
+            future.get(1, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+        running.set(false);
+        sampler.join();
+
+        Assert.assertTrue(maxObservedSize.get() <= CAPACITY);
+        Assert.assertTrue(cache.getCurrentSizeInBytes() <= CAPACITY);
+        Assert.assertEquals(NUM_THREADS * LOADS_PER_THREAD, cache.getCacheHitsCounter() + cache.getCacheMissCounter());
+        Assert.assertTrue(cache.getCacheEvictionCounter() > 0);
+    }
+
+    @Test
+    public void testConcurrentMissesForSameKeyDownloadOnce() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final StubDownloadManager downloadManager = new StubDownloadManager(repository);
+        downloadManager.gate = new CountDownLatch(1);
+        final LRUCacheManager cache = new LRUCacheManager(CAPACITY, NUM_KEYS, repository.getPath(),
+                new FileIOUtils(), downloadManager);
+
+        final List<Future<ResultData>> futures = loadConcurrently(cache, "http://i.test.com/hot.jpg");
+        downloadManager.gate.countDown();
+
+        final ResultData first = futures.get(0).get(1, TimeUnit.MINUTES);
+        for (final Future<ResultData> future : futures) {
+            Assert.assertSame(first, future.get(1, TimeUnit.MINUTES));
+        }
+        Assert.assertEquals(State.DOWNLOADED, first.getState());
+        Assert.assertEquals(1, downloadManager.downloads.get());
+        // the download and the loads waiting for it are all misses, each counted once
+        Assert.assertEquals(NUM_THREADS, cache.getCacheMissCounter());
+        Assert.assertEquals(0, cache.getCacheHitsCounter());
+        Assert.assertEquals(State.CACHE, cache.load("http://i.test.com/hot.jpg").getState());
+        Assert.assertEquals(1, cache.getCacheHitsCounter());
+    }
+
+    @Test
+    public void testFailedDownloadIsPropagatedToAllWaitersAndNotCached() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final StubDownloadManager downloadManager = new StubDownloadManager(repository);
+        downloadManager.gate = new CountDownLatch(1);
+        downloadManager.failing = true;
+        final LRUCacheManager cache = new LRUCacheManager(CAPACITY, NUM_KEYS, repository.getPath(),
+                new FileIOUtils(), downloadManager);
+
+        final List<Future<ResultData>> futures = loadConcurrently(cache, "http://i.test.com/broken.jpg");
+        downloadManager.gate.countDown();
+
+        for (final Future<ResultData> future : futures) {
+            try {
+                future.get(1, TimeUnit.MINUTES);
+                Assert.fail("Expected the failed download to be propagated");
+            } catch (final ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+        Assert.assertEquals(1, downloadManager.downloads.get());
+        Assert.assertEquals(0, cache.getCurrentSizeInBytes());
+        Assert.assertEquals(NUM_THREADS, cache.getCacheMissCounter());
+
+        downloadManager.failing = false;
+        Assert.assertEquals(State.DOWNLOADED, cache.load("http://i.test.com/broken.jpg").getState());
+    }
+
+    @Test
+    public void testLoadAsyncRunsMissesOnExecutorAndCompletesHitsInline() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final Queue<Runnable> downloadTasks = new ConcurrentLinkedQueue<>();
+        final LRUCacheManager cache = new LRUCacheManager(CAPACITY, NUM_KEYS, repository.getPath(),
+                new FileIOUtils(), new StubDownloadManager(repository), downloadTasks::add);
+        final String key = "http://i.test.com/async.jpg";
+
+        final CompletableFuture<ResultData> miss = cache.loadAsync(key);
+        Assert.assertFalse(miss.isDone());
+        Assert.assertSame(miss, cache.loadAsync(key));
+        Assert.assertEquals(1, downloadTasks.size());
+
+        downloadTasks.poll().run();
+        Assert.assertEquals(State.DOWNLOADED, miss.get().getState());
+
+        final CompletableFuture<ResultData> hit = cache.loadAsync(key);
+        Assert.assertTrue(hit.isDone());
+        Assert.assertEquals(State.CACHE, hit.get().getState());
+        Assert.assertTrue(downloadTasks.isEmpty());
+        Assert.assertEquals(2, cache.getCacheMissCounter());
+        Assert.assertEquals(1, cache.getCacheHitsCounter());
+    }
+
+    @Test
+    public void testCloseShutsDownOnlyTheDownloadExecutorTheCacheCreated() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = new LRUCacheManager(CAPACITY, NUM_KEYS, repository.getPath(),
+                new FileIOUtils(), new StubDownloadManager(repository));
+        Assert.assertEquals(State.DOWNLOADED, cache.loadAsync("http://i.test.com/before.jpg").get().getState());
+
+        cache.close();
+
+        try {
+            cache.loadAsync("http://i.test.com/after.jpg").get();
+            Assert.fail("Expected the download executor to be shut down");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        final ExecutorService downloadExecutor = Executors.newSingleThreadExecutor();
+        final LRUCacheManager cacheWithExecutor = new LRUCacheManager(CAPACITY, NUM_KEYS,
+                this.tempFolder.newFolder("other").getPath(), new FileIOUtils(),
+                new StubDownloadManager(repository), downloadExecutor);
+        cacheWithExecutor.close();
+        Assert.assertFalse(downloadExecutor.isShutdown());
+        downloadExecutor.shutdown();
+    }
+
+    /**
+     * Starts loading the key from many threads and returns once all of them are waiting on the download.
+     */
+    private List<Future<ResultData>> loadConcurrently(final LRUCacheManager cache, final String key)
+            throws InterruptedException {
+        final Queue<Thread> threads = new ConcurrentLinkedQueue<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS, runnable -> {
+            final Thread thread = new Thread(runnable);
+            threads.add(thread);
+            return thread;
+        });
+        final List<Future<ResultData>> futures = new ArrayList<>();
+        for (int t = 0; t < NUM_THREADS; t++) {
+            futures.add(executor.submit(() -> cache.load(key)));
+        }
+        executor.shutdown();
+        // every thread runs one load, which blocks on the gated download until it is opened
+        while (threads.size() < NUM_THREADS
+                || !threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING)) {
+            Thread.sleep(10);
+        }
+        return futures;
+    }
+
+    /**
+     * Serves resources with a size derived from the url without making any network calls.
+     */
+    private static class StubDownloadManager extends DownloadManager {
+        private final File repository;
+        private final AtomicInteger downloads = new AtomicInteger();
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+        private volatile boolean failing;
+
+        StubDownloadManager(final File repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public HttpURLConnection getHttpURLConnection(final String urlKey) throws IOException {
+            return new HttpURLConnection(new URL(urlKey)) {
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+
+                @Override
+                public void connect() {
+                }
+            };
+        }
+
+        @Override
+        public long getContentLength(final HttpURLConnection httpURLConnection) {
+            return 100 + Math.abs(httpURLConnection.getURL().getPath().hashCode() % 900);
+        }
+
+        @Override
+        public ResourceMetaData loadResource(final HttpURLConnection httpURLConnection, final String urlKey,
+                                             final File repository) throws IOException {
+            this.downloads.incrementAndGet();
+            try {
+                this.gate.await();
+            } catch (final InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (this.failing) {
+                throw new IOException(String.format("Could not fetch image for url %s", urlKey));
+            }
+            final byte[] bytes = new byte[(int) getContentLength(httpURLConnection)];
+            final File file = File.createTempFile("resource", ".jpg", this.repository);
+            Files.write(file.toPath(), bytes);
+            return new ResourceMetaData(file, bytes.length, bytes);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.roblox.imagecache.LRUCache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.stream.Stream;
+
+public class LRUCacheManagerDeduplicationTest {
+    private static final int RESOURCE_SIZE = 100;
+    private static final String KEY_A = "http://i.test.com/a.jpg";
+    private static final String KEY_A_MIRROR = "http://cdn.test.com/mirror/a.jpg";
+    private static final String KEY_B = "http://i.test.com/b.jpg";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final FileIOUtils fileIOUtils = new FileIOUtils();
+    /**
+     * Background work of the caches, such as the reclaimer, which only runs when the test runs it.
+     */
+    private final Queue<Runnable> backgroundTasks = new ArrayDeque<>();
+
+    @Test
+    public void testIdenticalContentIsStoredOnce() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, StorageMode.HEAP, false);
+
+        final ResultData first = cache.load(KEY_A);
+        final ResultData second = cache.load(KEY_A_MIRROR);
+
+        Assert.assertEquals(State.DOWNLOADED, second.getState());
+        Assert.assertEquals(RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        Assert.assertEquals(first.getResourceData().getResourcePath(), second.getResourceData().getResourcePath());
+        Assert.assertSame(first.getResourceData().getOriginalResourceBytes(),
+                second.getResourceData().getOriginalResourceBytes());
+        Assert.assertEquals(1, contentFiles(repository).length);
+        Assert.assertFalse(this.fileIOUtils.generateFileLocation(repository, new URL(KEY_A_MIRROR)).exists());
+        Assert.assertEquals(State.CACHE, cache.load(KEY_A_MIRROR).getState());
+    }
+
+    @Test
+    public void testContentIsOnlyFreedWhenLastReferenceIsEvicted() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, 2 * RESOURCE_SIZE, StorageMode.HEAP, false);
+        cache.load(KEY_A);
+        cache.load(KEY_A_MIRROR);
+        cache.load(KEY_B);
+        Assert.assertEquals(2 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        Assert.assertEquals(0, cache.getCacheEvictionCounter());
+
+        // makes room for distinct content by evicting both references to the content of a
+        cache.load("http://i.test.com/c.jpg");
+
+        Assert.assertEquals(2, cache.getCacheEvictionCounter());
+        Assert.assertEquals(2 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        // the content is deleted by the reclaimer, not while the evicting thread holds the eviction lock
+        Assert.assertEquals(3, contentFiles(repository).length);
+        runBackgroundTasks();
+        Assert.assertEquals(2, contentFiles(repository).length);
+        Assert.assertEquals(State.CACHE, cache.load(KEY_B).getState());
+    }
+
+    @Test
+    public void testContentStoredAgainBeforeItsDeletionIsKept() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, RESOURCE_SIZE, StorageMode.HEAP, false);
+        cache.load(KEY_A);
+        cache.load(KEY_B);
+        Assert.assertEquals(1, cache.getCacheEvictionCounter());
+
+        // the content of a lost its last reference and is stored again before the reclaimer deletes it
+        cache.load(KEY_A_MIRROR);
+        runBackgroundTasks();
+
+        Assert.assertEquals(1, contentFiles(repository).length);
+        final ResultData mirror = cache.load(KEY_A_MIRROR);
+        Assert.assertEquals(State.CACHE, mirror.getState());
+        Assert.assertArrayEquals(StubDownloadManager.content(KEY_A),
+                Files.readAllBytes(new File(mirror.getResourceData().getResourcePath()).toPath()));
+    }
+
+    @Test
+    public void testMemoryMappedResourcesShareContent() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, StorageMode.MEMORY_MAPPED, false);
+        cache.load(KEY_A);
+        final ResultData mirror = cache.load(KEY_A_MIRROR);
+
+        Assert.assertEquals(RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        Assert.assertEquals(ByteBuffer.wrap(StubDownloadManager.content(KEY_A)),
+                mirror.getResourceData().asByteBuffer());
+    }
+
+    @Test
+    public void testDeduplicatedCacheIsWarmAfterRestart() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        try (final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, StorageMode.HEAP, true)) {
+            for (final String key : Arrays.asList(KEY_A, KEY_A_MIRROR, KEY_B)) {
+                cache.load(key);
+            }
+        }
+
+        try (final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, StorageMode.HEAP, true)) {
+            Assert.assertEquals(2 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+            for (final String key : Arrays.asList(KEY_A, KEY_A_MIRROR, KEY_B)) {
+                final ResultData resultData = cache.load(key);
+                Assert.assertEquals(State.CACHE, resultData.getState());
+                Assert.assertEquals(ByteBuffer.wrap(StubDownloadManager.content(key)),
+                        resultData.getResourceData().asByteBuffer());
+            }
+        }
+    }
+
+    private LRUCacheManager newCache(final File repository, final long capacity, final StorageMode storageMode,
+                                     final boolean persistentIndex) {
+        return new LRUCacheManager(capacity, 10, repository.getPath(), this.fileIOUtils,
+                new StubDownloadManager(repository), CacheConfiguration.builder().storageMode(storageMode)
+                .persistentIndex(persistentIndex).deduplication(true).downloadExecutor(this.backgroundTasks::add)
+                .build());
+    }
+
+    private void runBackgroundTasks() {
+        Runnable task;
+        while ((task = this.backgroundTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private static Object[] contentFiles(final File repository) throws IOException {
+        try (final Stream<Path> paths = Files.walk(new File(repository, "content").toPath())) {
+            return paths.filter(Files::isRegularFile).toArray();
+        }
+    }
+
+    /**
+     * Writes resources whose content only depends on the file name of their url, so that mirrors of a resource on
+     * another host have identical content. Leaves the digest to be computed by the cache.
+     */
+    private static class StubDownloadManager extends DownloadManager {
+        private final FileIOUtils fileIOUtils = new FileIOUtils();
+        private final File repository;
+
+        StubDownloadManager(final File repository) {
+            this.repository = repository;
+        }
+
+        static byte[] content(final String key) {
+            final byte[] bytes = new byte[RESOURCE_SIZE];
+            Arrays.fill(bytes, (byte) new File(key).getName().hashCode());
+            return bytes;
+        }
+
+        @Override
+        public HttpURLConnection getHttpURLConnection(final String urlKey) throws IOException {
+            return new HttpURLConnection(new URL(urlKey)) {
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+
+                @Override
+                public void connect() {
+                }
+            };
+        }
+
+        @Override
+        public long getContentLength(final HttpURLConnection httpURLConnection) {
+            return RESOURCE_SIZE;
+        }
+
+        @Override
+        public ResourceMetaData loadResource(final HttpURLConnection httpURLConnection, final String urlKey,
+                                             final File repository) throws IOException {
+            final File file = write(urlKey);
+            return new ResourceMetaData(file, RESOURCE_SIZE, Files.readAllBytes(file.toPath()));
+        }
+
+        @Override
+        public ResourceMetaData loadResourceToDisk(final HttpURLConnection httpURLConnection, final String urlKey,
+                                                   final File repository) throws IOException {
+            return new ResourceMetaData(write(urlKey), RESOURCE_SIZE, null);
+        }
+
+        private File write(final String urlKey) throws IOException {
+            final File file = this.fileIOUtils.generateFileLocation(this.repository, new URL(urlKey));
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), content(urlKey));
+            return file;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.roblox.imagecache.LRUCache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class LRUCacheManagerReclaimTest {
+    private static final int RESOURCE_SIZE = 10;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final FileIOUtils fileIOUtils = new FileIOUtils();
+    private final Queue<Runnable> backgroundTasks = new ConcurrentLinkedQueue<>();
+
+    @Test
+    public void testEvictedResourcesAreDeletedInTheBackground() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, 2 * RESOURCE_SIZE, 1, 1);
+        cache.load(key(0));
+        cache.load(key(1));
+        cache.load(key(2));
+        cache.load(key(3));
+
+        Assert.assertEquals(2, cache.getCacheEvictionCounter());
+        Assert.assertEquals(2 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        Assert.assertTrue(location(repository, 0).exists());
+        Assert.assertTrue(location(repository, 1).exists());
+
+        // the deletions of a burst of evictions are batched into a single background task
+        Assert.assertEquals(1, this.backgroundTasks.size());
+        runBackgroundTasks();
+
+        Assert.assertFalse(location(repository, 0).exists());
+        Assert.assertFalse(location(repository, 1).exists());
+        Assert.assertTrue(location(repository, 3).exists());
+    }
+
+    @Test
+    public void testDownloadAgainCancelsPendingDeletion() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, RESOURCE_SIZE, 1, 1);
+        cache.load(key(0));
+        cache.load(key(1));
+        Assert.assertEquals(State.DOWNLOADED, cache.load(key(0)).getState());
+
+        runBackgroundTasks();
+
+        Assert.assertTrue(location(repository, 0).exists());
+        Assert.assertFalse(location(repository, 1).exists());
+        Assert.assertEquals(State.CACHE, cache.load(key(0)).getState());
+    }
+
+    @Test
+    public void testCacheIsEvictedDownToLowWatermarkInTheBackground() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final LRUCacheManager cache = newCache(repository, 10 * RESOURCE_SIZE, 0.8, 0.5);
+        for (int i = 0; i < 8; i++) {
+            cache.load(key(i));
+        }
+        Assert.assertTrue(this.backgroundTasks.isEmpty());
+
+        cache.load(key(8));
+        Assert.assertEquals(9 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        runBackgroundTasks();
+
+        Assert.assertEquals(5 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+        Assert.assertEquals(4, cache.getCacheEvictionCounter());
+        Assert.assertFalse(location(repository, 0).exists());
+        Assert.assertEquals(State.CACHE, cache.load(key(8)).getState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLowWatermarkAboveHighWatermarkIsRejected() throws IOException {
+        newCache(this.tempFolder.newFolder("repo"), 10 * RESOURCE_SIZE, 0.5, 0.8);
+    }
+
+    @Test
+    public void testPendingDeletionsAreDeletedOnClose() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        try (final LRUCacheManager cache = newCache(repository, RESOURCE_SIZE, 1, 1)) {
+            cache.load(key(0));
+            cache.load(key(1));
+        }
+        Assert.assertFalse(location(repository, 0).exists());
+    }
+
+    private LRUCacheManager newCache(final File repository, final long capacity, final double highWatermark,
+                                     final double lowWatermark) {
+        return new LRUCacheManager(capacity, 10, repository.getPath(), this.fileIOUtils,
+                new StubDownloadManager(repository), CacheConfiguration.builder()
+                .downloadExecutor(this.backgroundTasks::add)
+                .evictionHighWatermark(highWatermark).evictionLowWatermark(lowWatermark).build());
+    }
+
+    private void runBackgroundTasks() {
+        Runnable task;
+        while ((task = this.backgroundTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private File location(final File repository, final int i) throws IOException {
+        return this.fileIOUtils.generateFileLocation(repository, new URL(key(i)));
+    }
+
+    private static String key(final int i) {
+        return "http://i.test.com/" + i + ".jpg";
+    }
+
+    /**
+     * Writes resources of a fixed size to the location the cache expects them at without making any network calls.
+     */
+    private static class StubDownloadManager extends DownloadManager {
+        private final FileIOUtils fileIOUtils = new FileIOUtils();
+        private final File repository;
+
+        StubDownloadManager(final File repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        public HttpURLConnection getHttpURLConnection(final String urlKey) throws IOException {
+            return new HttpURLConnection(new URL(urlKey)) {
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+
+                @Override
+                public void connect() {
+                }
+            };
+        }
+
+        @Override
+        public long getContentLength(final HttpURLConnection httpURLConnection) {
+            return RESOURCE_SIZE;
+        }
+
+        @Override
+        public ResourceMetaData loadResource(final HttpURLConnection httpURLConnection, final String urlKey,
+                                             final File repository) throws IOException {
+            final File file = this.fileIOUtils.generateFileLocation(this.repository, new URL(urlKey));
+            file.getParentFile().mkdirs();
+            final byte[] bytes = new byte[RESOURCE_SIZE];
+            Arrays.fill(bytes, (byte) urlKey.hashCode());
+            Files.write(file.toPath(), bytes);
+            return new ResourceMetaData(file, bytes.length, bytes);
+        }
+    }
+}
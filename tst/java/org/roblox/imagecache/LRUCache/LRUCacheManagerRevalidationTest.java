@@ -0,0 +1,183 @@
+package org.roblox.imagecache.LRUCache;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.TestOrigin;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public class LRUCacheManagerRevalidationTest {
+    private static final long CAPACITY = 10_000;
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    private final AtomicInteger fullResponses = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private final Queue<Runnable> downloadTasks = new ConcurrentLinkedQueue<>();
+    private volatile int version = 1;
+    private volatile String cacheControl = "max-age=0";
+    private volatile boolean sendEntityTag = true;
+    private volatile boolean sendValidators = true;
+    private LRUCacheManager cache;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        this.origin.handle("/img/", this::respond);
+        this.url = this.origin.url("/img/a.jpg");
+        this.cache = new LRUCacheManager(CAPACITY, 10, this.tempFolder.newFolder("repo").getPath(),
+                new FileIOUtils(), new DownloadManager(),
+                CacheConfiguration.builder().downloadExecutor(this.downloadTasks::add).build());
+    }
+
+    @Test
+    public void testFreshResourceIsServedWithoutRequest() throws IOException {
+        this.cacheControl = "max-age=60";
+
+        Assert.assertEquals(State.DOWNLOADED, this.cache.load(this.url).getState());
+        Assert.assertEquals(State.CACHE, this.cache.load(this.url).getState());
+
+        Assert.assertEquals(1, this.fullResponses.get());
+        Assert.assertEquals(0, this.cache.getCacheRevalidationCounter());
+    }
+
+    @Test
+    public void testStaleResourceIsRevalidatedWithoutTransferringBody() throws IOException {
+        Assert.assertEquals(State.DOWNLOADED, this.cache.load(this.url).getState());
+        final ResultData revalidated = this.cache.load(this.url);
+
+        Assert.assertEquals(State.CACHE, revalidated.getState());
+        Assert.assertEquals(ByteBuffer.wrap(content(1)), revalidated.getResourceData().asByteBuffer());
+        Assert.assertEquals(1, this.fullResponses.get());
+        Assert.assertEquals(1, this.notModifiedResponses.get());
+        Assert.assertEquals(1, this.cache.getCacheRevalidationCounter());
+    }
+
+    @Test
+    public void testNoStoreResourceIsNotCached() throws IOException {
+        this.cacheControl = "max-age=60, no-store";
+
+        final ResultData first = this.cache.load(this.url);
+        final ResultData second = this.cache.load(this.url);
+
+        Assert.assertEquals(State.DOWNLOADED, first.getState());
+        Assert.assertEquals(ByteBuffer.wrap(content(1)), first.getResourceData().asByteBuffer());
+        Assert.assertEquals(State.DOWNLOADED, second.getState());
+        Assert.assertEquals(2, this.fullResponses.get());
+        Assert.assertEquals(0, this.notModifiedResponses.get());
+        Assert.assertEquals(0, this.cache.getCurrentSizeInBytes());
+        try (final Stream<Path> files = Files.walk(this.tempFolder.getRoot().toPath().resolve("repo"))) {
+            Assert.assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    public void testLastModifiedIsUsedWithoutEntityTag() throws IOException {
+        this.sendEntityTag = false;
+
+        this.cache.load(this.url);
+        Assert.assertEquals(State.CACHE, this.cache.load(this.url).getState());
+
+        Assert.assertEquals(1, this.fullResponses.get());
+        Assert.assertEquals(1, this.notModifiedResponses.get());
+    }
+
+    @Test
+    public void testStaleResourceWithoutValidatorsIsDownloadedWithoutRevalidation() throws IOException {
+        this.sendValidators = false;
+
+        this.cache.load(this.url);
+        this.version = 2;
+        final ResultData downloaded = this.cache.load(this.url);
+
+        Assert.assertEquals(State.DOWNLOADED, downloaded.getState());
+        Assert.assertEquals(ByteBuffer.wrap(content(2)), downloaded.getResourceData().asByteBuffer());
+        Assert.assertEquals(content(2).length, this.cache.getCurrentSizeInBytes());
+        Assert.assertEquals(2, this.fullResponses.get());
+        Assert.assertEquals(0, this.cache.getCacheRevalidationCounter());
+    }
+
+    @Test
+    public void testChangedResourceIsDownloadedAgain() throws IOException {
+        this.cache.load(this.url);
+        this.version = 2;
+        final ResultData changed = this.cache.load(this.url);
+
+        Assert.assertEquals(State.DOWNLOADED, changed.getState());
+        Assert.assertEquals(ByteBuffer.wrap(content(2)), changed.getResourceData().asByteBuffer());
+        Assert.assertEquals(content(2).length, this.cache.getCurrentSizeInBytes());
+        Assert.assertEquals(0, this.cache.getCacheEvictionCounter());
+        Assert.assertEquals(2, this.fullResponses.get());
+    }
+
+    @Test
+    public void testStaleWhileRevalidateServesStaleResourceAndRevalidatesInBackground() throws IOException {
+        this.cacheControl = "max-age=0, stale-while-revalidate=60";
+        this.cache.load(this.url);
+
+        final ResultData stale = this.cache.load(this.url);
+        Assert.assertEquals(State.CACHE, stale.getState());
+        Assert.assertEquals(ByteBuffer.wrap(content(1)), stale.getResourceData().asByteBuffer());
+        Assert.assertEquals(1, this.fullResponses.get());
+        Assert.assertEquals(1, this.downloadTasks.size());
+
+        this.version = 2;
+        this.downloadTasks.poll().run();
+        Assert.assertEquals(2, this.fullResponses.get());
+
+        final ResultData refreshed = this.cache.load(this.url);
+        Assert.assertEquals(State.CACHE, refreshed.getState());
+        Assert.assertEquals(ByteBuffer.wrap(content(2)), refreshed.getResourceData().asByteBuffer());
+    }
+
+    private static byte[] content(final int version) {
+        final byte[] bytes = new byte[100 * version];
+        Arrays.fill(bytes, (byte) version);
+        return bytes;
+    }
+
+    private void respond(final HttpExchange exchange) throws IOException {
+        final String entityTag = "\"v" + this.version + "\"";
+        final boolean notModified = this.sendEntityTag
+                ? entityTag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))
+                : this.version == 1 && LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since"));
+        exchange.getResponseHeaders().add("Cache-Control", this.cacheControl);
+        if (this.sendValidators && this.sendEntityTag) {
+            exchange.getResponseHeaders().add("ETag", entityTag);
+        } else if (this.sendValidators) {
+            exchange.getResponseHeaders().add("Last-Modified", LAST_MODIFIED);
+        }
+        if (notModified) {
+            this.notModifiedResponses.incrementAndGet();
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+            exchange.close();
+            return;
+        }
+        this.fullResponses.incrementAndGet();
+        TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK, content(this.version));
+    }
+}
@@ -1,22 +1,30 @@
 package org.roblox.imagecache.LRUCache;
 
+import com.codahale.metrics.MetricRegistry;
 import org.apache.commons.io.FileUtils;
 import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnit;
 import org.mockito.junit.MockitoRule;
+import org.roblox.imagecache.cache.CacheConfiguration;
 import org.roblox.imagecache.cache.DownloadManager;
 import org.roblox.imagecache.cache.LRUCacheManager;
 import org.roblox.imagecache.types.ResourceMetaData;
 import org.roblox.imagecache.types.ResultData;
 import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.types.StorageMode;
 import org.roblox.imagecache.utils.FileIOUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -74,7 +82,7 @@ public class LRUCacheManagerTest {
         when(this.fileIOUtils.generateFileLocation(any(File.class),any(URL.class))).thenReturn(tempFile);
         when(this.fileIOUtils.deleteResourceOnDisk(any(File.class))).thenReturn(10L);
 
-        final ResourceMetaData resourceMetaData = new ResourceMetaData(tempFile, 10);
+        final ResourceMetaData resourceMetaData = new ResourceMetaData(tempFile, 10, new byte[10]);
         when(this.downloadManager.loadResource(any(HttpURLConnection.class), anyString(), any(File.class))).thenReturn(resourceMetaData);
 
         //test
@@ -104,6 +112,150 @@ public class LRUCacheManagerTest {
         Assert.assertEquals(1, cache.getCacheEvictionCounter());
     }
 
+    @Test
+    public void testCacheLoadMemoryMapped() throws IOException {
+        //setup
+        when(this.fileIOUtils.createRepository(anyString())).thenReturn(this.mockRepo);
+        when(this.fileIOUtils.mapReadOnly(any(File.class))).thenCallRealMethod();
+        final LRUCacheManager cache = new LRUCacheManager(10, 10, "defaultRepository", this.fileIOUtils,
+                this.downloadManager, CacheConfiguration.builder().storageMode(StorageMode.MEMORY_MAPPED).build());
+        when(this.downloadManager.getHttpURLConnection(anyString())).thenReturn(this.mockHttpURLConnection);
+        when(this.downloadManager.getContentLength(this.mockHttpURLConnection)).thenReturn(10L);
+
+        final File tempFile = this.tempFolder.newFile("tempFile.txt");
+        final byte[] content = "0123456789".getBytes(StandardCharsets.UTF_8);
+        Files.write(tempFile.toPath(), content);
+        when(this.downloadManager.loadResourceToDisk(any(HttpURLConnection.class), anyString(), any(File.class)))
+                .thenReturn(new ResourceMetaData(tempFile, 10, null));
+
+        //test
+        final String testKey = "http://i.test.com/test.jpg";
+        ResultData resultData = cache.load(testKey);
+
+        //verify: content is served from the mapping and not kept on the heap
+        Assert.assertEquals(State.DOWNLOADED, resultData.getState());
+        Assert.assertNull(resultData.getResourceData().getOriginalResourceBytes());
+        Assert.assertEquals(ByteBuffer.wrap(content), resultData.getResourceData().asByteBuffer());
+
+        resultData = cache.load(testKey);
+        Assert.assertEquals(State.CACHE, resultData.getState());
+        Assert.assertEquals(10, resultData.getSizeInBytes());
+        final ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+        resultData.getResourceData().transferTo(Channels.newChannel(transferred));
+        Assert.assertArrayEquals(content, transferred.toByteArray());
+        verify(this.downloadManager, never()).loadResource(any(HttpURLConnection.class), anyString(), any(File.class));
+    }
+
+    @Test
+    public void testCacheLoadSegmented() throws IOException {
+        //setup
+        final File repository = this.tempFolder.newFolder("repo");
+        when(this.fileIOUtils.createRepository(anyString())).thenReturn(repository);
+        when(this.downloadManager.getHttpURLConnection(anyString())).thenReturn(this.mockHttpURLConnection);
+        when(this.downloadManager.getContentLength(this.mockHttpURLConnection)).thenReturn(10L);
+        when(this.downloadManager.loadResourceToMemory(any(HttpURLConnection.class), anyString()))
+                .thenAnswer(invocation -> new ResourceMetaData(null, 10,
+                        invocation.getArgument(1, String.class).substring(18, 28).getBytes(StandardCharsets.UTF_8)));
+        final LRUCacheManager cache = new LRUCacheManager(20, 10, "defaultRepository", this.fileIOUtils,
+                this.downloadManager, CacheConfiguration.builder().storageMode(StorageMode.SEGMENTED)
+                .segmentSizeInBytes(256).downloadExecutor(Runnable::run).build());
+
+        //test: far more resources than fit in the cache
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(State.DOWNLOADED, cache.load(String.format("http://i.test.com/%010d.jpg", i)).getState());
+        }
+        final ResultData resultData = cache.load(String.format("http://i.test.com/%010d.jpg", 49));
+
+        //verify: served from the segment, evicted resources are neither deleted one by one nor kept on disk
+        Assert.assertEquals(State.CACHE, resultData.getState());
+        Assert.assertEquals(ByteBuffer.wrap(String.format("%010d", 49).getBytes(StandardCharsets.UTF_8)),
+                resultData.getResourceData().asByteBuffer());
+        Assert.assertEquals(48, cache.getCacheEvictionCounter());
+        Assert.assertEquals(20, cache.getCurrentSizeInBytes());
+        Assert.assertTrue(new File(repository, "segments").list().length <= 2);
+        verify(this.fileIOUtils, never()).deleteResourceOnDisk(any(File.class));
+    }
+
+    @Test
+    public void testCacheLoadTiered() throws IOException {
+        //setup
+        when(this.fileIOUtils.createRepository(anyString())).thenReturn(this.mockRepo);
+        when(this.downloadManager.getHttpURLConnection(anyString())).thenReturn(this.mockHttpURLConnection);
+        when(this.downloadManager.getContentLength(this.mockHttpURLConnection)).thenReturn(10L);
+        final File tempFile = this.tempFolder.newFile("tempFile.txt");
+        final byte[] content = "0123456789".getBytes(StandardCharsets.UTF_8);
+        Files.write(tempFile.toPath(), content);
+        when(this.downloadManager.loadResource(any(HttpURLConnection.class), anyString(), any(File.class)))
+                .thenReturn(new ResourceMetaData(tempFile, 10, content));
+        final String testKey = "http://i.test.com/test.jpg";
+
+        //test: memory tier large enough for the resource
+        LRUCacheManager cache = new LRUCacheManager(10, 10, "defaultRepository", this.fileIOUtils,
+                this.downloadManager, CacheConfiguration.builder().storageMode(StorageMode.TIERED)
+                .memoryTierCapacityInBytes(FileUtils.ONE_KB).build());
+        Assert.assertEquals(State.DOWNLOADED, cache.load(testKey).getState());
+        ResultData resultData = cache.load(testKey);
+
+        //verify: served from the memory tier
+        Assert.assertEquals(State.CACHE, resultData.getState());
+        Assert.assertEquals(1, cache.getMemoryTierHitsCounter());
+        Assert.assertEquals(0, cache.getDiskTierHitsCounter());
+        Assert.assertEquals(10, cache.getMemoryTierSizeInBytes());
+        Assert.assertEquals(ByteBuffer.wrap(content), resultData.getResourceData().asByteBuffer());
+
+        //test: memory tier that cannot hold the resource
+        cache = new LRUCacheManager(10, 10, "defaultRepository", this.fileIOUtils,
+                this.downloadManager, CacheConfiguration.builder().storageMode(StorageMode.TIERED)
+                .memoryTierCapacityInBytes(0).build());
+        cache.load(testKey);
+        resultData = cache.load(testKey);
+
+        //verify: served from the file in the disk tier
+        Assert.assertEquals(State.CACHE, resultData.getState());
+        Assert.assertEquals(0, cache.getMemoryTierHitsCounter());
+        Assert.assertEquals(1, cache.getDiskTierHitsCounter());
+        Assert.assertEquals(0, cache.getMemoryTierSizeInBytes());
+        Assert.assertEquals(ByteBuffer.wrap(content), resultData.getResourceData().asByteBuffer());
+    }
+
+    @Test
+    public void testCacheLoadRecordsMetrics() throws IOException {
+        //setup
+        when(this.fileIOUtils.createRepository(anyString())).thenReturn(this.mockRepo);
+        final MetricRegistry registry = new MetricRegistry();
+        final LRUCacheManager cache = new LRUCacheManager(10, 10, "defaultRepository", this.fileIOUtils,
+                this.downloadManager, CacheConfiguration.builder().metricRegistry(registry).build());
+        when(this.downloadManager.getHttpURLConnection(anyString())).thenReturn(this.mockHttpURLConnection);
+        when(this.downloadManager.getContentLength(this.mockHttpURLConnection)).thenReturn(10L);
+        final File tempFile = this.tempFolder.newFile("tempFile.txt");
+        when(this.fileIOUtils.generateFileLocation(any(File.class), any(URL.class))).thenReturn(tempFile);
+        when(this.downloadManager.loadResource(any(HttpURLConnection.class), anyString(), any(File.class)))
+                .thenReturn(new ResourceMetaData(tempFile, 10, new byte[10]));
+
+        //test: miss, hit, miss that evicts and a load that fails
+        cache.load("http://i.test.com/test.jpg");
+        cache.load("http://i.test.com/test.jpg");
+        cache.load("http://i.test.com/test2.jpg");
+        // stubbed without calling the mock, which the reclaimer of the cache may call in the background
+        doThrow(new IOException("unreachable")).when(this.downloadManager).getHttpURLConnection(anyString());
+        try {
+            cache.load("http://i.test.com/test3.jpg");
+            Assert.fail("Expected the load to fail");
+        } catch (final IOException e) {
+            // recorded as an error
+        }
+
+        //verify
+        Assert.assertEquals(1, registry.timer("imagecache.load.hit").getCount());
+        Assert.assertEquals(2, registry.timer("imagecache.load.miss").getCount());
+        Assert.assertEquals(1, registry.timer("imagecache.load.error").getCount());
+        Assert.assertEquals(2, registry.histogram("imagecache.download.bytes").getCount());
+        Assert.assertEquals(10, registry.histogram("imagecache.download.bytes").getSnapshot().getMax());
+        Assert.assertEquals(1, registry.meter("imagecache.evictions").getCount());
+        Assert.assertEquals(10L, registry.getGauges().get("imagecache.size.bytes").getValue());
+        Assert.assertEquals(1, registry.getGauges().get("imagecache.entries").getValue());
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testCacheLoadFailsDueToInsufficientCacheCapacity() throws IOException {
         //setup : cache empty, size is 10, size of object to be downloaded would be 20
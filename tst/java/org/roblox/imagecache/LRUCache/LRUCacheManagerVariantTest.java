@@ -0,0 +1,125 @@
+package org.roblox.imagecache.LRUCache;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.TestOrigin;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+import org.roblox.imagecache.variant.ImageTransform;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+
+public class LRUCacheManagerVariantTest {
+    private static final ImageTransform THUMBNAIL = ImageTransform.parse("w=40,h=40,f=jpeg,q=0.7");
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    private byte[] image;
+
+    @Before
+    public void setUp() throws IOException {
+        this.image = png(400, 200);
+        this.origin.handle("/img/", this::respond);
+    }
+
+    @Test
+    public void testVariantIsDerivedOnceAndCachedAlongWithOriginal() throws IOException {
+        try (final LRUCacheManager cache = newCache(1_000_000, StorageMode.HEAP)) {
+            final ResultData derived = cache.loadVariant(url("a.png"), THUMBNAIL);
+            final ResultData cached = cache.loadVariant(url("a.png"), THUMBNAIL);
+
+            Assert.assertEquals(State.TRANSFORMED, derived.getState());
+            Assert.assertEquals(State.CACHE, cached.getState());
+            Assert.assertEquals(THUMBNAIL.keyOf(url("a.png")), cached.getUrl());
+            Assert.assertEquals(1, this.origin.getRequests());
+            final BufferedImage thumbnail = decode(cached.getResourceData().asByteBuffer());
+            Assert.assertEquals(40, thumbnail.getWidth());
+            Assert.assertEquals(20, thumbnail.getHeight());
+            // the variant uses the capacity of the cache like the original
+            Assert.assertEquals(this.image.length + derived.getSizeInBytes(), cache.getCurrentSizeInBytes());
+            Assert.assertEquals(State.CACHE, cache.load(url("a.png")).getState());
+        }
+    }
+
+    @Test
+    public void testEvictingOriginalDropsItsVariants() throws IOException {
+        final long capacity = 2L * this.image.length + 1000;
+        try (final LRUCacheManager cache = newCache(capacity, StorageMode.MEMORY_MAPPED)) {
+            cache.loadVariant(url("a.png"), THUMBNAIL);
+            cache.loadVariant(url("a.png"), ImageTransform.parse("f=png"));
+            // evicts the original a.png as least recently used, along with both of its variants
+            cache.load(url("b.png"));
+            cache.load(url("c.png"));
+
+            Assert.assertEquals(2L * this.image.length, cache.getCurrentSizeInBytes());
+            Assert.assertEquals(3, cache.getCacheEvictionCounter());
+            Assert.assertEquals(State.TRANSFORMED, cache.loadVariant(url("a.png"), THUMBNAIL).getState());
+        }
+    }
+
+    @Test
+    public void testVariantOfResourceThatIsNotAnImageFails() throws IOException {
+        try (final LRUCacheManager cache = newCache(1_000_000, StorageMode.HEAP)) {
+            try {
+                cache.loadVariant(url("a.txt"), THUMBNAIL);
+                Assert.fail("Expected the transform to fail");
+            } catch (final IOException e) {
+                // the original stays cached
+            }
+            Assert.assertEquals(State.CACHE, cache.load(url("a.txt")).getState());
+        }
+    }
+
+    private LRUCacheManager newCache(final long capacity, final StorageMode storageMode) throws IOException {
+        return new LRUCacheManager(capacity, 10, this.tempFolder.newFolder().getPath(), new FileIOUtils(),
+                new DownloadManager(), CacheConfiguration.builder().storageMode(storageMode).build());
+    }
+
+    private String url(final String name) {
+        return this.origin.url("/img/" + name);
+    }
+
+    private void respond(final HttpExchange exchange) throws IOException {
+        final byte[] body = exchange.getRequestURI().getPath().endsWith(".png") ? this.image
+                : "not an image".getBytes("UTF-8");
+        TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK, body);
+    }
+
+    private static byte[] png(final int width, final int height) throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, width / 2, height);
+        graphics.dispose();
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", encoded);
+        return encoded.toByteArray();
+    }
+
+    private static BufferedImage decode(final ByteBuffer encoded) throws IOException {
+        final byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+}
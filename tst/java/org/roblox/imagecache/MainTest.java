@@ -0,0 +1,86 @@
+package org.roblox.imagecache;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.KeepAliveHttpTransport;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.utils.FileIOUtils;
+import org.roblox.imagecache.utils.ResultWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class MainTest {
+    private static final int RESOURCE_SIZE = 1000;
+    private static final int NUM_IMAGES = 8;
+    private static final int NUM_LOADS = 60;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    @Before
+    public void setUp() {
+        this.origin.handle("/img/", exchange -> {
+            final String path = exchange.getRequestURI().getPath();
+            final int image = Integer.parseInt(path.substring("/img/".length(), path.indexOf('.')));
+            // the lower the image the later its response, so that fetches complete out of the order of the input
+            try {
+                Thread.sleep(5L * (NUM_IMAGES - image));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK, new byte[RESOURCE_SIZE * (1 + image % 3)]);
+        });
+    }
+
+    @Test(timeout = 30_000)
+    public void testParallelRunEvictsLikeSequentialRun() throws IOException {
+        final Random random = new Random(42);
+        final List<String> urls = new ArrayList<>();
+        for (int i = 0; i < NUM_LOADS; i++) {
+            urls.add(this.origin.url("/img/" + random.nextInt(NUM_IMAGES) + ".jpg"));
+        }
+
+        final LRUCacheManager sequentialCache = newCache();
+        final File sequentialOutput = this.tempFolder.newFile();
+        try (final ResultWriter resultWriter = new FileIOUtils().openResultWriter(sequentialOutput.getPath())) {
+            Main.processInput(urls.iterator(), sequentialCache, null, resultWriter);
+        }
+        final LRUCacheManager parallelCache = newCache();
+        final File parallelOutput = this.tempFolder.newFile();
+        try (final ResultWriter resultWriter = new FileIOUtils().openResultWriter(parallelOutput.getPath())) {
+            Main.processInputInParallel(urls.iterator(), parallelCache, null, 4, resultWriter);
+        }
+
+        Assert.assertTrue(sequentialCache.getCacheEvictionCounter() > 0);
+        Assert.assertEquals(Files.readAllLines(sequentialOutput.toPath(), StandardCharsets.UTF_8),
+                Files.readAllLines(parallelOutput.toPath(), StandardCharsets.UTF_8));
+        Assert.assertEquals(sequentialCache.getCacheEvictionCounter(), parallelCache.getCacheEvictionCounter());
+        Assert.assertEquals(sequentialCache.getCurrentSizeInBytes(), parallelCache.getCurrentSizeInBytes());
+        for (int image = 0; image < NUM_IMAGES; image++) {
+            final String url = this.origin.url("/img/" + image + ".jpg");
+            Assert.assertEquals(sequentialCache.contains(url), parallelCache.contains(url));
+        }
+        sequentialCache.close();
+        parallelCache.close();
+    }
+
+    private LRUCacheManager newCache() throws IOException {
+        return new LRUCacheManager(4 * RESOURCE_SIZE, NUM_IMAGES, this.tempFolder.newFolder().getPath(),
+                new FileIOUtils(), new DownloadManager(new KeepAliveHttpTransport()));
+    }
+}
@@ -0,0 +1,74 @@
+package org.roblox.imagecache;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.rules.ExternalResource;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Origin server the tests download images from, listening on an ephemeral port of the loopback address and serving
+ * every request on a thread of its own. Used as a JUnit rule, it is started before and stopped after every test.
+ */
+public class TestOrigin extends ExternalResource {
+    private final AtomicInteger requests = new AtomicInteger();
+    private ExecutorService executor;
+    private HttpServer server;
+
+    @Override
+    protected void before() throws IOException {
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    @Override
+    protected void after() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Serves the requests for paths starting with the given prefix with the handler, counting them in
+     * {@link #getRequests()}.
+     */
+    public void handle(final String pathPrefix, final HttpHandler handler) {
+        this.server.createContext(pathPrefix, exchange -> {
+            this.requests.incrementAndGet();
+            handler.handle(exchange);
+        });
+    }
+
+    /**
+     * @return url of the path on this origin.
+     */
+    public String url(final String path) {
+        return "http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + this.server.getAddress().getPort()
+                + path;
+    }
+
+    /**
+     * @return number of requests served by the handlers of this origin.
+     */
+    public int getRequests() {
+        return this.requests.get();
+    }
+
+    /**
+     * Sends a response with the given status and body, a response without a body when the body is empty.
+     */
+    public static void respond(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (final OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.roblox.imagecache.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CacheIndexTest {
+    private static final int RESOURCE_SIZE = 100;
+    private static final String KEY_A = "http://i.test.com/a.jpg";
+    private static final String KEY_B = "http://i.test.com/b.jpg";
+    private static final String KEY_C = "http://i.test.com/c.jpg";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final FileIOUtils fileIOUtils = new FileIOUtils();
+
+    @Test
+    public void testCacheIsWarmAfterRestart() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final StubDownloadManager downloadManager = new StubDownloadManager(repository);
+        try (final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, downloadManager)) {
+            for (final String key : Arrays.asList(KEY_A, KEY_B, KEY_C)) {
+                Assert.assertEquals(State.DOWNLOADED, cache.load(key).getState());
+            }
+        }
+
+        try (final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, downloadManager)) {
+            Assert.assertEquals(3 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+            for (final String key : Arrays.asList(KEY_A, KEY_B, KEY_C)) {
+                final ByteBuffer content = cache.load(key).getResourceData().asByteBuffer();
+                Assert.assertEquals(ByteBuffer.wrap(StubDownloadManager.content(key)), content);
+            }
+            Assert.assertEquals(3, cache.getCacheHitsCounter());
+        }
+        Assert.assertEquals(3, downloadManager.downloads.get());
+    }
+
+    @Test
+    public void testRestartWithSmallerCapacityEvictsLeastRecentlyUsed() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final StubDownloadManager downloadManager = new StubDownloadManager(repository);
+        try (final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, downloadManager)) {
+            cache.load(KEY_A);
+            cache.load(KEY_B);
+            cache.load(KEY_C);
+            Assert.assertEquals(State.CACHE, cache.load(KEY_A).getState());
+        }
+
+        try (final LRUCacheManager cache = newCache(repository, 2 * RESOURCE_SIZE, downloadManager)) {
+            Assert.assertEquals(2 * RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+            Assert.assertEquals(1, cache.getCacheEvictionCounter());
+            Assert.assertEquals(State.CACHE, cache.load(KEY_A).getState());
+            Assert.assertEquals(State.CACHE, cache.load(KEY_C).getState());
+        }
+        // evicted resources are deleted in the background, at the latest when the cache is closed
+        Assert.assertFalse(this.fileIOUtils.generateFileLocation(repository, new URL(KEY_B)).exists());
+    }
+
+    @Test
+    public void testRestartAfterCrashSkipsEntriesWhoseFileIsGone() throws Exception {
+        final File repository = this.tempFolder.newFolder("repo");
+        final StubDownloadManager downloadManager = new StubDownloadManager(repository);
+        final LRUCacheManager crashed = newCache(repository, 3 * RESOURCE_SIZE, downloadManager);
+        crashed.load(KEY_A);
+        crashed.load(KEY_B);
+        Files.delete(this.fileIOUtils.generateFileLocation(repository, new URL(KEY_A)).toPath());
+
+        try (final LRUCacheManager cache = newCache(repository, 3 * RESOURCE_SIZE, downloadManager)) {
+            Assert.assertEquals(RESOURCE_SIZE, cache.getCurrentSizeInBytes());
+            Assert.assertEquals(State.CACHE, cache.load(KEY_B).getState());
+            Assert.assertEquals(State.DOWNLOADED, cache.load(KEY_A).getState());
+        }
+    }
+
+    @Test
+    public void testRestoreReadsJournalUpToTruncatedRecord() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final File resource = writeResource(repository, "a/a.jpg");
+        Files.write(new File(repository, CacheIndex.JOURNAL_FILE).toPath(), Arrays.asList(
+                "imagecache-journal 1",
+                "ADD\t" + RESOURCE_SIZE + "\ta/a.jpg\t" + KEY_A,
+                "READ\t" + KEY_A,
+                "ADD\t" + RESOURCE_SIZE + "\tb/"), StandardCharsets.UTF_8);
+
+        final List<CacheIndex.Entry> entries = new CacheIndex(repository).restore();
+
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(KEY_A, entries.get(0).getKey());
+        Assert.assertEquals(resource.getAbsolutePath(), entries.get(0).getPath());
+        // journals of the first version do not record the fetch cost
+        Assert.assertEquals(0, entries.get(0).getFetchCostInNanos());
+    }
+
+    @Test
+    public void testFetchCostIsRestored() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final File resource = writeResource(repository, "a/a.jpg");
+        final CacheIndex index = new CacheIndex(repository);
+        index.open(Collections.emptyList());
+        index.recordAdd(new CacheIndex.Entry(KEY_A, resource.getPath(), RESOURCE_SIZE, 42_000_000));
+
+        // restored from the journal of a run that was not closed, then from the snapshot written on close
+        Assert.assertEquals(42_000_000, new CacheIndex(repository).restore().get(0).getFetchCostInNanos());
+        index.close();
+        Assert.assertEquals(42_000_000, new CacheIndex(repository).restore().get(0).getFetchCostInNanos());
+    }
+
+    @Test
+    public void testCleanIndexIsTrustedWithoutCheckingFiles() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final CacheIndex index = new CacheIndex(repository);
+        index.open(Collections.emptyList());
+        index.recordAdd(new CacheIndex.Entry(KEY_A, new File(repository, "missing.jpg").getPath(), RESOURCE_SIZE, 0));
+        index.close();
+
+        Assert.assertEquals(1, new CacheIndex(repository).restore().size());
+    }
+
+    @Test
+    public void testJournalIsCompactedOnceMostRecordsAreRedundant() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final File resource = writeResource(repository, "a/a.jpg");
+        final List<CacheIndex.Entry> entries =
+                Collections.singletonList(new CacheIndex.Entry(KEY_A, resource.getPath(), RESOURCE_SIZE, 0));
+        final CacheIndex index = new CacheIndex(repository);
+        index.open(entries);
+        while (!index.needsCompaction()) {
+            index.recordRead(KEY_A);
+        }
+        final File journal = new File(repository, CacheIndex.JOURNAL_FILE);
+        index.compact();
+
+        Assert.assertEquals(2, Files.readAllLines(journal.toPath()).size());
+        Assert.assertFalse(index.needsCompaction());
+    }
+
+    @Test
+    public void testSnapshotKeepsRecordedRecencyOrder() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final File a = writeResource(repository, "a/a.jpg");
+        final File b = writeResource(repository, "b/b.jpg");
+        final CacheIndex index = new CacheIndex(repository);
+        index.open(Arrays.asList(new CacheIndex.Entry(KEY_A, a.getPath(), RESOURCE_SIZE, 0),
+                new CacheIndex.Entry(KEY_B, b.getPath(), RESOURCE_SIZE, 0)));
+        index.recordRead(KEY_A);
+        index.close();
+
+        final List<CacheIndex.Entry> entries = new CacheIndex(repository).restore();
+
+        Assert.assertEquals(2, entries.size());
+        Assert.assertEquals(KEY_B, entries.get(0).getKey());
+        Assert.assertEquals(KEY_A, entries.get(1).getKey());
+    }
+
+    private LRUCacheManager newCache(final File repository, final long capacity,
+                                     final DownloadManager downloadManager) {
+        return new LRUCacheManager(capacity, 10, repository.getPath(), this.fileIOUtils, downloadManager,
+                CacheConfiguration.builder().persistentIndex(true).build());
+    }
+
+    private static File writeResource(final File repository, final String path) throws IOException {
+        final File resource = new File(repository, path);
+        resource.getParentFile().mkdirs();
+        Files.write(resource.toPath(), new byte[RESOURCE_SIZE]);
+        return resource;
+    }
+
+    /**
+     * Writes resources of a fixed size to the location the cache expects them at without making any network calls.
+     */
+    private static class StubDownloadManager extends DownloadManager {
+        private final FileIOUtils fileIOUtils = new FileIOUtils();
+        private final File repository;
+        private final AtomicInteger downloads = new AtomicInteger();
+
+        StubDownloadManager(final File repository) {
+            this.repository = repository;
+        }
+
+        static byte[] content(final String key) {
+            final byte[] bytes = new byte[RESOURCE_SIZE];
+            Arrays.fill(bytes, (byte) key.hashCode());
+            return bytes;
+        }
+
+        @Override
+        public HttpURLConnection getHttpURLConnection(final String urlKey) throws IOException {
+            return new HttpURLConnection(new URL(urlKey)) {
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+
+                @Override
+                public void connect() {
+                }
+            };
+        }
+
+        @Override
+        public long getContentLength(final HttpURLConnection httpURLConnection) {
+            return RESOURCE_SIZE;
+        }
+
+        @Override
+        public ResourceMetaData loadResource(final HttpURLConnection httpURLConnection, final String urlKey,
+                                             final File repository) throws IOException {
+            this.downloads.incrementAndGet();
+            final File file = this.fileIOUtils.generateFileLocation(this.repository, new URL(urlKey));
+            file.getParentFile().mkdirs();
+            final byte[] bytes = content(urlKey);
+            Files.write(file.toPath(), bytes);
+            return new ResourceMetaData(file, bytes.length, bytes);
+        }
+    }
+}
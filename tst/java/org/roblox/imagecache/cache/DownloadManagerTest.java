@@ -0,0 +1,131 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.hash.Hashing;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.types.ResourceMetaData;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class DownloadManagerTest {
+    private static final String TEST_URL = "http://i.test.com/test.jpg";
+
+    private final DownloadManager downloadManager = new DownloadManager();
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testLoadResourceKeepsBytesInMemoryAndOnDisk() throws IOException {
+        final byte[] body = randomBytes(200_000);
+        assertDownloaded(body, body.length);
+    }
+
+    @Test
+    public void testLoadResourceWithUnknownContentLength() throws IOException {
+        final byte[] body = randomBytes(200_000);
+        assertDownloaded(body, -1);
+    }
+
+    @Test
+    public void testLoadResourceWithIncorrectContentLength() throws IOException {
+        final byte[] body = randomBytes(1000);
+        assertDownloaded(body, 10);
+        assertDownloaded(body, 5000);
+    }
+
+    @Test
+    public void testLoadResourceToMemoryDoesNotCreateFile() throws IOException {
+        final byte[] body = randomBytes(200_000);
+        final ResourceMetaData metaData =
+                this.downloadManager.loadResourceToMemory(new FakeHttpURLConnection(body, -1), TEST_URL);
+
+        Assert.assertNull(metaData.getDownloadedResource());
+        Assert.assertArrayEquals(body, metaData.getResourceBytes());
+        Assert.assertEquals(Hashing.sha256().hashBytes(body).toString(), metaData.getContentDigest());
+    }
+
+    @Test
+    public void testFailedDownloadKeepsTheCause() throws IOException {
+        final IOException cause = new IOException("Connection reset");
+        final HttpURLConnection failing = new FakeHttpURLConnection(new byte[0], -1) {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                throw cause;
+            }
+        };
+
+        try {
+            this.downloadManager.loadResource(failing, TEST_URL, this.tempFolder.newFolder());
+            Assert.fail("Expected the download to fail");
+        } catch (final IOException e) {
+            Assert.assertSame(cause, e.getCause());
+        }
+        try {
+            this.downloadManager.loadResourceToMemory(failing, TEST_URL);
+            Assert.fail("Expected the download to fail");
+        } catch (final IOException e) {
+            Assert.assertSame(cause, e.getCause());
+        }
+    }
+
+    private void assertDownloaded(final byte[] body, final long contentLength) throws IOException {
+        final File repository = this.tempFolder.newFolder();
+        final ResourceMetaData metaData = this.downloadManager.loadResource(
+                new FakeHttpURLConnection(body, contentLength), TEST_URL, repository);
+
+        Assert.assertEquals(body.length, metaData.getResourceSizeInBytes());
+        Assert.assertArrayEquals(body, metaData.getResourceBytes());
+        Assert.assertArrayEquals(body, Files.readAllBytes(metaData.getDownloadedResource().toPath()));
+        Assert.assertEquals(Hashing.sha256().hashBytes(body).toString(), metaData.getContentDigest());
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class FakeHttpURLConnection extends HttpURLConnection {
+        private final byte[] body;
+        private final long contentLength;
+
+        FakeHttpURLConnection(final byte[] body, final long contentLength) throws IOException {
+            super(new URL(TEST_URL));
+            this.body = body;
+            this.contentLength = contentLength;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new ByteArrayInputStream(this.body);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return this.contentLength;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        @Override
+        public void connect() {
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.roblox.imagecache.cache;
+
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.TestOrigin;
+import org.roblox.imagecache.types.ResourceMetaData;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeepAliveHttpTransportTest {
+    private static final int RESOURCE_SIZE = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger requestsInProgress = new AtomicInteger();
+    private final AtomicInteger maxRequestsInProgress = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        this.origin.handle("/img/", exchange -> respond(exchange, HttpURLConnection.HTTP_OK, new byte[RESOURCE_SIZE]));
+        this.origin.handle("/slow/", exchange -> {
+            this.maxRequestsInProgress.accumulateAndGet(this.requestsInProgress.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                this.requestsInProgress.decrementAndGet();
+            }
+            respond(exchange, HttpURLConnection.HTTP_OK, new byte[RESOURCE_SIZE]);
+        });
+        this.origin.handle("/missing/", exchange -> respond(exchange, HttpURLConnection.HTTP_NOT_FOUND,
+                "not found".getBytes()));
+        this.origin.handle("/moved/", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/img/moved.jpg");
+            respond(exchange, HttpURLConnection.HTTP_MOVED_PERM, "moved".getBytes());
+        });
+    }
+
+    @Test
+    public void testSequentialDownloadsReuseConnection() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(RESOURCE_SIZE, download(downloadManager, "/img/" + i + ".jpg").getResourceSizeInBytes());
+        }
+        Assert.assertEquals(1, this.clientPorts.size());
+    }
+
+    @Test
+    public void testRedirectAndErrorResponsesDoNotCloseConnection() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        for (int i = 0; i < 5; i++) {
+            try {
+                download(downloadManager, "/missing/" + i + ".jpg");
+                Assert.fail("Expected the missing resource to fail");
+            } catch (final IOException e) {
+                // expected
+            }
+            Assert.assertEquals(RESOURCE_SIZE, download(downloadManager, "/moved/" + i + ".jpg").getResourceSizeInBytes());
+        }
+        Assert.assertEquals(1, this.clientPorts.size());
+    }
+
+    @Test
+    public void testConnectionsPerHostAreBounded() throws Exception {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport(2));
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<ResourceMetaData>> futures = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            final String path = "/slow/" + i + ".jpg";
+            futures.add(executor.submit(() -> download(downloadManager, path)));
+        }
+        for (final Future<ResourceMetaData> future : futures) {
+            Assert.assertEquals(RESOURCE_SIZE, future.get(1, TimeUnit.MINUTES).getResourceSizeInBytes());
+        }
+        executor.shutdown();
+
+        Assert.assertTrue(this.maxRequestsInProgress.get() <= 2);
+        Assert.assertTrue(this.clientPorts.size() <= 2);
+    }
+
+    @Test
+    public void testDownloadsWaitForAConnectionBeyondTheConnectTimeout() throws Exception {
+        // the last of the 8 downloads waits for 7 slow responses, far longer than a connection may take to be opened
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport(1, 200));
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<ResourceMetaData>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final String path = "/slow/" + i + ".jpg";
+            futures.add(executor.submit(() -> download(downloadManager, path)));
+        }
+        for (final Future<ResourceMetaData> future : futures) {
+            Assert.assertEquals(RESOURCE_SIZE, future.get(1, TimeUnit.MINUTES).getResourceSizeInBytes());
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, this.maxRequestsInProgress.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransportRequiresPositiveConnectionLimit() {
+        new KeepAliveHttpTransport(0);
+    }
+
+    private ResourceMetaData download(final DownloadManager downloadManager, final String path) throws IOException {
+        final String url = this.origin.url(path);
+        final File folder = this.tempFolder.newFolder();
+        return downloadManager.loadResource(downloadManager.getHttpURLConnection(url), url, folder);
+    }
+
+    private void respond(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+        this.clientPorts.add(exchange.getRemoteAddress().getPort());
+        TestOrigin.respond(exchange, status, body);
+    }
+}
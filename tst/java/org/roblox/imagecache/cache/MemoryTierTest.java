@@ -0,0 +1,73 @@
+package org.roblox.imagecache.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class MemoryTierTest {
+    private static final int RESOURCE_SIZE = 10_000;
+
+    @Test
+    public void testCompressibleResourcesAreWeighedByCompressedSize() {
+        final MemoryTier memoryTier = new MemoryTier(4 * RESOURCE_SIZE, new EntryCodec(0.9));
+        final byte[] bitmap = bitmap();
+
+        for (int i = 0; i < 8; i++) {
+            memoryTier.put("http://i.test.com/" + i + ".bmp", bitmap);
+        }
+
+        // eight times as many resources as fit uncompressed
+        for (int i = 0; i < 8; i++) {
+            Assert.assertArrayEquals(bitmap, memoryTier.get("http://i.test.com/" + i + ".bmp"));
+        }
+        Assert.assertEquals(8, memoryTier.getCompressedEntries());
+        Assert.assertTrue(memoryTier.getCurrentSizeInBytes() < RESOURCE_SIZE);
+        Assert.assertNotSame(memoryTier.get("http://i.test.com/0.bmp"), memoryTier.get("http://i.test.com/0.bmp"));
+    }
+
+    @Test
+    public void testResourcesThatDoNotCompressAreKeptAsTheyAre() {
+        final MemoryTier memoryTier = new MemoryTier(100 * RESOURCE_SIZE, new EntryCodec(0.9));
+        final byte[] random = new byte[RESOURCE_SIZE];
+        new Random(1).nextBytes(random);
+        final byte[] jpeg = bitmap();
+        jpeg[0] = (byte) 0xFF;
+        jpeg[1] = (byte) 0xD8;
+        jpeg[2] = (byte) 0xFF;
+
+        memoryTier.put("http://i.test.com/random", random);
+        memoryTier.put("http://i.test.com/a.jpg", jpeg);
+
+        Assert.assertSame(random, memoryTier.get("http://i.test.com/random"));
+        Assert.assertSame(jpeg, memoryTier.get("http://i.test.com/a.jpg"));
+        Assert.assertEquals(0, memoryTier.getCompressedEntries());
+        Assert.assertEquals(2 * RESOURCE_SIZE, memoryTier.getCurrentSizeInBytes());
+    }
+
+    @Test
+    public void testInvalidatingCompressedResourceFreesItsCompressedSize() {
+        final MemoryTier memoryTier = new MemoryTier(100 * RESOURCE_SIZE, new EntryCodec(1));
+        final byte[] empty = new byte[0];
+
+        memoryTier.put("http://i.test.com/a.bmp", bitmap());
+        memoryTier.put("http://i.test.com/empty", empty);
+        memoryTier.invalidate("http://i.test.com/a.bmp");
+
+        Assert.assertNull(memoryTier.get("http://i.test.com/a.bmp"));
+        Assert.assertSame(empty, memoryTier.get("http://i.test.com/empty"));
+        Assert.assertEquals(0, memoryTier.getCompressedEntries());
+        Assert.assertEquals(0, memoryTier.getCurrentSizeInBytes());
+        Assert.assertEquals(1, memoryTier.getHitsCounter());
+        Assert.assertEquals(1, memoryTier.getMissCounter());
+    }
+
+    private static byte[] bitmap() {
+        final byte[] bitmap = new byte[RESOURCE_SIZE];
+        bitmap[0] = 'B';
+        bitmap[1] = 'M';
+        Arrays.fill(bitmap, 2, RESOURCE_SIZE / 2, (byte) 0x7F);
+        return bitmap;
+    }
+}
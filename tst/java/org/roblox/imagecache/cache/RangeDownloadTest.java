@@ -0,0 +1,316 @@
+package org.roblox.imagecache.cache;
+
+import com.google.common.hash.Hashing;
+import com.google.common.net.HttpHeaders;
+import com.sun.net.httpserver.HttpExchange;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.TestOrigin;
+import org.roblox.imagecache.types.ResourceMetaData;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+public class RangeDownloadTest {
+    private static final int RESOURCE_SIZE = 200_000;
+    private static final String ENTITY_TAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private volatile byte[] body = randomBytes(RESOURCE_SIZE, 1);
+    private volatile String entityTag = ENTITY_TAG;
+    /**
+     * Number of bytes after which the origin aborts the next response, -1 to send the whole response.
+     */
+    private volatile int abortAfter = -1;
+
+    @Before
+    public void setUp() {
+        this.origin.handle("/img/", this::respond);
+    }
+
+    @Test
+    public void testFailedDownloadIsResumedWithRangeRequest() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        final File repository = this.tempFolder.newFolder();
+        this.abortAfter = RESOURCE_SIZE / 2;
+        try {
+            downloadManager.loadResource(downloadManager.getHttpURLConnection(url()), url(), repository);
+            Assert.fail("Expected the aborted download to fail");
+        } catch (final IOException e) {
+            // the partial download is kept on disk
+        }
+        this.abortAfter = -1;
+
+        final ResourceMetaData metaData =
+                downloadManager.loadResource(downloadManager.getHttpURLConnection(url()), url(), repository);
+
+        Assert.assertEquals(2, this.ranges.size());
+        Assert.assertNull(this.ranges.get(0));
+        final long resumedAt = Long.parseLong(this.ranges.get(1).replaceAll("bytes=(\\d+)-", "$1"));
+        Assert.assertTrue(resumedAt > 0 && resumedAt <= RESOURCE_SIZE / 2);
+        assertDownloaded(this.body, metaData);
+    }
+
+    @Test
+    public void testResourceThatChangedIsDownloadedFromTheStart() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        final File repository = this.tempFolder.newFolder();
+        this.abortAfter = RESOURCE_SIZE / 2;
+        try {
+            downloadManager.loadResourceToDisk(downloadManager.getHttpURLConnection(url()), url(), repository);
+            Assert.fail("Expected the aborted download to fail");
+        } catch (final IOException e) {
+            // the partial download is kept on disk
+        }
+        this.abortAfter = -1;
+        this.body = randomBytes(RESOURCE_SIZE / 4, 2);
+        this.entityTag = "\"v2\"";
+
+        final ResourceMetaData metaData =
+                downloadManager.loadResourceToDisk(downloadManager.getHttpURLConnection(url()), url(), repository);
+
+        // the range was requested, but the validator no longer matched
+        Assert.assertNotNull(this.ranges.get(1));
+        Assert.assertArrayEquals(this.body, Files.readAllBytes(metaData.getDownloadedResource().toPath()));
+        Assert.assertEquals(Hashing.sha256().hashBytes(this.body).toString(), metaData.getContentDigest());
+    }
+
+    @Test
+    public void testDiscardedPartialDownloadIsDownloadedFromTheStart() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        final File repository = this.tempFolder.newFolder();
+        failDownload(downloadManager, repository);
+
+        // the bytes are kept outside of the location of the resource
+        Assert.assertFalse(new FileIOUtils().generateFileLocation(repository, new URL(url())).exists());
+        Assert.assertEquals(1, partialFiles(repository));
+        final long partialSize = downloadManager.getPartialDownloadsSizeInBytes();
+        Assert.assertTrue(partialSize > 0);
+        Assert.assertEquals(0, downloadManager.discardPartialDownloads(repository, TimeUnit.HOURS.toMillis(1)));
+        Assert.assertEquals(partialSize, downloadManager.discardPartialDownloads(repository, 0));
+        Assert.assertEquals(0, downloadManager.getPartialDownloadsSizeInBytes());
+        Assert.assertEquals(0, partialFiles(repository));
+
+        final ResourceMetaData metaData =
+                downloadManager.loadResource(downloadManager.getHttpURLConnection(url()), url(), repository);
+
+        Assert.assertNull(this.ranges.get(1));
+        assertDownloaded(this.body, metaData);
+    }
+
+    @Test
+    public void testPartialDownloadsOfPreviousRunAreDeletedByTheCache() throws IOException {
+        final File repository = this.tempFolder.newFolder();
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        failDownload(downloadManager, repository);
+        // bytes of a download that failed in a previous run, which no download manager recorded
+        final File previousRun =
+                new FileIOUtils().generateFileLocation(new File(repository, "partial"), new URL(url() + "?v=0"));
+        Files.createDirectories(previousRun.getParentFile().toPath());
+        Files.write(previousRun.toPath(), new byte[RESOURCE_SIZE / 2]);
+        Assert.assertEquals(2, partialFiles(repository));
+
+        final LRUCacheManager cache = new LRUCacheManager(10 * RESOURCE_SIZE, 16, repository.getAbsolutePath(),
+                new FileIOUtils(), downloadManager);
+        // the partial download of this run is kept until the cache is closed
+        Assert.assertEquals(1, partialFiles(repository));
+        cache.close();
+
+        Assert.assertEquals(0, partialFiles(repository));
+        Assert.assertEquals(0, downloadManager.getPartialDownloadsSizeInBytes());
+    }
+
+    @Test
+    public void testLargeResourceIsDownloadedAsParallelRanges() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport(), 1024, 4);
+        final File repository = this.tempFolder.newFolder();
+
+        final ResourceMetaData metaData =
+                downloadManager.loadResource(downloadManager.getHttpURLConnection(url()), url(), repository);
+
+        assertDownloaded(this.body, metaData);
+        // the other ranges are only requested once the first response arrived
+        Assert.assertNull(this.ranges.get(0));
+        final List<String> otherRanges = new ArrayList<>(this.ranges.subList(1, this.ranges.size()));
+        Collections.sort(otherRanges);
+        Assert.assertEquals(Arrays.asList("bytes=100000-149999", "bytes=150000-199999", "bytes=50000-99999"),
+                otherRanges);
+    }
+
+    @Test
+    public void testRangesAreLimitedToTheConnectionsLeftToTheHost() throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport(2), 1024, 4);
+        final File repository = this.tempFolder.newFolder();
+
+        final ResourceMetaData metaData =
+                downloadManager.loadResource(downloadManager.getHttpURLConnection(url()), url(), repository);
+
+        assertDownloaded(this.body, metaData);
+        Assert.assertEquals(Arrays.asList(null, "bytes=100000-199999"), this.ranges);
+    }
+
+    @Test(timeout = 10_000)
+    public void testDownloadsHoldingAllConnectionsToTheHostAreNotSplit() throws Exception {
+        final int connections = 2;
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport(connections), 1024, 4);
+        final File repository = this.tempFolder.newFolder();
+        // the responses are held back until every download holds a connection to the host
+        final CountDownLatch requested = new CountDownLatch(connections);
+        this.origin.handle("/gated/", exchange -> {
+            requested.countDown();
+            try {
+                requested.await();
+            } catch (final InterruptedException e) {
+                throw new IOException(e);
+            }
+            respond(exchange);
+        });
+        final ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try {
+            final List<Future<ResourceMetaData>> downloads = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                final String url = this.origin.url("/gated/" + i + ".jpg");
+                downloads.add(executor.submit(() ->
+                        downloadManager.loadResource(downloadManager.getHttpURLConnection(url), url, repository)));
+            }
+
+            // a download waiting for connections for its ranges would wait for the ones held by the other download
+            for (final Future<ResourceMetaData> download : downloads) {
+                assertDownloaded(this.body, download.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testLoadRangeOfCachedResource() throws IOException {
+        final LRUCacheManager cache = new LRUCacheManager(10 * RESOURCE_SIZE, 16,
+                this.tempFolder.getRoot().getAbsolutePath(), new FileIOUtils(),
+                new DownloadManager(new KeepAliveHttpTransport()));
+        try {
+            // a miss loads the whole resource, a hit only reads the range
+            assertRange(cache.loadRange(url(), 10, 100), 10, 100);
+            Assert.assertEquals(1, cache.getCacheMissCounter());
+            assertRange(cache.loadRange(url(), RESOURCE_SIZE - 50, 100), RESOURCE_SIZE - 50, 50);
+            Assert.assertEquals(0, cache.loadRange(url(), RESOURCE_SIZE, 100).remaining());
+            Assert.assertEquals(State.CACHE, cache.load(url()).getState());
+            Assert.assertEquals(1, this.ranges.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    private void failDownload(final DownloadManager downloadManager, final File repository) throws IOException {
+        this.abortAfter = RESOURCE_SIZE / 2;
+        try {
+            downloadManager.loadResource(downloadManager.getHttpURLConnection(url()), url(), repository);
+            Assert.fail("Expected the aborted download to fail");
+        } catch (final IOException e) {
+            // the partial download is kept on disk
+        } finally {
+            this.abortAfter = -1;
+        }
+    }
+
+    private static long partialFiles(final File repository) throws IOException {
+        final File partialDirectory = new File(repository, "partial");
+        if (!partialDirectory.exists()) {
+            return 0;
+        }
+        try (final Stream<Path> files = Files.walk(partialDirectory.toPath())) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private void assertRange(final ByteBuffer range, final int offset, final int length) {
+        Assert.assertTrue(range.isReadOnly());
+        Assert.assertEquals(length, range.remaining());
+        final byte[] bytes = new byte[length];
+        range.get(bytes);
+        Assert.assertArrayEquals(Arrays.copyOfRange(this.body, offset, offset + length), bytes);
+    }
+
+    private static void assertDownloaded(final byte[] expected, final ResourceMetaData metaData) throws IOException {
+        Assert.assertEquals(expected.length, metaData.getResourceSizeInBytes());
+        Assert.assertArrayEquals(expected, metaData.getResourceBytes());
+        Assert.assertArrayEquals(expected, Files.readAllBytes(metaData.getDownloadedResource().toPath()));
+        Assert.assertEquals(Hashing.sha256().hashBytes(expected).toString(), metaData.getContentDigest());
+    }
+
+    private String url() {
+        return this.origin.url("/img/a.jpg");
+    }
+
+    /**
+     * Answers like an origin supporting range requests: byte ranges of the form bytes=start- and bytes=start-end are
+     * served when If-Range matches the entity tag, the whole resource otherwise.
+     */
+    private void respond(final HttpExchange exchange) throws IOException {
+        final byte[] content = this.body;
+        final String range = exchange.getRequestHeaders().getFirst(HttpHeaders.RANGE);
+        final String ifRange = exchange.getRequestHeaders().getFirst(HttpHeaders.IF_RANGE);
+        this.ranges.add(range);
+        exchange.getResponseHeaders().set(HttpHeaders.ETAG, this.entityTag);
+        exchange.getResponseHeaders().set(HttpHeaders.ACCEPT_RANGES, "bytes");
+        int start = 0;
+        int end = content.length;
+        int status = HttpURLConnection.HTTP_OK;
+        if (range != null && (ifRange == null || ifRange.equals(this.entityTag))) {
+            final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            start = Integer.parseInt(bounds[0]);
+            end = bounds[1].isEmpty() ? content.length : Integer.parseInt(bounds[1]) + 1;
+            status = 206;
+            exchange.getResponseHeaders().set(HttpHeaders.CONTENT_RANGE,
+                    "bytes " + start + "-" + (end - 1) + "/" + content.length);
+        }
+        if (this.abortAfter >= 0) {
+            // a chunked body that ends without its last chunk fails the download, a body shorter than its length
+            // does not; the connection is closed when the handler throws
+            exchange.sendResponseHeaders(status, 0);
+            final OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(content, start, this.abortAfter);
+            outputStream.flush();
+            throw new IOException("Aborted response");
+        }
+        exchange.sendResponseHeaders(status, end - start);
+        final OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(content, start, end - start);
+        outputStream.close();
+    }
+
+    private static byte[] randomBytes(final int size, final int seed) {
+        final byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,125 @@
+package org.roblox.imagecache.cache;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.types.ResourceData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class SegmentStoreTest {
+    private static final int SEGMENT_SIZE = 1024;
+    private static final int RESOURCE_SIZE = 100;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void testResourcesAreAppendedToSharedSegments() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final SegmentStore store = new SegmentStore(repository, SEGMENT_SIZE);
+
+        for (int i = 0; i < 20; i++) {
+            final ResourceData resourceData = store.append(key(i), ByteBuffer.wrap(content(i)));
+            Assert.assertEquals(RESOURCE_SIZE, resourceData.getSizeInBytes());
+            Assert.assertEquals(ByteBuffer.wrap(content(i)), resourceData.asByteBuffer());
+        }
+
+        Assert.assertEquals(3, store.getSegmentCount());
+        Assert.assertEquals(3, segmentFiles(repository).length);
+    }
+
+    @Test
+    public void testLargeResourceGetsSegmentOfItsOwn() throws IOException {
+        final SegmentStore store = new SegmentStore(this.tempFolder.newFolder("repo"), SEGMENT_SIZE);
+        final byte[] large = new byte[4 * SEGMENT_SIZE];
+        Arrays.fill(large, (byte) 7);
+
+        Assert.assertEquals(ByteBuffer.wrap(large), store.append(key(0), ByteBuffer.wrap(large)).asByteBuffer());
+        Assert.assertEquals(ByteBuffer.wrap(content(1)), store.append(key(1), ByteBuffer.wrap(content(1))).asByteBuffer());
+        Assert.assertEquals(2, store.getSegmentCount());
+    }
+
+    @Test
+    public void testDeadSegmentIsDeletedWithoutCompaction() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final SegmentStore store = new SegmentStore(repository, SEGMENT_SIZE);
+        for (int i = 0; i < 12; i++) {
+            store.append(key(i), ByteBuffer.wrap(content(i)));
+        }
+        for (int i = 0; i < 9; i++) {
+            store.remove(key(i));
+        }
+
+        Assert.assertEquals(1, store.getSegmentCount());
+        Assert.assertFalse(store.needsCompaction());
+    }
+
+    @Test
+    public void testMostlyDeadSegmentIsCompacted() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        final SegmentStore store = new SegmentStore(repository, SEGMENT_SIZE);
+        ResourceData beforeCompaction = null;
+        for (int i = 0; i < 14; i++) {
+            final ResourceData resourceData = store.append(key(i), ByteBuffer.wrap(content(i)));
+            if (i == 8) {
+                beforeCompaction = resourceData;
+            }
+        }
+        // starts a new active segment, the second segment only keeps the resource of key 8
+        store.append(key(100), ByteBuffer.wrap(content(100)));
+        for (int i = 0; i < 14; i++) {
+            if (i != 8) {
+                store.remove(key(i));
+            }
+        }
+        Assert.assertTrue(store.needsCompaction());
+
+        final List<String> keys = store.keysToCompact();
+        Assert.assertEquals(Arrays.asList(key(8)), keys);
+        final ResourceData relocated = store.relocate(key(8));
+
+        Assert.assertEquals(ByteBuffer.wrap(content(8)), relocated.asByteBuffer());
+        Assert.assertNull(store.relocate(key(8)));
+        Assert.assertFalse(store.needsCompaction());
+        Assert.assertEquals(1, store.getSegmentCount());
+        Assert.assertEquals(1, segmentFiles(repository).length);
+        // resources served before the compaction stay readable after their segment was deleted
+        Assert.assertEquals(ByteBuffer.wrap(content(8)), beforeCompaction.asByteBuffer());
+    }
+
+    @Test
+    public void testSegmentsOfPreviousRunAreDeleted() throws IOException {
+        final File repository = this.tempFolder.newFolder("repo");
+        new SegmentStore(repository, SEGMENT_SIZE).append(key(0), ByteBuffer.wrap(content(0)));
+
+        final SegmentStore store = new SegmentStore(repository, SEGMENT_SIZE);
+
+        Assert.assertEquals(0, segmentFiles(repository).length);
+        Assert.assertEquals(0, store.getSegmentCount());
+    }
+
+    private static String key(final int i) {
+        return "http://i.test.com/" + i + ".jpg";
+    }
+
+    private static byte[] content(final int i) {
+        final byte[] bytes = new byte[RESOURCE_SIZE];
+        Arrays.fill(bytes, (byte) i);
+        return bytes;
+    }
+
+    private static Object[] segmentFiles(final File repository) throws IOException {
+        try (final Stream<Path> paths = Files.list(new File(repository, SegmentStore.SEGMENT_DIRECTORY).toPath())) {
+            return paths.toArray();
+        }
+    }
+}
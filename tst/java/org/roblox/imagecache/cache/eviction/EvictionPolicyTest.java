@@ -0,0 +1,142 @@
+package org.roblox.imagecache.cache.eviction;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class EvictionPolicyTest {
+    private static final int CAPACITY = 100;
+    private static final int NUM_HOT_KEYS = 80;
+    private static final int TRACE_LENGTH = 50_000;
+
+    @Test
+    public void testLruEvictsLeastRecentlyUsed() {
+        final EvictionPolicy policy = EvictionPolicyType.LRU.create(3, 3);
+        policy.onInsert("a", 1);
+        policy.onInsert("b", 1);
+        policy.onInsert("c", 1);
+        policy.onAccess("a");
+
+        Assert.assertEquals("b", policy.nextVictim());
+        Assert.assertEquals("c", policy.nextVictim());
+        Assert.assertEquals("a", policy.nextVictim());
+        Assert.assertNull(policy.nextVictim());
+    }
+
+    @Test
+    public void testGdsfEvictsLargeEntryBeforeSmallFrequentlyUsedEntries() {
+        final EvictionPolicy policy = EvictionPolicyType.GDSF.create(1_000, 4);
+        policy.onInsert("small1", 10, 1_000);
+        policy.onInsert("large", 900, 1_000);
+        policy.onInsert("small2", 10, 1_000);
+        policy.onAccess("small1");
+        policy.onAccess("small2");
+        policy.onAccess("large");
+
+        Assert.assertEquals("large", policy.nextVictim());
+    }
+
+    @Test
+    public void testGdsfKeepsEntriesThatAreExpensiveToFetch() {
+        final EvictionPolicy policy = EvictionPolicyType.GDSF.create(1_000, 2);
+        policy.onInsert("slow", 100, 1_000_000);
+        policy.onInsert("fast", 100, 1_000);
+
+        Assert.assertEquals("fast", policy.nextVictim());
+        Assert.assertEquals("slow", policy.nextVictim());
+    }
+
+    @Test
+    public void testGdsfAgesEntriesThatAreNoLongerAccessed() {
+        final EvictionPolicy policy = EvictionPolicyType.GDSF.create(1_000, 2);
+        policy.onInsert("old", 10, 1_000);
+        for (int i = 0; i < 10; i++) {
+            policy.onAccess("old");
+        }
+        // every eviction raises the priority of new entries, until they outweigh the accesses made in the past
+        String victim = null;
+        for (int i = 0; i < 20 && !"old".equals(victim); i++) {
+            policy.onInsert("new" + i, 10, 1_000);
+            victim = policy.nextVictim();
+        }
+        Assert.assertEquals("old", victim);
+    }
+
+    @Test
+    public void testPoliciesEvictEveryInsertedEntryOnce() {
+        for (final EvictionPolicyType type : EvictionPolicyType.values()) {
+            final EvictionPolicy policy = type.create(CAPACITY, CAPACITY);
+            final Set<String> inserted = new HashSet<>();
+            for (int i = 0; i < CAPACITY; i++) {
+                policy.onInsert("key" + i, 1);
+                inserted.add("key" + i);
+                policy.onAccess("key" + (i / 2));
+            }
+            policy.onRemove("key0");
+            inserted.remove("key0");
+
+            String victim;
+            while ((victim = policy.nextVictim()) != null) {
+                Assert.assertTrue(type + " evicted " + victim + " twice", inserted.remove(victim));
+            }
+            Assert.assertTrue(type + " did not evict " + inserted, inserted.isEmpty());
+        }
+    }
+
+    @Test
+    public void testScanResistantPoliciesOutperformLruOnScans() {
+        final List<String> trace = hotSetWithScans();
+        final double lruHitRatio = hitRatio(EvictionPolicyType.LRU, trace);
+        for (final EvictionPolicyType type : new EvictionPolicyType[]{
+                EvictionPolicyType.SLRU, EvictionPolicyType.ARC, EvictionPolicyType.TINY_LFU}) {
+            final double hitRatio = hitRatio(type, trace);
+            Assert.assertTrue(String.format("%s hit ratio %.3f, LRU hit ratio %.3f", type, hitRatio, lruHitRatio),
+                    hitRatio > lruHitRatio);
+        }
+    }
+
+    /**
+     * Half of the accesses go to a skewed hot set that fits in the cache, the other half to keys accessed only once.
+     */
+    private static List<String> hotSetWithScans() {
+        final Random random = new Random(42);
+        final List<String> trace = new ArrayList<>(TRACE_LENGTH);
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            if (random.nextBoolean()) {
+                final double r = random.nextDouble();
+                trace.add("hot" + (int) (NUM_HOT_KEYS * r * r));
+            } else {
+                trace.add("scan" + i);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Replays the trace with entries of unit weight the same way the cache drives its policy: victims are evicted to
+     * make room before the missed key is inserted.
+     */
+    private static double hitRatio(final EvictionPolicyType type, final List<String> trace) {
+        final EvictionPolicy policy = type.create(CAPACITY, CAPACITY);
+        final Set<String> resident = new HashSet<>();
+        int hits = 0;
+        for (final String key : trace) {
+            if (resident.contains(key)) {
+                hits++;
+                policy.onAccess(key);
+            } else {
+                while (resident.size() >= CAPACITY) {
+                    Assert.assertTrue(resident.remove(policy.nextVictim()));
+                }
+                policy.onInsert(key, 1);
+                resident.add(key);
+            }
+        }
+        return (double) hits / trace.size();
+    }
+}
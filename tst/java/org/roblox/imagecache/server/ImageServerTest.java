@@ -0,0 +1,398 @@
+package org.roblox.imagecache.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.TestOrigin;
+import org.roblox.imagecache.cache.CacheConfiguration;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.KeepAliveHttpTransport;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.StorageMode;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ImageServerTest {
+    private static final int RESOURCE_SIZE = 64 * 1024;
+    private static final String ENTITY_TAG = "\"v1\"";
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    private final CountDownLatch originRelease = new CountDownLatch(1);
+    private ExecutorService executor;
+    private LRUCacheManager cache;
+    private ImageServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        this.executor = Executors.newCachedThreadPool();
+        this.origin.handle("/img/", exchange -> {
+            exchange.getResponseHeaders().add("ETag", ENTITY_TAG);
+            TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK, content(RESOURCE_SIZE));
+        });
+        this.origin.handle("/gated/", exchange -> {
+            await(this.originRelease);
+            TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK, content(RESOURCE_SIZE));
+        });
+        this.origin.handle("/stream/", exchange -> {
+            // sends the first half of the image and the rest once the test released it
+            final byte[] body = content(RESOURCE_SIZE);
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            try (final OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(body, 0, body.length / 2);
+                outputStream.flush();
+                await(this.originRelease);
+                outputStream.write(body, body.length / 2, body.length - body.length / 2);
+            }
+        });
+        this.origin.handle("/missing/", exchange -> TestOrigin.respond(exchange, HttpURLConnection.HTTP_NOT_FOUND,
+                "not found".getBytes(StandardCharsets.UTF_8)));
+
+        startServer(CacheConfiguration.defaults());
+    }
+
+    private void startServer(final CacheConfiguration cacheConfiguration) throws IOException {
+        final DownloadManager downloadManager = new DownloadManager(new KeepAliveHttpTransport());
+        this.cache = new LRUCacheManager(10 * RESOURCE_SIZE, 10, this.tempFolder.newFolder().getAbsolutePath(),
+                new FileIOUtils(), downloadManager, cacheConfiguration);
+        this.server = new ImageServer(this.cache, downloadManager,
+                ServerConfiguration.builder().port(0).bindAddress("127.0.0.1").eventLoops(2)
+                        .allowedOrigins(Collections.singleton(this.origin.url(""))).build());
+        this.server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.originRelease.countDown();
+        this.server.close();
+        this.cache.close();
+        this.executor.shutdownNow();
+    }
+
+    @Test
+    public void testMissThenHitOnKeepAliveConnection() throws IOException {
+        try (final Socket socket = connect()) {
+            final Response miss = exchange(socket, "GET", imageUrl("/img/a.jpg"), "");
+            awaitCached("/img/a.jpg");
+            final Response hit = exchange(socket, "GET", imageUrl("/img/a.jpg"), "");
+
+            Assert.assertEquals(HttpURLConnection.HTTP_OK, miss.status);
+            Assert.assertEquals("MISS", miss.headers.get("x-cache"));
+            Assert.assertEquals(String.valueOf(RESOURCE_SIZE), miss.headers.get("content-length"));
+            Assert.assertEquals("image/jpeg", miss.headers.get("content-type"));
+            Assert.assertArrayEquals(content(RESOURCE_SIZE), miss.body);
+            Assert.assertEquals(HttpURLConnection.HTTP_OK, hit.status);
+            Assert.assertEquals("HIT", hit.headers.get("x-cache"));
+            Assert.assertEquals(ENTITY_TAG, hit.headers.get("etag"));
+            Assert.assertArrayEquals(content(RESOURCE_SIZE), hit.body);
+            Assert.assertEquals(1, this.origin.getRequests());
+        }
+    }
+
+    @Test
+    public void testMemoryTierHitsAreValidatedByEntityTag() throws IOException {
+        this.server.close();
+        this.cache.close();
+        startServer(CacheConfiguration.builder().storageMode(StorageMode.TIERED)
+                .memoryTierCapacityInBytes(8L * RESOURCE_SIZE).build());
+        try (final Socket socket = connect()) {
+            exchange(socket, "GET", imageUrl("/img/t.jpg"), "");
+            awaitCached("/img/t.jpg");
+            // promotes the image to the memory tier, then serves it from there
+            final Response promoted = exchange(socket, "GET", imageUrl("/img/t.jpg"), "");
+            final Response hit = exchange(socket, "GET", imageUrl("/img/t.jpg"), "");
+            final Response notModified = exchange(socket, "GET", imageUrl("/img/t.jpg"),
+                    "If-None-Match: " + ENTITY_TAG + "\r\n");
+
+            Assert.assertEquals(ENTITY_TAG, promoted.headers.get("etag"));
+            Assert.assertEquals(ENTITY_TAG, hit.headers.get("etag"));
+            Assert.assertArrayEquals(content(RESOURCE_SIZE), hit.body);
+            Assert.assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, notModified.status);
+            Assert.assertTrue(this.cache.getMemoryTierHitsCounter() > 0);
+        }
+    }
+
+    @Test
+    public void testMatchingEntityTagIsNotModified() throws IOException {
+        try (final Socket socket = connect()) {
+            exchange(socket, "GET", imageUrl("/img/b.jpg"), "");
+            awaitCached("/img/b.jpg");
+            final Response response = exchange(socket, "GET", imageUrl("/img/b.jpg"),
+                    "If-None-Match: " + ENTITY_TAG + "\r\n");
+
+            Assert.assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, response.status);
+            Assert.assertEquals(ENTITY_TAG, response.headers.get("etag"));
+            Assert.assertEquals(0, response.body.length);
+        }
+    }
+
+    @Test
+    public void testUrlOfOriginThatIsNotAllowedIsForbidden() throws IOException {
+        final String otherPort = originUrl("/img/a.jpg").replaceFirst(":\\d+/", ":1/");
+        // the host of the url is the one after the user info
+        final String userInfo = "http://" + InetAddress.getLoopbackAddress().getHostAddress() + "@localhost:1/a.jpg";
+        try (final Socket socket = connect()) {
+            final Response otherPortResponse = exchange(socket, "GET", requestTarget(otherPort), "");
+            final Response userInfoResponse = exchange(socket, "GET", requestTarget(userInfo), "");
+
+            Assert.assertEquals(HttpURLConnection.HTTP_FORBIDDEN, otherPortResponse.status);
+            Assert.assertEquals(HttpURLConnection.HTTP_FORBIDDEN, userInfoResponse.status);
+            Assert.assertEquals(0, this.origin.getRequests());
+        }
+    }
+
+
+    @Test
+    public void testHeadHasNoBody() throws IOException {
+        try (final Socket socket = connect()) {
+            exchange(socket, "GET", imageUrl("/img/c.jpg"), "");
+            awaitCached("/img/c.jpg");
+            final Response response = exchange(socket, "HEAD", imageUrl("/img/c.jpg"), "");
+            // the connection is still usable after a response without body
+            final Response hit = exchange(socket, "GET", imageUrl("/img/c.jpg"), "");
+
+            Assert.assertEquals(HttpURLConnection.HTTP_OK, response.status);
+            Assert.assertEquals("HIT", response.headers.get("x-cache"));
+            Assert.assertEquals(String.valueOf(RESOURCE_SIZE), response.headers.get("content-length"));
+            Assert.assertEquals(0, response.body.length);
+            Assert.assertEquals("HIT", hit.headers.get("x-cache"));
+            Assert.assertEquals(RESOURCE_SIZE, hit.body.length);
+        }
+    }
+
+    @Test
+    public void testInvalidRequestsAreRejected() throws IOException {
+        try (final Socket socket = connect()) {
+            Assert.assertEquals(HttpURLConnection.HTTP_NOT_FOUND, exchange(socket, "GET", "/other", "").status);
+            Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, exchange(socket, "GET", "/img", "").status);
+            Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST,
+                    exchange(socket, "GET", "/img?url=file%3A%2Fetc%2Fpasswd", "").status);
+            Assert.assertEquals(HttpURLConnection.HTTP_BAD_METHOD,
+                    exchange(socket, "DELETE", imageUrl("/img/a.jpg"), "").status);
+        }
+    }
+
+    @Test
+    public void testVariantOfImageIsServedWithItsFormat() throws IOException {
+        this.origin.handle("/png/", exchange -> {
+            final ByteArrayOutputStream image = new ByteArrayOutputStream();
+            ImageIO.write(new BufferedImage(300, 150, BufferedImage.TYPE_INT_RGB), "png", image);
+            TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK, image.toByteArray());
+        });
+        final String target = imageUrl("/png/a.png") + "&variant=" + URLEncoder.encode("w=60,f=jpeg",
+                StandardCharsets.UTF_8.name());
+        try (final Socket socket = connect()) {
+            final Response derived = exchange(socket, "GET", target, "");
+            final Response cached = exchange(socket, "GET", target, "");
+
+            Assert.assertEquals(HttpURLConnection.HTTP_OK, derived.status);
+            Assert.assertEquals("MISS", derived.headers.get("x-cache"));
+            Assert.assertEquals("image/jpeg", derived.headers.get("content-type"));
+            Assert.assertEquals(60, ImageIO.read(new ByteArrayInputStream(derived.body)).getWidth());
+            Assert.assertEquals("HIT", cached.headers.get("x-cache"));
+            Assert.assertArrayEquals(derived.body, cached.body);
+            Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST,
+                    exchange(socket, "GET", imageUrl("/png/a.png") + "&variant=w%3D-1", "").status);
+        }
+    }
+
+    @Test
+    public void testFailedDownloadIsBadGateway() throws IOException {
+        try (final Socket socket = connect()) {
+            final Response response = exchange(socket, "GET", imageUrl("/missing/a.jpg"), "");
+
+            Assert.assertEquals(HttpURLConnection.HTTP_BAD_GATEWAY, response.status);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testMissIsStreamedWhileDownloading() throws IOException {
+        assertStreamedWhileDownloading();
+    }
+
+    @Test(timeout = 10_000)
+    public void testMissDownloadedIntoMemoryIsStreamedWhileDownloading() throws IOException {
+        this.server.close();
+        this.cache.close();
+        startServer(CacheConfiguration.builder().storageMode(StorageMode.SEGMENTED).build());
+        assertStreamedWhileDownloading();
+    }
+
+    private void assertStreamedWhileDownloading() throws IOException {
+        try (final Socket socket = connect()) {
+            writeRequest(socket, "GET", imageUrl("/stream/a.jpg"), "");
+            final InputStream inputStream = socket.getInputStream();
+            final Map<String, String> headers = new HashMap<>();
+            Assert.assertEquals(HttpURLConnection.HTTP_OK, readHead(inputStream, headers));
+            Assert.assertEquals(String.valueOf(RESOURCE_SIZE), headers.get("content-length"));
+            Assert.assertEquals("MISS", headers.get("x-cache"));
+
+            // the first half arrives while the origin holds back the second half
+            final byte[] firstHalf = readFully(inputStream, RESOURCE_SIZE / 2);
+            this.originRelease.countDown();
+            final byte[] secondHalf = readFully(inputStream, RESOURCE_SIZE - RESOURCE_SIZE / 2);
+
+            final byte[] expected = content(RESOURCE_SIZE);
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, 0, RESOURCE_SIZE / 2), firstHalf);
+            Assert.assertArrayEquals(Arrays.copyOfRange(expected, RESOURCE_SIZE / 2, RESOURCE_SIZE), secondHalf);
+        }
+    }
+
+    @Test(timeout = 10_000)
+    public void testConcurrentMissesShareDownload() throws Exception {
+        final int clients = 4;
+        final Future<?>[] responses = new Future<?>[clients];
+        for (int i = 0; i < clients; i++) {
+            responses[i] = this.executor.submit(() -> {
+                try (final Socket socket = connect()) {
+                    return exchange(socket, "GET", imageUrl("/gated/a.jpg"), "");
+                }
+            });
+        }
+        while (this.origin.getRequests() == 0) {
+            Thread.sleep(10);
+        }
+        // gives the other clients the time to join the download in progress
+        Thread.sleep(200);
+        this.originRelease.countDown();
+
+        for (final Future<?> response : responses) {
+            final Response result = (Response) response.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(HttpURLConnection.HTTP_OK, result.status);
+            Assert.assertArrayEquals(content(RESOURCE_SIZE), result.body);
+        }
+        Assert.assertEquals(1, this.origin.getRequests());
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.server.getPort());
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private String imageUrl(final String path) throws IOException {
+        return requestTarget(originUrl(path));
+    }
+
+    private static String requestTarget(final String url) throws IOException {
+        return Connection.PATH + "?url=" + URLEncoder.encode(url, StandardCharsets.UTF_8.name());
+    }
+
+    private String originUrl(final String path) {
+        return this.origin.url(path);
+    }
+
+    /**
+     * Streamed misses may be sent before the download is added to the cache, joining the load waits for it.
+     */
+    private void awaitCached(final String path) throws IOException {
+        this.cache.load(originUrl(path));
+    }
+
+    private static Response exchange(final Socket socket, final String method, final String target,
+                                     final String headers) throws IOException {
+        writeRequest(socket, method, target, headers);
+        final Response response = new Response();
+        response.status = readHead(socket.getInputStream(), response.headers);
+        final boolean hasBody = !"HEAD".equals(method)
+                && response.status != HttpURLConnection.HTTP_NOT_MODIFIED;
+        response.body = hasBody
+                ? readFully(socket.getInputStream(), Integer.parseInt(response.headers.get("content-length")))
+                : new byte[0];
+        return response;
+    }
+
+    private static void writeRequest(final Socket socket, final String method, final String target,
+                                     final String headers) throws IOException {
+        socket.getOutputStream().write((method + " " + target + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * @return status of the response, the headers are put in the given map with lower case names.
+     */
+    private static int readHead(final InputStream inputStream, final Map<String, String> headers) throws IOException {
+        final ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        while (matched < 4) {
+            final int b = inputStream.read();
+            if (b == -1) {
+                throw new IOException("Connection closed before the end of the headers");
+            }
+            head.write(b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        final String[] lines = new String(head.toByteArray(), StandardCharsets.ISO_8859_1).split("\r\n");
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                    lines[i].substring(colon + 1).trim());
+        }
+        return Integer.parseInt(lines[0].split(" ")[1]);
+    }
+
+    private static byte[] readFully(final InputStream inputStream, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            final int count = inputStream.read(bytes, read, length - read);
+            if (count == -1) {
+                throw new IOException("Connection closed after " + read + " of " + length + " bytes");
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+    private static byte[] content(final int size) {
+        final byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        return bytes;
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Response {
+        private final Map<String, String> headers = new HashMap<>();
+        private int status;
+        private byte[] body;
+    }
+}
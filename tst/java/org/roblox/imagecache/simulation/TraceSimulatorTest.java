@@ -0,0 +1,86 @@
+package org.roblox.imagecache.simulation;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.roblox.imagecache.cache.eviction.EvictionPolicyType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TraceSimulatorTest {
+
+    @Test
+    public void testHitRatioCurveOfLru() {
+        final TraceSimulator simulator = new TraceSimulator(Arrays.asList(10L, 20L, 30L),
+                Collections.singletonList(EvictionPolicyType.LRU), 10);
+        // a b c a b c: every repeated access has a stack distance of 30 bytes
+        simulator.replay(Arrays.asList("# url size", "http://i.test.com/a.jpg 10", "http://i.test.com/b.jpg 10",
+                "", "http://i.test.com/c.jpg,10", "http://i.test.com/a.jpg 10", "http://i.test.com/b.jpg\t10",
+                "http://i.test.com/c.jpg 10").iterator());
+
+        final List<SimulationResult> results = simulator.getResults();
+
+        Assert.assertEquals(3, results.size());
+        Assert.assertEquals(0, results.get(0).getHits());
+        Assert.assertEquals(0, results.get(1).getHits());
+        Assert.assertEquals(3, results.get(2).getHits());
+        Assert.assertEquals(6, results.get(2).getRequests());
+        Assert.assertEquals(0.5, results.get(2).getHitRatio(), 0);
+        Assert.assertEquals("LRU,30,6,3,0.500000,0.500000", results.get(2).toString());
+    }
+
+    @Test
+    public void testStackDistancesMatchLruPolicy() {
+        final List<Long> capacities = Arrays.asList(500L, 1_000L, 5_000L, 20_000L, 100_000L);
+        final TraceSimulator stack = new TraceSimulator(capacities, Collections.singletonList(EvictionPolicyType.LRU), 16);
+        final PolicySimulation[] policies = new PolicySimulation[capacities.size()];
+        for (int i = 0; i < policies.length; i++) {
+            policies[i] = new PolicySimulation(EvictionPolicyType.LRU, capacities.get(i), 16);
+        }
+        // enough accesses to compact the stack several times, resources are at most as large as the smallest capacity
+        final Random random = new Random(42);
+        for (int i = 0; i < 20_000; i++) {
+            final int id = (int) Math.abs(random.nextGaussian() * 200);
+            final String key = "http://i.test.com/" + id + ".jpg";
+            final long size = 1 + (id * 7919) % 500;
+            stack.access(key, size);
+            for (final PolicySimulation policy : policies) {
+                policy.access(key, size);
+            }
+        }
+
+        final List<SimulationResult> results = stack.getResults();
+        for (int i = 0; i < policies.length; i++) {
+            final SimulationResult expected = policies[i].getResults().get(0);
+            Assert.assertEquals(expected.getCapacityInBytes(), results.get(i).getCapacityInBytes());
+            Assert.assertEquals(expected.getHits(), results.get(i).getHits());
+            Assert.assertEquals(expected.getHitBytes(), results.get(i).getHitBytes());
+        }
+        Assert.assertTrue(results.get(4).getHits() > results.get(0).getHits());
+    }
+
+    @Test
+    public void testEveryPolicyIsSimulatedForEveryCapacity() {
+        final TraceSimulator simulator = new TraceSimulator(Arrays.asList(20L, 10L),
+                Arrays.asList(EvictionPolicyType.values()), 10);
+        for (int i = 0; i < 100; i++) {
+            simulator.access("http://i.test.com/" + (i % 3) + ".jpg", 10);
+        }
+
+        final List<SimulationResult> results = simulator.getResults();
+
+        Assert.assertEquals(2 * EvictionPolicyType.values().length, results.size());
+        for (final SimulationResult result : results) {
+            Assert.assertEquals(100, result.getRequests());
+            Assert.assertTrue(result.getHits() <= 100 - 3);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRecordWithoutSizeIsRejected() {
+        new TraceSimulator(Collections.singletonList(10L), Collections.singletonList(EvictionPolicyType.LRU), 10)
+                .replay(Collections.singletonList("http://i.test.com/a.jpg").iterator());
+    }
+}
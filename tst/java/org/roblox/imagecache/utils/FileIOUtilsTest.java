@@ -1,27 +1,91 @@
 package org.roblox.imagecache.utils;
 
+import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.types.ResultData;
+import org.roblox.imagecache.types.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FileIOUtilsTest {
     private final FileIOUtils fileUtils = new FileIOUtils();
 
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
     private static final String INPUT_FILE_PATH = System.getProperty("user.dir") + "/test-resources/valid_input.txt";
 
     @Test(expected = NullPointerException.class)
-    public void test_readFile_throws_null(){
-        this.fileUtils.readFileToList(null);
+    public void test_streamFileLines_throws_null(){
+        this.fileUtils.streamFileLines(null);
     }
 
     @Test(expected = IllegalArgumentException.class)
-    public void test_readFile_throws_emptyFileName(){
-        this.fileUtils.readFileToList("");
+    public void test_streamFileLines_throws_emptyFileName(){
+        this.fileUtils.streamFileLines("");
+    }
+
+    @Test
+    public void test_streamFileLines_readsAllLines() throws IOException {
+        try (final Stream<String> lines = this.fileUtils.streamFileLines(INPUT_FILE_PATH)) {
+            final List<String> expected = Files.readAllLines(Paths.get(INPUT_FILE_PATH), StandardCharsets.UTF_8);
+            Assert.assertTrue(expected.size() > 1);
+            Assert.assertEquals(expected, lines.collect(Collectors.toList()));
+        }
     }
 
     @Test
-    public void test_read_success(){
-        final List<String> lines = this.fileUtils.readFileToList(INPUT_FILE_PATH);
-        Assert.assertTrue(lines.size() > 1);
+    public void test_resultWriter_truncatesAndWritesResultsInOrder() throws IOException {
+        final File output = this.tempFolder.newFile("output.txt");
+        Files.write(output.toPath(), "previous run\r\n".getBytes(StandardCharsets.UTF_8));
+        final ResultData downloaded = ResultData.builder().url("http://i.test.com/a.jpg").state(State.DOWNLOADED)
+                .sizeInBytes(10).build();
+        final ResultData error = ResultData.builder().url("http://i.test.com/b.jpg").state(State.ERROR).build();
+
+        try (final ResultWriter writer = this.fileUtils.openResultWriter(output.getPath())) {
+            writer.write(downloaded);
+            writer.write(error);
+        }
+
+        Assert.assertEquals(downloaded.toString() + error.toString(),
+                new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_generateFileLocation_isShardedWithFixedLengthNames() throws IOException {
+        final File repository = new File("repo");
+        final File location = this.fileUtils.generateFileLocation(repository,
+                new URL("http://i.test.com/" + StringUtils.repeat("long-path/", 100) + "image.jpg"));
+        final File other = this.fileUtils.generateFileLocation(repository, new URL("http://i.test.com/image.jpg"));
+
+        Assert.assertEquals(64, location.getName().length());
+        Assert.assertEquals(64, other.getName().length());
+        Assert.assertNotEquals(location, other);
+        Assert.assertEquals(location.getName().substring(2, 4), location.getParentFile().getName());
+        Assert.assertEquals(location.getName().substring(0, 2), location.getParentFile().getParentFile().getName());
+        Assert.assertEquals(repository, location.getParentFile().getParentFile().getParentFile());
+    }
+
+    @Test
+    public void test_deleteResourceOnDisk_keepsShardDirectory() throws IOException {
+        final File location = this.fileUtils.generateFileLocation(this.tempFolder.getRoot(),
+                new URL("http://i.test.com/image.jpg"));
+        Files.createDirectories(location.getParentFile().toPath());
+        Files.write(location.toPath(), new byte[10]);
+
+        Assert.assertEquals(10, this.fileUtils.deleteResourceOnDisk(location));
+        Assert.assertFalse(location.exists());
+        Assert.assertTrue(location.getParentFile().isDirectory());
     }
 }
\ No newline at end of file
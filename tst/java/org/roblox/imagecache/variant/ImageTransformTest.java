@@ -0,0 +1,69 @@
+package org.roblox.imagecache.variant;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ImageTransformTest {
+
+    @Test
+    public void testParseIsCanonical() {
+        final ImageTransform transform = ImageTransform.parse("q=0.5, f=JPG,w=100");
+
+        Assert.assertEquals(ImageTransform.parse("w=100,f=jpeg,q=0.50"), transform);
+        Assert.assertEquals("w=100,h=0,f=jpeg,q=0.50", transform.toSpec());
+        Assert.assertEquals("http://i.test.com/a.png#imagecache-variant=w=100,h=0,f=jpeg,q=0.50",
+                transform.keyOf("http://i.test.com/a.png"));
+        Assert.assertEquals("http://i.test.com/a.png",
+                ImageTransform.originalKeyOf(transform.keyOf("http://i.test.com/a.png")));
+        Assert.assertNull(ImageTransform.originalKeyOf("http://i.test.com/a.png"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransformNeedsBoundingBoxOrFormat() {
+        ImageTransform.parse("q=0.5");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormatIsRejected() {
+        ImageTransform.parse("w=10,f=webp");
+    }
+
+    @Test
+    public void testScaleKeepsAspectRatioAndNeverScalesUp() {
+        final BufferedImage image = new BufferedImage(1000, 250, BufferedImage.TYPE_INT_ARGB);
+
+        final BufferedImage thumbnail = ImageTransformer.scale(image, ImageTransform.parse("w=100,h=100"), true);
+        final BufferedImage unscaled = ImageTransformer.scale(image, ImageTransform.parse("w=2000"), false);
+
+        Assert.assertEquals(100, thumbnail.getWidth());
+        Assert.assertEquals(25, thumbnail.getHeight());
+        Assert.assertTrue(thumbnail.getColorModel().hasAlpha());
+        Assert.assertEquals(1000, unscaled.getWidth());
+        Assert.assertEquals(250, unscaled.getHeight());
+        Assert.assertFalse(unscaled.getColorModel().hasAlpha());
+    }
+
+    @Test
+    public void testImagesWithMorePixelsThanAllowedAreNotDecoded() throws IOException {
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(200, 100, BufferedImage.TYPE_INT_RGB), "png", png);
+        final ByteBuffer image = ByteBuffer.wrap(png.toByteArray());
+
+        final byte[] variant = new ImageTransformer(200 * 100).transform(image, ImageTransform.parse("w=50"));
+
+        Assert.assertEquals(50, ImageIO.read(new ByteArrayInputStream(variant)).getWidth());
+        try {
+            new ImageTransformer(200 * 100 - 1).transform(image, ImageTransform.parse("w=50"));
+            Assert.fail("Image with more pixels than allowed was decoded");
+        } catch (final IOException e) {
+            Assert.assertTrue(e.getMessage().contains("200x100"));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.roblox.imagecache.warmup;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.roblox.imagecache.TestOrigin;
+import org.roblox.imagecache.cache.DownloadManager;
+import org.roblox.imagecache.cache.KeepAliveHttpTransport;
+import org.roblox.imagecache.cache.LRUCacheManager;
+import org.roblox.imagecache.types.State;
+import org.roblox.imagecache.utils.FileIOUtils;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+public class CacheWarmerTest {
+    private static final int RESOURCE_SIZE = 1024;
+    private static final long CAPACITY = 10 * RESOURCE_SIZE;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public TestOrigin origin = new TestOrigin();
+
+    private LRUCacheManager cache;
+
+    @Before
+    public void setUp() throws IOException {
+        this.origin.handle("/img/", exchange -> TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK,
+                new byte[RESOURCE_SIZE]));
+        this.origin.handle("/big/", exchange -> TestOrigin.respond(exchange, HttpURLConnection.HTTP_OK,
+                new byte[3 * RESOURCE_SIZE]));
+        this.origin.handle("/missing/", exchange -> TestOrigin.respond(exchange, HttpURLConnection.HTTP_NOT_FOUND,
+                new byte[0]));
+        this.cache = new LRUCacheManager(CAPACITY, 16, this.tempFolder.getRoot().getAbsolutePath(),
+                new FileIOUtils(), new DownloadManager(new KeepAliveHttpTransport()));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        this.cache.close();
+    }
+
+    @Test
+    public void testWarmUpPrefetchesManifest() throws IOException {
+        final List<WarmUpReport> reports = new CopyOnWriteArrayList<>();
+        final CacheWarmer warmer = new CacheWarmer(this.cache, WarmUpConfiguration.builder()
+                .concurrency(1).targetFillRatio(1).progressListener(reports::add).build());
+
+        final WarmUpReport report = warmer.warmUp(Arrays.asList("# popular images", url("/img/a.jpg"), "",
+                url("/img/b.jpg") + " 1024", url("/img/a.jpg"), url("/missing/c.jpg")).iterator());
+
+        Assert.assertEquals(4, report.getSubmitted());
+        Assert.assertEquals(2, report.getDownloaded());
+        Assert.assertEquals(1, report.getCached());
+        Assert.assertEquals(1, report.getFailed());
+        Assert.assertEquals(4, report.getCompleted());
+        Assert.assertEquals(2 * RESOURCE_SIZE, report.getDownloadedBytes());
+        Assert.assertFalse(report.isTargetFillReached());
+        Assert.assertEquals(report.getCompleted(), reports.get(reports.size() - 1).getCompleted());
+        // warm-up is neither counted as hits nor as misses
+        Assert.assertEquals(0, this.cache.getCacheMissCounter());
+        Assert.assertEquals(State.CACHE, this.cache.load(url("/img/a.jpg")).getState());
+        Assert.assertEquals(State.CACHE, this.cache.load(url("/img/b.jpg")).getState());
+    }
+
+    @Test
+    public void testWarmUpStopsAtTargetFill() {
+        final CacheWarmer warmer = new CacheWarmer(this.cache, WarmUpConfiguration.builder()
+                .concurrency(1).targetFillRatio(0.5).build());
+
+        final WarmUpReport report = warmer.warmUp(manifest(10).iterator());
+
+        Assert.assertTrue(report.isTargetFillReached());
+        Assert.assertEquals(5, report.getSubmitted());
+        Assert.assertEquals(5, report.getDownloaded());
+        Assert.assertEquals(5 * RESOURCE_SIZE, this.cache.getCurrentSizeInBytes());
+        Assert.assertEquals(5, this.origin.getRequests());
+    }
+
+    @Test
+    public void testWarmUpDoesNotEvictCachedEntries() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            this.cache.load(url("/img/hot" + i + ".jpg"));
+        }
+        final List<String> manifest = new ArrayList<>(manifest(5));
+        manifest.add(url("/big/0.jpg"));
+        manifest.add(url("/img/last.jpg"));
+        final CacheWarmer warmer = new CacheWarmer(this.cache, WarmUpConfiguration.builder()
+                .concurrency(1).targetFillRatio(1).build());
+
+        final WarmUpReport report = warmer.warmUp(manifest.iterator());
+
+        // the large image does not fit in the remaining capacity, the last one does
+        Assert.assertEquals(6, report.getDownloaded());
+        Assert.assertEquals(1, report.getSkipped());
+        Assert.assertEquals(CAPACITY, this.cache.getCurrentSizeInBytes());
+        Assert.assertEquals(0, this.cache.getCacheEvictionCounter());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(State.CACHE, this.cache.load(url("/img/hot" + i + ".jpg")).getState());
+        }
+        // a load evicts as usual to make room for the image that was skipped
+        Assert.assertEquals(State.DOWNLOADED, this.cache.load(url("/big/0.jpg")).getState());
+    }
+
+    @Test
+    public void testDownloadsOfHostAreRateLimited() {
+        final CacheWarmer warmer = new CacheWarmer(this.cache, WarmUpConfiguration.builder()
+                .concurrency(4).targetFillRatio(1).requestsPerSecondPerHost(10).build());
+        final long start = System.nanoTime();
+
+        final WarmUpReport report = warmer.warmUp(manifest(6).iterator());
+
+        // the first download starts right away and every further one a tenth of a second after the previous one
+        Assert.assertEquals(6, report.getDownloaded());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTargetFillRatioIsValidated() {
+        new CacheWarmer(this.cache, WarmUpConfiguration.builder().targetFillRatio(1.5).build());
+    }
+
+    private List<String> manifest(final int size) {
+        final List<String> urls = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            urls.add(url("/img/" + i + ".jpg"));
+        }
+        return urls;
+    }
+
+    private String url(final String path) {
+        return this.origin.url(path);
+    }
+}